@@ -10,9 +10,13 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 
+import java.io.File;
+
 import amplastudio.csvgenerator.adapter.ScreenSlidePagerAdapter;
+import amplastudio.csvgenerator.db.AppDataBase;
 import amplastudio.csvgenerator.folderchooser.FolderChooserActivity;
 import amplastudio.csvgenerator.fragments.SerialStreamFragment;
+import amplastudio.csvgenerator.fragments.adapter.SerialMonitorRecyclerViewAdapter;
 import amplastudio.csvgenerator.fragments.bluetooth.communicator.BluetoothCommunicator;
 
 public class MainActivity extends AppCompatActivity {
@@ -37,6 +41,8 @@ public class MainActivity extends AppCompatActivity {
     @Override
     public void onResume(){
         BluetoothCommunicator.getInstance().register(this);
+        /* received lines are journaled where they are exported, so exporting is a rename */
+        BluetoothCommunicator.getInstance().setJournalDirectory(new File(AppDataBase.getInstance(this).getExportFileLocation()));
         super.onResume();
 
     }
@@ -63,6 +69,11 @@ public class MainActivity extends AppCompatActivity {
         MenuInflater inflater = getMenuInflater();
         inflater.inflate(R.menu.menu_main, menu);
 
+        menu.findItem(R.id.menu_main_monitorLatest).setTitle(getString(R.string.menu_main_monitorLatest,
+                SerialMonitorRecyclerViewAdapter.DEFAULT_LATEST_LINE_COUNT));
+        menu.findItem(R.id.menu_main_monitorSampled).setTitle(getString(R.string.menu_main_monitorSampled,
+                SerialMonitorRecyclerViewAdapter.DEFAULT_SAMPLE_INTERVAL));
+
         viewPager = (ViewPager) findViewById(R.id.activity_main_viewpager);
         pagerAdapter = new ScreenSlidePagerAdapter(getSupportFragmentManager());
         viewPager.setAdapter(pagerAdapter);
@@ -83,6 +94,25 @@ public class MainActivity extends AppCompatActivity {
             displayEnableBluetoothMenuIcon();
         }
 
+        SerialStreamFragment serialFragment = (SerialStreamFragment) pagerAdapter
+                .getFragmentFromPosition(ScreenSlidePagerAdapter.POSITION_FRAGMENT_SERIAL_MONITOR);
+
+        if(serialFragment != null){
+            menu.findItem(R.id.menu_main_followTail).setChecked(serialFragment.isFollowingTail());
+            menu.findItem(R.id.menu_main_showMetrics).setChecked(serialFragment.isMetricsOverlayVisible());
+
+            switch (serialFragment.getMonitorMode()){
+                case LATEST:
+                    menu.findItem(R.id.menu_main_monitorLatest).setChecked(true);
+                    break;
+                case SAMPLED:
+                    menu.findItem(R.id.menu_main_monitorSampled).setChecked(true);
+                    break;
+                default:
+                    menu.findItem(R.id.menu_main_monitorAll).setChecked(true);
+            }
+        }
+
         return super.onPrepareOptionsMenu(menu);
     }
 
@@ -116,6 +146,44 @@ public class MainActivity extends AppCompatActivity {
 
                 break;
 
+            case R.id.menu_main_showMetrics:
+
+                serialFragment = (SerialStreamFragment) pagerAdapter
+                        .getFragmentFromPosition(ScreenSlidePagerAdapter.POSITION_FRAGMENT_SERIAL_MONITOR);
+
+                serialFragment.setMetricsOverlayVisible(!serialFragment.isMetricsOverlayVisible());
+                menuItem.setChecked(serialFragment.isMetricsOverlayVisible());
+
+                break;
+
+            case R.id.menu_main_followTail:
+
+                serialFragment = (SerialStreamFragment) pagerAdapter
+                        .getFragmentFromPosition(ScreenSlidePagerAdapter.POSITION_FRAGMENT_SERIAL_MONITOR);
+
+                serialFragment.setFollowingTail(!serialFragment.isFollowingTail());
+                menuItem.setChecked(serialFragment.isFollowingTail());
+
+                break;
+
+            case R.id.menu_main_monitorAll:
+            case R.id.menu_main_monitorLatest:
+            case R.id.menu_main_monitorSampled:
+
+                serialFragment = (SerialStreamFragment) pagerAdapter
+                        .getFragmentFromPosition(ScreenSlidePagerAdapter.POSITION_FRAGMENT_SERIAL_MONITOR);
+
+                if(menuItem.getItemId() == R.id.menu_main_monitorLatest)
+                    serialFragment.setMonitorMode(SerialMonitorRecyclerViewAdapter.DisplayMode.LATEST);
+                else if(menuItem.getItemId() == R.id.menu_main_monitorSampled)
+                    serialFragment.setMonitorMode(SerialMonitorRecyclerViewAdapter.DisplayMode.SAMPLED);
+                else
+                    serialFragment.setMonitorMode(SerialMonitorRecyclerViewAdapter.DisplayMode.ALL);
+
+                menuItem.setChecked(true);
+
+                break;
+
             case R.id.menu_main_clearMonitor:
 
                 serialFragment = (SerialStreamFragment) pagerAdapter
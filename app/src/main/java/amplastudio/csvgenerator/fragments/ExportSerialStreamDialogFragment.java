@@ -5,6 +5,8 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.StatFs;
 import android.support.annotation.NonNull;
 import android.support.v7.app.AlertDialog;
@@ -12,34 +14,85 @@ import android.support.v7.app.AppCompatDialogFragment;
 import android.util.Log;
 import android.view.View;
 import android.widget.EditText;
+import android.widget.ProgressBar;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Array;
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.List;
 
 import amplastudio.csvgenerator.R;
 import amplastudio.csvgenerator.db.AppDataBase;
 import amplastudio.csvgenerator.fragments.bluetooth.communicator.BluetoothCommunicator;
+import amplastudio.csvgenerator.stream.CaptureHub;
+import amplastudio.csvgenerator.stream.export.CsvMerger;
+import amplastudio.csvgenerator.stream.export.ExportJob;
+import amplastudio.csvgenerator.stream.export.Exporter;
+import amplastudio.csvgenerator.stream.export.LineExporter;
+import amplastudio.csvgenerator.stream.journal.SessionJournal;
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
 
 /**
  * Dialog that displays an edittext to receive a file name and export the content returned by {@link BluetoothCommunicator#getHeldData()} to default file location.
+ * When devices were added to {@link BluetoothCommunicator#getCaptureHub()}, their lines are merged with it by receive time
+ * into a single CSV, see {@link CsvMerger}.
+ * The export runs in background as an {@link ExportJob} while the dialog shows its progress, capture goes on meanwhile.
+ * The negative button cancels it; the dialog is retained across configuration changes so the job is not lost.
+ * Once capture is over, a journal of the capture is finalized into the file instead, see {@link BluetoothCommunicator#finishJournal(File)}.
  */
-public class ExportSerialStreamDialogFragment extends AppCompatDialogFragment implements DialogInterface.OnClickListener, DialogInterface.OnShowListener, View.OnClickListener{
+public class ExportSerialStreamDialogFragment extends AppCompatDialogFragment implements DialogInterface.OnClickListener,
+        DialogInterface.OnShowListener, View.OnClickListener, ExportJob.Listener{
+
+    private static final double BYTES_PER_MEGABYTE = 1024.0 * 1024.0;
+
+    /**
+     * Name of the lines of {@link BluetoothCommunicator#getHeldData()} in a merged export.
+     */
+    private static final String TERMINAL_SOURCE_NAME = "terminal";
+
+    /**
+     * Receives the callbacks of the job, which run on its own thread, on the main thread.
+     */
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
     private AlertDialog alertDialog;
     private EditText fileNameEditText;
+    private ProgressBar progressBar;
+    private TextView progressText;
+
+    /**
+     * Export running, null if none. Kept across configuration changes with the retained instance.
+     */
+    private ExportJob exportJob = null;
+
+    /**
+     * True from the start of an export until it ends, either an {@link #exportJob} or a journal being finalized.
+     */
+    private boolean isExporting = false;
+
+    /**
+     * Shows the end of the export even if the dialog is gone by then.
+     */
+    private Context applicationContext;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState){
+        super.onCreate(savedInstanceState);
+        setRetainInstance(true);
+        applicationContext = getContext().getApplicationContext();
+    }
 
     @Override
     public @NonNull Dialog onCreateDialog(Bundle savedInstanceState){
 
-        View v = getActivity().getLayoutInflater().inflate(R.layout.dialog_fragment_edittext, null);
-        fileNameEditText = (EditText) v.findViewById(R.id.dialog_fragment_edittext_edittext);
+        View v = getActivity().getLayoutInflater().inflate(R.layout.dialog_fragment_export, null);
+        fileNameEditText = (EditText) v.findViewById(R.id.dialog_fragment_export_edittext);
         fileNameEditText.setHint(getResources().getString(R.string.dialog_export_terminal_stream_edittext_hint));
+        progressBar = (ProgressBar) v.findViewById(R.id.dialog_fragment_export_progressbar);
+        progressText = (TextView) v.findViewById(R.id.dialog_fragment_export_progress);
 
         AlertDialog.Builder builder = new AlertDialog.Builder(getContext())
                 .setView(v)
@@ -54,12 +107,33 @@ public class ExportSerialStreamDialogFragment extends AppCompatDialogFragment im
 
     @Override
     public void onShow(DialogInterface dialog){
+
         alertDialog.getButton(DialogInterface.BUTTON_POSITIVE).setOnClickListener(this);
+
+        /* cancels the export rather than dismissing the dialog, which is dismissed once the job ends */
+        alertDialog.getButton(DialogInterface.BUTTON_NEGATIVE).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if(exportJob != null) exportJob.cancel();
+                else if(!isExporting) dismiss();
+            }
+        });
+
+        if(isExporting) displayExporting();
+    }
+
+    @Override
+    public void onDestroyView(){
+        /* a retained dialog fragment is dismissed on rotation unless its dismiss message is cleared */
+        if(getDialog() != null && getRetainInstance()) getDialog().setDismissMessage(null);
+        super.onDestroyView();
     }
 
     @Override
     public void onClick(View v) {
 
+        if(isExporting) return;
+
         String name = fileNameEditText.getText().toString();
 
         if(name.equals("")){
@@ -68,68 +142,201 @@ public class ExportSerialStreamDialogFragment extends AppCompatDialogFragment im
             return;
         }
 
-        export(name);
-        dismiss();
+        if(!export(name)) dismiss();
     }
 
-    /* Is here only because it is needed to create positive and negative buttons. Positive button click listener is implemented in onClick(View) */
+    /* Is here only because it is needed to create positive and negative buttons. Button click listeners are set in onShow(DialogInterface) */
     @Override
     public void onClick(DialogInterface dialog, int which) {}
 
     /**
-     * Exports the file to default file location
+     * Starts exporting to a file in default file location. Lines are streamed from the stores to the file through a
+     * single buffer, see {@link LineExporter}.
      * @param fileName File name to export
+     * @return True if the export started, false if there was nothing to export or the file could not be created
      */
-    private void export(@NonNull String fileName){
+    private boolean export(@NonNull String fileName){
 
-        StringBuilder builder = new StringBuilder();
-        ArrayList<String> receivedData = BluetoothCommunicator.getInstance().getHeldData();
+        LineRingBuffer receivedData = BluetoothCommunicator.getInstance().getHeldData();
+        List<CaptureHub.Device> devices = BluetoothCommunicator.getInstance().getCaptureHub().getDevices();
         String fileLocation = AppDataBase.getInstance(getContext()).getExportFileLocation();
+        boolean isEmpty = receivedData.isEmpty();
+        Exporter exporter;
 
-        if(receivedData.size() == 0){
+        if(!devices.isEmpty()){ // merges the terminal and the devices of the capture hub by receive time
+
+            CsvMerger.Builder builder = new CsvMerger.Builder()
+                    .addSource(TERMINAL_SOURCE_NAME, receivedData);
+
+            for(CaptureHub.Device device : devices){
+                LineRingBuffer lines = device.getSession().getHeldData();
+                if(lines == null) continue; // records are exported on their own
+                builder.addSource(device.getName(), lines);
+                isEmpty &= lines.isEmpty();
+            }
+
+            exporter = builder.build();
+        }
+
+        else exporter = new LineExporter(receivedData);
+
+        if(isEmpty){
             //nothing to export
             Toast.makeText(getContext(), getResources().getString(R.string.file_export_nothing), Toast.LENGTH_SHORT).show();
-            return;
+            return false;
         }
 
-        synchronized (receivedData){ /* locks received data since another thread is updating this list */
-            Iterator i = receivedData.iterator();
-            while(i.hasNext()) {
-                builder.append(i.next());
-                builder.append(System.getProperty("line.separator"));
-            }
-        }
+        File file = new File(fileLocation + File.separator + fileName);
 
-        try {
-            File file = new File(fileLocation + File.separator + fileName);
-            file.setReadable(true, false);
-            file.setWritable(true, false);
-            file.setExecutable(false);
+        /* the journal is only finished when it holds every line shown, else the held lines are written as they are */
+        if(devices.isEmpty() && BluetoothCommunicator.getInstance().canFinishJournal()){
 
-            byte[] outputData = builder.toString().getBytes();
+            if(file.exists()){ // file already exists, abort
+                Toast.makeText(getContext(), getResources().getString(R.string.file_to_export_exists), Toast.LENGTH_SHORT).show();
+                return false;
+            }
 
-            /*if(!hasEnoughSpace(file, outputData)){
-                Toast.makeText(getContext(), getResources().getString(R.string.file_export_not_enough_space), Toast.LENGTH_LONG).show();
-                return;
-            }*/
+            finishJournal(file);
+            return true;
+        }
 
+        try {
             if(!file.createNewFile()){ // file already exists, abort
                 Toast.makeText(getContext(), getResources().getString(R.string.file_to_export_exists), Toast.LENGTH_SHORT).show();
-                return;
+                return false;
             }
 
-            FileOutputStream outputStream = new FileOutputStream(file);
-            outputStream.write(outputData);
-            outputStream.flush();
-            outputStream.close();
+            setPermissions(file);
 
         } catch(IOException e){
             e.printStackTrace();
+            Toast.makeText(getContext(), getResources().getString(R.string.file_export_failed), Toast.LENGTH_SHORT).show();
+            return false;
         }
 
-        Toast.makeText(getContext(), getResources().getString(R.string.file_exported)
-                + fileLocation + File.separator + fileName,Toast.LENGTH_LONG).show();
+        /* reads the lines held right now without stopping the capture, which keeps publishing new ones */
+        exportJob = new ExportJob(exporter, file, System.getProperty("line.separator"), this);
+        exportJob.start();
 
+        isExporting = true;
+        displayExporting();
+        return true;
+
+    }
+
+    /**
+     * Finalizes the journal of the capture into the file on a thread of its own, which cannot be cancelled.
+     * @param file File to export, must not exist
+     */
+    private void finishJournal(final File file){
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    SessionJournal journal = BluetoothCommunicator.getInstance().finishJournal(file);
+
+                    if(journal != null) setPermissions(file);
+
+                    if(journal == null){
+                        endExport(applicationContext.getResources().getString(R.string.file_export_nothing));
+                    }else if(journal.getMissedCount() > 0){ // the file holds gap markers where lines are missing
+                        endExport(applicationContext.getResources().getString(R.string.file_export_missed,
+                                file.getAbsolutePath(), journal.getMissedCount()));
+                    }else{
+                        endExport(applicationContext.getResources().getString(R.string.file_exported) + file.getAbsolutePath());
+                    }
+                }catch(IOException e){
+                    onExportFailed(null, e);
+                }catch(InterruptedException e){
+                    endExport(applicationContext.getResources().getString(R.string.file_export_cancelled));
+                }
+            }
+        }, "FinishJournal").start();
+
+        isExporting = true;
+        displayExporting();
+
+    }
+
+    /**
+     * Lets every app read and write the exported file.
+     * @param file File exported
+     */
+    private static void setPermissions(File file){
+        file.setReadable(true, false);
+        file.setWritable(true, false);
+        file.setExecutable(false);
+    }
+
+    /**
+     * Replaces the file name by the progress of the export, which can only be cancelled from now on. Finalizing a journal
+     * shows no progress and cannot be cancelled.
+     */
+    private void displayExporting(){
+
+        setCancelable(false);
+        alertDialog.setTitle(getResources().getString(R.string.dialog_export_terminal_stream_title_exporting));
+        alertDialog.getButton(DialogInterface.BUTTON_POSITIVE).setVisibility(View.GONE);
+        fileNameEditText.setVisibility(View.GONE);
+        progressBar.setVisibility(View.VISIBLE);
+        progressBar.setIndeterminate(exportJob == null);
+        progressText.setVisibility(View.VISIBLE);
+        alertDialog.getButton(DialogInterface.BUTTON_NEGATIVE).setEnabled(exportJob != null);
+
+    }
+
+    @Override
+    public void onExportProgress(ExportJob job, final long lineCount, final long byteCount, final long totalLines) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+
+                if(progressBar == null || !isAdded()) return;
+
+                progressBar.setProgress(totalLines == 0 ? 0 : (int) Math.min(1000, lineCount * 1000 / totalLines));
+                progressText.setText(getResources().getString(R.string.dialog_export_terminal_stream_progress,
+                        lineCount, totalLines, byteCount / BYTES_PER_MEGABYTE));
+
+            }
+        });
+    }
+
+    @Override
+    public void onExportFinished(final ExportJob job, final ExportJob.Summary summary) {
+        endExport(applicationContext.getResources().getString(R.string.file_export_summary, summary.getLineCount(),
+                summary.getByteCount() / BYTES_PER_MEGABYTE, summary.getDurationMillis() / 1000.0,
+                summary.getMegabytesPerSecond(), job.getFile().getAbsolutePath()));
+    }
+
+    @Override
+    public void onExportCancelled(ExportJob job) {
+        endExport(applicationContext.getResources().getString(R.string.file_export_cancelled));
+    }
+
+    @Override
+    public void onExportFailed(ExportJob job, IOException cause) {
+        Log.e(ExportSerialStreamDialogFragment.class.getSimpleName(), "export failed", cause);
+        endExport(applicationContext.getResources().getString(R.string.file_export_failed));
+    }
+
+    /**
+     * Shows how the export ended and dismisses the dialog, on the main thread.
+     * @param message Message shown
+     */
+    private void endExport(final String message){
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+
+                exportJob = null;
+                isExporting = false;
+                Toast.makeText(applicationContext, message, Toast.LENGTH_LONG).show();
+
+                if(isAdded()) dismissAllowingStateLoss();
+
+            }
+        });
     }
 
     /**
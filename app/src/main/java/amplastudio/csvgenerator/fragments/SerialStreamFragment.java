@@ -5,6 +5,8 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v4.app.Fragment;
 import android.support.v7.widget.DefaultItemAnimator;
@@ -16,6 +18,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import amplastudio.csvgenerator.MainActivity;
@@ -23,11 +26,16 @@ import amplastudio.csvgenerator.R;
 import amplastudio.csvgenerator.fragments.adapter.SerialMonitorRecyclerViewAdapter;
 import amplastudio.csvgenerator.fragments.bluetooth.BluetoothDeviceChooserDialogFragment;
 import amplastudio.csvgenerator.fragments.bluetooth.communicator.BluetoothCommunicator;
+import amplastudio.csvgenerator.stream.BatchRange;
+import amplastudio.csvgenerator.stream.metrics.LatencyHistogram;
+import amplastudio.csvgenerator.stream.metrics.LatencyProbe;
+import amplastudio.csvgenerator.stream.metrics.PipelineMetrics;
 
 /**
  * Handles the serial monitor and edittext that receives string to be sent to a bluetooth device
  */
-public class SerialStreamFragment extends Fragment implements Button.OnClickListener, BluetoothCommunicator.Callback {
+public class SerialStreamFragment extends Fragment implements Button.OnClickListener, BluetoothCommunicator.Callback,
+        SerialMonitorRecyclerViewAdapter.Listener {
 
     /**
      * Request code for activity result.
@@ -39,7 +47,41 @@ public class SerialStreamFragment extends Fragment implements Button.OnClickList
      */
     private static final String KEY_IS_CONNECTING = "bundle_connecting";
 
+    /**
+     * Identifies {@link #isMetricsOverlayVisible} in Bundle
+     */
+    private static final String KEY_IS_METRICS_OVERLAY_VISIBLE = "bundle_metrics_overlay_visible";
+
+    /**
+     * Time, in milliseconds, between two refreshes of the metrics overlay.
+     */
+    private static final long METRICS_REFRESH_INTERVAL_MILLIS = 500;
+
+    /**
+     * Identifies {@link #isFollowingTail} in Bundle
+     */
+    private static final String KEY_IS_FOLLOWING_TAIL = "bundle_following_tail";
+
+    /**
+     * Highest line rate, in lines per second, at which new rows are animated. Faster streams are displayed without
+     * animations, which would otherwise run on every frame.
+     */
+    private static final int ANIMATED_MAX_LINES_PER_SECOND = 10;
+
+    /**
+     * Identifies {@link #getMonitorMode()} in Bundle
+     */
+    private static final String KEY_MONITOR_MODE = "bundle_monitor_mode";
+
+    /**
+     * Time, in milliseconds, between two refreshes of the hidden lines indicator.
+     */
+    private static final long HIDDEN_REFRESH_INTERVAL_MILLIS = 1000;
+
     private View connectingInfoHolder;
+    private TextView connectingInfoText;
+    private TextView metricsOverlay;
+    private TextView hiddenIndicator;
     private EditText serialEditText;
     private FloatingActionButton sendSerialButton;
     private BluetoothCommunicator communicator;
@@ -51,6 +93,49 @@ public class SerialStreamFragment extends Fragment implements Button.OnClickList
 
     private boolean isConnecting = false;
 
+    private boolean isMetricsOverlayVisible = false;
+
+    /**
+     * True while the monitor scrolls to every new line. Scrolling up stops it, scrolling back to the last line resumes it.
+     */
+    private boolean isFollowingTail = true;
+
+    /**
+     * Start, in {@link SystemClock#uptimeMillis()}, and number of lines displayed of the second measuring the line rate.
+     */
+    private long lineRateWindowStart = 0;
+    private int lineRateWindowCount = 0;
+
+    /**
+     * Lines the monitor mode did not display since {@link #hiddenWindowStart}, in {@link SystemClock#uptimeMillis()}.
+     */
+    private long hiddenCount = 0;
+    private long hiddenWindowStart = 0;
+
+    private final Handler metricsHandler = new Handler();
+
+    /**
+     * Samples the communicator metrics into the overlay while it is visible.
+     */
+    private final Runnable metricsRefresher = new Runnable() {
+        @Override
+        public void run() {
+            updateMetricsOverlay();
+            metricsHandler.postDelayed(this, METRICS_REFRESH_INTERVAL_MILLIS);
+        }
+    };
+
+    /**
+     * Samples the rate of lines hidden by the monitor mode into the indicator while it is visible.
+     */
+    private final Runnable hiddenRefresher = new Runnable() {
+        @Override
+        public void run() {
+            updateHiddenIndicator();
+            metricsHandler.postDelayed(this, HIDDEN_REFRESH_INTERVAL_MILLIS);
+        }
+    };
+
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState){
@@ -65,6 +150,9 @@ public class SerialStreamFragment extends Fragment implements Button.OnClickList
         sendSerialButton = (FloatingActionButton) layoutView.findViewById(R.id.fragment_serial_stream_button_sendSerial);
         serialMonitorRecyclerView = (RecyclerView) layoutView.findViewById(R.id.fragment_serial_stream_recyclerview_serialMonitor);
         connectingInfoHolder = layoutView.findViewById(R.id.fragment_serial_stream_connecting_holder);
+        connectingInfoText = (TextView) layoutView.findViewById(R.id.fragment_serial_stream_connecting_text);
+        metricsOverlay = (TextView) layoutView.findViewById(R.id.fragment_serial_stream_metrics_overlay);
+        hiddenIndicator = (TextView) layoutView.findViewById(R.id.fragment_serial_stream_hidden_indicator);
 
         assert serialEditText != null;
         assert sendSerialButton != null;
@@ -77,15 +165,33 @@ public class SerialStreamFragment extends Fragment implements Button.OnClickList
             serialMonitorRecyclerView.setLayoutManager(linearLayoutManager);
             serialMonitorRecyclerView.setItemAnimator(new DefaultItemAnimator());
             serialMonitorRecyclerViewAdapter = new SerialMonitorRecyclerViewAdapter();
+            serialMonitorRecyclerViewAdapter.setListener(this);
             serialMonitorRecyclerView.setAdapter(serialMonitorRecyclerViewAdapter);
+            serialMonitorRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+                @Override
+                public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                    if(dy < 0) setFollowingTail(false); /* only the user scrolls up */
+                    else if(dy > 0 && linearLayoutManager.findLastCompletelyVisibleItemPosition()
+                            == serialMonitorRecyclerViewAdapter.getItemCount() - 1) setFollowingTail(true);
+                }
+            });
         }
 
+        SerialMonitorRecyclerViewAdapter.DisplayMode monitorMode = SerialMonitorRecyclerViewAdapter.DisplayMode.ALL;
+
         if(savedInstanceState != null){
             isConnecting = savedInstanceState.getBoolean(KEY_IS_CONNECTING);
             if(isConnecting)
                 connectingInfoHolder.setVisibility(View.VISIBLE);
+            isMetricsOverlayVisible = savedInstanceState.getBoolean(KEY_IS_METRICS_OVERLAY_VISIBLE);
+            isFollowingTail = savedInstanceState.getBoolean(KEY_IS_FOLLOWING_TAIL, true);
+            if(savedInstanceState.getString(KEY_MONITOR_MODE) != null)
+                monitorMode = SerialMonitorRecyclerViewAdapter.DisplayMode.valueOf(savedInstanceState.getString(KEY_MONITOR_MODE));
         }
 
+        setMetricsOverlayVisible(isMetricsOverlayVisible);
+        setMonitorMode(monitorMode);
+
         return layoutView;
     }
 
@@ -96,6 +202,154 @@ public class SerialStreamFragment extends Fragment implements Button.OnClickList
         serialMonitorRecyclerViewAdapter.clearSerialList();
     }
 
+    /**
+     * Shows or hides the throughput, drops, latency and write queue depth of the connection over the monitor.
+     * @param visible True to show the overlay
+     */
+    public void setMetricsOverlayVisible(boolean visible){
+
+        isMetricsOverlayVisible = visible;
+        metricsHandler.removeCallbacks(metricsRefresher);
+
+        if(metricsOverlay == null) return; /* applied when the view is created */
+
+        metricsOverlay.setVisibility(visible ? View.VISIBLE : View.GONE);
+        if(visible) metricsHandler.post(metricsRefresher);
+
+    }
+
+    /**
+     *
+     * @return True if the metrics overlay is shown
+     */
+    public boolean isMetricsOverlayVisible(){
+        return isMetricsOverlayVisible;
+    }
+
+    private void updateMetricsOverlay(){
+
+        PipelineMetrics.Snapshot metrics = communicator.getMetrics().sample();
+        LatencyProbe probe = communicator.getLatencyProbe();
+
+        String text = getString(R.string.metrics_overlay,
+                metrics.getBytesPerSecond() / 1024,
+                metrics.getFramesPerSecond(),
+                metrics.getHeldCount(),
+                metrics.getDroppedLineCount() + metrics.getMalformedRecordCount(),
+                metrics.getOverwrittenLineCount(),
+                metrics.getLatencyP50Micros() / 1000f,
+                metrics.getLatencyP99Micros() / 1000f,
+                metrics.getLatencyMaxMicros() / 1000f,
+                metrics.getWriteQueueDepth(),
+                metrics.getMaxWriteQueueDepth(),
+                metrics.getRejectedCommandCount(),
+                metrics.getReconnectCount(),
+                metrics.getReconnectP50Millis(),
+                metrics.getReconnectMaxMillis());
+
+        if(probe != null){
+            LatencyHistogram roundTrip = probe.getRoundTripLatency();
+            text += getString(R.string.metrics_overlay_round_trip,
+                    roundTrip.getPercentile(50) / 1000f,
+                    roundTrip.getPercentile(99) / 1000f,
+                    roundTrip.getMax() / 1000f,
+                    probe.getLostCount());
+        }
+
+        metricsOverlay.setText(text);
+
+    }
+
+    /**
+     * Sets whether the monitor scrolls to every new line.
+     * @param following True to follow the last line
+     */
+    public void setFollowingTail(boolean following){
+
+        if(isFollowingTail == following) return;
+        isFollowingTail = following;
+
+        if(following && serialMonitorRecyclerViewAdapter.getItemCount() > 0)
+            serialMonitorRecyclerView.scrollToPosition(serialMonitorRecyclerViewAdapter.getItemCount() - 1);
+
+        if(getActivity() != null) getActivity().supportInvalidateOptionsMenu(); /* updates the menu check */
+    }
+
+    /**
+     *
+     * @return True if the monitor scrolls to every new line
+     */
+    public boolean isFollowingTail(){
+        return isFollowingTail;
+    }
+
+    /**
+     * Sets which of the lines received the monitor displays. Every line is still captured, the lines hidden per second are
+     * shown over the monitor unless every line is displayed.
+     * @param mode Lines displayed
+     */
+    public void setMonitorMode(SerialMonitorRecyclerViewAdapter.DisplayMode mode){
+
+        serialMonitorRecyclerViewAdapter.setDisplayMode(mode);
+
+        metricsHandler.removeCallbacks(hiddenRefresher);
+        hiddenCount = 0;
+        hiddenWindowStart = SystemClock.uptimeMillis();
+
+        if(hiddenIndicator == null) return;
+
+        boolean visible = mode != SerialMonitorRecyclerViewAdapter.DisplayMode.ALL;
+        hiddenIndicator.setVisibility(visible ? View.VISIBLE : View.GONE);
+        if(visible) metricsHandler.post(hiddenRefresher);
+
+    }
+
+    /**
+     *
+     * @return Lines the monitor displays
+     */
+    public SerialMonitorRecyclerViewAdapter.DisplayMode getMonitorMode(){
+        return serialMonitorRecyclerViewAdapter.getDisplayMode();
+    }
+
+    private void updateHiddenIndicator(){
+
+        long now = SystemClock.uptimeMillis();
+        float linesPerSecond = now > hiddenWindowStart ? hiddenCount * 1000f / (now - hiddenWindowStart) : 0;
+
+        hiddenIndicator.setText(getString(R.string.monitor_hidden_indicator, linesPerSecond));
+
+        hiddenCount = 0;
+        hiddenWindowStart = now;
+
+    }
+
+    @Override
+    public void onLinesDisplayed(int count, long hiddenCount) {
+
+        this.hiddenCount += hiddenCount;
+
+        long now = SystemClock.uptimeMillis();
+
+        if(now - lineRateWindowStart >= 1000){
+            if(lineRateWindowCount <= ANIMATED_MAX_LINES_PER_SECOND) setItemAnimationsEnabled(true);
+            lineRateWindowStart = now;
+            lineRateWindowCount = 0;
+        }
+
+        lineRateWindowCount += count;
+        if(lineRateWindowCount > ANIMATED_MAX_LINES_PER_SECOND) setItemAnimationsEnabled(false);
+
+        if(isFollowingTail && serialMonitorRecyclerViewAdapter.getItemCount() > 0)
+            serialMonitorRecyclerView.scrollToPosition(serialMonitorRecyclerViewAdapter.getItemCount() - 1);
+
+    }
+
+    private void setItemAnimationsEnabled(boolean enabled){
+        if(enabled == (serialMonitorRecyclerView.getItemAnimator() != null)) return;
+        serialMonitorRecyclerView.setItemAnimator(enabled ? new DefaultItemAnimator() : null);
+    }
+
     /**
      * Connect to a bluetooth device
      */
@@ -161,6 +415,16 @@ public class SerialStreamFragment extends Fragment implements Button.OnClickList
 
     }
 
+    @Override
+    public void onDestroyView(){
+        metricsHandler.removeCallbacks(metricsRefresher);
+        metricsHandler.removeCallbacks(hiddenRefresher);
+        metricsOverlay = null;
+        hiddenIndicator = null;
+        serialMonitorRecyclerViewAdapter.setListener(null);
+        super.onDestroyView();
+    }
+
     @Override
     public void onDestroy(){
         //communicator.disconnect();
@@ -170,6 +434,9 @@ public class SerialStreamFragment extends Fragment implements Button.OnClickList
     @Override
     public void onSaveInstanceState(Bundle outState){
         outState.putBoolean(KEY_IS_CONNECTING, isConnecting);
+        outState.putBoolean(KEY_IS_METRICS_OVERLAY_VISIBLE, isMetricsOverlayVisible);
+        outState.putBoolean(KEY_IS_FOLLOWING_TAIL, isFollowingTail);
+        outState.putString(KEY_MONITOR_MODE, getMonitorMode().name());
         super.onSaveInstanceState(outState);
     }
 
@@ -188,8 +455,7 @@ public class SerialStreamFragment extends Fragment implements Button.OnClickList
                 break;
 
             case BluetoothCommunicator.ACTION_DATA_RECEIVED:
-                serialMonitorRecyclerViewAdapter.notifyDataSetChanged();
-                serialMonitorRecyclerView.scrollToPosition(serialMonitorRecyclerViewAdapter.getItemCount() - 1);
+                serialMonitorRecyclerViewAdapter.onLinesReceived((BatchRange) action.getActionData()); /* displayed next frame */
                 break;
 
             case BluetoothCommunicator.ACTION_DEVICE_FOUND:
@@ -233,6 +499,12 @@ public class SerialStreamFragment extends Fragment implements Button.OnClickList
                 break;
 
             case BluetoothCommunicator.ACTION_CONNECTION_ATTEMPT:
+                connectingInfoText.setText(R.string.bluetooth_connection_connecting);
+                connectingInfoHolder.setVisibility(View.VISIBLE);
+                break;
+
+            case BluetoothCommunicator.ACTION_RECONNECTING:
+                connectingInfoText.setText(getString(R.string.bluetooth_connection_reconnecting, (Integer) action.getActionData()));
                 connectingInfoHolder.setVisibility(View.VISIBLE);
                 break;
 
@@ -0,0 +1,108 @@
+package amplastudio.csvgenerator.fragments.adapter;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+/**
+ * <p>Runs a task on the main thread at most once per display frame, however many times it is scheduled in between.</p>
+ * <p>Frames are timed by {@link Choreographer} from Jelly Bean, and approximated by a {@link Handler} delay of
+ * {@value #FALLBACK_FRAME_MILLIS} ms on older versions.</p>
+ */
+class FramePacer {
+
+    /**
+     * Delay between two runs when {@link Choreographer} is not available, in milliseconds.
+     */
+    static final long FALLBACK_FRAME_MILLIS = 16;
+
+    private final Runnable task;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /**
+     * {@link Choreographer.FrameCallback} running the task, null before Jelly Bean.
+     */
+    private final Object frameCallback;
+
+    private boolean isScheduled = false;
+
+    private final Runnable frame = new Runnable() {
+        @Override
+        public void run() {
+            isScheduled = false;
+            task.run();
+        }
+    };
+
+    /**
+     *
+     * @param task Task run on the frame following {@link #schedule()}
+     */
+    FramePacer(Runnable task){
+        this.task = task;
+        this.frameCallback = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN ? FrameCallbacks.create(frame) : null;
+    }
+
+    /**
+     * Runs the task on the next frame, unless it is already scheduled. Must be called on the main thread.
+     */
+    void schedule(){
+
+        if(isScheduled) return;
+        isScheduled = true;
+
+        if(frameCallback != null) FrameCallbacks.post(frameCallback);
+        else handler.postDelayed(frame, FALLBACK_FRAME_MILLIS);
+
+    }
+
+    /**
+     * Cancels the run scheduled, if any.
+     */
+    void cancel(){
+
+        if(!isScheduled) return;
+        isScheduled = false;
+
+        if(frameCallback != null) FrameCallbacks.remove(frameCallback);
+        else handler.removeCallbacks(frame);
+
+    }
+
+    /**
+     *
+     * @return True if the task runs on the next frame
+     */
+    boolean isScheduled(){
+        return isScheduled;
+    }
+
+    /**
+     * Keeps the references to {@link Choreographer} out of the classes loaded before Jelly Bean.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class FrameCallbacks{
+
+        static Object create(final Runnable frame){
+            return new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    frame.run();
+                }
+            };
+        }
+
+        static void post(Object callback){
+            Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) callback);
+        }
+
+        static void remove(Object callback){
+            Choreographer.getInstance().removeFrameCallback((Choreographer.FrameCallback) callback);
+        }
+
+    }
+
+}
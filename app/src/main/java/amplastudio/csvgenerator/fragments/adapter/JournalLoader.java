@@ -0,0 +1,143 @@
+package amplastudio.csvgenerator.fragments.adapter;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.IOException;
+
+import amplastudio.csvgenerator.stream.journal.MappedLineReader;
+import amplastudio.csvgenerator.stream.journal.SessionJournal;
+
+/**
+ * <p>Keeps a {@link MappedLineReader} of a journal up to date without blocking the main thread: whenever the checkpoint
+ * of the journal changed, the segments are mapped and indexed on a background thread, and the lines ready are handed
+ * back to the main thread. A single refresh runs at a time.</p>
+ * <p>Every method must be called on the main thread.</p>
+ */
+class JournalLoader {
+
+    private final Runnable onLoaded;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Reader of the journal loaded, null if none.
+     */
+    private MappedLineReader reader = null;
+
+    /**
+     * Checkpoint of the lines readable by {@link #reader}, null until its first refresh ended.
+     */
+    private SessionJournal.Checkpoint loadedCheckpoint = null;
+
+    /**
+     * Checkpoint of the refresh running, null if none.
+     */
+    private SessionJournal.Checkpoint loadingCheckpoint = null;
+
+    /**
+     * Set when a refresh of {@link #reader} failed, the journal is then not read anymore.
+     */
+    private boolean isFailed = false;
+
+    /**
+     *
+     * @param onLoaded Task run on the main thread whenever more lines are ready
+     */
+    JournalLoader(Runnable onLoaded){
+        this.onLoaded = onLoaded;
+    }
+
+    /**
+     * Starts refreshing the reader of the journal if its checkpoint changed since the last refresh and none is running.
+     * @param journal Journal to read, replacing the one loaded before
+     */
+    void load(SessionJournal journal){
+
+        if(reader == null || reader.getJournal() != journal){
+            reader = new MappedLineReader(journal);
+            loadedCheckpoint = null;
+            loadingCheckpoint = null;
+            isFailed = false;
+        }
+
+        if(isFailed || loadingCheckpoint != null) return;
+
+        /* taken before mapping, the segments hold at least these lines afterwards */
+        final SessionJournal.Checkpoint checkpoint = journal.getCheckpoint();
+        if(checkpoint == loadedCheckpoint) return;
+
+        final MappedLineReader refreshed = reader;
+        loadingCheckpoint = checkpoint;
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                IOException failure = null;
+
+                try{
+                    refreshed.refresh();
+                }catch(IOException e){
+                    failure = e;
+                }
+
+                final IOException cause = failure;
+
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onRefreshed(refreshed, checkpoint, cause);
+                    }
+                });
+
+            }
+        }, "JournalLoader").start();
+
+    }
+
+    private void onRefreshed(MappedLineReader refreshed, SessionJournal.Checkpoint checkpoint, IOException cause){
+
+        if(refreshed != reader) return; /* the journal was replaced meanwhile */
+
+        loadingCheckpoint = null;
+
+        if(cause != null){
+            cause.printStackTrace();
+            isFailed = true;
+            loadedCheckpoint = null;
+        }else{
+            loadedCheckpoint = checkpoint;
+        }
+
+        onLoaded.run();
+
+    }
+
+    /**
+     * Forgets the journal loaded, the result of a refresh still running is dropped.
+     */
+    void clear(){
+        reader = null;
+        loadedCheckpoint = null;
+        loadingCheckpoint = null;
+        isFailed = false;
+    }
+
+    /**
+     *
+     * @return Reader of the journal, null if no line is ready yet
+     */
+    MappedLineReader getReader(){
+        return loadedCheckpoint != null ? reader : null;
+    }
+
+    /**
+     *
+     * @return Checkpoint of the lines ready to be read, null if none
+     */
+    SessionJournal.Checkpoint getCheckpoint(){
+        return loadedCheckpoint;
+    }
+
+}
@@ -6,20 +6,53 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
-import java.util.ArrayList;
-
 import amplastudio.csvgenerator.R;
 import amplastudio.csvgenerator.fragments.bluetooth.communicator.BluetoothCommunicator;
+import amplastudio.csvgenerator.stream.BatchRange;
+import amplastudio.csvgenerator.stream.journal.MappedLineReader;
+import amplastudio.csvgenerator.stream.journal.SessionJournal;
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
+import amplastudio.csvgenerator.stream.text.Utf8StreamDecoder;
 
 /**
- * Adapter that displays the data held by {@link BluetoothCommunicator#getHeldData()}.
+ * <p>Adapter that displays the data held by {@link BluetoothCommunicator#getHeldData()}.</p>
+ * <p>The held data is written by the connect thread at any time, so this adapter displays a window of sequences that only
+ * changes on the main thread, keeping the item count consistent with the notifications given to the recycler view.
+ * The lines given to {@link #onLinesReceived(BatchRange)} are displayed on the next display frame, all at once, with a
+ * single {@link #notifyItemRangeInserted(int, int)} (and {@link #notifyItemRangeRemoved(int, int)} for the lines
+ * overwritten meanwhile), so visible rows are not bound again and the cost of the monitor does not grow with the line
+ * rate.</p>
+ * <p>While the capture is journaled, see {@link BluetoothCommunicator#getJournal()}, the whole capture is displayed: the
+ * lines already journaled are read from the segment files mapped in memory by a {@link MappedLineReader}, and only the
+ * newest lines, not journaled yet, from the held data. Only the rows bound are decoded, so scrolling through millions of
+ * lines costs little heap. The segments are mapped and indexed on a background thread, only when the journal wrote new
+ * lines, see {@link JournalLoader}.</p>
+ * <p>At high line rates, the monitor may display only part of the lines, see {@link DisplayMode}, while every line is still
+ * captured to the held data and the journal.</p>
+ * <p>Lines are kept as the bytes received and decoded from UTF-8 only when bound, straight into a character array owned by
+ * the row, so binding a row creates no string.</p>
  */
 public class SerialMonitorRecyclerViewAdapter extends RecyclerView.Adapter<SerialMonitorRecyclerViewAdapter.ViewHolder>{
 
+    /**
+     * Default number of lines displayed by {@link DisplayMode#LATEST}.
+     */
+    public static final int DEFAULT_LATEST_LINE_COUNT = 500;
+
+    /**
+     * Default interval between the lines displayed by {@link DisplayMode#SAMPLED}.
+     */
+    public static final int DEFAULT_SAMPLE_INTERVAL = 10;
+
     public class ViewHolder extends RecyclerView.ViewHolder{
 
         public TextView receivedSerialText;
 
+        /**
+         * Characters displayed by {@link #receivedSerialText}, which keeps a reference to them until the row is bound again.
+         */
+        private char[] text = new char[64];
+
         public ViewHolder(View itemView) {
             super(itemView);
             receivedSerialText = (TextView) itemView.findViewById(R.id.serialMonitor_recyclerview_row_receivedSerial);
@@ -27,10 +60,283 @@ public class SerialMonitorRecyclerViewAdapter extends RecyclerView.Adapter<Seria
 
     }
 
-    private ArrayList<String> serialTexts;
+    private BluetoothCommunicator communicator;
+
+    /**
+     * Sequence of the first line displayed.
+     */
+    private long firstSequence;
+
+    /**
+     * Sequence after the last line displayed.
+     */
+    private long endSequence;
+
+    /**
+     * Sequence after the last line received, displayed on the next frame.
+     */
+    private long pendingEndSequence;
+
+    /**
+     * Set when the held data was replaced since the last frame.
+     */
+    private boolean isPendingReplaced = false;
+
+    private final FramePacer framePacer = new FramePacer(new Runnable() {
+        @Override
+        public void run() {
+            displayPendingLines();
+        }
+    });
+
+    private Listener listener = null;
+
+    private DisplayMode displayMode = DisplayMode.ALL;
+    private int latestLineCount = DEFAULT_LATEST_LINE_COUNT;
+    private int sampleInterval = DEFAULT_SAMPLE_INTERVAL;
+
+    /**
+     * Refreshes the reader of the journal off the main thread, then displays the lines it made readable.
+     */
+    private final JournalLoader journalLoader = new JournalLoader(new Runnable() {
+        @Override
+        public void run() {
+            framePacer.schedule();
+        }
+    });
+
+    /**
+     * Reads the lines journaled, null if the capture is not journaled or no journaled line is readable yet.
+     */
+    private MappedLineReader journalReader = null;
+
+    /**
+     * Number of journaled lines displayed before the lines of the held data, 0 if the capture is not journaled.
+     */
+    private long journaledCount = 0;
+
+    /**
+     * Reads the held line bound, replaced when the held data is.
+     */
+    private LineRingBuffer.Consumer heldDataReader = null;
+    private LineRingBuffer heldDataRead = null;
+
+    private final Utf8StreamDecoder decoder = new Utf8StreamDecoder();
+
+    /**
+     * Row being bound, receives the line read.
+     */
+    private ViewHolder boundHolder = null;
+    private boolean isBound = false;
+
+    private final LineRingBuffer.LineHandler bindLine = new LineRingBuffer.LineHandler() {
+        @Override
+        public void onLine(long sequence, byte[] line, int offset, int length) {
+
+            ViewHolder holder = boundHolder;
+
+            int capacity = Utf8StreamDecoder.maxCharCount(length);
+            if(holder.text.length < capacity) holder.text = new char[Math.max(capacity, holder.text.length * 2)];
+
+            int count = decoder.decode(line, offset, length, holder.text, 0);
+            count += decoder.flush(holder.text, count); /* every line is a whole stream */
+
+            holder.receivedSerialText.setText(holder.text, 0, count);
+            isBound = true;
+        }
+    };
 
     public SerialMonitorRecyclerViewAdapter(){
-        this.serialTexts = BluetoothCommunicator.getInstance().getHeldData();
+        this.communicator = BluetoothCommunicator.getInstance();
+        LineRingBuffer data = communicator.getHeldData();
+        this.firstSequence = data.getFirstSequence();
+        this.endSequence = Math.max(firstSequence, data.getNextSequence());
+        this.pendingEndSequence = endSequence;
+        refreshJournal();
+    }
+
+    /**
+     * Sets which of the lines received are displayed, displaying them again from the held data.
+     * @param displayMode Lines displayed
+     */
+    public void setDisplayMode(DisplayMode displayMode){
+
+        if(this.displayMode == displayMode) return;
+        this.displayMode = displayMode;
+
+        LineRingBuffer data = communicator.getHeldData();
+        framePacer.cancel();
+        isPendingReplaced = false;
+        endSequence = pendingEndSequence;
+        firstSequence = Math.min(Math.max(0, data.getFirstSequence()), endSequence);
+        journalReader = null;
+        journaledCount = 0;
+
+        refreshJournal();
+        applyLatestWindow();
+
+        notifyDataSetChanged();
+    }
+
+    /**
+     *
+     * @return Lines displayed
+     */
+    public DisplayMode getDisplayMode(){
+        return displayMode;
+    }
+
+    /**
+     * Sets the number of lines displayed by {@link DisplayMode#LATEST}, applied with the next lines received.
+     * @param lineCount Number of lines, {@link #DEFAULT_LATEST_LINE_COUNT} by default
+     */
+    public void setLatestLineCount(int lineCount){
+        if(lineCount <= 0) throw new IllegalArgumentException("lineCount must be positive");
+        this.latestLineCount = lineCount;
+    }
+
+    /**
+     * Sets the interval between the lines displayed by {@link DisplayMode#SAMPLED}.
+     * @param interval Interval, in lines, {@link #DEFAULT_SAMPLE_INTERVAL} by default
+     */
+    public void setSampleInterval(int interval){
+
+        if(interval <= 0) throw new IllegalArgumentException("interval must be positive");
+
+        this.sampleInterval = interval;
+        if(displayMode == DisplayMode.SAMPLED) notifyDataSetChanged();
+    }
+
+    /**
+     * Sets the listener told when lines are displayed.
+     * @param listener Listener, or null
+     */
+    public void setListener(Listener listener){
+        this.listener = listener;
+    }
+
+    /**
+     * Displays, on the next display frame, the lines delivered by {@link BluetoothCommunicator#ACTION_DATA_RECEIVED},
+     * dropping the lines no longer held.
+     * @param range Sequences of the new lines
+     */
+    public void onLinesReceived(BatchRange range){
+
+        if(range.getEnd() < pendingEndSequence) isPendingReplaced = true; /* sequences started over */
+
+        pendingEndSequence = range.getEnd();
+        framePacer.schedule();
+    }
+
+    /**
+     * Applies the lines received since the last frame and notifies the recycler view of the rows removed and inserted.
+     */
+    private void displayPendingLines(){
+
+        LineRingBuffer data = communicator.getHeldData();
+
+        int oldCount = getItemCount();
+        long oldEndSequence = endSequence;
+        long oldFirstSequence = firstSequence;
+        long oldJournaledCount = journaledCount;
+        MappedLineReader oldJournalReader = journalReader;
+        boolean isReplaced = isPendingReplaced;
+
+        if(isReplaced) firstSequence = 0;
+        isPendingReplaced = false;
+
+        endSequence = pendingEndSequence;
+        firstSequence = Math.min(Math.max(firstSequence, data.getFirstSequence()), endSequence);
+
+        refreshJournal();
+        applyLatestWindow();
+
+        int newCount = getItemCount();
+
+        /* lines received that were given no row, the journal is only displayed with every line */
+        long hidden = isReplaced || displayMode == DisplayMode.ALL ? 0
+                : endSequence - oldEndSequence - rowsBetween(Math.max(oldEndSequence, firstSequence), endSequence);
+
+        /* rows keep their position unless the lines journaled are not the ones leaving the held data */
+        long removed = journalReader == null ? rowsBetween(oldFirstSequence, firstSequence) : 0;
+        boolean isShifted = isReplaced || journalReader != oldJournalReader || removed > oldCount
+                || (journalReader != null && journaledCount - oldJournaledCount != firstSequence - oldFirstSequence);
+
+        if(isShifted){
+            notifyDataSetChanged();
+            if(listener != null) listener.onLinesDisplayed(Math.max(0, newCount - oldCount), hidden);
+            return;
+        }
+
+        int kept = oldCount - (int) removed;
+        int inserted = newCount - kept;
+
+        if(removed > 0) notifyItemRangeRemoved(0, (int) removed);
+        if(inserted > 0) notifyItemRangeInserted(kept, inserted);
+
+        if(listener != null) listener.onLinesDisplayed(Math.max(0, inserted), hidden);
+
+    }
+
+    /**
+     * Drops the lines older than the newest ones displayed by {@link DisplayMode#LATEST}.
+     */
+    private void applyLatestWindow(){
+        if(displayMode == DisplayMode.LATEST) firstSequence = Math.max(firstSequence, endSequence - latestLineCount);
+    }
+
+    /**
+     *
+     * @return Number of rows displaying the held lines from the first sequence, inclusive, to the second, exclusive
+     */
+    private long rowsBetween(long from, long to){
+        if(displayMode != DisplayMode.SAMPLED) return to - from;
+        return ceilDiv(to, sampleInterval) - ceilDiv(from, sampleInterval);
+    }
+
+    /**
+     *
+     * @param row Index of a row displaying a held line
+     * @return Sequence of the line
+     */
+    private long sequenceAt(long row){
+        if(displayMode != DisplayMode.SAMPLED) return firstSequence + row;
+        return (ceilDiv(firstSequence, sampleInterval) + row) * sampleInterval;
+    }
+
+    private static long ceilDiv(long value, long divisor){
+        return (value + divisor - 1) / divisor;
+    }
+
+    /**
+     * Displays the lines journaled readable so far, followed by the held lines after them. Starts refreshing the reader
+     * of the journal if it wrote new lines, which are displayed on the frame after the refresh ends.
+     */
+    private void refreshJournal(){
+
+        SessionJournal journal = displayMode == DisplayMode.ALL ? communicator.getJournal() : null;
+
+        if(journal != null) journalLoader.load(journal);
+        else journalLoader.clear();
+
+        MappedLineReader reader = journalLoader.getReader();
+
+        if(reader == null){
+            if(journalReader != null){ /* finished, displays the held data again */
+                LineRingBuffer data = communicator.getHeldData();
+                firstSequence = Math.min(Math.max(0, data.getFirstSequence()), endSequence);
+            }
+            journalReader = null;
+            journaledCount = 0;
+            return;
+        }
+
+        SessionJournal.Checkpoint checkpoint = journalLoader.getCheckpoint();
+
+        journalReader = reader;
+        journaledCount = checkpoint.getLineCount();
+        firstSequence = Math.min(Math.max(firstSequence, checkpoint.getNextSequence()), endSequence);
+
     }
 
     /**
@@ -38,6 +344,13 @@ public class SerialMonitorRecyclerViewAdapter extends RecyclerView.Adapter<Seria
      */
     public void clearSerialList(){
         BluetoothCommunicator.getInstance().releaseData();
+        framePacer.cancel();
+        isPendingReplaced = false;
+        endSequence = pendingEndSequence;
+        firstSequence = endSequence;
+        journalLoader.clear();
+        journalReader = null; /* the journal is discarded with the data */
+        journaledCount = 0;
         notifyDataSetChanged();
     }
 
@@ -49,12 +362,81 @@ public class SerialMonitorRecyclerViewAdapter extends RecyclerView.Adapter<Seria
 
     @Override
     public void onBindViewHolder(SerialMonitorRecyclerViewAdapter.ViewHolder holder, int position) {
-        holder.receivedSerialText.setText(serialTexts.get(position));
+
+        boundHolder = holder;
+        isBound = false;
+
+        if(position < journaledCount){
+            journalReader.read(position, bindLine);
+        }else{
+            long sequence = sequenceAt(position - journaledCount);
+            LineRingBuffer.Consumer reader = getHeldDataReader();
+            reader.seek(sequence);
+            reader.poll(bindLine, 1, sequence + 1);
+        }
+
+        if(!isBound) holder.receivedSerialText.setText(""); /* overwritten since the last notification */
+        boundHolder = null;
+    }
+
+    private LineRingBuffer.Consumer getHeldDataReader(){
+
+        LineRingBuffer data = communicator.getHeldData();
+
+        if(heldDataRead != data){
+            heldDataRead = data;
+            heldDataReader = data.newConsumer();
+        }
+
+        return heldDataReader;
+
     }
 
     @Override
     public int getItemCount() {
-        return serialTexts.size();
+        return (int) Math.min(Integer.MAX_VALUE, journaledCount + rowsBetween(firstSequence, endSequence));
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+        framePacer.cancel(); /* applied by the next line received, if any */
+        super.onDetachedFromRecyclerView(recyclerView);
+    }
+
+    /**
+     * Told, once per display frame at most, of the lines the adapter displayed.
+     */
+    public interface Listener{
+
+        /**
+         * Called after the recycler view was notified of the lines received since the last frame.
+         * @param count Number of rows added
+         * @param hiddenCount Number of lines received that the display mode gave no row, 0 with {@link DisplayMode#ALL}
+         */
+        void onLinesDisplayed(int count, long hiddenCount);
+
+    }
+
+    /**
+     * Lines of the capture displayed by the monitor.
+     */
+    public enum DisplayMode{
+
+        /**
+         * Every line held or journaled.
+         */
+        ALL,
+
+        /**
+         * Only the newest lines, see {@link #setLatestLineCount(int)}.
+         */
+        LATEST,
+
+        /**
+         * Only one held line in every interval, see {@link #setSampleInterval(int)}.
+         */
+        SAMPLED
+
     }
 
 }
@@ -3,7 +3,6 @@ package amplastudio.csvgenerator.fragments.bluetooth.communicator;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -15,12 +14,27 @@ import android.support.annotation.Nullable;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Set;
-import java.util.UUID;
+
+import amplastudio.csvgenerator.stream.BatchRange;
+import amplastudio.csvgenerator.stream.Batcher;
+import amplastudio.csvgenerator.stream.CaptureHub;
+import amplastudio.csvgenerator.stream.CaptureSession;
+import amplastudio.csvgenerator.stream.ReconnectPolicy;
+import amplastudio.csvgenerator.stream.WriteQueue;
+import amplastudio.csvgenerator.stream.framing.DelimiterFrameDecoder;
+import amplastudio.csvgenerator.stream.framing.FrameDecoder;
+import amplastudio.csvgenerator.stream.journal.SessionJournal;
+import amplastudio.csvgenerator.stream.metrics.LatencyProbe;
+import amplastudio.csvgenerator.stream.metrics.PipelineMetrics;
+import amplastudio.csvgenerator.stream.record.RecordColumns;
+import amplastudio.csvgenerator.stream.record.RecordLayout;
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
+import amplastudio.csvgenerator.stream.transport.Transport;
 
 
 /**
@@ -41,7 +55,8 @@ public class BluetoothCommunicator extends Communicator implements Connectable,
     }
 
     /**
-     * Flag set when a message is received from connected bluetooth device. Message object is an instance of {@link String}
+     * Flag set when a batch of messages received from connected bluetooth device should be delivered.
+     * Message object is null, the messages are already published in {@link #receivedData} by the capture session
      */
     private static final int MESSAGE_DATA_RECEIVED = 1;
 
@@ -94,8 +109,27 @@ public class BluetoothCommunicator extends Communicator implements Connectable,
     private static final int MESSAGE_CONNECTION_ATTEMPT = 10;
 
     /**
-     * Flag set when a message is received from connected bluetooth device.
-     * Action data is the same instance returned by {@link #getHeldData()}
+     * Flag set when a batch of binary records received from connected bluetooth device should be delivered.
+     * Message object is null, the number of records is taken from {@link #recordBatcher}
+     */
+    private static final int MESSAGE_RECORD_RECEIVED = 11;
+
+    /**
+     * Flag set when the connection was lost and the capture session is about to connect again.
+     * Message object is the number of the attempt, an {@link Integer}
+     */
+    private static final int MESSAGE_RECONNECTING = 12;
+
+    /**
+     * Flag set when a capture session closed and its reading thread stopped feeding the held data.
+     * Message object is the {@link CaptureSession}
+     */
+    private static final int MESSAGE_SESSION_CLOSED = 13;
+
+    /**
+     * Flag set when messages are received from connected bluetooth device. Messages are delivered in batches,
+     * see {@link #setDeliveryBatching(int, long)}.
+     * Action data is a {@link BatchRange} with the sequences of the new messages in {@link #getHeldData()}
      */
     public static final int ACTION_DATA_RECEIVED = MESSAGE_DATA_RECEIVED;
 
@@ -149,18 +183,140 @@ public class BluetoothCommunicator extends Communicator implements Connectable,
     public static final int ACTION_CONNECTION_ATTEMPT = MESSAGE_CONNECTION_ATTEMPT;
 
     /**
-     * Data received from bluetooth communication. Accessed via {@link #getHeldData()}
+     * Flag set when binary records are received from connected bluetooth device, when listening with a {@link RecordLayout}.
+     * Records are delivered in batches, see {@link #setDeliveryBatching(int, long)}.
+     * Action data is a {@link BatchRange} with the rows of the new records in {@link #getRecordColumns()}
+     * @see #startListen(BluetoothDevice, FrameDecoder, RecordLayout)
      */
-    private ArrayList<String> receivedData = new ArrayList<>(200);
+    public static final int ACTION_RECORD_RECEIVED = MESSAGE_RECORD_RECEIVED;
+
+    /**
+     * Flag set when the connection was lost and the device is about to be connected again, see {@link #setReconnectPolicy(ReconnectPolicy)}.
+     * The captured data goes on in {@link #getHeldData()} after a gap marker line once connected, {@link #ACTION_DEVICE_CONNECTED}
+     * is then set again. Action data is the number of the attempt since the connection was lost, an {@link Integer}
+     */
+    public static final int ACTION_RECONNECTING = MESSAGE_RECONNECTING;
+
+    /**
+     * Default maximum number of messages delivered by a single {@link #ACTION_DATA_RECEIVED} callback.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
+    /**
+     * Default maximum time, in milliseconds, a received message waits before being delivered. About two display frames.
+     */
+    public static final long DEFAULT_MAX_BATCH_DELAY_MILLIS = 33;
+
+    /**
+     * Ends the name of the files holding the journals recovered, see {@link #setJournalDirectory(File)}.
+     */
+    public static final String RECOVERED_JOURNAL_EXTENSION = ".csv";
+
+    /**
+     * Maximum time, in milliseconds, {@link #finishJournal(File)} waits for a stopped capture to end.
+     */
+    private static final long FINISH_JOURNAL_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Data received from bluetooth communication, written by the capture session only. Accessed via {@link #getHeldData()}
+     */
+    private LineRingBuffer receivedData = new LineRingBuffer();
+
+    /**
+     * Store set by {@link #setHeldDataCapacity(int, int, LineRingBuffer.EvictionPolicy)} while listening, replacing
+     * {@link #receivedData} on the next {@link #startListen(BluetoothDevice)}.
+     */
+    private LineRingBuffer pendingReceivedData = null;
+
+    /**
+     * Sequence after the last line of {@link #receivedData} delivered to the callback.
+     */
+    private long deliveredLineSequence = 0;
+
+    /**
+     * Binary records received from bluetooth communication, null if the connection is not listening for records.
+     * Accessed via {@link #getRecordColumns()}
+     */
+    private volatile RecordColumns recordColumns = null;
+
+    /**
+     * Sequence after the last record of {@link #recordColumns} delivered to the callback.
+     */
+    private long deliveredRecordSequence = 0;
+
+    /**
+     * Counts the lines published by the capture session until they are delivered on the main thread.
+     */
+    private volatile Batcher<Void> lineBatcher;
+
+    /**
+     * Counts the records received by the capture session until they are delivered on the main thread.
+     */
+    private volatile Batcher<Void> recordBatcher;
+
+    /**
+     * Throughput, drops, queue depth and delivery latency of the capture session. Accessed via {@link #getMetrics()}
+     */
+    private final PipelineMetrics metrics = new PipelineMetrics();
+
+    /**
+     * Probe measuring the round trip time of commands, null if never started. Accessed via {@link #getLatencyProbe()}
+     */
+    private volatile LatencyProbe latencyProbe = null;
+
+    /**
+     * How the last device is connected again when the connection is lost, null to let the user reconnect.
+     */
+    private ReconnectPolicy reconnectPolicy = new ReconnectPolicy();
+
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    private long maxBatchDelayMillis = DEFAULT_MAX_BATCH_DELAY_MILLIS;
 
     private BluetoothAdapter bluetoothAdapter;
 
     private Context context;
 
     /**
-     * Thread to listen for data receive.
+     * Session that connects to the device and captures the data it sends, null if never listened.
+     */
+    private volatile CaptureSession captureSession = null;
+
+    /**
+     * Device connected to by {@link #captureSession}, null if never listened.
+     */
+    private BluetoothDevice listenedDevice = null;
+
+    /**
+     * Listen requested while {@link #captureSession} was still closing, started on the main thread once it has closed.
+     * Null if none.
+     */
+    private Runnable pendingListen = null;
+
+    /**
+     * Captures the devices added with {@link #addDevice(BluetoothDevice, FrameDecoder)}, besides the one listened to.
+     */
+    private final CaptureHub captureHub = new CaptureHub();
+
+    /**
+     * Folder the received lines are journaled to while listening, null to hold them in memory only.
+     */
+    private File journalDirectory = null;
+
+    /**
+     * Journal of the received lines since listening started, null if none. Accessed via {@link #getJournal()}
+     */
+    private volatile SessionJournal journal = null;
+
+    /**
+     * Names of the journals started by this process, whose segments are never recovered as left behind.
+     */
+    private final Set<String> journalNames = Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * Folder whose journals left behind by a previous process were recovered, null if none.
      */
-    private ConnectThread connectThread = null;
+    private File recoveredJournalDirectory = null;
 
     /**
      * Indicates whether the {@link #bluetoothConnectionReceiver} is registered.
@@ -188,22 +344,37 @@ public class BluetoothCommunicator extends Communicator implements Connectable,
 
 
     /**
-     * Receiver triggered when bluetooth connection is made or lost.
+     * Receiver triggered when bluetooth connection is made or lost. Only the device listened to is reported to the callback,
+     * a device of the {@link #captureHub} that drops is handled by the hub alone.
      */
     private final BroadcastReceiver bluetoothConnectionReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
 
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+
+            /* the devices of the hub connect and drop on their own, without affecting the one listened to */
+            if(device != null && captureHub.getDevice(device.getAddress()) != null){
+                if(BluetoothDevice.ACTION_ACL_DISCONNECTED.equals(intent.getAction()))
+                    captureHub.onConnectionLost(device.getAddress());
+                return;
+            }
+
+            if(device == null || listenedDevice == null || !device.getAddress().equals(listenedDevice.getAddress())) return;
+
             switch (intent.getAction()){
 
                 case BluetoothDevice.ACTION_ACL_CONNECTED:
                     isConnected = true;
                     sendCallbackMessage(MESSAGE_DEVICE_CONNECTED, null);
-                    connectThread.start(); /* start listen */
                     break;
 
                 case BluetoothDevice.ACTION_ACL_DISCONNECTED:
                     isConnected = false;
+
+                    /* the capture session connects again on its own, reporting MESSAGE_RECONNECTING */
+                    if(reconnectPolicy != null && captureSession != null && captureSession.isListening()) break;
+
                     sendCallbackMessage(MESSAGE_CONNECTION_LOST, null);
                     stopListen(null);
                     break;
@@ -246,11 +417,23 @@ public class BluetoothCommunicator extends Communicator implements Connectable,
             switch (msg.what){
 
                 case BluetoothCommunicator.MESSAGE_DATA_RECEIVED:
-                    receivedData.add((String) msg.obj);
-                    if(mCallBack != null) mCallBack.onBluetoothCommunicatorCallBack(new CallbackAction(msg.what, getHeldData()));
+                    deliverReceivedLines();
+                    break;
+
+                case BluetoothCommunicator.MESSAGE_RECORD_RECEIVED:
+                    deliverReceivedRecords();
+                    break;
+
+                case BluetoothCommunicator.MESSAGE_SESSION_CLOSED:
+                    if(msg.obj == captureSession && pendingListen != null){
+                        Runnable listen = pendingListen;
+                        pendingListen = null;
+                        listen.run();
+                    }
                     break;
 
                 case BluetoothCommunicator.MESSAGE_DEVICE_FOUND:
+                case BluetoothCommunicator.MESSAGE_RECONNECTING:
                     if(mCallBack != null) mCallBack.onBluetoothCommunicatorCallBack(new CallbackAction(msg.what, msg.obj));
                     break;
 
@@ -282,6 +465,8 @@ public class BluetoothCommunicator extends Communicator implements Connectable,
 
         bluetoothConnectionActionFilter = new IntentFilter(BluetoothDevice.ACTION_ACL_CONNECTED);
         bluetoothConnectionActionFilter.addAction(BluetoothDevice.ACTION_ACL_DISCONNECTED);
+
+        createBatchers();
     }
 
     /**
@@ -292,6 +477,39 @@ public class BluetoothCommunicator extends Communicator implements Connectable,
         return bluetoothAdapter != null && bluetoothAdapter.isEnabled();
     }
 
+    /**
+     * Sets how received messages and records are coalesced before being delivered to the callback. A batch is delivered
+     * when it reaches the maximum size or when its first item waited the maximum delay, whichever comes first.
+     * Takes effect on the next call of {@link #startListen(BluetoothDevice)}.
+     * @param maxBatchSize Maximum number of items delivered by a single callback, 1 delivers every item on its own
+     * @param maxDelayMillis Maximum time, in milliseconds, an item waits before being delivered
+     * @see #DEFAULT_MAX_BATCH_SIZE
+     * @see #DEFAULT_MAX_BATCH_DELAY_MILLIS
+     */
+    public void setDeliveryBatching(int maxBatchSize, long maxDelayMillis){
+        if(maxBatchSize <= 0 || maxDelayMillis < 0) throw new IllegalArgumentException("invalid batching");
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Sets how the device is connected again when the connection is lost. Data keeps being captured in the same held data,
+     * with a gap marker line starting with {@link CaptureSession#GAP_MARKER_PREFIX} where data may be missing, and the time
+     * taken to reconnect is recorded in {@link #getMetrics()}. Takes effect on the next call of {@link #startListen(BluetoothDevice)}.
+     * @param reconnectPolicy Delays between attempts, null to stop listening when the connection is lost
+     */
+    public void setReconnectPolicy(@Nullable ReconnectPolicy reconnectPolicy){
+        this.reconnectPolicy = reconnectPolicy;
+    }
+
+    /**
+     *
+     * @return How the device is connected again when the connection is lost, null if it is not
+     */
+    public @Nullable ReconnectPolicy getReconnectPolicy(){
+        return reconnectPolicy;
+    }
+
     /**
      * Listen for bluetooth events.
      * @param callback Callback instance
@@ -376,10 +594,10 @@ public class BluetoothCommunicator extends Communicator implements Connectable,
 
         stopDiscovery();
 
-        if(connectThread != null) {
-            connectThread.cancel();
-            connectThread = null;
-        }
+        /* kept until the next startListen, which starts once its reading thread has ended */
+        pendingListen = null;
+        if(captureSession != null) captureSession.stopListen(null);
+        captureHub.stopAll();
 
         sendCallbackMessage(MESSAGE_CONNECTION_CLOSED, null);
 
@@ -387,43 +605,454 @@ public class BluetoothCommunicator extends Communicator implements Connectable,
 
     /**
      *
-     * @return All received data from bluetooth communication.
+     * @return All received data from bluetooth communication still held, bounded by {@link #setHeldDataCapacity(int, int, LineRingBuffer.EvictionPolicy)}.
+     * Lines are published by the capture session as soon as they are received, read them with a {@link LineRingBuffer.Consumer}
+     * or within the ranges delivered by {@link #ACTION_DATA_RECEIVED}.
      */
     @Override
-    public @NonNull ArrayList<String> getHeldData() {
+    public @NonNull LineRingBuffer getHeldData() {
         return receivedData;
     }
 
+    /**
+     * Bounds the memory used to hold received data, releasing the data currently held. While listening, takes effect
+     * on the next call of {@link #startListen(BluetoothDevice)}.
+     * @param maxLines Maximum number of lines held
+     * @param maxBytes Maximum number of bytes held
+     * @param evictionPolicy What happens to new lines when the limits are reached
+     * @see LineRingBuffer#DEFAULT_MAX_LINES
+     * @see LineRingBuffer#DEFAULT_MAX_BYTES
+     */
+    public void setHeldDataCapacity(int maxLines, int maxBytes, LineRingBuffer.EvictionPolicy evictionPolicy){
+        pendingReceivedData = new LineRingBuffer(maxLines, maxBytes, evictionPolicy);
+        if(captureSession == null || !captureSession.isListening()) applyPendingReceivedData();
+    }
+
+    /**
+     * Replaces the held data by the store set while listening, if any. The journal of the previous store is discarded.
+     */
+    private void applyPendingReceivedData(){
+        if(pendingReceivedData == null) return;
+        discardJournal();
+        receivedData = pendingReceivedData;
+        pendingReceivedData = null;
+        deliveredLineSequence = 0;
+    }
+
+    /**
+     *
+     * @return Binary records received from bluetooth communication, null if the connection was not started with a {@link RecordLayout}.
+     * @see #startListen(BluetoothDevice, FrameDecoder, RecordLayout)
+     */
+    public @Nullable RecordColumns getRecordColumns() {
+        return recordColumns;
+    }
+
     /**
      * Clears all received data from bluetooth communication,
      */
     @Override
     public void releaseData(){
+
+        boolean wasJournaling = journal != null;
+
+        if(journal != null){
+            journal.discard(); /* the lines journaled so far are cleared too */
+            journal = null;
+        }
+
         receivedData.clear();
+        if(recordColumns != null) recordColumns.clear();
+        deliveredRecordSequence = 0;
+
+        if(wasJournaling && captureSession != null && captureSession.isListening()) startJournal();
+    }
+
+    /**
+     * Journals the lines received from now on to segment files in the given folder, so a capture is never limited by the
+     * memory held. Takes effect on the next call of {@link #startListen(BluetoothDevice)}. The journal goes on across
+     * reconnections and disconnections until it is finished with {@link #finishJournal(File)} or the data is released.
+     * <p>Segments left in the folder by a journal that never finished, such as when the app was killed while capturing,
+     * are joined on a background thread into a file named after the journal, see {@link SessionJournal#recover(File, String, java.util.Collection)}.</p>
+     * @param directory Folder of the segment files, null to stop journaling new captures
+     * @see SessionJournal
+     */
+    public void setJournalDirectory(@Nullable final File directory){
+
+        this.journalDirectory = directory;
+
+        if(directory == null || directory.equals(recoveredJournalDirectory)) return;
+        recoveredJournalDirectory = directory;
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    for(File file : SessionJournal.recover(directory, RECOVERED_JOURNAL_EXTENSION, journalNames))
+                        Log.i(BluetoothCommunicator.class.getSimpleName(), "recovered " + file);
+                }catch(IOException e){
+                    e.printStackTrace();
+                }
+            }
+        }, "SessionJournal-recover").start();
+
+    }
+
+    /**
+     *
+     * @return Journal of the lines received since listening started, null if none
+     */
+    public @Nullable SessionJournal getJournal(){
+        return journal;
+    }
+
+    /**
+     *
+     * @return True if {@link #finishJournal(File)} can finalize a journal: there is one, capture is over and the journal
+     * holds every line of {@link #getHeldData()}, which may still hold lines captured before the journal started
+     */
+    public boolean canFinishJournal(){
+        SessionJournal current = journal;
+        return current != null && (captureSession == null || !captureSession.isListening())
+                && current.getStartSequence() <= receivedData.getFirstSequence();
+    }
+
+    /**
+     * Turns the journal of the last capture into a single file by renaming its segments, or joining them if there are
+     * several, instead of writing the held data again. Blocks until the last lines are written and the segments are
+     * joined, so must not be called on the main thread. A new journal starts with the next capture.
+     * @param target File holding the whole capture afterwards, must not exist
+     * @return Journal finished, whose {@link SessionJournal#getMissedCount()} lines are marked as gaps in the file. Null if
+     * there is no journal or capture is still going on, see {@link #canFinishJournal()}
+     * @throws IOException If journaling failed, the segments could not be joined or the capture did not end within
+     * {@value #FINISH_JOURNAL_TIMEOUT_MILLIS} ms, the journal is then kept
+     * @throws InterruptedException If interrupted while waiting for the capture or the journal
+     */
+    public @Nullable SessionJournal finishJournal(File target) throws IOException, InterruptedException {
+
+        if(!canFinishJournal()) return null;
+
+        /* lines still being captured by a stopped session are journaled */
+        CaptureSession session = captureSession;
+        if(session != null && !session.awaitClosed(FINISH_JOURNAL_TIMEOUT_MILLIS))
+            throw new IOException("capture did not end within " + FINISH_JOURNAL_TIMEOUT_MILLIS + " ms");
+
+        SessionJournal finished;
+
+        synchronized (this){
+            if(!canFinishJournal() || captureSession != session) return null; /* listening again meanwhile */
+            finished = journal;
+            journal = null;
+        }
+
+        finished.finish(target);
+        return finished;
+
+    }
+
+    /**
+     * Starts journaling the held data if a folder is set and no journal is running, keeping the running one otherwise.
+     */
+    private synchronized void startJournal(){
+
+        if(journalDirectory == null || (journal != null && journal.isRunning())) return;
+
+        journal = new SessionJournal.Builder(receivedData, journalDirectory)
+                .fromSequence(receivedData.getNextSequence())
+                .lineSeparator(System.getProperty("line.separator"))
+                .build();
+        journalNames.add(journal.getName()); /* before its first segment is created */
+        journal.start();
+
     }
 
     /**
-     * Send data to the connected device.
+     * Stops the running journal and deletes its segments, a journal no longer held can never be finished.
+     */
+    private synchronized void discardJournal(){
+        if(journal != null) journal.discard();
+        journal = null;
+    }
+
+    /**
+     * Send data to the connected device, without blocking the calling thread.
      * @param data Data to be sent
+     * @see #sendData(byte[], WriteQueue.CompletionListener)
      */
     @Override
     public void sendData(byte[] data) {
+        sendData(data, null);
+    }
 
-        if(connectThread == null) return;
-        connectThread.write(data);
+    /**
+     * Queues data to be sent to the connected device by the writer thread, without blocking the calling thread.
+     * Data queued while a write is in progress is coalesced in fewer writes.
+     * @param data Data to be sent, must not be changed until it is written
+     * @param listener Listener told when the data is written or fails, called on the writer thread. May be null
+     * @return False if there is no connection or too much data is already waiting to be sent
+     * @see #getWriteQueue()
+     */
+    public boolean sendData(byte[] data, @Nullable WriteQueue.CompletionListener listener) {
+
+        if(captureSession == null) return false;
+        return captureSession.sendData(data, listener);
 
     }
 
     /**
-     * Start listening for data received from the connected bluetooth device.
+     *
+     * @return Queue of data waiting to be sent, with its depth and write counters, null if there is no connection
+     */
+    public @Nullable WriteQueue getWriteQueue() {
+        return captureSession != null ? captureSession.getWriteQueue() : null;
+    }
+
+    /**
+     *
+     * @return Throughput, held and dropped data, write queue depth and the latency from the reading thread to the callback
+     * of the current connection. Call {@link PipelineMetrics#sample()} periodically to read them
+     */
+    public @NonNull PipelineMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Starts sending timestamped probes through {@link #sendData(byte[], WriteQueue.CompletionListener)} and matching the
+     * replies of the device, which must echo every line starting with {@link LatencyProbe#PROBE_PREFIX}. Replies are kept
+     * out of the held data. Replaces the probe previously started.
+     * @param probesPerSecond Rate of probes sent
+     * @param payloadSize Size of every probe, in bytes, at least {@link LatencyProbe#MIN_PAYLOAD_SIZE}
+     * @return Probe started, holding the round trip times
+     * @see #stopLatencyProbe()
+     */
+    public @NonNull LatencyProbe startLatencyProbe(double probesPerSecond, int payloadSize){
+
+        stopLatencyProbe();
+
+        LatencyProbe probe = new LatencyProbe(new LatencyProbe.Sender() {
+            @Override
+            public boolean send(byte[] probe) {
+                return sendData(probe, null);
+            }
+        }, probesPerSecond, payloadSize);
+
+        latencyProbe = probe;
+        if(captureSession != null) captureSession.setFrameInterceptor(probe);
+        probe.start();
+
+        return probe;
+
+    }
+
+    /**
+     * Stops sending probes. Replies still on the way are matched and the results are kept in {@link #getLatencyProbe()}.
+     */
+    public void stopLatencyProbe(){
+        LatencyProbe probe = latencyProbe;
+        if(probe != null) probe.stop();
+    }
+
+    /**
+     *
+     * @return Probe last started with {@link #startLatencyProbe(double, int)}, null if never started
+     */
+    public @Nullable LatencyProbe getLatencyProbe(){
+        return latencyProbe;
+    }
+
+    /**
+     * Captures one more device at the same time as the one listened to, such as another sensor node of the rig. The device
+     * gets its own reader, decoder, held data and metrics, reconnects as set by {@link #setReconnectPolicy(ReconnectPolicy)},
+     * and runs on the threads of {@link #getCaptureHub()}. Its data is not delivered to the callback, read it from
+     * {@link CaptureHub.Device#getSession()} with a {@link LineRingBuffer.Consumer}.
+     * @param device Device to capture, named by its address in the hub
+     * @param frameDecoder Decoder used by this device only
+     * @return Device added and started
+     * @throws IllegalStateException If the device is already captured or the hub holds {@link CaptureHub#DEFAULT_MAX_DEVICES} devices
+     */
+    public @NonNull CaptureHub.Device addDevice(BluetoothDevice device, FrameDecoder frameDecoder){
+
+        CaptureHub.Device added = captureHub.addDevice(device.getAddress(), new BluetoothTransportFactory(device), frameDecoder,
+                new LineRingBuffer(), reconnectPolicy);
+
+        added.start();
+        return added;
+
+    }
+
+    /**
+     * Stops capturing a device added with {@link #addDevice(BluetoothDevice, FrameDecoder)} and forgets it.
+     * @param device Device to remove
+     */
+    public void removeDevice(BluetoothDevice device){
+        captureHub.removeDevice(device.getAddress());
+    }
+
+    /**
+     *
+     * @return Hub capturing the devices added with {@link #addDevice(BluetoothDevice, FrameDecoder)}, each with its own
+     * held data and metrics
+     */
+    public @NonNull CaptureHub getCaptureHub(){
+        return captureHub;
+    }
+
+    /**
+     * Start listening for data received from the connected bluetooth device, which is expected to send
+     * text lines terminated by '\n'.
      * To be notified when data is received, use {@link #setCallback(Callback)} and
      * check for the flag {@link #ACTION_DATA_RECEIVED}
      * @param device Available device to connect.
+     * @see #startListen(BluetoothDevice, FrameDecoder)
      */
     @Override
     public void startListen(BluetoothDevice device) {
-        if(connectThread != null) connectThread.cancel();
-        connectThread = new ConnectThread(device);
+        startListen(device, DelimiterFrameDecoder.lineFeed());
+    }
+
+    /**
+     * Start listening for data received from the connected bluetooth device, splitting the received bytes
+     * in frames with the given decoder. Every frame is held as a line of text.
+     * To be notified when data is received, use {@link #setCallback(Callback)} and
+     * check for the flag {@link #ACTION_DATA_RECEIVED}
+     * @param device Available device to connect.
+     * @param frameDecoder Decoder used by this connection only, must not be shared with other connections.
+     */
+    public void startListen(BluetoothDevice device, FrameDecoder frameDecoder) {
+        startListen(device, frameDecoder, null);
+    }
+
+    /**
+     * Start listening for binary records received from the connected bluetooth device. Every frame split by the given
+     * decoder is decoded as a record of the given layout straight into {@link #getRecordColumns()}, instead of being held as text.
+     * To be notified when a record is received, use {@link #setCallback(Callback)} and
+     * check for the flag {@link #ACTION_RECORD_RECEIVED}
+     * @param device Available device to connect.
+     * @param frameDecoder Decoder used by this connection only, must not be shared with other connections.
+     * @param recordLayout Layout of the records sent by the device, null to hold frames as text.
+     */
+    public void startListen(final BluetoothDevice device, final FrameDecoder frameDecoder, @Nullable final RecordLayout recordLayout) {
+
+        pendingListen = null;
+
+        if(captureSession != null){
+            captureSession.stopListen(null);
+
+            if(!captureSession.isClosed()){ /* the held data must only have one producer */
+                pendingListen = new Runnable() {
+                    @Override
+                    public void run() {
+                        listen(device, frameDecoder, recordLayout);
+                    }
+                };
+                return;
+            }
+        }
+
+        listen(device, frameDecoder, recordLayout);
+    }
+
+    /**
+     * Starts a new capture session, once the previous one has closed. Runs on the main thread.
+     */
+    private void listen(BluetoothDevice device, FrameDecoder frameDecoder, @Nullable RecordLayout recordLayout){
+
+        if(recordLayout == null) recordColumns = null;
+        else if(recordColumns == null || recordColumns.getLayout() != recordLayout){
+            recordColumns = new RecordColumns(recordLayout);
+            deliveredRecordSequence = 0;
+        }
+
+        applyPendingReceivedData();
+        createBatchers();
+
+        if(recordColumns == null) startJournal();
+        else discardJournal();
+
+        if(recordColumns != null) captureSession = new CaptureSession(frameDecoder, recordColumns);
+        else captureSession = new CaptureSession(frameDecoder, receivedData);
+
+        listenedDevice = device;
+        captureSession.setListener(new SessionListener());
+        captureSession.setFrameInterceptor(latencyProbe);
+        metrics.setSession(captureSession);
+        sendCallbackMessage(MESSAGE_CONNECTION_ATTEMPT, null);
+        captureSession.startListen(new BluetoothTransportFactory(device), reconnectPolicy);
+    }
+
+    /**
+     * Notifies the callback of the lines published by the capture session since the last delivery. Runs on the main thread.
+     */
+    private void deliverReceivedLines(){
+
+        LineRingBuffer data = receivedData;
+
+        long latencyNanos = lineBatcher.getPendingNanos();
+        if(lineBatcher.drainTo(null) > 0) metrics.recordDeliveryLatency(latencyNanos);
+
+        /* lines published after the batch was flushed are delivered too, the next flush then finds nothing new */
+        long end = data.getNextSequence();
+        long start = Math.max(deliveredLineSequence, data.getFirstSequence());
+        int count = (int) Math.max(0, end - start);
+
+        deliveredLineSequence = Math.max(deliveredLineSequence, end);
+
+        if(count > 0 && mCallBack != null)
+            mCallBack.onBluetoothCommunicatorCallBack(new CallbackAction(ACTION_DATA_RECEIVED, new BatchRange(start, count)));
+
+    }
+
+    /**
+     * Notifies the callback of the records counted by the capture session. Runs on the main thread.
+     */
+    private void deliverReceivedRecords(){
+
+        RecordColumns records = recordColumns;
+
+        long latencyNanos = recordBatcher.getPendingNanos();
+        if(recordBatcher.drainTo(null) > 0) metrics.recordDeliveryLatency(latencyNanos);
+
+        if(records == null) return;
+
+        /* records evicted before being delivered are skipped, rows start at the first sequence held */
+        long first = records.getFirstSequence();
+        long end = records.getNextSequence();
+        long start = Math.max(deliveredRecordSequence, first);
+        int count = (int) Math.max(0, end - start);
+
+        deliveredRecordSequence = Math.max(deliveredRecordSequence, end);
+
+        if(count > 0 && mCallBack != null)
+            mCallBack.onBluetoothCommunicatorCallBack(new CallbackAction(ACTION_RECORD_RECEIVED, new BatchRange((int) (start - first), count)));
+
+    }
+
+    /**
+     * Creates the batchers with the current batching settings, delivering whatever the previous ones still hold.
+     */
+    private void createBatchers(){
+
+        if(lineBatcher != null){
+            deliverReceivedLines();
+            deliverReceivedRecords();
+        }
+
+        lineBatcher = new Batcher<>(maxBatchSize, maxBatchDelayMillis, new Batcher.FlushScheduler() {
+            @Override
+            public void scheduleFlush(long delayMillis) {
+                if(delayMillis == 0) removeCallbackMessages(MESSAGE_DATA_RECEIVED);
+                sendCallbackMessageDelayed(MESSAGE_DATA_RECEIVED, null, delayMillis);
+            }
+        });
+
+        recordBatcher = new Batcher<>(maxBatchSize, maxBatchDelayMillis, new Batcher.FlushScheduler() {
+            @Override
+            public void scheduleFlush(long delayMillis) {
+                if(delayMillis == 0) removeCallbackMessages(MESSAGE_RECORD_RECEIVED);
+                sendCallbackMessageDelayed(MESSAGE_RECORD_RECEIVED, null, delayMillis);
+            }
+        });
+
     }
 
     /**
@@ -472,122 +1101,61 @@ public class BluetoothCommunicator extends Communicator implements Connectable,
     }
 
 
-    private class ConnectThread extends Thread{
-
-        private BluetoothSocket bluetoothSocket = null;
-        private InputStream inputStream;
-        private OutputStream outputStream;
-
-        /**
-         * Bluetooth connections may block the UI thread
-         */
-        private volatile Thread thread;
-
-        public ConnectThread(final BluetoothDevice device){
-
-            thread = new Thread(new Runnable() {
-                @Override
-                public void run() {
-
-                    try{
-                        sendCallbackMessage(MESSAGE_CONNECTION_ATTEMPT, null);
-                        // UUID FROM GOOGLE DOCs found in http://developer.android.com/intl/pt-br/guide/topics/connectivity/bluetooth.html
-                        bluetoothSocket = device.createRfcommSocketToServiceRecord(UUID.fromString("00001101-0000-1000-8000-00805F9B34FB"));
-                        bluetoothSocket.connect();
-                        inputStream = bluetoothSocket.getInputStream();
-                        outputStream = bluetoothSocket.getOutputStream();
-
-                    }catch(IOException e){
-                        e.printStackTrace();
-                        sendCallbackMessage(MESSAGE_CONNECTION_FAILED, null);
-                    }
-
-                }
-            });
+    /**
+     * Connects again to the same device.
+     */
+    private static class BluetoothTransportFactory implements Transport.Factory{
 
-            thread.start();
+        private final BluetoothDevice device;
 
+        private BluetoothTransportFactory(BluetoothDevice device){
+            this.device = device;
         }
 
         @Override
-        public void run(){
-
-            try {
-                thread.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-
-            int bytesAvailable;
-            int delimiterIndex;
-            byte buffer[];
-
-            String data = "";
-            StringBuilder stringBuilder = new StringBuilder();
-
-            //final byte delimiter = 10; //This is the ASCII code for newline character
-
-            while(!isInterrupted()){
-
-                try {
-
-                    bytesAvailable = inputStream.available();
-
-                    if(bytesAvailable > 0) {
-
-                        buffer = new byte[bytesAvailable];
-                        inputStream.read(buffer);
-
-                        data = new String(buffer, "UTF-8");
-                        delimiterIndex = data.indexOf('\n');
-
-                        if(delimiterIndex == -1){
-                            stringBuilder.append(data);
-                        }
-
-                        else{
-
-                            if(delimiterIndex > 0)
-                                stringBuilder.append(data.substring(0, delimiterIndex));
-
-                            sendCallbackMessage(MESSAGE_DATA_RECEIVED, stringBuilder.toString());
-
-                            stringBuilder.setLength(0);
-                        }
-
-                    }
+        public Transport newTransport() {
+            return new BluetoothTransport(device);
+        }
 
+    }
 
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    break;
-                }
+    /**
+     * Paces the notifications of the data stored by the capture session and reports connection failures.
+     * Called on the thread reading the connection.
+     */
+    private class SessionListener implements CaptureSession.Listener{
 
-            }
+        private volatile boolean isOpened = false;
+        private volatile boolean isReconnecting = false;
 
+        @Override
+        public void onSessionOpened(CaptureSession session) {
+            isOpened = true;
+            isReconnecting = false;
         }
 
-        public void write(byte[] buffer){
-
-            try{
-                outputStream.write(buffer);
-            }catch(IOException e){
-                e.printStackTrace();
-            }
+        @Override
+        public void onReconnecting(CaptureSession session, IOException cause, int attempt, long delayMillis) {
+            isReconnecting = true;
+            sendCallbackMessage(MESSAGE_RECONNECTING, attempt);
+        }
 
+        @Override
+        public void onFrameStored(CaptureSession session, long index) {
+            if(session.getRecordColumns() != null) recordBatcher.add(null);
+            else lineBatcher.add(null);
         }
 
-        public void cancel(){
+        @Override
+        public void onSessionClosed(CaptureSession session, IOException cause) {
 
-            try{
+            sendCallbackMessage(MESSAGE_SESSION_CLOSED, session);
 
-                bluetoothSocket.close();
-                inputStream.close();
-                outputStream.close();
+            if(cause == null) return;
 
-            }catch(IOException | NullPointerException e){
-                e.printStackTrace();
-            }
+            cause.printStackTrace();
+            if(!isOpened) sendCallbackMessage(MESSAGE_CONNECTION_FAILED, null);
+            else if(isReconnecting) sendCallbackMessage(MESSAGE_CONNECTION_LOST, null); /* gave up reconnecting */
 
         }
 
@@ -633,6 +1201,8 @@ public class BluetoothCommunicator extends Communicator implements Connectable,
          * @see #ACTION_DEVICE_CONNECTED
          * @see #ACTION_DEVICE_FOUND
          * @see #ACTION_CONNECTION_ATTEMPT
+         * @see #ACTION_RECORD_RECEIVED
+         * @see #ACTION_RECONNECTING
          */
         public int getAction(){
             return action;
@@ -0,0 +1,89 @@
+package amplastudio.csvgenerator.fragments.bluetooth.communicator;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import amplastudio.csvgenerator.stream.transport.Transport;
+
+/**
+ * Transport over a bluetooth RFCOMM socket using the serial port profile, as exposed by HC-05 and HC-06 modules.
+ */
+public class BluetoothTransport implements Transport {
+
+    // UUID FROM GOOGLE DOCs found in http://developer.android.com/intl/pt-br/guide/topics/connectivity/bluetooth.html
+    private static final UUID SERIAL_PORT_PROFILE_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    private final BluetoothDevice device;
+
+    private volatile BluetoothSocket bluetoothSocket = null;
+    private volatile boolean isClosed = false;
+
+    private InputStream inputStream;
+    private OutputStream outputStream;
+
+    /**
+     *
+     * @param device Device to connect to
+     */
+    public BluetoothTransport(BluetoothDevice device){
+        this.device = device;
+    }
+
+    @Override
+    public void open() throws IOException {
+
+        bluetoothSocket = device.createRfcommSocketToServiceRecord(SERIAL_PORT_PROFILE_UUID);
+
+        if(isClosed) throw new IOException("transport closed"); /* closed before the socket existed */
+
+        bluetoothSocket.connect();
+        inputStream = bluetoothSocket.getInputStream();
+        outputStream = bluetoothSocket.getOutputStream();
+
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public void close() {
+
+        isClosed = true;
+
+        BluetoothSocket socket = bluetoothSocket;
+        if(socket == null) return;
+
+        try{
+            socket.close();
+        }catch(IOException e){
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     *
+     * @return Device this transport connects to
+     */
+    public BluetoothDevice getDevice(){
+        return device;
+    }
+
+    @Override
+    public String toString() {
+        return "bluetooth://" + device.getAddress();
+    }
+
+}
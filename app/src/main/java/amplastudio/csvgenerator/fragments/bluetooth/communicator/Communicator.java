@@ -28,6 +28,26 @@ public abstract class Communicator {
 
     }
 
+    /**
+     * Same as {@link #sendCallbackMessage(int, Object)}, but the message is delivered after the given delay.
+     * @param delayMillis Delay, in milliseconds
+     */
+    protected void sendCallbackMessageDelayed(int what, Object obj, long delayMillis){
+
+        if(mHandler != null) mHandler.sendMessageDelayed(mHandler.obtainMessage(what, obj), delayMillis);
+
+    }
+
+    /**
+     * Removes the pending callback messages with the given flag, such as messages sent with
+     * {@link #sendCallbackMessageDelayed(int, Object, long)} that are not delivered yet.
+     */
+    protected void removeCallbackMessages(int what){
+
+        if(mHandler != null) mHandler.removeMessages(what);
+
+    }
+
     /**
      *
      * @return Current Handler used to receive callback messages.
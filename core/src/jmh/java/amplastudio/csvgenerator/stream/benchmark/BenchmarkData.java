@@ -0,0 +1,61 @@
+package amplastudio.csvgenerator.stream.benchmark;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Synthetic CSV streams shared by the benchmarks, shaped like the lines an Arduino prints with Serial.println().
+ */
+final class BenchmarkData {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private BenchmarkData(){}
+
+    /**
+     * Builds a CSV line of comma separated analog readings padded to the given length, without line feed.
+     * @param random Source of the readings
+     * @param length Length of the line, in bytes
+     * @return Line of ASCII digits and commas
+     */
+    static String csvLine(Random random, int length){
+
+        StringBuilder line = new StringBuilder(length + 5);
+
+        while(line.length() < length){
+            if(line.length() > 0) line.append(',');
+            line.append(random.nextInt(1024));
+        }
+
+        line.setLength(length);
+        if(line.charAt(length - 1) == ',') line.setCharAt(length - 1, '0');
+
+        return line.toString();
+
+    }
+
+    /**
+     * Builds a stream of line feed terminated CSV lines.
+     * @param lineCount Number of lines
+     * @param lineLength Length of every line, without line feed
+     * @return Bytes of the stream
+     */
+    static byte[] csvStream(int lineCount, int lineLength){
+
+        Random random = new Random(42);
+        byte[] stream = new byte[lineCount * (lineLength + 1)];
+        int position = 0;
+        byte[] line;
+
+        for(int i = 0; i < lineCount; i++){
+            line = csvLine(random, lineLength).getBytes(UTF_8);
+            System.arraycopy(line, 0, stream, position, line.length);
+            position += line.length;
+            stream[position++] = '\n';
+        }
+
+        return stream;
+
+    }
+
+}
@@ -0,0 +1,118 @@
+package amplastudio.csvgenerator.stream.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import amplastudio.csvgenerator.stream.export.LineExporter;
+import amplastudio.csvgenerator.stream.export.LineWriter;
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
+
+/**
+ * Assembles the CSV file content from the held lines, as the export dialog does, up to the bytes handed to the file stream,
+ * which discards them here. Every figure is per line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CsvExportBenchmark {
+
+    private static final int LINE_COUNT = 50000;
+
+    @Param({"16", "64"})
+    public int lineLength;
+
+    private ArrayList<String> legacyLines;
+    private LineRingBuffer store;
+    private String lineSeparator;
+
+    @Setup
+    public void setUp(){
+
+        Random random = new Random(42);
+        legacyLines = new ArrayList<>(LINE_COUNT);
+        store = new LineRingBuffer(LINE_COUNT, LINE_COUNT * lineLength * 2, LineRingBuffer.EvictionPolicy.DROP_OLDEST);
+        lineSeparator = "\n";
+
+        for(int i = 0; i < LINE_COUNT; i++){
+            String line = BenchmarkData.csvLine(random, lineLength);
+            legacyLines.add(line);
+            store.add(line);
+        }
+
+    }
+
+    /**
+     * Original export: every line appended to a StringBuilder, then encoded at once.
+     */
+    @Benchmark
+    @OperationsPerInvocation(LINE_COUNT)
+    public byte[] legacyStringBuilderExport(){
+
+        StringBuilder builder = new StringBuilder();
+
+        for(int i = 0; i < legacyLines.size(); i++) {
+            builder.append(legacyLines.get(i));
+            builder.append(lineSeparator);
+        }
+
+        return builder.toString().getBytes();
+
+    }
+
+    /**
+     * Export of the dialog now: a {@link LineExporter} copying the lines of the store straight into the buffer of a
+     * {@link LineWriter}, which hands it to the stream every {@value LineWriter#DEFAULT_BUFFER_SIZE} bytes.
+     */
+    @Benchmark
+    @OperationsPerInvocation(LINE_COUNT)
+    public long lineExporterExport() throws IOException {
+
+        DiscardingOutputStream out = new DiscardingOutputStream();
+        LineWriter writer = new LineWriter(out, lineSeparator, LineWriter.DEFAULT_BUFFER_SIZE);
+
+        new LineExporter(store).writeTo(writer);
+        writer.flush();
+
+        return out.byteCount;
+
+    }
+
+    /**
+     * Stands for the file, counting the bytes written so they are not optimized away.
+     */
+    private static class DiscardingOutputStream extends OutputStream{
+
+        private long byteCount = 0;
+
+        @Override
+        public void write(int b) {
+            byteCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            byteCount += len;
+        }
+
+    }
+
+}
@@ -0,0 +1,91 @@
+package amplastudio.csvgenerator.stream.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import amplastudio.csvgenerator.stream.CaptureSession;
+import amplastudio.csvgenerator.stream.framing.DelimiterFrameDecoder;
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
+import amplastudio.csvgenerator.stream.transport.LoopbackTransport;
+
+/**
+ * Whole ingest path on its own threads: a device writes CSV lines into a loopback transport in chunks, and a capture
+ * session reads, frames and publishes them. Measures the highest line rate the data path sustains, per line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IngestBenchmark {
+
+    private static final int LINE_COUNT = 4096;
+
+    /**
+     * Bytes written by the device at once.
+     */
+    @Param({"64", "4096"})
+    public int chunkSize;
+
+    @Param({"32"})
+    public int lineLength;
+
+    private byte[] stream;
+    private LineRingBuffer store;
+    private CaptureSession session;
+    private OutputStream device;
+
+    @Setup
+    public void setUp() throws InterruptedException {
+
+        stream = BenchmarkData.csvStream(LINE_COUNT, lineLength);
+        store = new LineRingBuffer(LINE_COUNT * 4, stream.length * 4, LineRingBuffer.EvictionPolicy.DROP_OLDEST);
+        session = new CaptureSession(DelimiterFrameDecoder.lineFeed(), store);
+
+        LoopbackTransport transport = new LoopbackTransport();
+        device = transport.getDeviceOutputStream();
+        session.startListen(transport);
+
+        while(!session.isOpen()) Thread.sleep(1);
+
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        session.stopListen(null);
+        session.awaitClosed(1000);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINE_COUNT)
+    public long loopbackCapture() throws IOException {
+
+        long target = store.getNextSequence() + LINE_COUNT;
+
+        for(int offset = 0; offset < stream.length; offset += chunkSize)
+            device.write(stream, offset, Math.min(chunkSize, stream.length - offset));
+
+        /* waits for the reading thread to publish the last line */
+        while(store.getNextSequence() < target) Thread.yield();
+
+        return target;
+
+    }
+
+}
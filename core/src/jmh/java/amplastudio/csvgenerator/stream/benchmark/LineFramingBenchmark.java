@@ -0,0 +1,155 @@
+package amplastudio.csvgenerator.stream.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+import amplastudio.csvgenerator.stream.framing.DelimiterFrameDecoder;
+import amplastudio.csvgenerator.stream.framing.FrameListener;
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
+
+/**
+ * <p>Splits a CSV stream in lines, fed in chunks as the stream reader delivers them. Every figure is per line:
+ * run with -prof gc and read gc.alloc.rate.norm for the bytes allocated per line.</p>
+ * <p>{@link #legacyStringFraming(Blackhole)} is the framing of the original connect thread, kept as the baseline.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineFramingBenchmark {
+
+    private static final int LINE_COUNT = 4096;
+
+    /**
+     * Bytes delivered by each read. Small chunks are what a slow link delivers, large ones a backlog being drained.
+     */
+    @Param({"16", "64", "512", "4096"})
+    public int chunkSize;
+
+    /**
+     * Length of every line, without line feed.
+     */
+    @Param({"16", "64", "256"})
+    public int lineLength;
+
+    private byte[] stream;
+    private DelimiterFrameDecoder decoder;
+    private LineRingBuffer store;
+    private ConsumingListener consumingListener;
+    private FrameListener storingListener;
+
+    @Setup
+    public void setUp(){
+
+        stream = BenchmarkData.csvStream(LINE_COUNT, lineLength);
+        decoder = DelimiterFrameDecoder.lineFeed();
+        store = new LineRingBuffer(LINE_COUNT, LINE_COUNT * (lineLength + 1), LineRingBuffer.EvictionPolicy.DROP_OLDEST);
+        consumingListener = new ConsumingListener();
+
+        storingListener = new FrameListener() {
+            @Override
+            public void onFrame(byte[] frame, int offset, int length) {
+                store.add(frame, offset, length);
+            }
+        };
+
+    }
+
+    /**
+     * Frames the stream without storing the lines.
+     */
+    @Benchmark
+    @OperationsPerInvocation(LINE_COUNT)
+    public void delimiterFrameDecoder(Blackhole blackhole){
+
+        consumingListener.blackhole = blackhole;
+
+        for(int offset = 0; offset < stream.length; offset += chunkSize)
+            decoder.decode(stream, offset, Math.min(chunkSize, stream.length - offset), consumingListener);
+
+    }
+
+    /**
+     * Frames the stream and publishes every line in the store, which is what the reading thread does.
+     */
+    @Benchmark
+    @OperationsPerInvocation(LINE_COUNT)
+    public long delimiterFrameDecoderIntoStore(){
+
+        for(int offset = 0; offset < stream.length; offset += chunkSize)
+            decoder.decode(stream, offset, Math.min(chunkSize, stream.length - offset), storingListener);
+
+        return store.getNextSequence();
+
+    }
+
+    /**
+     * Original framing: a new byte array, String and substring for every chunk, and a String for every line.
+     * Like the original, only the first line of a chunk is kept, so it does less work than the decoders when chunks
+     * hold several lines.
+     */
+    @Benchmark
+    @OperationsPerInvocation(LINE_COUNT)
+    public void legacyStringFraming(Blackhole blackhole) throws UnsupportedEncodingException {
+
+        StringBuilder stringBuilder = new StringBuilder();
+        byte[] buffer;
+        String data;
+        int count;
+        int delimiterIndex;
+
+        for(int offset = 0; offset < stream.length; offset += chunkSize){
+
+            count = Math.min(chunkSize, stream.length - offset);
+            buffer = new byte[count];
+            System.arraycopy(stream, offset, buffer, 0, count); /* inputStream.read(buffer) */
+
+            data = new String(buffer, "UTF-8");
+            delimiterIndex = data.indexOf('\n');
+
+            if(delimiterIndex == -1){
+                stringBuilder.append(data);
+            }
+
+            else{
+
+                if(delimiterIndex > 0)
+                    stringBuilder.append(data.substring(0, delimiterIndex));
+
+                blackhole.consume(stringBuilder.toString()); /* sendCallbackMessage(MESSAGE_DATA_RECEIVED, ...) */
+
+                stringBuilder.setLength(0);
+            }
+
+        }
+
+    }
+
+    private static class ConsumingListener implements FrameListener{
+
+        private Blackhole blackhole;
+
+        @Override
+        public void onFrame(byte[] frame, int offset, int length) {
+            blackhole.consume(length);
+        }
+
+    }
+
+}
@@ -0,0 +1,143 @@
+package amplastudio.csvgenerator.stream.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import amplastudio.csvgenerator.stream.framing.CobsFrameDecoder;
+import amplastudio.csvgenerator.stream.record.FieldType;
+import amplastudio.csvgenerator.stream.record.RecordColumns;
+import amplastudio.csvgenerator.stream.record.RecordLayout;
+
+/**
+ * Decodes COBS framed binary records of a timestamp and 8 int16 channels into columns, fed in chunks, compared with
+ * parsing the same readings sent as CSV text. Every figure is per record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordDecodingBenchmark {
+
+    private static final int RECORD_COUNT = 4096;
+    private static final int CHANNEL_COUNT = 8;
+
+    @Param({"64", "4096"})
+    public int chunkSize;
+
+    private byte[] cobsStream;
+    private String[] csvLines;
+    private CobsFrameDecoder decoder;
+    private RecordColumns columns;
+    private long[] parsedValues;
+
+    @Setup
+    public void setUp(){
+
+        RecordLayout layout = new RecordLayout.Builder(ByteOrder.LITTLE_ENDIAN)
+                .addField("millis", FieldType.UINT32)
+                .addFields("ch", CHANNEL_COUNT, FieldType.INT16)
+                .build();
+
+        Random random = new Random(42);
+        ByteBuffer record = ByteBuffer.allocate(layout.getRecordSize()).order(ByteOrder.LITTLE_ENDIAN);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        StringBuilder line = new StringBuilder();
+        csvLines = new String[RECORD_COUNT];
+
+        for(int i = 0; i < RECORD_COUNT; i++){
+
+            record.clear();
+            record.putInt(i);
+            line.setLength(0);
+            line.append(i);
+
+            for(int c = 0; c < CHANNEL_COUNT; c++){
+                short value = (short) random.nextInt(1024);
+                record.putShort(value);
+                line.append(',').append(value);
+            }
+
+            writeCobs(record.array(), stream);
+            csvLines[i] = line.toString();
+        }
+
+        cobsStream = stream.toByteArray();
+        decoder = new CobsFrameDecoder();
+        columns = new RecordColumns(layout, RECORD_COUNT);
+        parsedValues = new long[CHANNEL_COUNT + 1];
+
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORD_COUNT)
+    public int cobsRecordsIntoColumns(){
+
+        columns.clear();
+
+        for(int offset = 0; offset < cobsStream.length; offset += chunkSize)
+            decoder.decode(cobsStream, offset, Math.min(chunkSize, cobsStream.length - offset), columns);
+
+        return columns.size();
+
+    }
+
+    /**
+     * Same readings parsed from CSV lines with String.split, as a spreadsheet import of the exported file would.
+     */
+    @Benchmark
+    @OperationsPerInvocation(RECORD_COUNT)
+    public long csvLinesSplitAndParsed(){
+
+        long sum = 0;
+        String[] fields;
+
+        for(int i = 0; i < RECORD_COUNT; i++){
+            fields = csvLines[i].split(",");
+            for(int f = 0; f < fields.length; f++) parsedValues[f] = Long.parseLong(fields[f]);
+            sum += parsedValues[1];
+        }
+
+        return sum;
+
+    }
+
+    private static void writeCobs(byte[] data, ByteArrayOutputStream out){
+
+        int codeIndex = 0;
+        byte[] block = new byte[data.length + 2];
+        int position = 1;
+
+        for(byte b : data){
+            if(b == 0){
+                block[codeIndex] = (byte) (position - codeIndex);
+                codeIndex = position++;
+            }else{
+                block[position++] = b;
+            }
+        }
+
+        block[codeIndex] = (byte) (position - codeIndex);
+        out.write(block, 0, position);
+        out.write(0);
+
+    }
+
+}
@@ -0,0 +1,140 @@
+package amplastudio.csvgenerator.stream.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.TimeUnit;
+
+import amplastudio.csvgenerator.stream.text.Utf8StreamDecoder;
+
+/**
+ * <p>Decodes a CSV stream to characters, fed in chunks as the stream reader delivers them. Every figure is per byte, so
+ * scores are bytes decoded per second.</p>
+ * <p>{@link #legacyNewString(Blackhole)} is the decoding of the original connect thread, kept as the baseline. Unlike the
+ * decoders, it corrupts the characters split between two chunks.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Utf8DecodingBenchmark {
+
+    private static final int LINE_COUNT = 4096;
+    private static final int LINE_LENGTH = 64;
+    private static final int STREAM_LENGTH = LINE_COUNT * (LINE_LENGTH + 1);
+
+    /**
+     * Bytes delivered by each read.
+     */
+    @Param({"16", "512", "4096"})
+    public int chunkSize;
+
+    /**
+     * True for ASCII telemetry, false for a stream where a line in eight holds accented characters.
+     */
+    @Param({"true", "false"})
+    public boolean ascii;
+
+    private byte[] stream;
+    private char[] chars;
+    private Utf8StreamDecoder decoder;
+    private CharsetDecoder charsetDecoder;
+    private CharBuffer charBuffer;
+
+    @Setup
+    public void setUp(){
+
+        stream = BenchmarkData.csvStream(LINE_COUNT, LINE_LENGTH);
+
+        if(!ascii){
+            byte[] accent = "ção".getBytes(BenchmarkData.UTF_8);
+            for(int line = 0; line < LINE_COUNT; line += 8)
+                System.arraycopy(accent, 0, stream, line * (LINE_LENGTH + 1), accent.length);
+        }
+
+        chars = new char[Utf8StreamDecoder.maxCharCount(chunkSize)];
+        decoder = new Utf8StreamDecoder();
+        charsetDecoder = BenchmarkData.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        charBuffer = CharBuffer.allocate(chunkSize + 1);
+
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STREAM_LENGTH)
+    public int utf8StreamDecoder(){
+
+        int count = 0;
+
+        for(int offset = 0; offset < stream.length; offset += chunkSize)
+            count += decoder.decode(stream, offset, Math.min(chunkSize, stream.length - offset), chars, 0);
+
+        return count + decoder.flush(chars, 0);
+
+    }
+
+    /**
+     * The JDK decoder fed the same chunks, keeping the bytes of split characters in the input buffer.
+     */
+    @Benchmark
+    @OperationsPerInvocation(STREAM_LENGTH)
+    public int charsetDecoder(){
+
+        ByteBuffer input = ByteBuffer.wrap(stream);
+        int count = 0;
+
+        charsetDecoder.reset();
+
+        for(int end = chunkSize; input.hasRemaining(); end += chunkSize){
+            input.limit(Math.min(end, stream.length));
+            charBuffer.clear();
+            charsetDecoder.decode(input, charBuffer, input.limit() == stream.length);
+            count += charBuffer.position();
+        }
+
+        charBuffer.clear();
+        charsetDecoder.flush(charBuffer);
+
+        return count + charBuffer.position();
+
+    }
+
+    /**
+     * Original decoding: a new byte array and String for every chunk.
+     */
+    @Benchmark
+    @OperationsPerInvocation(STREAM_LENGTH)
+    public void legacyNewString(Blackhole blackhole) throws UnsupportedEncodingException {
+
+        byte[] buffer;
+        int count;
+
+        for(int offset = 0; offset < stream.length; offset += chunkSize){
+            count = Math.min(chunkSize, stream.length - offset);
+            buffer = new byte[count];
+            System.arraycopy(stream, offset, buffer, 0, count); /* inputStream.read(buffer) */
+            blackhole.consume(new String(buffer, "UTF-8"));
+        }
+
+    }
+
+}
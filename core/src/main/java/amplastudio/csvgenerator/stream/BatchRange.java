@@ -0,0 +1,50 @@
+package amplastudio.csvgenerator.stream;
+
+/**
+ * Range of consecutive items delivered together, such as the lines received since the previous delivery.
+ */
+public class BatchRange {
+
+    private final long start;
+    private final int count;
+
+    /**
+     *
+     * @param start Position of the first item of the batch
+     * @param count Number of items of the batch
+     */
+    public BatchRange(long start, int count){
+        this.start = start;
+        this.count = count;
+    }
+
+    /**
+     *
+     * @return Position of the first item of the batch
+     */
+    public long getStart(){
+        return start;
+    }
+
+    /**
+     *
+     * @return Number of items of the batch
+     */
+    public int getCount(){
+        return count;
+    }
+
+    /**
+     *
+     * @return Position after the last item of the batch
+     */
+    public long getEnd(){
+        return start + count;
+    }
+
+    @Override
+    public String toString(){
+        return "BatchRange[" + start + ", " + getEnd() + ")";
+    }
+
+}
@@ -0,0 +1,137 @@
+package amplastudio.csvgenerator.stream;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * <p>Coalesces items produced one by one, usually by the thread reading a stream, into batches handed to a consumer thread.</p>
+ * <p>A flush is requested from the {@link FlushScheduler} when the first item of a batch is added, delayed by the time budget,
+ * and again without delay when the batch reaches its maximum size. The consumer then takes the whole batch with
+ * {@link #drainTo(Collection)}, so at most a couple of flushes are requested per batch however fast items arrive.</p>
+ * <p>Null items are counted in the batch without being held, for producers that keep the data elsewhere and only need
+ * the consumer to be notified. This class is thread-safe.</p>
+ * @param <T> Item type
+ */
+public class Batcher<T> {
+
+    private final int maxBatchSize;
+    private final long maxDelayMillis;
+    private final FlushScheduler scheduler;
+
+    /**
+     * Items of the current batch, reused between batches.
+     */
+    private final ArrayList<T> pending;
+
+    /**
+     * Number of items of the current batch, including null items.
+     */
+    private int pendingCount = 0;
+
+    /**
+     * {@link System#nanoTime()} when the first item of the current batch was added.
+     */
+    private long pendingSinceNanos = 0;
+
+    /**
+     *
+     * @param maxBatchSize Number of items that triggers an immediate flush
+     * @param maxDelayMillis Maximum time, in milliseconds, an item waits before a flush is requested
+     * @param scheduler Scheduler that runs the flushes on the consumer thread
+     */
+    public Batcher(int maxBatchSize, long maxDelayMillis, FlushScheduler scheduler){
+
+        if(maxBatchSize <= 0) throw new IllegalArgumentException("maxBatchSize must be positive");
+        if(maxDelayMillis < 0) throw new IllegalArgumentException("maxDelayMillis must not be negative");
+
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMillis = maxDelayMillis;
+        this.scheduler = scheduler;
+        this.pending = new ArrayList<>(maxBatchSize);
+    }
+
+    /**
+     * Adds an item to the current batch, requesting a flush if needed.
+     * @param item Item to add, null to only count it
+     */
+    public void add(T item){
+
+        int count;
+
+        synchronized (this){
+            if(item != null) pending.add(item);
+            count = ++pendingCount;
+            if(count == 1) pendingSinceNanos = System.nanoTime();
+        }
+
+        if(count == maxBatchSize) scheduler.scheduleFlush(0);
+        else if(count == 1) scheduler.scheduleFlush(maxDelayMillis);
+
+    }
+
+    /**
+     * Takes the current batch, starting a new one.
+     * @param target Collection that receives the items held, may be null to discard them
+     * @return Number of items of the batch, including null items
+     */
+    public synchronized int drainTo(Collection<? super T> target){
+
+        int count = pendingCount;
+
+        if(target != null){
+            for(int i = 0; i < pending.size(); i++) target.add(pending.get(i));
+        }
+
+        pending.clear();
+        pendingCount = 0;
+        return count;
+
+    }
+
+    /**
+     *
+     * @return Number of items waiting in the current batch
+     */
+    public synchronized int getPendingCount(){
+        return pendingCount;
+    }
+
+    /**
+     * Tells how long the oldest item of the current batch has been waiting, which is the delivery latency of the batch
+     * if read right before {@link #drainTo(Collection)}.
+     * @return Nanoseconds since the first item of the current batch was added, 0 if the batch is empty
+     */
+    public synchronized long getPendingNanos(){
+        return pendingCount > 0 ? System.nanoTime() - pendingSinceNanos : 0;
+    }
+
+    /**
+     *
+     * @return Number of items that triggers an immediate flush
+     */
+    public int getMaxBatchSize(){
+        return maxBatchSize;
+    }
+
+    /**
+     *
+     * @return Maximum time, in milliseconds, an item waits before a flush is requested
+     */
+    public long getMaxDelayMillis(){
+        return maxDelayMillis;
+    }
+
+    /**
+     * Runs flushes on the consumer thread, which should call {@link #drainTo(Collection)}.
+     */
+    public interface FlushScheduler{
+
+        /**
+         * Requests a flush. A request without delay should replace a delayed request still pending.
+         * @param delayMillis Delay before the flush, in milliseconds
+         */
+        void scheduleFlush(long delayMillis);
+
+    }
+
+}
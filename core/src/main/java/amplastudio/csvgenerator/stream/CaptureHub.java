@@ -0,0 +1,283 @@
+package amplastudio.csvgenerator.stream;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import amplastudio.csvgenerator.stream.framing.FrameDecoder;
+import amplastudio.csvgenerator.stream.metrics.PipelineMetrics;
+import amplastudio.csvgenerator.stream.record.RecordColumns;
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
+import amplastudio.csvgenerator.stream.transport.Transport;
+
+/**
+ * <p>Captures several devices at once, such as the sensor nodes of a rig. Every device has its own
+ * {@link CaptureSession}, with its own decoder and store, and its own {@link PipelineMetrics}; all of them run on a
+ * single pool of threads bounded by the maximum number of devices.</p>
+ * <p>Devices are identified by a name, usually their address, and kept in the order they were added. This class is
+ * thread-safe.</p>
+ */
+public class CaptureHub {
+
+    /**
+     * Default maximum number of devices captured at once.
+     */
+    public static final int DEFAULT_MAX_DEVICES = 4;
+
+    /**
+     * Threads needed by a running capture: one reading and one writing.
+     */
+    private static final int THREADS_PER_DEVICE = 2;
+
+    private final int maxDevices;
+    private final ExecutorService executor;
+    private final Map<String, Device> devices = new LinkedHashMap<>();
+
+    private boolean isShutdown = false;
+
+    /**
+     * Captures up to {@link #DEFAULT_MAX_DEVICES} devices.
+     */
+    public CaptureHub(){
+        this(DEFAULT_MAX_DEVICES);
+    }
+
+    /**
+     *
+     * @param maxDevices Maximum number of devices captured at once
+     */
+    public CaptureHub(int maxDevices){
+
+        if(maxDevices <= 0) throw new IllegalArgumentException("maxDevices must be positive");
+
+        this.maxDevices = maxDevices;
+        this.executor = Executors.newFixedThreadPool(maxDevices * THREADS_PER_DEVICE, new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "CaptureHub-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        });
+    }
+
+    /**
+     * Adds a device whose frames are held as lines. The device is not captured until {@link Device#start()} is called.
+     * @param name Name identifying the device in this hub
+     * @param transportFactory Creates the transports to the device
+     * @param frameDecoder Decoder used by this device only
+     * @param lines Store of the lines of this device only
+     * @param reconnectPolicy How the device is connected again when lost, null to end its capture
+     * @return Device added
+     * @throws IllegalStateException If the hub already has its maximum number of devices, a device of that name, or was shut down
+     */
+    public Device addDevice(String name, Transport.Factory transportFactory, FrameDecoder frameDecoder, LineRingBuffer lines,
+                            ReconnectPolicy reconnectPolicy){
+        return add(name, transportFactory, reconnectPolicy, new CaptureSession(frameDecoder, lines));
+    }
+
+    /**
+     * Adds a device whose frames are decoded as records. The device is not captured until {@link Device#start()} is called.
+     * @param name Name identifying the device in this hub
+     * @param transportFactory Creates the transports to the device
+     * @param frameDecoder Decoder used by this device only
+     * @param records Columns of the records of this device only
+     * @param reconnectPolicy How the device is connected again when lost, null to end its capture
+     * @return Device added
+     * @throws IllegalStateException If the hub already has its maximum number of devices, a device of that name, or was shut down
+     */
+    public Device addDevice(String name, Transport.Factory transportFactory, FrameDecoder frameDecoder, RecordColumns records,
+                            ReconnectPolicy reconnectPolicy){
+        return add(name, transportFactory, reconnectPolicy, new CaptureSession(frameDecoder, records));
+    }
+
+    private synchronized Device add(String name, Transport.Factory transportFactory, ReconnectPolicy reconnectPolicy,
+                                    CaptureSession session){
+
+        if(isShutdown) throw new IllegalStateException("hub shut down");
+        if(devices.containsKey(name)) throw new IllegalStateException("device " + name + " already added");
+        if(devices.size() >= maxDevices) throw new IllegalStateException("hub full, at most " + maxDevices + " devices");
+
+        session.setExecutor(executor);
+
+        Device device = new Device(name, transportFactory, reconnectPolicy, session);
+        devices.put(name, device);
+        return device;
+
+    }
+
+    /**
+     * Stops capturing a device and removes it, its data stays in its store.
+     * @param name Name of the device
+     * @return Device removed, null if there was no device of that name
+     */
+    public Device removeDevice(String name){
+
+        Device device;
+
+        synchronized (this){
+            device = devices.remove(name);
+        }
+
+        if(device != null) device.stop();
+        return device;
+
+    }
+
+    /**
+     * Handles the link to a device dropping, as reported by the platform. Only that device is affected: it connects again
+     * on its own if it has a {@link ReconnectPolicy} and is still listening, else its capture is stopped, while the other
+     * devices keep capturing.
+     * @param name Name of the device
+     * @return Device whose link dropped, null if there is no device of that name
+     */
+    public Device onConnectionLost(String name){
+
+        Device device = getDevice(name);
+        if(device != null) device.onConnectionLost();
+        return device;
+
+    }
+
+    /**
+     *
+     * @param name Name of the device
+     * @return Device of that name, null if there is none
+     */
+    public synchronized Device getDevice(String name){
+        return devices.get(name);
+    }
+
+    /**
+     *
+     * @return Devices of this hub, in the order they were added
+     */
+    public synchronized List<Device> getDevices(){
+        return new ArrayList<>(devices.values());
+    }
+
+    /**
+     *
+     * @return Number of devices of this hub
+     */
+    public synchronized int getDeviceCount(){
+        return devices.size();
+    }
+
+    /**
+     *
+     * @return Maximum number of devices captured at once
+     */
+    public int getMaxDevices(){
+        return maxDevices;
+    }
+
+    /**
+     * Starts capturing every device not already listening.
+     */
+    public void startAll(){
+        for(Device device : getDevices()) if(!device.getSession().isListening()) device.start();
+    }
+
+    /**
+     * Stops capturing every device, keeping them in the hub.
+     */
+    public void stopAll(){
+        for(Device device : getDevices()) device.stop();
+    }
+
+    /**
+     * Stops every device and releases the threads. No device can be added afterwards.
+     */
+    public void shutdown(){
+
+        synchronized (this){
+            isShutdown = true;
+        }
+
+        stopAll();
+        executor.shutdown();
+
+    }
+
+    /**
+     * A device captured by the hub.
+     */
+    public static class Device{
+
+        private final String name;
+        private final Transport.Factory transportFactory;
+        private final ReconnectPolicy reconnectPolicy;
+        private final CaptureSession session;
+        private final PipelineMetrics metrics = new PipelineMetrics();
+
+        private Device(String name, Transport.Factory transportFactory, ReconnectPolicy reconnectPolicy, CaptureSession session){
+            this.name = name;
+            this.transportFactory = transportFactory;
+            this.reconnectPolicy = reconnectPolicy;
+            this.session = session;
+            metrics.setSession(session);
+        }
+
+        /**
+         * Connects to the device and captures its data, restarting the capture if already listening.
+         */
+        public void start(){
+            session.startListen(transportFactory, reconnectPolicy);
+        }
+
+        /**
+         * Stops capturing the device. Returns right away, the capture ends on its own.
+         */
+        public void stop(){
+            session.stopListen(null);
+        }
+
+        /**
+         * Stops capturing the device after its link dropped, unless its session connects again on its own.
+         */
+        private void onConnectionLost(){
+            if(reconnectPolicy == null || !session.isListening()) stop();
+        }
+
+        /**
+         *
+         * @return Name identifying the device in its hub
+         */
+        public String getName(){
+            return name;
+        }
+
+        /**
+         *
+         * @return Session capturing the device, which holds its data and sends data to it
+         */
+        public CaptureSession getSession(){
+            return session;
+        }
+
+        /**
+         *
+         * @return Throughput, drops and latencies of this device
+         */
+        public PipelineMetrics getMetrics(){
+            return metrics;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+
+    }
+
+}
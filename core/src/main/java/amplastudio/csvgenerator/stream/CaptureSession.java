@@ -0,0 +1,670 @@
+package amplastudio.csvgenerator.stream;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executor;
+
+import amplastudio.csvgenerator.fragments.bluetooth.communicator.DataHolder;
+import amplastudio.csvgenerator.fragments.bluetooth.communicator.MessageListen;
+import amplastudio.csvgenerator.stream.framing.FrameDecoder;
+import amplastudio.csvgenerator.stream.framing.FrameListener;
+import amplastudio.csvgenerator.stream.metrics.LatencyHistogram;
+import amplastudio.csvgenerator.stream.record.RecordColumns;
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
+import amplastudio.csvgenerator.stream.transport.Transport;
+
+/**
+ * <p>Captures the data sent by a device over any {@link Transport}: opens it, reads it with a {@link StreamReader},
+ * splits the bytes in frames with a {@link FrameDecoder} and stores every frame, either as a line in a
+ * {@link LineRingBuffer} or as a record in {@link RecordColumns}. Data sent to the device goes through a {@link WriteQueue}.</p>
+ * <p>Each call of {@link #startListen(Transport)} runs on two threads of its own, one opening and reading the transport
+ * and one writing to it, until the stream ends or {@link #stopListen(Transport)} is called. The {@link Listener} is called
+ * on the reading thread.</p>
+ * <p>Started with a {@link ReconnectPolicy}, the capture goes on across dropouts: once the transport was opened, a lost
+ * stream is followed by new transports from the {@link Transport.Factory} until one opens, and a gap marker line
+ * starting with {@link #GAP_MARKER_PREFIX} is stored where data may be missing.</p>
+ */
+public class CaptureSession implements DataHolder, MessageListen<Transport, byte[]> {
+
+    private final FrameDecoder frameDecoder;
+
+    /**
+     * Receives the frames as lines, null if frames are decoded as records.
+     */
+    private final LineRingBuffer lines;
+
+    /**
+     * Receives the frames as records, null if frames are held as lines.
+     */
+    private final RecordColumns records;
+
+    /**
+     * Start of the line stored when the capture resumes after a dropout, followed by the time the stream was lost, in
+     * milliseconds since the epoch, and the time it took to connect again, in milliseconds: {@code # gap,1467900000000,2150}
+     */
+    public static final String GAP_MARKER_PREFIX = "# gap";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Time taken by every reconnection, in milliseconds.
+     */
+    private final LatencyHistogram reconnectTime = new LatencyHistogram();
+
+    private volatile Listener listener = null;
+
+    private volatile FrameInterceptor frameInterceptor = null;
+
+    /**
+     * Runs the reading and writing threads, null to start threads of their own.
+     */
+    private volatile Executor executor = null;
+
+    /**
+     * Connection of the last call of {@link #startListen(Transport)}, null if it was never called.
+     */
+    private volatile Connection connection = null;
+
+    /**
+     * Connection whose reading thread is running, null if none. A new connection is only started once this one has
+     * closed, so the decoder and the store never have two threads feeding them. Guarded by this session.
+     */
+    private Connection active = null;
+
+    /**
+     * Holds received frames as lines.
+     * @param frameDecoder Decoder used by this session only, must not be shared with other sessions
+     * @param lines Store the lines are published into. This session becomes its single producer
+     */
+    public CaptureSession(FrameDecoder frameDecoder, LineRingBuffer lines){
+        this(frameDecoder, lines, null);
+    }
+
+    /**
+     * Decodes received frames as binary records.
+     * @param frameDecoder Decoder used by this session only, must not be shared with other sessions
+     * @param records Columns the records are appended to
+     */
+    public CaptureSession(FrameDecoder frameDecoder, RecordColumns records){
+        this(frameDecoder, null, records);
+    }
+
+    private CaptureSession(FrameDecoder frameDecoder, LineRingBuffer lines, RecordColumns records){
+        this.frameDecoder = frameDecoder;
+        this.lines = lines;
+        this.records = records;
+    }
+
+    /**
+     *
+     * @param listener Listener for session events, called on the reading thread. May be null
+     */
+    public void setListener(Listener listener){
+        this.listener = listener;
+    }
+
+    /**
+     *
+     * @param frameInterceptor Interceptor that sees every frame before it is stored, called on the reading thread. May be null
+     */
+    public void setFrameInterceptor(FrameInterceptor frameInterceptor){
+        this.frameInterceptor = frameInterceptor;
+    }
+
+    /**
+     * Runs the reading and writing of the next captures on the given executor, such as a pool shared by several sessions,
+     * instead of threads of their own. Both block for the whole capture, so the executor needs two threads per running
+     * session; a capture waiting for a thread is not read meanwhile.
+     * @param executor Executor of the captures, null to start threads of their own
+     */
+    public void setExecutor(Executor executor){
+        this.executor = executor;
+    }
+
+    /**
+     * Opens the transport and starts capturing its data on a new thread, stopping the previous capture if any. Returns
+     * right away: the new capture starts once the reading thread of the previous one has ended.
+     * @param transport Transport to capture, opened by this session and closed when the capture ends
+     */
+    @Override
+    public void startListen(Transport transport) {
+        start(new Connection(transport, null, null));
+    }
+
+    /**
+     * Opens a transport from the factory and starts capturing its data on a new thread, stopping the previous capture if any.
+     * Returns right away: the new capture starts once the reading thread of the previous one has ended. Once a transport was opened, the capture connects again with new transports whenever the stream is lost, as told by
+     * the policy, until {@link #stopListen(Transport)} is called.
+     * @param transportFactory Creates the transports to the device, opened by this session and closed when lost
+     * @param reconnectPolicy Delays between attempts, null to end the capture when the stream is lost
+     */
+    public void startListen(Transport.Factory transportFactory, ReconnectPolicy reconnectPolicy) {
+        start(new Connection(transportFactory.newTransport(), transportFactory, reconnectPolicy));
+    }
+
+    private synchronized void start(Connection next){
+
+        Connection previous = connection;
+        connection = next;
+
+        if(previous != null && previous != active) previous.discard(); /* replaced before it started */
+
+        if(active != null){
+            active.stop(); /* the new connection is started when this one closes */
+            return;
+        }
+
+        launch(next);
+
+    }
+
+    /**
+     * Starts the reading thread of a connection. Called with the lock of this session held, once no other connection runs.
+     */
+    private void launch(Connection next){
+        frameDecoder.reset();
+        active = next;
+        execute(next, "CaptureSession-" + next.transport);
+    }
+
+    /**
+     * Stops the current capture and closes its transport. Returns right away, the reading thread ends on its own.
+     * @param transport Parameter ignored, can be null
+     */
+    @Override
+    public synchronized void stopListen(Transport transport) {
+
+        Connection current = connection;
+        if(current != null) current.stop();
+
+    }
+
+    /**
+     * Queues data to be sent to the device, without blocking the calling thread.
+     * @param data Data to be sent
+     * @see #sendData(byte[], WriteQueue.CompletionListener)
+     */
+    @Override
+    public void sendData(byte[] data) {
+        sendData(data, null);
+    }
+
+    /**
+     * Queues data to be sent to the device, without blocking the calling thread.
+     * @param data Data to be sent, must not be changed until it is written
+     * @param listener Listener told when the data is written or fails, called on the writer thread. May be null
+     * @return False if the transport is not open or too much data is already waiting to be sent
+     */
+    public boolean sendData(byte[] data, WriteQueue.CompletionListener listener) {
+        WriteQueue queue = getWriteQueue();
+        return queue != null && queue.offer(data, listener);
+    }
+
+    /**
+     *
+     * @return True between {@link #startListen(Transport)} and the end of the capture
+     */
+    public boolean isListening(){
+        Connection current = connection;
+        return current != null && !current.isStopped && !current.isClosed;
+    }
+
+    /**
+     *
+     * @return True while the capture waits to connect again after its stream was lost
+     */
+    public boolean isReconnecting(){
+        Connection current = connection;
+        return current != null && current.lostAtNanos != 0 && !current.isStopped && !current.isClosed;
+    }
+
+    /**
+     *
+     * @return Time taken by every reconnection of this session, in milliseconds
+     */
+    public LatencyHistogram getReconnectTime(){
+        return reconnectTime;
+    }
+
+    /**
+     *
+     * @return True if the transport is open and being read
+     */
+    public boolean isOpen(){
+        Connection current = connection;
+        return current != null && current.isOpen && !current.isStopped && !current.isClosed;
+    }
+
+    /**
+     *
+     * @return True if no capture is running anymore, or none was ever started. A capture stopped by {@link #stopListen(Transport)}
+     * is only closed once its reading thread stopped feeding the store
+     */
+    public boolean isClosed(){
+        Connection current = connection;
+        return current == null || current.isClosed;
+    }
+
+    /**
+     * Waits for the current capture to end, such as when the device closes the stream.
+     * @param timeoutMillis Maximum time to wait, in milliseconds
+     * @return True if no capture is running anymore
+     * @throws InterruptedException If the waiting thread is interrupted
+     */
+    public boolean awaitClosed(long timeoutMillis) throws InterruptedException {
+        Connection current = connection;
+        return current == null || current.awaitClosed(timeoutMillis);
+    }
+
+    /**
+     *
+     * @return Queue of data waiting to be sent, with its depth and write counters, null if the transport was never opened
+     */
+    public WriteQueue getWriteQueue(){
+        Connection current = connection;
+        return current != null ? current.writeQueue : null;
+    }
+
+    /**
+     *
+     * @return Transport currently used by the last capture, null if the session never listened
+     */
+    public Transport getTransport(){
+        Connection current = connection;
+        return current != null ? current.transport : null;
+    }
+
+    /**
+     *
+     * @return Number of bytes read by the last capture
+     */
+    public long getReceivedByteCount(){
+        Connection current = connection;
+        return current != null ? current.receivedByteCount : 0;
+    }
+
+    /**
+     *
+     * @return Number of frames stored by the last capture
+     */
+    public long getStoredFrameCount(){
+        Connection current = connection;
+        return current != null ? current.storedFrameCount : 0;
+    }
+
+    /**
+     *
+     * @return Number of frames the last capture could not store: lines dropped by a full store or malformed records
+     */
+    public long getRejectedFrameCount(){
+        Connection current = connection;
+        return current != null ? current.rejectedFrameCount : 0;
+    }
+
+    /**
+     *
+     * @return Decoder splitting the received bytes in frames
+     */
+    public FrameDecoder getFrameDecoder(){
+        return frameDecoder;
+    }
+
+    /**
+     *
+     * @return Lines received, null if frames are decoded as records
+     */
+    @Override
+    public LineRingBuffer getHeldData() {
+        return lines;
+    }
+
+    /**
+     *
+     * @return Records received, null if frames are held as lines
+     */
+    public RecordColumns getRecordColumns(){
+        return records;
+    }
+
+    /**
+     * Clears the lines or records received.
+     */
+    @Override
+    public void releaseData() {
+        if(lines != null) lines.clear();
+        if(records != null) records.clear();
+    }
+
+    private void execute(Runnable task, String threadName){
+        Executor current = executor;
+        if(current != null) current.execute(task);
+        else new Thread(task, threadName).start();
+    }
+
+    /**
+     * One capture, from opening its first transport to closing its last one.
+     */
+    private class Connection implements Runnable, StreamReader.Listener, FrameListener{
+
+        /**
+         * Creates the transports after the first one, null if the capture does not reconnect.
+         */
+        private final Transport.Factory transportFactory;
+
+        private final ReconnectPolicy reconnectPolicy;
+
+        private volatile Transport transport;
+
+        private volatile StreamReader streamReader;
+        private volatile WriteQueue writeQueue;
+
+        private volatile boolean isOpen = false;
+        private volatile boolean isStopped = false;
+        private volatile boolean isClosed = false;
+        private volatile long receivedByteCount = 0;
+        private volatile long storedFrameCount = 0;
+        private volatile long rejectedFrameCount = 0;
+
+        /**
+         * {@link System#nanoTime()} when the stream was lost, 0 while connected.
+         */
+        private volatile long lostAtNanos = 0;
+
+        /**
+         * {@link System#currentTimeMillis()} when the stream was lost.
+         */
+        private long lostAtMillis = 0;
+
+        /**
+         * Error that ended the last stream read, null if it ended normally.
+         */
+        private IOException streamCause = null;
+
+        private Connection(Transport transport, Transport.Factory transportFactory, ReconnectPolicy reconnectPolicy){
+            this.transport = transport;
+            this.transportFactory = transportFactory;
+            this.reconnectPolicy = reconnectPolicy;
+        }
+
+        @Override
+        public void run() {
+
+            boolean wasOpened = false;
+            IOException cause;
+            int attempt = 0;
+            long delayMillis;
+
+            while(true){
+
+                cause = capture();
+
+                if(isOpen){ /* the stream was read, then lost */
+                    isOpen = false;
+                    wasOpened = true;
+                    attempt = 0;
+                    lostAtMillis = System.currentTimeMillis();
+                    lostAtNanos = System.nanoTime();
+                }
+
+                /* a transport that never opened is reported right away, it may not be the right device */
+                if(isStopped || reconnectPolicy == null || !wasOpened) break;
+                if(!reconnectPolicy.shouldRetry(++attempt)) break;
+
+                delayMillis = reconnectPolicy.getDelayMillis(attempt);
+
+                Listener current = listener;
+                if(current != null) current.onReconnecting(CaptureSession.this, cause, attempt, delayMillis);
+
+                if(!sleep(delayMillis)) break;
+
+                transport = transportFactory.newTransport();
+                if(isStopped) break; /* stop() may have closed the previous transport */
+
+            }
+
+            close(isStopped ? null : cause);
+
+        }
+
+        /**
+         * Opens the current transport and reads it until the stream ends.
+         * @return Error that ended the capture, null if the stream ended normally or the capture was stopped
+         */
+        private IOException capture(){
+
+            Transport currentTransport = transport;
+
+            try{
+                currentTransport.open();
+            }catch(IOException e){
+                currentTransport.close();
+                return isStopped ? null : e; /* closing the transport to stop the session fails open() */
+            }
+
+            if(isStopped){
+                currentTransport.close();
+                return null;
+            }
+
+            WriteQueue queue = new WriteQueue(currentTransport.getOutputStream());
+            writeQueue = queue;
+            execute(queue, "CaptureSession-writer");
+
+            streamReader = new StreamReader(currentTransport.getInputStream(), this);
+            isOpen = true;
+
+            if(lostAtNanos != 0) onReconnected();
+
+            Listener current = listener;
+            if(current != null) current.onSessionOpened(CaptureSession.this);
+
+            if(isStopped) streamReader.stop(); /* stopped before the reader existed */
+            streamReader.run();
+
+            queue.stop();
+            currentTransport.close();
+
+            return isStopped ? null : streamCause;
+
+        }
+
+        /**
+         * Records the time taken to connect again and marks the gap in the stored lines.
+         */
+        private void onReconnected(){
+
+            long gapMillis = (System.nanoTime() - lostAtNanos) / 1000000;
+            lostAtNanos = 0;
+            reconnectTime.record(gapMillis);
+
+            if(lines == null) return; /* records have no room for a marker */
+
+            byte[] marker = (GAP_MARKER_PREFIX + ',' + lostAtMillis + ',' + gapMillis).getBytes(UTF_8);
+            long index = lines.add(marker, 0, marker.length);
+
+            Listener current = listener;
+            if(index >= 0 && current != null) current.onFrameStored(CaptureSession.this, index);
+
+        }
+
+        /**
+         * Waits before the next attempt.
+         * @return False if the capture was stopped meanwhile
+         */
+        private synchronized boolean sleep(long delayMillis){
+
+            long deadline = System.currentTimeMillis() + delayMillis;
+            long remaining = delayMillis;
+
+            try{
+                while(!isStopped && remaining > 0){
+                    wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            }catch(InterruptedException e){
+                return false; /* stopping the reader interrupts this thread */
+            }
+
+            return !isStopped;
+
+        }
+
+        @Override
+        public void onChunkRead(byte[] buffer, int offset, int length) {
+            if(isStopped) return; /* the data read after stopListen() is not stored */
+            receivedByteCount += length;
+            frameDecoder.decode(buffer, offset, length, this);
+        }
+
+        @Override
+        public void onFrame(byte[] frame, int offset, int length) {
+
+            long index;
+
+            FrameInterceptor interceptor = frameInterceptor;
+            if(interceptor != null && interceptor.interceptFrame(frame, offset, length)) return;
+
+            if(records != null) index = records.append(frame, offset, length) ? records.size() - 1 : -1;
+            else index = lines.add(frame, offset, length);
+
+            if(index < 0){
+                rejectedFrameCount++;
+                return;
+            }
+
+            storedFrameCount++;
+
+            Listener current = listener;
+            if(current != null) current.onFrameStored(CaptureSession.this, index);
+
+        }
+
+        @Override
+        public void onStreamClosed(IOException cause) {
+            if(!isStopped) frameDecoder.reset(); /* drops the frame cut by the end of the stream */
+            streamCause = cause;
+        }
+
+        private void stop(){
+
+            isStopped = true;
+
+            StreamReader reader = streamReader;
+            if(reader != null) reader.stop();
+
+            transport.close(); /* unblocks open(), read() and write() */
+
+            synchronized (this){
+                notifyAll(); /* ends the wait before the next attempt */
+            }
+
+        }
+
+        /**
+         * Closes a connection replaced before its reading thread was started.
+         */
+        private void discard(){
+
+            isStopped = true;
+            transport.close();
+
+            synchronized (this){
+                isClosed = true;
+                notifyAll();
+            }
+
+        }
+
+        private void close(IOException cause){
+
+            WriteQueue queue = writeQueue;
+            if(queue != null) queue.stop();
+
+            transport.close();
+
+            synchronized (this){
+                isClosed = true;
+                notifyAll();
+            }
+
+            Listener current = listener;
+            if(current != null) current.onSessionClosed(CaptureSession.this, cause);
+
+            synchronized (CaptureSession.this){
+                active = null;
+                Connection next = connection;
+                if(next != this) launch(next); /* started while this one was closing */
+            }
+
+        }
+
+        private synchronized boolean awaitClosed(long timeoutMillis) throws InterruptedException {
+
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long remaining = timeoutMillis;
+
+            while(!isClosed && remaining > 0){
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+
+            return isClosed;
+
+        }
+
+    }
+
+    /**
+     * Takes frames out of the stream before they are stored, such as replies to commands sent to the device.
+     */
+    public interface FrameInterceptor{
+
+        /**
+         * Called on the reading thread for every frame received. Must return quickly, the next frames wait for it.
+         * @param frame Array holding the frame, reused for the next frame
+         * @param offset Index of the first byte of the frame
+         * @param length Number of bytes of the frame
+         * @return True if the frame was consumed and must not be stored
+         */
+        boolean interceptFrame(byte[] frame, int offset, int length);
+
+    }
+
+    /**
+     * Receives the events of a {@link CaptureSession}. Every method is called on the reading thread.
+     */
+    public interface Listener{
+
+        /**
+         * Called once the transport is open, before any data is read.
+         * @param session Session that opened its transport
+         */
+        void onSessionOpened(CaptureSession session);
+
+        /**
+         * Called for every frame stored. Must return quickly, the next frames wait for it.
+         * @param session Session that received the frame
+         * @param index Sequence of the line in {@link #getHeldData()}, or row of the record in {@link #getRecordColumns()}
+         */
+        void onFrameStored(CaptureSession session, long index);
+
+        /**
+         * Called when the stream was lost and the session is about to connect again, before every attempt.
+         * {@link #onSessionOpened(CaptureSession)} is called again once a new transport is open.
+         * @param session Session that lost its stream
+         * @param cause Error that ended the stream or the previous attempt, null if the stream just ended
+         * @param attempt Number of the attempt, from 1 since the stream was lost
+         * @param delayMillis Time waited before the attempt, in milliseconds
+         */
+        void onReconnecting(CaptureSession session, IOException cause, int attempt, long delayMillis);
+
+        /**
+         * Called once when the capture ends, including when the transport failed to open or the session gave up reconnecting.
+         * @param session Session that closed its transport
+         * @param cause Null if the stream ended or the session was stopped, the error that ended the capture otherwise
+         */
+        void onSessionClosed(CaptureSession session, IOException cause);
+
+    }
+
+}
@@ -0,0 +1,124 @@
+package amplastudio.csvgenerator.stream;
+
+/**
+ * <p>Tells a {@link CaptureSession} whether and when to connect again after its transport was lost. The delay grows
+ * exponentially with every failed attempt, from the initial delay up to the maximum delay, and starts over once a
+ * connection is made again.</p>
+ * <p>Delays are spread by a random fraction of up to {@link #JITTER}, so devices lost together do not all retry at the
+ * same time. Instances are immutable.</p>
+ */
+public class ReconnectPolicy {
+
+    /**
+     * Default delay before the first attempt, in milliseconds.
+     */
+    public static final long DEFAULT_INITIAL_DELAY_MILLIS = 500;
+
+    /**
+     * Default cap of the delay between two attempts, in milliseconds.
+     */
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 30000;
+
+    /**
+     * Default factor the delay grows by after every failed attempt.
+     */
+    public static final double DEFAULT_MULTIPLIER = 2;
+
+    /**
+     * Fraction of the delay that is random.
+     */
+    public static final double JITTER = 0.2;
+
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final double multiplier;
+    private final int maxAttempts;
+
+    /**
+     * Retries forever with the default delays.
+     */
+    public ReconnectPolicy(){
+        this(DEFAULT_INITIAL_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_MULTIPLIER, 0);
+    }
+
+    /**
+     *
+     * @param initialDelayMillis Delay before the first attempt, in milliseconds
+     * @param maxDelayMillis Cap of the delay between two attempts, in milliseconds
+     * @param multiplier Factor the delay grows by after every failed attempt, at least 1
+     * @param maxAttempts Number of attempts before giving up, 0 to retry forever
+     */
+    public ReconnectPolicy(long initialDelayMillis, long maxDelayMillis, double multiplier, int maxAttempts){
+
+        if(initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis) throw new IllegalArgumentException("invalid delays");
+        if(multiplier < 1) throw new IllegalArgumentException("multiplier must be at least 1");
+        if(maxAttempts < 0) throw new IllegalArgumentException("maxAttempts must not be negative");
+
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.multiplier = multiplier;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     *
+     * @param attempt Number of the attempt, from 1 since the connection was lost
+     * @return True if the attempt should be made
+     */
+    public boolean shouldRetry(int attempt){
+        return maxAttempts == 0 || attempt <= maxAttempts;
+    }
+
+    /**
+     *
+     * @param attempt Number of the attempt, from 1 since the connection was lost
+     * @return Delay before the attempt, in milliseconds, without the random part
+     */
+    public long getBaseDelayMillis(int attempt){
+        double delay = initialDelayMillis * Math.pow(multiplier, Math.max(0, attempt - 1));
+        return (long) Math.min(delay, maxDelayMillis);
+    }
+
+    /**
+     *
+     * @param attempt Number of the attempt, from 1 since the connection was lost
+     * @return Delay before the attempt, in milliseconds, never above the maximum delay
+     */
+    public long getDelayMillis(int attempt){
+        long delay = getBaseDelayMillis(attempt);
+        return delay - (long) (delay * JITTER * Math.random());
+    }
+
+    /**
+     *
+     * @return Delay before the first attempt, in milliseconds
+     */
+    public long getInitialDelayMillis(){
+        return initialDelayMillis;
+    }
+
+    /**
+     *
+     * @return Cap of the delay between two attempts, in milliseconds
+     */
+    public long getMaxDelayMillis(){
+        return maxDelayMillis;
+    }
+
+    /**
+     *
+     * @return Factor the delay grows by after every failed attempt
+     */
+    public double getMultiplier(){
+        return multiplier;
+    }
+
+    /**
+     *
+     * @return Number of attempts before giving up, 0 if retrying forever
+     */
+    public int getMaxAttempts(){
+        return maxAttempts;
+    }
+
+}
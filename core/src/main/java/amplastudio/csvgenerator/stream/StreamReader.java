@@ -0,0 +1,162 @@
+package amplastudio.csvgenerator.stream;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>Reads an {@link InputStream} with blocking reads into a reusable buffer and hands every chunk read to a {@link Listener}.</p>
+ * <p>The thread that runs {@link #run()} sleeps inside {@link InputStream#read(byte[], int, int)} while the stream has
+ * nothing to deliver, instead of polling {@link InputStream#available()}, so an idle connection costs no CPU time.</p>
+ * <p>Reading stops when the stream ends, when {@link #stop()} is called, when the reading thread is interrupted
+ * or when the stream is closed by its owner (for example by closing the socket it belongs to).</p>
+ */
+public class StreamReader implements Runnable {
+
+    /**
+     * Default size, in bytes, of the buffer reused by every read.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+
+    private final InputStream inputStream;
+    private final Listener listener;
+
+    /**
+     * Buffer reused by every read. Its content is only valid during {@link Listener#onChunkRead(byte[], int, int)}.
+     */
+    private final byte[] buffer;
+
+    private volatile boolean isStopped = false;
+
+    /**
+     * Thread currently running {@link #run()}, null if the reader is not running. Only interrupted and cleared while
+     * holding the lock of this reader, so a pooled thread that went on to another task is never interrupted.
+     */
+    private volatile Thread readingThread;
+
+    /**
+     * Set when {@link #stop()} interrupted {@link #readingThread}, guarded by this reader.
+     */
+    private boolean isInterrupted = false;
+
+    public StreamReader(InputStream inputStream, Listener listener){
+        this(inputStream, listener, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     *
+     * @param inputStream Stream to read from
+     * @param listener Listener that receives every chunk read
+     * @param bufferSize Size of the reusable read buffer, in bytes
+     */
+    public StreamReader(InputStream inputStream, Listener listener, int bufferSize){
+
+        if(bufferSize <= 0) throw new IllegalArgumentException("bufferSize must be positive");
+
+        this.inputStream = inputStream;
+        this.listener = listener;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Blocks reading the stream until it ends or the reader is stopped. {@link Listener#onStreamClosed(IOException)}
+     * is always called once before this method returns.
+     */
+    @Override
+    public void run(){
+
+        readingThread = Thread.currentThread();
+        IOException cause = null;
+        int count;
+
+        try{
+
+            while(!isStopped && !readingThread.isInterrupted()){
+
+                count = inputStream.read(buffer, 0, buffer.length);
+
+                if(count == -1) break; /* end of stream */
+
+                if(count > 0) listener.onChunkRead(buffer, 0, count);
+
+            }
+
+        }catch(IOException e){
+            /* closing the stream or interrupting the thread to stop the reader unblocks read() with an exception */
+            if(!isStopped && !Thread.currentThread().isInterrupted()) cause = e;
+        }finally{
+            clearReadingThread();
+        }
+
+        listener.onStreamClosed(cause);
+
+    }
+
+    /**
+     * Stops reading, unblocking a pending read by interrupting the reading thread and closing the stream.
+     * May be called from any thread.
+     */
+    public void stop(){
+
+        isStopped = true;
+
+        synchronized (this){
+            Thread thread = readingThread;
+            if(thread != null){
+                thread.interrupt();
+                isInterrupted = true;
+            }
+        }
+
+        try{
+            inputStream.close();
+        }catch(IOException e){
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Forgets the reading thread, clearing the interrupt of {@link #stop()} so it does not reach the next task of the thread.
+     */
+    private synchronized void clearReadingThread(){
+
+        readingThread = null;
+
+        if(isInterrupted){
+            Thread.interrupted();
+            isInterrupted = false;
+        }
+
+    }
+
+    /**
+     *
+     * @return True if {@link #stop()} was called
+     */
+    public boolean isStopped(){
+        return isStopped;
+    }
+
+    /**
+     * Receives the data read by a {@link StreamReader}. Both methods are called on the reading thread.
+     */
+    public interface Listener{
+
+        /**
+         * Called for every successful read. The buffer is reused by the next read, so its content must be
+         * consumed or copied before this method returns.
+         * @param buffer Buffer holding the bytes read
+         * @param offset Index of the first byte read
+         * @param length Number of bytes read
+         */
+        void onChunkRead(byte[] buffer, int offset, int length);
+
+        /**
+         * Called once when reading stops.
+         * @param cause Null if the stream ended or the reader was stopped, the error that broke the stream otherwise
+         */
+        void onStreamClosed(IOException cause);
+
+    }
+
+}
@@ -0,0 +1,368 @@
+package amplastudio.csvgenerator.stream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * <p>Writes commands to an {@link OutputStream} on a dedicated thread, so the threads sending them, such as the main thread,
+ * never block on a slow or stalled connection. Commands wait in a bounded queue; when it is full new commands are rejected
+ * instead of piling up.</p>
+ * <p>Commands queued while a write is in progress are coalesced: the writer copies as many of them as fit in a reusable
+ * buffer and sends them with a single write, so a burst of small commands costs a few socket writes instead of one each.
+ * Every command may carry a {@link CompletionListener} told when it was written or why it failed.</p>
+ * <p>Run {@link #run()} on the writer thread and call {@link #stop()} to end it. Queue depth and write counters can be read
+ * from any thread.</p>
+ */
+public class WriteQueue implements Runnable {
+
+    /**
+     * Default maximum number of commands waiting to be written.
+     */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /**
+     * Default maximum number of bytes sent by a single write. Close to the payload of an RFCOMM packet.
+     */
+    public static final int DEFAULT_MAX_WRITE_SIZE = 990;
+
+    private final OutputStream outputStream;
+    private final ArrayBlockingQueue<Command> queue;
+
+    /**
+     * Reused to coalesce commands, only accessed by the writer thread.
+     */
+    private final byte[] buffer;
+
+    /**
+     * Commands coalesced in {@link #buffer}, only accessed by the writer thread.
+     */
+    private final Command[] batch;
+
+    /**
+     * Command taken from the queue that did not fit in the previous write, only accessed by the writer thread.
+     */
+    private Command carried = null;
+
+    private volatile boolean isStopped = false;
+
+    /**
+     * Thread currently running {@link #run()}, null if the writer is not running. Only interrupted and cleared while
+     * holding the lock of this queue, so a pooled thread that went on to another task is never interrupted.
+     */
+    private volatile Thread writingThread;
+
+    /**
+     * Set when {@link #stop()} interrupted {@link #writingThread}, guarded by this queue.
+     */
+    private boolean isInterrupted = false;
+
+    private volatile int maxQueueDepth = 0;
+    private volatile long writtenCommandCount = 0;
+    private volatile long writtenByteCount = 0;
+    private volatile long writeCount = 0;
+    private volatile long failedCommandCount = 0;
+    private volatile long rejectedCommandCount = 0;
+
+    public WriteQueue(OutputStream outputStream){
+        this(outputStream, DEFAULT_CAPACITY, DEFAULT_MAX_WRITE_SIZE);
+    }
+
+    /**
+     *
+     * @param outputStream Stream to write to
+     * @param capacity Maximum number of commands waiting to be written
+     * @param maxWriteSize Maximum number of bytes coalesced in a single write. Longer commands are written on their own
+     */
+    public WriteQueue(OutputStream outputStream, int capacity, int maxWriteSize){
+
+        if(capacity <= 0 || maxWriteSize <= 0) throw new IllegalArgumentException("capacity and maxWriteSize must be positive");
+
+        this.outputStream = outputStream;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.buffer = new byte[maxWriteSize];
+        this.batch = new Command[capacity];
+    }
+
+    /**
+     * Same as {@link #offer(byte[], CompletionListener)} without listener.
+     */
+    public boolean offer(byte[] data){
+        return offer(data, null);
+    }
+
+    /**
+     * Queues a command without blocking. The array must not be changed until the command is written.
+     * @param data Bytes of the command
+     * @param listener Listener told when the command is written or fails, called on the writer thread. May be null
+     * @return False if the command was rejected because the queue is full or the writer is stopped
+     */
+    public boolean offer(byte[] data, CompletionListener listener){
+
+        if(isStopped || !queue.offer(new Command(data, listener))){
+            rejectedCommandCount++;
+            return false;
+        }
+
+        int depth = queue.size();
+        if(depth > maxQueueDepth) maxQueueDepth = depth; /* a lost update only lowers the high-water mark by a few */
+
+        if(isStopped) failPending(new IOException("write queue stopped")); /* stopped while queueing, nobody will write it */
+
+        return true;
+
+    }
+
+    /**
+     * Writes the queued commands until {@link #stop()} is called or a write fails. Commands still queued when the writer
+     * ends are reported as failed.
+     */
+    @Override
+    public void run(){
+
+        writingThread = Thread.currentThread();
+        IOException cause = null;
+
+        try{
+
+            Command first;
+
+            while(!isStopped){
+                first = carried != null ? carried : queue.take(); /* sleeps until a command is queued */
+                carried = null;
+                writeBatch(first);
+            }
+
+        }catch(InterruptedException e){
+            /* interrupted by stop() */
+        }catch(IOException e){
+            cause = e;
+        }finally{
+            isStopped = true;
+            clearWritingThread();
+        }
+
+        IOException error = cause != null ? cause : new IOException("write queue stopped");
+
+        if(carried != null){
+            failedCommandCount++;
+            carried.complete(error);
+            carried = null;
+        }
+
+        failPending(error);
+
+    }
+
+    /**
+     * Stops the writer, unblocking it if it waits for commands. A write in progress is not interrupted, close the stream to
+     * abort it. May be called from any thread.
+     */
+    public void stop(){
+
+        isStopped = true;
+
+        synchronized (this){
+            Thread thread = writingThread;
+            if(thread != null){
+                thread.interrupt();
+                isInterrupted = true;
+            }
+        }
+
+    }
+
+    /**
+     * Forgets the writing thread, clearing the interrupt of {@link #stop()} so it does not reach the next task of the thread.
+     */
+    private synchronized void clearWritingThread(){
+
+        writingThread = null;
+
+        if(isInterrupted){
+            Thread.interrupted();
+            isInterrupted = false;
+        }
+
+    }
+
+    /**
+     *
+     * @return True if the writer was stopped or ended because a write failed
+     */
+    public boolean isStopped(){
+        return isStopped;
+    }
+
+    /**
+     *
+     * @return Number of commands waiting to be written
+     */
+    public int getQueueDepth(){
+        return queue.size();
+    }
+
+    /**
+     *
+     * @return Highest number of commands that waited to be written at the same time
+     */
+    public int getMaxQueueDepth(){
+        return maxQueueDepth;
+    }
+
+    /**
+     *
+     * @return Maximum number of commands waiting to be written
+     */
+    public int getCapacity(){
+        return batch.length;
+    }
+
+    /**
+     *
+     * @return Number of commands written
+     */
+    public long getWrittenCommandCount(){
+        return writtenCommandCount;
+    }
+
+    /**
+     *
+     * @return Number of bytes written
+     */
+    public long getWrittenByteCount(){
+        return writtenByteCount;
+    }
+
+    /**
+     *
+     * @return Number of writes made to the stream, lower than {@link #getWrittenCommandCount()} when commands are coalesced
+     */
+    public long getWriteCount(){
+        return writeCount;
+    }
+
+    /**
+     *
+     * @return Number of commands that failed to be written
+     */
+    public long getFailedCommandCount(){
+        return failedCommandCount;
+    }
+
+    /**
+     *
+     * @return Number of commands rejected because the queue was full or the writer stopped
+     */
+    public long getRejectedCommandCount(){
+        return rejectedCommandCount;
+    }
+
+    /**
+     * Writes the given command along with the queued commands that fit in the buffer.
+     */
+    private void writeBatch(Command first) throws IOException{
+
+        if(first.data.length > buffer.length){ /* too long to coalesce */
+            write(first.data, first.data.length, first, 1);
+            return;
+        }
+
+        int length = 0;
+        int count = 0;
+        Command next = first;
+
+        while(next != null){
+
+            if(length + next.data.length > buffer.length || count == batch.length){
+                carried = next; /* sent by the next write */
+                break;
+            }
+
+            System.arraycopy(next.data, 0, buffer, length, next.data.length);
+            length += next.data.length;
+            batch[count++] = next;
+            next = queue.poll();
+        }
+
+        write(buffer, length, null, count);
+
+    }
+
+    /**
+     * Writes the bytes and reports the commands, taken from {@link #batch} unless a single command is given.
+     */
+    private void write(byte[] data, int length, Command single, int count) throws IOException{
+
+        try{
+            outputStream.write(data, 0, length);
+            outputStream.flush();
+        }catch(IOException e){
+            failedCommandCount += count;
+            complete(single, count, e);
+            throw e;
+        }
+
+        writeCount++;
+        writtenByteCount += length;
+        writtenCommandCount += count;
+        complete(single, count, null);
+
+    }
+
+    private void complete(Command single, int count, IOException error){
+
+        if(single != null){
+            single.complete(error);
+            return;
+        }
+
+        for(int i = 0; i < count; i++){
+            batch[i].complete(error);
+            batch[i] = null;
+        }
+
+    }
+
+    private void failPending(IOException cause){
+
+        Command command;
+
+        while((command = queue.poll()) != null){
+            failedCommandCount++; /* may lose an update when both the writer and a sender get here */
+            command.complete(cause);
+        }
+
+    }
+
+    /**
+     * Receives the outcome of a command queued with {@link #offer(byte[], CompletionListener)}.
+     */
+    public interface CompletionListener{
+
+        /**
+         * Called once on the writer thread when the command was written or failed.
+         * @param data Bytes of the command
+         * @param error Null if the command was written, the error that prevented it otherwise
+         */
+        void onWriteCompleted(byte[] data, IOException error);
+
+    }
+
+    private static class Command{
+
+        private final byte[] data;
+        private final CompletionListener listener;
+
+        private Command(byte[] data, CompletionListener listener){
+            this.data = data;
+            this.listener = listener;
+        }
+
+        private void complete(IOException error){
+            if(listener != null) listener.onWriteCompleted(data, error);
+        }
+
+    }
+
+}
@@ -0,0 +1,597 @@
+package amplastudio.csvgenerator.stream.export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
+
+/**
+ * <p>Merges the lines of several devices into a single CSV ordered by time, such as the stores of a
+ * {@link amplastudio.csvgenerator.stream.CaptureHub}. Lines are ordered by the time they were received or by a timestamp
+ * column sent by the devices, and written either one per row with the device name ({@link Layout#LONG}) or as rows
+ * holding the latest line of every device side by side ({@link Layout#WIDE}).</p>
+ * <p>The merge streams: every device is read by its own {@link LineRingBuffer.Consumer}, a few lines ahead, and a heap picks
+ * the earliest line among them, so memory depends on the number of devices and not on the amount of data. Each store is
+ * merged up to the lines it held when {@link #writeTo(OutputStream)} was called, while capture keeps going. Lines of the
+ * same device keep their order; lines with the same time are written in the order the devices were added.</p>
+ * <p>Lines starting with {@code #}, such as gap markers, keep the time of the previous line of their device; they are
+ * written in the long layout and skipped in the wide one. Use {@link Builder} to create a merger.</p>
+ */
+public class CsvMerger implements Exporter {
+
+    /**
+     * How merged lines are laid out.
+     */
+    public enum Layout{
+
+        /**
+         * One row per line: {@code device,time,line}. The line is a single quoted field, as in RFC 4180, its quotes doubled
+         */
+        LONG,
+
+        /**
+         * One row per line: {@code time,} then the fields of the latest line of every device, in the order they were added.
+         * Every device takes as many columns as its first line has fields, devices without a line yet leave them empty
+         */
+        WIDE
+
+    }
+
+    /**
+     * Column index ordering the lines by the time they were received rather than by a column.
+     */
+    public static final int RECEIVE_TIME = -1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Above this, one more digit may overflow the mantissa of {@link #parseNumber(byte[], int, int)}.
+     */
+    private static final long MAX_EXACT_MANTISSA = (Long.MAX_VALUE - 9) / 10;
+
+    /**
+     * Powers of ten exactly held by a double.
+     */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final List<String> names;
+    private final List<LineRingBuffer> stores;
+    private final Layout layout;
+    private final int timestampColumn;
+    private final byte separator;
+    private final String lineSeparator;
+    private final boolean writeHeader;
+    private final int readAhead;
+
+    private LineWriter writer;
+
+    private CsvMerger(Builder builder){
+        names = new ArrayList<>(builder.names);
+        stores = new ArrayList<>(builder.stores);
+        layout = builder.layout;
+        timestampColumn = builder.timestampColumn;
+        separator = (byte) builder.separator;
+        lineSeparator = builder.lineSeparator;
+        writeHeader = builder.writeHeader;
+        readAhead = builder.readAhead;
+    }
+
+    /**
+     * Writes the merged lines, ending rows with the line separator of the builder. The stream is flushed, not closed.
+     * @param out Stream the CSV is written to
+     * @return Number of rows written, without the header
+     * @throws IOException If writing failed
+     */
+    public long writeTo(OutputStream out) throws IOException {
+        LineWriter writer = new LineWriter(out, lineSeparator, LineWriter.DEFAULT_BUFFER_SIZE);
+        long rows = writeTo(writer);
+        writer.flush();
+        return rows;
+    }
+
+    /**
+     * Writes the merged lines, ending rows with the line separator of the writer. The writer is not flushed.
+     * @param writer Writer the CSV is written to
+     * @return Number of rows written, without the header
+     * @throws IOException If writing failed
+     */
+    @Override
+    public long writeTo(LineWriter writer) throws IOException {
+
+        this.writer = writer;
+
+        final Source[] sources = new Source[stores.size()];
+        PriorityQueue<Source> heap = new PriorityQueue<>(Math.max(1, sources.length), new Comparator<Source>() {
+            @Override
+            public int compare(Source a, Source b) {
+                double keyA = a.keys[a.head];
+                double keyB = b.keys[b.head];
+                if(keyA != keyB) return keyA < keyB ? -1 : 1;
+                return a.index - b.index;
+            }
+        });
+
+        for(int i = 0; i < sources.length; i++){
+            sources[i] = new Source(i, stores.get(i));
+            if(sources[i].fill()) heap.add(sources[i]);
+        }
+
+        if(writeHeader) writeHeader(sources);
+
+        long rows = 0;
+        Source source;
+
+        while(!heap.isEmpty()){
+
+            source = heap.poll();
+
+            if(layout == Layout.LONG){
+                writeLongRow(source);
+                rows++;
+            }else if(!source.isComment()){
+                source.hold();
+                writeWideRow(source, sources);
+                rows++;
+            }
+
+            if(source.next()) heap.add(source);
+        }
+
+        this.writer = null;
+
+        return rows;
+
+    }
+
+    /**
+     *
+     * @return Number of lines held right now by all the devices, at most the number of rows written
+     */
+    @Override
+    public long getLineCount(){
+        long count = 0;
+        for(LineRingBuffer store : stores) count += store.size();
+        return count;
+    }
+
+    private void writeHeader(Source[] sources) throws IOException {
+
+        if(layout == Layout.LONG){
+            writer.write("device" + (char) separator + "time" + (char) separator + "line");
+        }else{
+            writer.write("time");
+            for(Source source : sources){
+                for(int f = 1; f <= source.fieldCount; f++) writer.write((char) separator + names.get(source.index) + '_' + f);
+            }
+        }
+
+        writer.newLine();
+
+    }
+
+    private void writeLongRow(Source source) throws IOException {
+
+        writer.write(source.name, 0, source.name.length);
+        writer.write(separator);
+        writeKey(source);
+        writer.write(separator);
+        writeQuoted(source.data, source.offsets[source.head], source.lengths[source.head]);
+        writer.newLine();
+
+    }
+
+    /**
+     * Writes a field between quotes, doubling the quotes it holds.
+     */
+    private void writeQuoted(byte[] field, int offset, int length) throws IOException {
+
+        int start = offset;
+        int end = offset + length;
+
+        writer.write((byte) '"');
+
+        for(int i = offset; i < end; i++){
+            if(field[i] != '"') continue;
+            writer.write(field, start, i + 1 - start);
+            writer.write((byte) '"');
+            start = i + 1;
+        }
+
+        writer.write(field, start, end - start);
+        writer.write((byte) '"');
+
+    }
+
+    /**
+     *
+     * @return The field between quotes if it holds the separator, a quote or a line break, the field as it is otherwise
+     */
+    private String escape(String field){
+
+        for(int i = 0; i < field.length(); i++){
+            char c = field.charAt(i);
+            if(c == separator || c == '"' || c == '\r' || c == '\n') return '"' + field.replace("\"", "\"\"") + '"';
+        }
+
+        return field;
+
+    }
+
+    private void writeWideRow(Source current, Source[] sources) throws IOException {
+
+        writeKey(current);
+
+        for(Source source : sources){
+
+            int written = 0;
+
+            if(source.hasHeld){
+                int start = 0;
+                for(int i = 0; i <= source.heldLength && written < source.fieldCount; i++){
+                    if(i == source.heldLength || source.held[i] == separator){
+                        writer.write(separator);
+                        writer.write(source.held, start, i - start);
+                        start = i + 1;
+                        written++;
+                    }
+                }
+            }
+
+            for(; written < source.fieldCount; written++) writer.write(separator);
+        }
+
+        writer.newLine();
+
+    }
+
+    /**
+     * Writes the time of the head line of the source: its receive time, or its timestamp field as sent.
+     */
+    private void writeKey(Source source) throws IOException {
+
+        int head = source.head;
+
+        if(Double.isInfinite(source.keys[head])) return; /* no time yet, such as a header before the first line */
+
+        if(timestampColumn == RECEIVE_TIME || source.keyLengths[head] < 0) writer.write(Long.toString((long) source.keys[head]));
+        else writer.write(source.data, source.offsets[head] + source.keyOffsets[head], source.keyLengths[head]);
+
+    }
+
+    /**
+     * Parses a decimal number, such as {@code 12}, {@code -0.5} or {@code 1.5e3}, straight from the bytes of a field, without
+     * creating a string. Spaces around the number are ignored. Numbers of more than 18 digits lose some precision, which
+     * only matters to the order of lines sent within less than their last digit of each other.
+     * @param bytes Array holding the field
+     * @param start Index of the first byte of the field
+     * @param end Index after the last byte of the field
+     * @return The number, NaN if the field is not a number
+     */
+    static double parseNumber(byte[] bytes, int start, int end){
+
+        while(start < end && (bytes[start] == ' ' || bytes[start] == '\t')) start++;
+        while(end > start && (bytes[end - 1] == ' ' || bytes[end - 1] == '\t')) end--;
+
+        int i = start;
+        boolean isNegative = false;
+
+        if(i < end && (bytes[i] == '-' || bytes[i] == '+')) isNegative = bytes[i++] == '-';
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0; /* power of ten of the mantissa */
+        boolean isFraction = false;
+
+        for(; i < end; i++){
+
+            int b = bytes[i];
+
+            if(b == '.' && !isFraction){
+                isFraction = true;
+                continue;
+            }
+
+            if(b < '0' || b > '9') break;
+
+            digits++;
+
+            if(mantissa < MAX_EXACT_MANTISSA){
+                mantissa = mantissa * 10 + (b - '0');
+                if(isFraction) scale--;
+            }else if(!isFraction){
+                scale++; /* digits past the precision of the mantissa */
+            }
+        }
+
+        if(digits == 0) return Double.NaN;
+
+        if(i < end && (bytes[i] == 'e' || bytes[i] == 'E')){
+
+            i++;
+            boolean isNegativeExponent = false;
+            if(i < end && (bytes[i] == '-' || bytes[i] == '+')) isNegativeExponent = bytes[i++] == '-';
+
+            if(i == end) return Double.NaN;
+
+            int exponent = 0;
+
+            for(; i < end; i++){
+                int b = bytes[i];
+                if(b < '0' || b > '9') return Double.NaN;
+                if(exponent < 10000) exponent = exponent * 10 + (b - '0');
+            }
+
+            scale += isNegativeExponent ? -exponent : exponent;
+        }
+
+        if(i != end) return Double.NaN;
+
+        double value = mantissa;
+
+        if(scale < 0) value = -scale < POWERS_OF_TEN.length ? value / POWERS_OF_TEN[-scale] : value / Math.pow(10, -scale);
+        else if(scale > 0) value = scale < POWERS_OF_TEN.length ? value * POWERS_OF_TEN[scale] : value * Math.pow(10, scale);
+
+        return isNegative ? -value : value;
+
+    }
+
+    /**
+     * Reads the lines of a device a few at a time, keeping their bytes and times until they are merged.
+     */
+    private class Source implements LineRingBuffer.LineHandler{
+
+        private final int index;
+        private final byte[] name;
+        private final LineRingBuffer.Consumer consumer;
+        private final long endSequence;
+
+        /* lines read ahead, from head to count */
+        private byte[] data = new byte[4096];
+        private int dataLength = 0;
+        private final int[] offsets = new int[readAhead];
+        private final int[] lengths = new int[readAhead];
+        private final double[] keys = new double[readAhead];
+        private final int[] keyOffsets = new int[readAhead];
+        private final int[] keyLengths = new int[readAhead];
+        private int head = 0;
+        private int count = 0;
+
+        /**
+         * Time given to lines without a time of their own.
+         */
+        private double lastKey = Double.NEGATIVE_INFINITY;
+
+        /* latest line merged, for the wide layout */
+        private byte[] held = new byte[256];
+        private int heldLength = 0;
+        private boolean hasHeld = false;
+
+        /**
+         * Number of fields of the first line, the columns of this device in the wide layout.
+         */
+        private int fieldCount = 0;
+
+        private Source(int index, LineRingBuffer store){
+            this.index = index;
+            this.name = escape(names.get(index)).getBytes(UTF_8);
+            this.consumer = store.newConsumer();
+            this.endSequence = store.getNextSequence();
+        }
+
+        /**
+         * Reads the next lines once every line read was merged.
+         * @return False if there are no lines left
+         */
+        private boolean fill(){
+
+            head = 0;
+            count = 0;
+            dataLength = 0;
+
+            while(count == 0 && consumer.getSequence() < endSequence){
+                consumer.poll(this, readAhead, endSequence);
+            }
+
+            return count > 0;
+
+        }
+
+        /**
+         * Moves to the next line.
+         * @return False if there are no lines left
+         */
+        private boolean next(){
+            return ++head < count || fill();
+        }
+
+        private boolean isComment(){
+            return lengths[head] > 0 && data[offsets[head]] == '#';
+        }
+
+        /**
+         * Keeps the head line as the latest line of this device.
+         */
+        private void hold(){
+
+            int length = lengths[head];
+            if(held.length < length) held = new byte[Math.max(length, held.length * 2)];
+
+            System.arraycopy(data, offsets[head], held, 0, length);
+            heldLength = length;
+            hasHeld = true;
+
+        }
+
+        @Override
+        public void onLine(long sequence, byte[] line, int offset, int length) {
+
+            if(dataLength + length > data.length){
+                byte[] grown = new byte[Math.max(data.length * 2, dataLength + length)];
+                System.arraycopy(data, 0, grown, 0, dataLength);
+                data = grown;
+            }
+
+            System.arraycopy(line, offset, data, dataLength, length);
+
+            boolean isComment = length > 0 && line[offset] == '#';
+
+            if(fieldCount == 0 && !isComment) fieldCount = countFields(line, offset, length);
+
+            offsets[count] = dataLength;
+            lengths[count] = length;
+            keyLengths[count] = -1;
+
+            if(timestampColumn == RECEIVE_TIME){
+                lastKey = consumer.getLineTimestamp();
+            }else if(!isComment){
+                parseKey(line, offset, length, count);
+            }
+
+            keys[count] = lastKey;
+            dataLength += length;
+            count++;
+
+        }
+
+        /**
+         * Finds the timestamp field of a line, keeping the previous time if it is missing or not a number.
+         */
+        private void parseKey(byte[] line, int offset, int length, int slot){
+
+            int field = 0;
+            int start = 0;
+
+            for(int i = 0; i <= length; i++){
+
+                if(i < length && line[offset + i] != separator) continue;
+
+                if(field++ == timestampColumn){
+                    double key = parseNumber(line, offset + start, offset + i);
+                    if(Double.isNaN(key)) return; /* a header or a corrupted line, ordered with the previous line */
+
+                    lastKey = key;
+                    keyOffsets[slot] = start;
+                    keyLengths[slot] = i - start;
+                    return;
+                }
+
+                start = i + 1;
+            }
+
+        }
+
+        private int countFields(byte[] line, int offset, int length){
+            int fields = 1;
+            for(int i = offset; i < offset + length; i++) if(line[i] == separator) fields++;
+            return fields;
+        }
+
+    }
+
+    /**
+     * Builds a {@link CsvMerger}. Defaults to the long layout ordered by receive time, comma separated, with a header.
+     */
+    public static class Builder{
+
+        private final List<String> names = new ArrayList<>();
+        private final List<LineRingBuffer> stores = new ArrayList<>();
+        private Layout layout = Layout.LONG;
+        private int timestampColumn = RECEIVE_TIME;
+        private char separator = ',';
+        private String lineSeparator = "\n";
+        private boolean writeHeader = true;
+        private int readAhead = 256;
+
+        /**
+         * Adds a device to merge.
+         * @param name Name of the device, written in the device column or in the headers of its columns
+         * @param lines Lines of the device
+         * @return This builder
+         */
+        public Builder addSource(String name, LineRingBuffer lines){
+            names.add(name);
+            stores.add(lines);
+            return this;
+        }
+
+        /**
+         *
+         * @param layout How merged lines are laid out
+         * @return This builder
+         */
+        public Builder layout(Layout layout){
+            this.layout = layout;
+            return this;
+        }
+
+        /**
+         * Orders the lines by a timestamp sent by the devices instead of the time they were received.
+         * @param column Index of the timestamp field in every line, from 0, or {@link #RECEIVE_TIME}
+         * @return This builder
+         */
+        public Builder timestampColumn(int column){
+            if(column < RECEIVE_TIME) throw new IllegalArgumentException("invalid column");
+            this.timestampColumn = column;
+            return this;
+        }
+
+        /**
+         *
+         * @param separator Field separator of the lines and of the output
+         * @return This builder
+         */
+        public Builder separator(char separator){
+            this.separator = separator;
+            return this;
+        }
+
+        /**
+         *
+         * @param lineSeparator Written after every row
+         * @return This builder
+         */
+        public Builder lineSeparator(String lineSeparator){
+            this.lineSeparator = lineSeparator;
+            return this;
+        }
+
+        /**
+         *
+         * @param writeHeader True to start with a row naming the columns
+         * @return This builder
+         */
+        public Builder writeHeader(boolean writeHeader){
+            this.writeHeader = writeHeader;
+            return this;
+        }
+
+        /**
+         *
+         * @param lines Number of lines read ahead from every device
+         * @return This builder
+         */
+        public Builder readAhead(int lines){
+            if(lines <= 0) throw new IllegalArgumentException("readAhead must be positive");
+            this.readAhead = lines;
+            return this;
+        }
+
+        /**
+         *
+         * @return New merger
+         */
+        public CsvMerger build(){
+            return new CsvMerger(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,248 @@
+package amplastudio.csvgenerator.stream.export;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Runs an {@link Exporter} to a file in the background, reporting progress, allowing cancellation and ending with a
+ * {@link Summary} of the lines, bytes and throughput written. Capture goes on while the job runs, the exporter writes the
+ * data held when it started.</p>
+ * <p>Progress is reported every time the buffer of the {@link LineWriter} is handed to the file, at most every
+ * {@value #PROGRESS_INTERVAL_MILLIS} milliseconds. A cancelled or failed export deletes the file it was writing. Every
+ * callback of the {@link Listener} is called on the thread of the job.</p>
+ */
+public class ExportJob implements Runnable {
+
+    /**
+     * Minimum time between two progress reports.
+     */
+    private static final long PROGRESS_INTERVAL_MILLIS = 100;
+
+    private final Exporter exporter;
+    private final File file;
+    private final String lineSeparator;
+    private final Listener listener;
+
+    private volatile boolean isCancelled = false;
+    private volatile boolean isRunning = false;
+
+    private LineWriter writer;
+    private long totalLines;
+    private long lastProgressNanos;
+
+    /**
+     *
+     * @param exporter Writes the data
+     * @param file File written, created or truncated
+     * @param lineSeparator Ends every line
+     * @param listener Receives the progress and the end of the export
+     */
+    public ExportJob(Exporter exporter, File file, String lineSeparator, Listener listener){
+        this.exporter = exporter;
+        this.file = file;
+        this.lineSeparator = lineSeparator;
+        this.listener = listener;
+    }
+
+    /**
+     * Runs the export on a thread of its own.
+     */
+    public void start(){
+        isRunning = true;
+        new Thread(this, "ExportJob").start();
+    }
+
+    /**
+     * Stops the export as soon as the next buffer is written. Returns right away,
+     * {@link Listener#onExportCancelled(ExportJob)} is called once the file is deleted.
+     */
+    public void cancel(){
+        isCancelled = true;
+    }
+
+    /**
+     *
+     * @return True if {@link #cancel()} was called
+     */
+    public boolean isCancelled(){
+        return isCancelled;
+    }
+
+    /**
+     *
+     * @return True until the export ends, whichever way
+     */
+    public boolean isRunning(){
+        return isRunning;
+    }
+
+    /**
+     *
+     * @return File written
+     */
+    public File getFile(){
+        return file;
+    }
+
+    @Override
+    public void run() {
+
+        isRunning = true;
+        long start = System.nanoTime();
+        IOException failure = null;
+
+        totalLines = exporter.getLineCount();
+        lastProgressNanos = start;
+
+        try{
+            writer = new LineWriter(new ProgressStream(new FileOutputStream(file)), lineSeparator,
+                    LineWriter.DEFAULT_BUFFER_SIZE);
+
+            try{
+                exporter.writeTo(writer);
+                writer.flush();
+            }finally{
+                writer.close();
+            }
+
+        }catch(IOException e){
+            failure = e;
+        }
+
+        long lineCount = writer == null ? 0 : writer.getLineCount();
+        long byteCount = writer == null ? 0 : writer.getByteCount();
+        writer = null;
+
+        if(isCancelled || failure != null){
+
+            if(!file.delete() && file.exists() && failure == null) failure = new IOException("could not delete " + file);
+
+            isRunning = false;
+            if(isCancelled) listener.onExportCancelled(this);
+            else listener.onExportFailed(this, failure);
+            return;
+        }
+
+        isRunning = false;
+        listener.onExportFinished(this, new Summary(lineCount, byteCount, System.nanoTime() - start));
+
+    }
+
+    /**
+     * Checks for cancellation and reports progress every time the writer hands bytes to the file.
+     */
+    private class ProgressStream extends FilterOutputStream{
+
+        private ProgressStream(OutputStream out){
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+
+            if(isCancelled) throw new InterruptedIOException("export cancelled");
+
+            out.write(b, off, len);
+
+            long now = System.nanoTime();
+
+            if(now - lastProgressNanos >= TimeUnit.MILLISECONDS.toNanos(PROGRESS_INTERVAL_MILLIS)){
+                lastProgressNanos = now;
+                listener.onExportProgress(ExportJob.this, writer.getLineCount(), writer.getByteCount(), totalLines);
+            }
+
+        }
+
+    }
+
+    /**
+     * What an export wrote, and how fast.
+     */
+    public static class Summary{
+
+        private final long lineCount;
+        private final long byteCount;
+        private final long durationNanos;
+
+        private Summary(long lineCount, long byteCount, long durationNanos){
+            this.lineCount = lineCount;
+            this.byteCount = byteCount;
+            this.durationNanos = durationNanos;
+        }
+
+        /**
+         *
+         * @return Number of lines written, including a header
+         */
+        public long getLineCount(){
+            return lineCount;
+        }
+
+        /**
+         *
+         * @return Number of bytes written
+         */
+        public long getByteCount(){
+            return byteCount;
+        }
+
+        /**
+         *
+         * @return Time the export took, in milliseconds
+         */
+        public long getDurationMillis(){
+            return TimeUnit.NANOSECONDS.toMillis(durationNanos);
+        }
+
+        /**
+         *
+         * @return Throughput of the export, in megabytes (2<sup>20</sup> bytes) per second
+         */
+        public double getMegabytesPerSecond(){
+            return durationNanos == 0 ? 0 : byteCount / (1024.0 * 1024.0) / (durationNanos / 1e9);
+        }
+
+    }
+
+    /**
+     * Receives the progress and the end of an export, on the thread of the job.
+     */
+    public interface Listener{
+
+        /**
+         * Called as the export goes on.
+         * @param job Job exporting
+         * @param lineCount Number of lines written so far
+         * @param byteCount Number of bytes written so far
+         * @param totalLines Number of lines held when the export started, about the number of lines it will write
+         */
+        void onExportProgress(ExportJob job, long lineCount, long byteCount, long totalLines);
+
+        /**
+         * Called once the file is written and closed.
+         * @param job Job that ended
+         * @param summary What was written
+         */
+        void onExportFinished(ExportJob job, Summary summary);
+
+        /**
+         * Called once a cancelled export stopped and its file was deleted.
+         * @param job Job that ended
+         */
+        void onExportCancelled(ExportJob job);
+
+        /**
+         * Called once an export failed and its file was deleted.
+         * @param job Job that ended
+         * @param cause Why it failed
+         */
+        void onExportFailed(ExportJob job, IOException cause);
+
+    }
+
+}
@@ -0,0 +1,25 @@
+package amplastudio.csvgenerator.stream.export;
+
+import java.io.IOException;
+
+/**
+ * Writes captured data to a {@link LineWriter}, such as a {@link LineExporter} or a {@link CsvMerger}. Run in the
+ * background by an {@link ExportJob}.
+ */
+public interface Exporter {
+
+    /**
+     * Writes the data held right now. The writer is not flushed.
+     * @param writer Writer the data is written to
+     * @return Number of lines or rows written
+     * @throws IOException If writing failed
+     */
+    long writeTo(LineWriter writer) throws IOException;
+
+    /**
+     *
+     * @return Number of lines {@link #writeTo(LineWriter)} would write right now, to report progress
+     */
+    long getLineCount();
+
+}
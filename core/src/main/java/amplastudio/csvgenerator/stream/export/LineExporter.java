@@ -0,0 +1,88 @@
+package amplastudio.csvgenerator.stream.export;
+
+import java.io.IOException;
+
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
+
+/**
+ * <p>Exports the lines of a {@link LineRingBuffer} to a {@link LineWriter}, one line after another. Lines are read by a
+ * {@link LineRingBuffer.Consumer} a batch at a time and copied straight into the buffer of the writer, so memory stays
+ * constant whatever the size of the session.</p>
+ * <p>An export takes the lines held when it starts, while capture keeps adding new ones. Lines overwritten before being
+ * read are skipped and counted by {@link #getMissedCount()}.</p>
+ */
+public class LineExporter implements Exporter {
+
+    /**
+     * Lines read from the store at a time.
+     */
+    private static final int BATCH_SIZE = 1024;
+
+    private final LineRingBuffer lines;
+
+    private long missedCount = 0;
+
+    /**
+     *
+     * @param lines Store of the lines to export
+     */
+    public LineExporter(LineRingBuffer lines){
+        this.lines = lines;
+    }
+
+    /**
+     * Writes the lines held right now, each followed by the line separator of the writer. The writer is not flushed.
+     * @param writer Writer the lines are written to
+     * @return Number of lines written
+     * @throws IOException If writing failed
+     */
+    @Override
+    public long writeTo(final LineWriter writer) throws IOException {
+
+        LineRingBuffer.Consumer consumer = lines.newConsumer();
+        long endSequence = lines.getNextSequence();
+        long count = 0;
+
+        final IOException[] failure = new IOException[1];
+
+        LineRingBuffer.LineHandler handler = new LineRingBuffer.LineHandler() {
+            @Override
+            public void onLine(long sequence, byte[] line, int offset, int length) {
+                if(failure[0] != null) return;
+                try{
+                    writer.writeLine(line, offset, length);
+                }catch(IOException e){
+                    failure[0] = e;
+                }
+            }
+        };
+
+        while(consumer.getSequence() < endSequence){
+            count += consumer.poll(handler, BATCH_SIZE, endSequence);
+            if(failure[0] != null) throw failure[0];
+        }
+
+        missedCount = consumer.getMissedCount();
+
+        return count;
+
+    }
+
+    /**
+     *
+     * @return Number of lines held right now
+     */
+    @Override
+    public long getLineCount(){
+        return lines.size();
+    }
+
+    /**
+     *
+     * @return Number of lines overwritten by capture before the last export could read them
+     */
+    public long getMissedCount(){
+        return missedCount;
+    }
+
+}
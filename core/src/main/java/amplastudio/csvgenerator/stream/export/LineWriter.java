@@ -0,0 +1,165 @@
+package amplastudio.csvgenerator.stream.export;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * <p>Writes lines of bytes to a stream through a single reusable buffer, so exporting costs the same memory whatever the
+ * amount of data. Bytes are copied once into the buffer and handed to the stream a buffer at a time; writes larger than
+ * the buffer go straight to the stream.</p>
+ * <p>This class is not thread-safe.</p>
+ */
+public class LineWriter implements Closeable, Flushable {
+
+    /**
+     * Default size of the buffer, in bytes.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private final byte[] lineSeparator;
+
+    private int length = 0;
+    private long byteCount = 0;
+    private long lineCount = 0;
+
+    /**
+     * Ends lines with {@code \n} and buffers {@link #DEFAULT_BUFFER_SIZE} bytes.
+     * @param out Stream written to
+     */
+    public LineWriter(OutputStream out){
+        this(out, "\n", DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     *
+     * @param out Stream written to
+     * @param lineSeparator Written by {@link #newLine()}
+     * @param bufferSize Size of the buffer, in bytes
+     */
+    public LineWriter(OutputStream out, String lineSeparator, int bufferSize){
+
+        if(bufferSize <= 0) throw new IllegalArgumentException("bufferSize must be positive");
+
+        this.out = out;
+        this.buffer = new byte[bufferSize];
+        this.lineSeparator = lineSeparator.getBytes(UTF_8);
+    }
+
+    /**
+     * Writes a line followed by the line separator.
+     * @param line Array holding the line
+     * @param offset Index of the first byte of the line
+     * @param length Number of bytes of the line
+     * @throws IOException If writing to the stream failed
+     */
+    public void writeLine(byte[] line, int offset, int length) throws IOException {
+        write(line, offset, length);
+        newLine();
+    }
+
+    /**
+     * Writes the line separator.
+     * @throws IOException If writing to the stream failed
+     */
+    public void newLine() throws IOException {
+        write(lineSeparator, 0, lineSeparator.length);
+        lineCount++;
+    }
+
+    /**
+     *
+     * @param data Array holding the bytes
+     * @param offset Index of the first byte
+     * @param length Number of bytes
+     * @throws IOException If writing to the stream failed
+     */
+    public void write(byte[] data, int offset, int length) throws IOException {
+
+        if(this.length + length > buffer.length){
+            flushBuffer();
+            if(length > buffer.length){
+                out.write(data, offset, length);
+                byteCount += length;
+                return;
+            }
+        }
+
+        System.arraycopy(data, offset, buffer, this.length, length);
+        this.length += length;
+        byteCount += length;
+
+    }
+
+    /**
+     *
+     * @param b Byte to write
+     * @throws IOException If writing to the stream failed
+     */
+    public void write(byte b) throws IOException {
+        if(length == buffer.length) flushBuffer();
+        buffer[length++] = b;
+        byteCount++;
+    }
+
+    /**
+     *
+     * @param text Text to write, encoded as UTF-8
+     * @throws IOException If writing to the stream failed
+     */
+    public void write(String text) throws IOException {
+        byte[] bytes = text.getBytes(UTF_8);
+        write(bytes, 0, bytes.length);
+    }
+
+    /**
+     *
+     * @return Number of bytes written so far, including those still buffered
+     */
+    public long getByteCount(){
+        return byteCount;
+    }
+
+    /**
+     *
+     * @return Number of lines ended so far
+     */
+    public long getLineCount(){
+        return lineCount;
+    }
+
+    /**
+     * Hands the buffered bytes to the stream and flushes it.
+     * @throws IOException If writing to the stream failed
+     */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Flushes and closes the stream.
+     * @throws IOException If writing to the stream failed
+     */
+    @Override
+    public void close() throws IOException {
+        try{
+            flushBuffer();
+        }finally{
+            out.close();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if(length > 0) out.write(buffer, 0, length);
+        length = 0;
+    }
+
+}
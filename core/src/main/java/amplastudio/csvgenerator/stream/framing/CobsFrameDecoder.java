@@ -0,0 +1,109 @@
+package amplastudio.csvgenerator.stream.framing;
+
+/**
+ * <p>Decodes frames encoded with Consistent Overhead Byte Stuffing (COBS) and terminated by a zero byte,
+ * as produced by the usual Arduino COBS libraries (PacketSerial, for instance).</p>
+ * <p>COBS lets binary frames carry any byte value with at most one byte of overhead every 254 bytes.
+ * Frames that end in the middle of a code block or that exceed the maximum frame length are dropped and
+ * counted as malformed. Decoded frames are built in a reused buffer.</p>
+ */
+public class CobsFrameDecoder implements FrameDecoder {
+
+    /**
+     * Default maximum decoded frame length, in bytes.
+     */
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 4096;
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 256;
+
+    private static final int MAX_CODE = 0xFF;
+
+    private final FrameBuffer frame;
+
+    /**
+     * Code byte of the block being decoded, 0 before the first block of a frame.
+     */
+    private int code = 0;
+
+    /**
+     * Number of data bytes left in the block being decoded.
+     */
+    private int remaining = 0;
+
+    /**
+     * Set when the frame being decoded overflowed, it is dropped once its delimiter arrives.
+     */
+    private boolean isDiscarding = false;
+
+    private long malformedFrameCount = 0;
+
+    public CobsFrameDecoder(){
+        this(DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    /**
+     *
+     * @param maxFrameLength Maximum decoded frame length, longer frames are dropped
+     */
+    public CobsFrameDecoder(int maxFrameLength){
+        frame = new FrameBuffer(Math.min(DEFAULT_INITIAL_CAPACITY, maxFrameLength), maxFrameLength);
+    }
+
+    @Override
+    public void decode(byte[] data, int offset, int length, FrameListener listener){
+
+        int end = offset + length;
+        int b;
+
+        for(int i = offset; i < end; i++){
+
+            b = data[i] & 0xFF;
+
+            if(b == 0){ /* frame delimiter */
+
+                if(isDiscarding || remaining != 0) malformedFrameCount++;
+                else if(code != 0) listener.onFrame(frame.array(), 0, frame.length());
+
+                startFrame();
+                continue;
+            }
+
+            if(isDiscarding) continue;
+
+            if(remaining == 0){ /* code byte: the previous block ended with an implicit zero unless it was a full block */
+                if(code != 0 && code != MAX_CODE) appendOrDiscard((byte) 0);
+                code = b;
+                remaining = b - 1;
+            }
+
+            else{
+                appendOrDiscard((byte) b);
+                remaining--;
+            }
+
+        }
+
+    }
+
+    @Override
+    public void reset(){
+        startFrame();
+    }
+
+    @Override
+    public long getMalformedFrameCount(){
+        return malformedFrameCount;
+    }
+
+    private void appendOrDiscard(byte b){
+        if(!frame.append(b)) isDiscarding = true;
+    }
+
+    private void startFrame(){
+        frame.clear();
+        code = 0;
+        remaining = 0;
+        isDiscarding = false;
+    }
+
+}
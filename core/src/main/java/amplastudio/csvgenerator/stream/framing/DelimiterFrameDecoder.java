@@ -0,0 +1,209 @@
+package amplastudio.csvgenerator.stream.framing;
+
+/**
+ * <p>Decodes frames terminated by a delimiter, such as text lines terminated by a line feed ('\n'),
+ * a carriage return ('\r'), a carriage return followed by a line feed or any other byte sequence.
+ * Use {@link #lineFeed()}, {@link #carriageReturn()} and {@link #crLf()} for the usual line endings.</p>
+ * <p>Every complete frame of a chunk is emitted, and a frame left incomplete at the end of a chunk is carried over to the
+ * next one, including a delimiter split between two chunks. Frames that are entirely inside a chunk are handed over
+ * without being copied; only the incomplete ones are kept in a growable buffer that is reused, so decoding creates no
+ * garbage once the buffer reached the longest frame size.</p>
+ * <p>The delimiter is not part of the emitted frame. Frames longer than the maximum frame length are emitted in pieces
+ * of the maximum length and counted as malformed.</p>
+ */
+public class DelimiterFrameDecoder implements FrameDecoder {
+
+    /**
+     * Default maximum frame length, in bytes.
+     */
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 64 * 1024;
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 256;
+
+    private static final byte LINE_FEED = 10;
+
+    private static final byte CARRIAGE_RETURN = 13;
+
+    private final byte[] delimiter;
+
+    /**
+     * Partial match table of {@link #delimiter}, allows matching delimiters whose prefix repeats inside them.
+     */
+    private final int[] partialMatch;
+
+    private final int maxFrameLength;
+
+    /**
+     * Holds the incomplete frame carried between chunks, including any delimiter bytes already matched.
+     */
+    private final FrameBuffer pending;
+
+    /**
+     * Number of delimiter bytes matched so far.
+     */
+    private int matched = 0;
+
+    private long malformedFrameCount = 0;
+
+    /**
+     *
+     * @return Decoder of lines terminated by '\n'. A carriage return before the line feed is kept in the line.
+     */
+    public static DelimiterFrameDecoder lineFeed(){
+        return new DelimiterFrameDecoder(LINE_FEED);
+    }
+
+    /**
+     *
+     * @return Decoder of lines terminated by '\r'
+     */
+    public static DelimiterFrameDecoder carriageReturn(){
+        return new DelimiterFrameDecoder(CARRIAGE_RETURN);
+    }
+
+    /**
+     *
+     * @return Decoder of lines terminated by "\r\n", as sent by Arduino's Serial.println()
+     */
+    public static DelimiterFrameDecoder crLf(){
+        return new DelimiterFrameDecoder(new byte[]{CARRIAGE_RETURN, LINE_FEED});
+    }
+
+    /**
+     *
+     * @param delimiter Byte that terminates every frame
+     */
+    public DelimiterFrameDecoder(byte delimiter){
+        this(new byte[]{delimiter});
+    }
+
+    /**
+     *
+     * @param delimiter Byte sequence that terminates every frame
+     */
+    public DelimiterFrameDecoder(byte[] delimiter){
+        this(delimiter, DEFAULT_INITIAL_CAPACITY, DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    /**
+     *
+     * @param delimiter Byte sequence that terminates every frame
+     * @param initialCapacity Initial size of the buffer that holds incomplete frames
+     * @param maxFrameLength Maximum frame length, longer frames are split
+     */
+    public DelimiterFrameDecoder(byte[] delimiter, int initialCapacity, int maxFrameLength){
+
+        if(delimiter.length == 0) throw new IllegalArgumentException("delimiter must not be empty");
+
+        this.delimiter = delimiter.clone();
+        this.partialMatch = buildPartialMatchTable(this.delimiter);
+        this.maxFrameLength = maxFrameLength;
+        this.pending = new FrameBuffer(initialCapacity, maxFrameLength + delimiter.length);
+    }
+
+    @Override
+    public void decode(byte[] data, int offset, int length, FrameListener listener){
+
+        int end = offset + length;
+        int frameStart = offset;
+        int frameEnd;
+        byte b;
+
+        for(int i = offset; i < end; i++){
+
+            b = data[i];
+
+            while(matched > 0 && b != delimiter[matched]) matched = partialMatch[matched - 1];
+            if(b == delimiter[matched]) matched++;
+
+            if(matched < delimiter.length) continue;
+
+            matched = 0;
+            frameEnd = i + 1 - delimiter.length;
+
+            if(pending.length() == 0 && frameEnd >= frameStart && frameEnd - frameStart <= maxFrameLength){
+                listener.onFrame(data, frameStart, frameEnd - frameStart); /* whole frame inside the chunk, no copy needed */
+            }
+
+            else{
+                append(data, frameStart, i + 1 - frameStart, listener);
+                listener.onFrame(pending.array(), 0, Math.max(0, pending.length() - delimiter.length));
+                pending.clear();
+            }
+
+            frameStart = i + 1;
+        }
+
+        if(frameStart < end) append(data, frameStart, end - frameStart, listener);
+
+    }
+
+    /**
+     * Emits the incomplete frame held, if any. Should be called when the stream ends.
+     * @param listener Listener that receives the frame
+     */
+    public void flush(FrameListener listener){
+        if(pending.length() == 0) return;
+        listener.onFrame(pending.array(), 0, pending.length());
+        pending.clear();
+        matched = 0;
+    }
+
+    @Override
+    public void reset(){
+        pending.clear();
+        matched = 0;
+    }
+
+    @Override
+    public long getMalformedFrameCount(){
+        return malformedFrameCount;
+    }
+
+    /**
+     *
+     * @return Number of bytes of the incomplete frame held
+     */
+    public int getPendingLength(){
+        return pending.length();
+    }
+
+    /**
+     * Appends to the incomplete frame, emitting pieces of the maximum frame length while the buffer overflows.
+     */
+    private void append(byte[] data, int offset, int count, FrameListener listener){
+
+        int appended;
+
+        while(true){
+
+            appended = pending.append(data, offset, count);
+            offset += appended;
+            count -= appended;
+
+            if(count == 0) return;
+
+            /* buffer is full and more bytes are coming: emit a piece, keeping the tail that may hold a partial delimiter */
+            listener.onFrame(pending.array(), 0, maxFrameLength);
+            pending.discardHead(maxFrameLength);
+            malformedFrameCount++;
+        }
+
+    }
+
+    private static int[] buildPartialMatchTable(byte[] pattern){
+
+        int[] table = new int[pattern.length];
+        int k = 0;
+
+        for(int i = 1; i < pattern.length; i++){
+            while(k > 0 && pattern[i] != pattern[k]) k = table[k - 1];
+            if(pattern[i] == pattern[k]) k++;
+            table[i] = k;
+        }
+
+        return table;
+
+    }
+
+}
@@ -0,0 +1,76 @@
+package amplastudio.csvgenerator.stream.framing;
+
+/**
+ * Growable byte buffer reused by decoders to hold a frame while it is incomplete. Grows up to a maximum capacity.
+ */
+class FrameBuffer {
+
+    private byte[] buffer;
+    private final int maxCapacity;
+    private int length = 0;
+
+    FrameBuffer(int initialCapacity, int maxCapacity){
+
+        if(initialCapacity <= 0 || maxCapacity <= 0)
+            throw new IllegalArgumentException("initialCapacity and maxCapacity must be positive");
+
+        this.buffer = new byte[Math.min(initialCapacity, maxCapacity)];
+        this.maxCapacity = maxCapacity;
+    }
+
+    /**
+     *
+     * @param b Byte to append
+     * @return False if the buffer is full and the byte was not appended
+     */
+    boolean append(byte b){
+        if(!ensureCapacity(length + 1)) return false;
+        buffer[length++] = b;
+        return true;
+    }
+
+    /**
+     * Appends as many bytes as the maximum capacity allows.
+     * @return Number of bytes appended
+     */
+    int append(byte[] data, int offset, int count){
+        count = Math.min(count, maxCapacity - length);
+        ensureCapacity(length + count);
+        System.arraycopy(data, offset, buffer, length, count);
+        length += count;
+        return count;
+    }
+
+    byte[] array(){
+        return buffer;
+    }
+
+    int length(){
+        return length;
+    }
+
+    void clear(){
+        length = 0;
+    }
+
+    /**
+     * Removes the first bytes, moving the remaining ones to the start of the buffer.
+     */
+    void discardHead(int count){
+        System.arraycopy(buffer, count, buffer, 0, length - count);
+        length -= count;
+    }
+
+    private boolean ensureCapacity(int capacity){
+
+        if(capacity <= buffer.length) return true;
+        if(capacity > maxCapacity) return false;
+
+        byte[] newBuffer = new byte[Math.min(Math.max(buffer.length * 2, capacity), maxCapacity)];
+        System.arraycopy(buffer, 0, newBuffer, 0, length);
+        buffer = newBuffer;
+        return true;
+
+    }
+
+}
@@ -0,0 +1,36 @@
+package amplastudio.csvgenerator.stream.framing;
+
+/**
+ * <p>Splits a byte stream into frames. Implementations define how frames are delimited and encoded on the wire,
+ * and hand the decoded frames to a {@link FrameListener}.</p>
+ * <p>Decoders keep the state of an incomplete frame between calls of {@link #decode(byte[], int, int, FrameListener)},
+ * so a decoder instance must not be shared between connections. Decoders are not thread-safe, they are meant to be fed
+ * by the thread reading the stream.</p>
+ * @see DelimiterFrameDecoder
+ * @see CobsFrameDecoder
+ * @see SlipFrameDecoder
+ * @see LengthPrefixedFrameDecoder
+ */
+public interface FrameDecoder {
+
+    /**
+     * Decodes a chunk of the stream, calling the listener once for every frame completed by it.
+     * @param data Array holding the chunk
+     * @param offset Index of the first byte of the chunk
+     * @param length Number of bytes of the chunk
+     * @param listener Listener that receives the decoded frames
+     */
+    void decode(byte[] data, int offset, int length, FrameListener listener);
+
+    /**
+     * Discards any incomplete frame held. Should be called when the stream is closed or restarted.
+     */
+    void reset();
+
+    /**
+     *
+     * @return Number of frames dropped or split because they were malformed or longer than the maximum frame length
+     */
+    long getMalformedFrameCount();
+
+}
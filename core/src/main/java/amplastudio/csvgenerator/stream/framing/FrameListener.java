@@ -0,0 +1,17 @@
+package amplastudio.csvgenerator.stream.framing;
+
+/**
+ * Receives the frames found by a framer.
+ */
+public interface FrameListener {
+
+    /**
+     * Called for every complete frame. The array may be the chunk being framed or a buffer owned by the framer,
+     * which is reused for the next frame, so its content must be consumed or copied before this method returns.
+     * @param frame Array holding the frame, without its delimiter
+     * @param offset Index of the first byte of the frame
+     * @param length Number of bytes of the frame, may be zero
+     */
+    void onFrame(byte[] frame, int offset, int length);
+
+}
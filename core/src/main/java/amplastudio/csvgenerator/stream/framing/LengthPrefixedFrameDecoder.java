@@ -0,0 +1,144 @@
+package amplastudio.csvgenerator.stream.framing;
+
+import java.nio.ByteOrder;
+
+/**
+ * <p>Decodes binary frames preceded by an unsigned length header of 1, 2 or 4 bytes, such as a raw sample struct
+ * written with <code>Serial.write((uint8_t*) &amp;sample, sizeof(sample))</code> after its size.</p>
+ * <p>The header holds the number of bytes that follow it and is not part of the emitted frame. Frames that are entirely
+ * inside a chunk are handed over without being copied, the others are assembled in a reused buffer. Frames longer
+ * than the maximum frame length are skipped and counted as malformed.</p>
+ */
+public class LengthPrefixedFrameDecoder implements FrameDecoder {
+
+    /**
+     * Default maximum frame length, in bytes.
+     */
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 4096;
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 256;
+
+    private final int headerSize;
+    private final boolean isBigEndian;
+    private final int maxFrameLength;
+    private final FrameBuffer frame;
+
+    /**
+     * Number of header bytes read for the current frame.
+     */
+    private int headerRead = 0;
+
+    /**
+     * Length of the current frame, valid once the whole header was read.
+     */
+    private long frameLength = 0;
+
+    /**
+     * Number of bytes left to skip from an oversized frame.
+     */
+    private long skipRemaining = 0;
+
+    private long malformedFrameCount = 0;
+
+    /**
+     *
+     * @param headerSize Size of the length header, in bytes. Must be 1, 2 or 4
+     * @param byteOrder Byte order of the length header. Arduino boards are {@link ByteOrder#LITTLE_ENDIAN}
+     */
+    public LengthPrefixedFrameDecoder(int headerSize, ByteOrder byteOrder){
+        this(headerSize, byteOrder, DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    /**
+     *
+     * @param headerSize Size of the length header, in bytes. Must be 1, 2 or 4
+     * @param byteOrder Byte order of the length header. Arduino boards are {@link ByteOrder#LITTLE_ENDIAN}
+     * @param maxFrameLength Maximum frame length, longer frames are skipped
+     */
+    public LengthPrefixedFrameDecoder(int headerSize, ByteOrder byteOrder, int maxFrameLength){
+
+        if(headerSize != 1 && headerSize != 2 && headerSize != 4)
+            throw new IllegalArgumentException("headerSize must be 1, 2 or 4");
+
+        this.headerSize = headerSize;
+        this.isBigEndian = byteOrder == ByteOrder.BIG_ENDIAN;
+        this.maxFrameLength = maxFrameLength;
+        this.frame = new FrameBuffer(Math.min(DEFAULT_INITIAL_CAPACITY, maxFrameLength), maxFrameLength);
+    }
+
+    @Override
+    public void decode(byte[] data, int offset, int length, FrameListener listener){
+
+        int end = offset + length;
+        int i = offset;
+        int count;
+        long b;
+
+        while(i < end){
+
+            if(skipRemaining > 0){
+                count = (int) Math.min(skipRemaining, end - i);
+                skipRemaining -= count;
+                i += count;
+                continue;
+            }
+
+            if(headerRead < headerSize){
+
+                b = data[i++] & 0xFF;
+                frameLength = isBigEndian ? (frameLength << 8) | b : frameLength | (b << (8 * headerRead));
+
+                if(++headerRead < headerSize) continue;
+
+                if(frameLength > maxFrameLength){
+                    malformedFrameCount++;
+                    skipRemaining = frameLength;
+                    startFrame();
+                }
+
+                else if(frameLength == 0){
+                    listener.onFrame(data, i, 0);
+                    startFrame();
+                }
+
+                continue;
+            }
+
+            count = (int) frameLength - frame.length();
+
+            if(frame.length() == 0 && end - i >= count){
+                listener.onFrame(data, i, count); /* whole frame inside the chunk, no copy needed */
+                i += count;
+                startFrame();
+                continue;
+            }
+
+            i += frame.append(data, i, Math.min(count, end - i));
+
+            if(frame.length() == frameLength){
+                listener.onFrame(frame.array(), 0, frame.length());
+                startFrame();
+            }
+
+        }
+
+    }
+
+    @Override
+    public void reset(){
+        startFrame();
+        skipRemaining = 0;
+    }
+
+    @Override
+    public long getMalformedFrameCount(){
+        return malformedFrameCount;
+    }
+
+    private void startFrame(){
+        frame.clear();
+        headerRead = 0;
+        frameLength = 0;
+    }
+
+}
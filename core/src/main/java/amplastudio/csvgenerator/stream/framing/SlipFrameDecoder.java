@@ -0,0 +1,108 @@
+package amplastudio.csvgenerator.stream.framing;
+
+/**
+ * <p>Decodes frames encoded with the Serial Line Internet Protocol framing (SLIP, RFC 1055), as produced by the
+ * Arduino SLIPEncodedSerial library.</p>
+ * <p>Frames are terminated by END (0xC0); END and ESC (0xDB) bytes inside a frame are escaped as ESC ESC_END (0xDB 0xDC)
+ * and ESC ESC_ESC (0xDB 0xDD). Empty frames, produced by senders that also start frames with END, are skipped.
+ * Frames with an invalid escape sequence or that exceed the maximum frame length are dropped and counted as malformed.
+ * Decoded frames are built in a reused buffer.</p>
+ */
+public class SlipFrameDecoder implements FrameDecoder {
+
+    /**
+     * Default maximum decoded frame length, in bytes.
+     */
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 4096;
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 256;
+
+    private static final byte END = (byte) 0xC0;
+    private static final byte ESC = (byte) 0xDB;
+    private static final byte ESC_END = (byte) 0xDC;
+    private static final byte ESC_ESC = (byte) 0xDD;
+
+    private final FrameBuffer frame;
+
+    /**
+     * Set when the previous byte was ESC.
+     */
+    private boolean isEscaping = false;
+
+    /**
+     * Set when the frame being decoded is malformed, it is dropped once its END arrives.
+     */
+    private boolean isDiscarding = false;
+
+    private long malformedFrameCount = 0;
+
+    public SlipFrameDecoder(){
+        this(DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    /**
+     *
+     * @param maxFrameLength Maximum decoded frame length, longer frames are dropped
+     */
+    public SlipFrameDecoder(int maxFrameLength){
+        frame = new FrameBuffer(Math.min(DEFAULT_INITIAL_CAPACITY, maxFrameLength), maxFrameLength);
+    }
+
+    @Override
+    public void decode(byte[] data, int offset, int length, FrameListener listener){
+
+        int end = offset + length;
+        byte b;
+
+        for(int i = offset; i < end; i++){
+
+            b = data[i];
+
+            if(b == END){
+
+                if(isDiscarding || isEscaping) malformedFrameCount++;
+                else if(frame.length() > 0) listener.onFrame(frame.array(), 0, frame.length());
+
+                reset();
+                continue;
+            }
+
+            if(isDiscarding) continue;
+
+            if(isEscaping){
+
+                isEscaping = false;
+
+                if(b == ESC_END) b = END;
+                else if(b == ESC_ESC) b = ESC;
+                else{
+                    isDiscarding = true;
+                    continue;
+                }
+
+            }
+
+            else if(b == ESC){
+                isEscaping = true;
+                continue;
+            }
+
+            if(!frame.append(b)) isDiscarding = true;
+
+        }
+
+    }
+
+    @Override
+    public void reset(){
+        frame.clear();
+        isEscaping = false;
+        isDiscarding = false;
+    }
+
+    @Override
+    public long getMalformedFrameCount(){
+        return malformedFrameCount;
+    }
+
+}
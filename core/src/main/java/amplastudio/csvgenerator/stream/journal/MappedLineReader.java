@@ -0,0 +1,337 @@
+package amplastudio.csvgenerator.stream.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
+
+/**
+ * <p>Reads the lines of a {@link SessionJournal} by index, from its segment files mapped in memory, so a capture of
+ * millions of lines can be browsed while only the lines read are copied to the heap. Lines are numbered from 0, the first
+ * line journaled, in the order they were written.</p>
+ * <p>{@link #refresh()} maps the bytes written to the segments since the last call and indexes them: the position of every
+ * {@value #INDEX_INTERVAL}th line is kept, and the lines between are found by scanning the mapped bytes from there, so the
+ * index costs about {@code 4 / }{@value #INDEX_INTERVAL} bytes per line. Only complete lines are counted.</p>
+ * <p>Segments must not be larger than 2 GB. Segments finished or discarded by the journal stay readable through their
+ * mapping.</p>
+ * <p>{@link #refresh()} may run on a background thread while another thread reads the lines counted by the last refresh
+ * completed: every refresh publishes a new {@link Mapping} of the segments changed, and the lines read never change.
+ * Otherwise this class is not thread-safe: a single thread refreshes and a single thread reads.</p>
+ */
+public class MappedLineReader {
+
+    /**
+     * Number of lines between two positions kept by the index.
+     */
+    public static final int INDEX_INTERVAL = 64;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final SessionJournal journal;
+
+    /**
+     * Last byte of the line separator, ending every line.
+     */
+    private final byte terminator;
+
+    /**
+     * Bytes of the line separator before its last byte, removed from the end of the lines read.
+     */
+    private final byte[] separatorStart;
+
+    /**
+     * Segments indexed so far, used by the refreshing thread only.
+     */
+    private final List<Segment> segments = new ArrayList<>();
+
+    /**
+     * Mapping of every segment as of the last refresh, replaced by every refresh. Read by the reading thread.
+     */
+    private volatile Mapping[] mappings = new Mapping[0];
+
+    /**
+     * Receives the line read, used by the reading thread only.
+     */
+    private byte[] buffer = new byte[256];
+
+    /**
+     *
+     * @param journal Journal whose lines are read
+     */
+    public MappedLineReader(SessionJournal journal){
+
+        byte[] separator = journal.getLineSeparator().getBytes(UTF_8);
+
+        if(separator.length == 0) throw new IllegalArgumentException("journal lines have no separator");
+
+        this.journal = journal;
+        this.terminator = separator[separator.length - 1];
+        this.separatorStart = new byte[separator.length - 1];
+        System.arraycopy(separator, 0, separatorStart, 0, separatorStart.length);
+    }
+
+    /**
+     * Maps and indexes the lines written since the last call, then makes them readable.
+     * @return Number of lines readable
+     * @throws IOException If a segment could not be mapped
+     */
+    public long refresh() throws IOException {
+
+        List<File> files = journal.getSegments();
+
+        for(File file : files){
+            if(indexOf(file) < 0) segments.add(new Segment(file));
+        }
+
+        Segment previous = null;
+        Mapping[] refreshed = new Mapping[segments.size()];
+
+        for(int i = 0; i < segments.size(); i++){
+
+            Segment segment = segments.get(i);
+
+            if(!segment.isComplete){
+
+                segment.firstLine = previous == null ? 0 : previous.firstLine + previous.lineCount;
+                segment.index(segment.file.length());
+
+                /* the journal writes its last segment only, the others stay as they are */
+                if(i < segments.size() - 1 || !files.contains(segment.file)) segment.isComplete = true;
+            }
+
+            refreshed[i] = segment.getMapping();
+            previous = segment;
+        }
+
+        mappings = refreshed;
+
+        return previous == null ? 0 : previous.firstLine + previous.lineCount;
+
+    }
+
+    /**
+     *
+     * @return Number of lines readable since the last {@link #refresh()}
+     */
+    public long getLineCount(){
+        return lineCountOf(mappings);
+    }
+
+    /**
+     *
+     * @return Journal whose lines are read
+     */
+    public SessionJournal getJournal(){
+        return journal;
+    }
+
+    /**
+     * Hands a line to the handler, without its line separator. The bytes are only valid within the call.
+     * @param index Index of the line, from 0
+     * @param handler Handler that receives the line, with its index as sequence
+     * @return False if there is no such line
+     */
+    public boolean read(long index, LineRingBuffer.LineHandler handler){
+
+        Mapping[] current = mappings;
+
+        if(index < 0 || index >= lineCountOf(current)) return false;
+
+        Mapping segment = current[segmentOf(current, index)];
+        int line = (int) (index - segment.firstLine);
+        int start = segment.checkpoints[line / INDEX_INTERVAL];
+
+        for(int skipped = line % INDEX_INTERVAL; skipped > 0; skipped--) start = segment.endOf(start) + 1;
+
+        int end = segment.endOf(start);
+        int length = end - start;
+
+        if(length >= separatorStart.length && segment.endsWith(end, separatorStart)) length -= separatorStart.length;
+
+        if(buffer.length < length) buffer = new byte[Math.max(length, buffer.length * 2)];
+
+        segment.buffer.position(start);
+        segment.buffer.get(buffer, 0, length);
+
+        handler.onLine(index, buffer, 0, length);
+        return true;
+
+    }
+
+    /**
+     *
+     * @param index Index of the line, from 0
+     * @return Line decoded as UTF-8, null if there is no such line
+     */
+    public String get(long index){
+
+        final String[] line = new String[1];
+
+        read(index, new LineRingBuffer.LineHandler() {
+            @Override
+            public void onLine(long sequence, byte[] bytes, int offset, int length) {
+                line[0] = new String(bytes, offset, length, UTF_8);
+            }
+        });
+
+        return line[0];
+
+    }
+
+    private int indexOf(File file){
+        for(int i = 0; i < segments.size(); i++) if(segments.get(i).file.equals(file)) return i;
+        return -1;
+    }
+
+    private static long lineCountOf(Mapping[] mappings){
+        if(mappings.length == 0) return 0;
+        Mapping last = mappings[mappings.length - 1];
+        return last.firstLine + last.lineCount;
+    }
+
+    /**
+     * Binary search of the segment holding a line.
+     */
+    private static int segmentOf(Mapping[] mappings, long index){
+
+        int low = 0;
+        int high = mappings.length - 1;
+
+        while(low < high){
+            int middle = (low + high + 1) >>> 1;
+            if(mappings[middle].firstLine <= index) low = middle;
+            else high = middle - 1;
+        }
+
+        return low;
+
+    }
+
+    /**
+     * A segment file, its mapping and the index of its lines, updated by the refreshing thread.
+     */
+    private class Segment{
+
+        private final File file;
+
+        /**
+         * Index of the first line of this segment in the journal, final once the previous segment is complete.
+         */
+        private long firstLine = 0;
+
+        private MappedByteBuffer buffer = null;
+        private int mappedLength = 0;
+
+        /**
+         * Position of every {@value #INDEX_INTERVAL}th line.
+         */
+        private int[] checkpoints = new int[16];
+        private int lineCount = 0;
+
+        /**
+         * Position of the line not ended yet.
+         */
+        private int lineStart = 0;
+
+        private boolean isComplete = false;
+
+        /**
+         * Mapping published by the last refresh, null if the segment changed since.
+         */
+        private Mapping mapping = null;
+
+        private Segment(File file){
+            this.file = file;
+        }
+
+        private Mapping getMapping(){
+            if(mapping == null) mapping = new Mapping(buffer, checkpoints, firstLine, lineCount);
+            return mapping;
+        }
+
+        /**
+         * Maps the segment up to its current length and indexes the lines ended since the last call.
+         */
+        private void index(long length) throws IOException {
+
+            if(length > Integer.MAX_VALUE) throw new IOException(file + " is larger than 2 GB");
+            if(length <= mappedLength) return;
+
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+
+            try{
+                buffer = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length); /* stays valid once closed */
+            }finally{
+                input.close();
+            }
+
+            for(int i = mappedLength; i < (int) length; i++){
+
+                if(buffer.get(i) != terminator) continue;
+
+                if(lineCount % INDEX_INTERVAL == 0){
+                    int slot = lineCount / INDEX_INTERVAL;
+                    if(slot == checkpoints.length){
+                        int[] grown = new int[checkpoints.length * 2];
+                        System.arraycopy(checkpoints, 0, grown, 0, checkpoints.length);
+                        checkpoints = grown;
+                    }
+                    checkpoints[slot] = lineStart;
+                }
+
+                lineCount++;
+                lineStart = i + 1;
+            }
+
+            mappedLength = (int) length;
+            mapping = null;
+
+        }
+
+    }
+
+    /**
+     * Lines of a segment readable as of a refresh. Never changes, the checkpoints array only grows past the lines counted.
+     */
+    private class Mapping{
+
+        /**
+         * View of the mapped segment, whose position is only moved by the reading thread.
+         */
+        private final ByteBuffer buffer;
+
+        private final int[] checkpoints;
+        private final long firstLine;
+        private final int lineCount;
+
+        private Mapping(MappedByteBuffer buffer, int[] checkpoints, long firstLine, int lineCount){
+            this.buffer = buffer == null ? null : buffer.duplicate();
+            this.checkpoints = checkpoints;
+            this.firstLine = firstLine;
+            this.lineCount = lineCount;
+        }
+
+        /**
+         * Finds the line terminator of the line starting at the given position.
+         */
+        private int endOf(int start){
+            int i = start;
+            while(buffer.get(i) != terminator) i++;
+            return i;
+        }
+
+        private boolean endsWith(int end, byte[] bytes){
+            for(int i = 0; i < bytes.length; i++) if(buffer.get(end - bytes.length + i) != bytes[i]) return false;
+            return true;
+        }
+
+    }
+
+}
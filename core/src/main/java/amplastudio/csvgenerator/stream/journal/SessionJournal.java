@@ -0,0 +1,670 @@
+package amplastudio.csvgenerator.stream.journal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import amplastudio.csvgenerator.stream.CaptureSession;
+import amplastudio.csvgenerator.stream.export.LineWriter;
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
+
+/**
+ * <p>Appends every line of a {@link LineRingBuffer} to segment files on disk as it is captured, so a session is never
+ * limited by what the store can hold. Lines are read by a {@link LineRingBuffer.Consumer} on a thread of its own and written
+ * in batches every {@link Builder#flushIntervalMillis(long)}, without slowing capture down; lines overwritten in the store
+ * before the journal read them are counted by {@link #getMissedCount()}, and a gap marker line
+ * {@code # gap,missed,<count>} starting with {@link CaptureSession#GAP_MARKER_PREFIX} is written where they are missing.</p>
+ * <p>A new segment is started when the current one reaches a size or an age, and segments can be synced to the disk
+ * after every batch, on rotation only or never, see {@link SyncPolicy}. Once capture ends, {@link #finish(File)} turns the
+ * segments into a single file by renaming them, or by joining them on the file system when there are several, instead of
+ * writing the session again.</p>
+ * <p>Segments are named {@code <name>-<index>}{@value #SEGMENT_SUFFIX} in the journal folder. Segments left behind by a
+ * journal that never finished, such as when the process was killed while capturing, are joined by
+ * {@link #recover(File, String, Collection)}. Use {@link Builder} to create a journal.</p>
+ */
+public class SessionJournal implements Runnable {
+
+    /**
+     * When segments are synced to the disk, making sure their lines survive a crash of the device.
+     */
+    public enum SyncPolicy{
+
+        /**
+         * Left to the operating system.
+         */
+        NEVER,
+
+        /**
+         * When a segment is closed, on rotation or when the journal stops.
+         */
+        ON_ROTATE,
+
+        /**
+         * After every batch written, at most every flush interval.
+         */
+        ON_FLUSH
+
+    }
+
+    /**
+     * Ends the name of every segment file.
+     */
+    public static final String SEGMENT_SUFFIX = ".journal";
+
+    /**
+     * Lines read from the store at a time.
+     */
+    private static final int BATCH_SIZE = 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final LineRingBuffer lines;
+    private final File directory;
+    private final String name;
+    private final long maxSegmentBytes;
+    private final long maxSegmentMillis;
+    private final long flushIntervalMillis;
+    private final SyncPolicy syncPolicy;
+    private final String lineSeparator;
+    private final LineRingBuffer.Consumer consumer;
+    private final long startSequence;
+
+    /**
+     * Segments written so far, the last one open while journaling.
+     */
+    private final List<File> segments = new ArrayList<>();
+
+    private volatile Thread thread = null;
+    private volatile boolean isStopped = false;
+    private volatile boolean isDiscarded = false;
+    private volatile IOException failure = null;
+
+    /* open segment, written by the journal thread only */
+    private FileOutputStream segmentStream = null;
+    private LineWriter segmentWriter = null;
+    private long segmentStartMillis;
+    private long segmentFlushedBytes;
+
+    /* missed lines already marked in the segments, by the journal thread only */
+    private long markedMissedCount = 0;
+
+    private volatile long lineCount = 0;
+    private volatile Checkpoint checkpoint;
+    private volatile long byteCount = 0;
+    private volatile long syncCount = 0;
+
+    private final IOException[] writeFailure = new IOException[1];
+
+    private final LineRingBuffer.LineHandler handler = new LineRingBuffer.LineHandler() {
+        @Override
+        public void onLine(long sequence, byte[] line, int offset, int length) {
+
+            if(writeFailure[0] != null) return;
+
+            try{
+                markGap();
+                writeLine(line, offset, length);
+            }catch(IOException e){
+                writeFailure[0] = e;
+            }
+
+        }
+    };
+
+    private SessionJournal(Builder builder){
+        lines = builder.lines;
+        directory = builder.directory;
+        name = builder.name;
+        maxSegmentBytes = builder.maxSegmentBytes;
+        maxSegmentMillis = builder.maxSegmentMillis;
+        flushIntervalMillis = builder.flushIntervalMillis;
+        syncPolicy = builder.syncPolicy;
+        lineSeparator = builder.lineSeparator;
+        consumer = lines.newConsumer();
+        if(builder.fromSequence >= 0) consumer.seek(builder.fromSequence);
+        startSequence = consumer.getSequence();
+        checkpoint = new Checkpoint(0, consumer.getSequence());
+    }
+
+    /**
+     * Starts journaling on a thread of its own. A journal can only be started once.
+     */
+    public synchronized void start(){
+        if(thread != null) throw new IllegalStateException("journal already started");
+        thread = new Thread(this, "SessionJournal");
+        thread.start();
+    }
+
+    /**
+     * Stops journaling once the lines already captured are written. Returns right away.
+     */
+    public void stop(){
+        isStopped = true;
+        Thread current = thread;
+        if(current != null) current.interrupt();
+    }
+
+    /**
+     * Stops journaling and deletes the segments written, such as when the captured data is cleared. Returns right away,
+     * the segments are deleted once the journal thread ends.
+     */
+    public synchronized void discard(){
+
+        isDiscarded = true;
+        stop();
+
+        if(thread == null) deleteSegments();
+
+    }
+
+    /**
+     *
+     * @return True while the journal thread is writing lines
+     */
+    public boolean isRunning(){
+        Thread current = thread;
+        return current != null && current.isAlive();
+    }
+
+    /**
+     * Stops journaling, waits for the last lines to be written, then turns the segments into a single file: the only
+     * segment is renamed, several segments are joined into the file and deleted. Blocks while joining.
+     * @param target File holding the whole journal afterwards, must not exist
+     * @throws IOException If journaling failed, the file exists or the segments could not be joined
+     * @throws InterruptedException If interrupted while waiting for the journal thread
+     */
+    public void finish(File target) throws IOException, InterruptedException {
+
+        stop();
+
+        Thread current = thread;
+        if(current != null) current.join();
+
+        if(failure != null) throw failure;
+        if(target.exists()) throw new IOException(target + " already exists");
+
+        List<File> files = getSegments();
+
+        if(files.isEmpty()){
+            if(!target.createNewFile()) throw new IOException("could not create " + target);
+            return;
+        }
+
+        join(files, target, syncPolicy != SyncPolicy.NEVER);
+        removeSegments(files);
+
+    }
+
+    /**
+     * Joins the segments left in a folder by journals that never finished, one file per journal named
+     * {@code <name><extension>}, and deletes them. Blocks while joining. The last line of a journal whose process died
+     * while writing it may be cut.
+     * @param directory Folder of the segments
+     * @param extension Ends the name of every file recovered, such as {@code .csv}
+     * @param runningNames Names of the journals still in use, whose segments are left alone
+     * @return Files recovered, a journal whose file already exists is left as it is
+     * @throws IOException If the segments of a journal could not be joined
+     */
+    public static List<File> recover(File directory, String extension, Collection<String> runningNames) throws IOException {
+
+        List<File> recovered = new ArrayList<>();
+        File[] files = directory.listFiles();
+
+        if(files == null) return recovered;
+
+        /* segments of every journal, by name then by index */
+        Map<String, Map<Integer, File>> journals = new TreeMap<>();
+
+        for(File file : files){
+
+            String fileName = file.getName();
+            int dash = fileName.lastIndexOf('-');
+
+            if(!fileName.endsWith(SEGMENT_SUFFIX) || dash < 0) continue;
+
+            int index;
+
+            try{
+                index = Integer.parseInt(fileName.substring(dash + 1, fileName.length() - SEGMENT_SUFFIX.length()));
+            }catch(NumberFormatException e){
+                continue; /* not written by a journal */
+            }
+
+            String name = fileName.substring(0, dash);
+            Map<Integer, File> segments = journals.get(name);
+
+            if(segments == null){
+                segments = new TreeMap<>();
+                journals.put(name, segments);
+            }
+
+            segments.put(index, file);
+        }
+
+        for(Map.Entry<String, Map<Integer, File>> journal : journals.entrySet()){
+
+            File target = new File(directory, journal.getKey() + extension);
+            if(runningNames.contains(journal.getKey()) || target.exists()) continue;
+
+            join(new ArrayList<>(journal.getValue().values()), target, true);
+            recovered.add(target);
+        }
+
+        return recovered;
+
+    }
+
+    /**
+     * Turns segments into a single file: the only segment is renamed, several segments are joined into the file and deleted.
+     */
+    private static void join(List<File> files, File target, boolean sync) throws IOException {
+
+        if(files.size() == 1 && files.get(0).renameTo(target)) return;
+
+        FileOutputStream out = new FileOutputStream(target);
+
+        try{
+            FileChannel targetChannel = out.getChannel();
+
+            for(File segment : files){
+
+                FileInputStream in = new FileInputStream(segment);
+
+                try{
+                    FileChannel channel = in.getChannel();
+                    long size = channel.size();
+                    long position = 0;
+                    while(position < size) position += channel.transferTo(position, size - position, targetChannel);
+                }finally{
+                    in.close();
+                }
+            }
+
+            if(sync) out.getFD().sync();
+
+        }catch(IOException e){
+            out.close();
+            target.delete();
+            throw e;
+        }
+
+        out.close();
+
+        for(File segment : files) segment.delete();
+
+    }
+
+    @Override
+    public void run() {
+
+        try{
+
+            while(!isStopped){
+
+                drain();
+
+                try{
+                    Thread.sleep(flushIntervalMillis);
+                }catch(InterruptedException e){
+                    break; /* stopped */
+                }
+            }
+
+            if(!isDiscarded) drain(); /* lines captured before the journal was stopped */
+            closeSegment();
+
+        }catch(IOException e){
+            failure = e;
+            try{
+                if(segmentStream != null) segmentStream.close();
+            }catch(IOException ignored){}
+        }
+
+        if(isDiscarded) deleteSegments();
+
+    }
+
+    /**
+     * Writes the lines captured since the last call, then syncs or rotates the segment if needed.
+     */
+    private void drain() throws IOException {
+
+        long before = lineCount;
+        int count;
+
+        do{
+            count = consumer.poll(handler, BATCH_SIZE);
+            if(writeFailure[0] != null) throw writeFailure[0];
+        }while(count == BATCH_SIZE);
+
+        markGap(); /* lines missed after the last one read */
+
+        if(segmentWriter == null) return;
+
+        if(lineCount > before){
+            flushSegment();
+            if(syncPolicy == SyncPolicy.ON_FLUSH) sync();
+            checkpoint = new Checkpoint(lineCount, consumer.getSequence());
+        }
+
+        if(maxSegmentMillis > 0 && System.currentTimeMillis() - segmentStartMillis >= maxSegmentMillis) closeSegment();
+
+    }
+
+    /**
+     * Writes a line to the open segment, opening a new one first if it is full or none is open.
+     */
+    private void writeLine(byte[] line, int offset, int length) throws IOException {
+
+        if(segmentWriter != null && maxSegmentBytes > 0 && segmentWriter.getByteCount() >= maxSegmentBytes) closeSegment();
+        if(segmentWriter == null) openSegment();
+
+        segmentWriter.writeLine(line, offset, length);
+        lineCount++;
+
+    }
+
+    /**
+     * Writes a gap marker line if the consumer missed lines since the last marker.
+     */
+    private void markGap() throws IOException {
+
+        long missed = consumer.getMissedCount();
+        if(missed == markedMissedCount) return;
+
+        byte[] marker = (CaptureSession.GAP_MARKER_PREFIX + ",missed," + (missed - markedMissedCount)).getBytes(UTF_8);
+        markedMissedCount = missed;
+        writeLine(marker, 0, marker.length);
+
+    }
+
+    private void openSegment() throws IOException {
+
+        File segment;
+
+        synchronized (this){
+            segment = new File(directory, String.format(Locale.US, "%s-%04d%s", name, segments.size(), SEGMENT_SUFFIX));
+            segments.add(segment);
+        }
+
+        segmentStream = new FileOutputStream(segment);
+        segmentWriter = new LineWriter(segmentStream, lineSeparator, LineWriter.DEFAULT_BUFFER_SIZE);
+        segmentStartMillis = System.currentTimeMillis();
+        segmentFlushedBytes = 0;
+
+    }
+
+    private void flushSegment() throws IOException {
+        segmentWriter.flush();
+        byteCount += segmentWriter.getByteCount() - segmentFlushedBytes;
+        segmentFlushedBytes = segmentWriter.getByteCount();
+    }
+
+    private void closeSegment() throws IOException {
+
+        if(segmentWriter == null) return;
+
+        flushSegment();
+
+        if(syncPolicy != SyncPolicy.NEVER) sync();
+
+        segmentWriter.close();
+        segmentWriter = null;
+        segmentStream = null;
+
+    }
+
+    private void sync() throws IOException {
+        segmentStream.getFD().sync();
+        syncCount++;
+    }
+
+    private synchronized void deleteSegments(){
+        for(File segment : segments) segment.delete();
+        segments.clear();
+    }
+
+    private synchronized void removeSegments(List<File> files){
+        segments.removeAll(files);
+    }
+
+    /**
+     *
+     * @return Sequence in the store of the first line journaled, lines before it are not in the segments
+     */
+    public long getStartSequence(){
+        return startSequence;
+    }
+
+    /**
+     *
+     * @return Start of the name of every segment file, see {@link Builder#name(String)}
+     */
+    public String getName(){
+        return name;
+    }
+
+    /**
+     *
+     * @return Segment files written so far, oldest first, the last one still being written while journaling
+     */
+    public synchronized List<File> getSegments(){
+        return new ArrayList<>(segments);
+    }
+
+    /**
+     *
+     * @return Written after every line
+     */
+    public String getLineSeparator(){
+        return lineSeparator;
+    }
+
+    /**
+     *
+     * @return Folder of the segment files
+     */
+    public File getDirectory(){
+        return directory;
+    }
+
+    /**
+     *
+     * @return Number of lines written, gap markers included
+     */
+    public long getLineCount(){
+        return lineCount;
+    }
+
+    /**
+     *
+     * @return Lines handed to the segment files so far, and where the journal is in the store
+     */
+    public Checkpoint getCheckpoint(){
+        return checkpoint;
+    }
+
+    /**
+     *
+     * @return Number of bytes handed to the segment files
+     */
+    public long getByteCount(){
+        return byteCount;
+    }
+
+    /**
+     *
+     * @return Number of times a segment was synced to the disk
+     */
+    public long getSyncCount(){
+        return syncCount;
+    }
+
+    /**
+     *
+     * @return Number of lines overwritten in the store before the journal could write them, each run of them marked by a
+     * gap marker line in the segments
+     */
+    public long getMissedCount(){
+        return consumer.getMissedCount();
+    }
+
+    /**
+     *
+     * @return Why journaling stopped on its own, null if it did not fail
+     */
+    public IOException getFailure(){
+        return failure;
+    }
+
+    /**
+     * Lines readable from the segment files at a point in time, and the sequence in the store of the next line to be
+     * written. Lines of the store from that sequence on are not in the segments yet.
+     */
+    public static class Checkpoint{
+
+        private final long lineCount;
+        private final long nextSequence;
+
+        private Checkpoint(long lineCount, long nextSequence){
+            this.lineCount = lineCount;
+            this.nextSequence = nextSequence;
+        }
+
+        /**
+         *
+         * @return Number of lines handed to the segment files
+         */
+        public long getLineCount(){
+            return lineCount;
+        }
+
+        /**
+         *
+         * @return Sequence in the store of the next line to be written
+         */
+        public long getNextSequence(){
+            return nextSequence;
+        }
+
+    }
+
+    /**
+     * Builds a {@link SessionJournal}. Defaults to 16 MB or 10 minutes segments, written every 200 milliseconds and synced
+     * on rotation, ending lines with {@code \n}.
+     */
+    public static class Builder{
+
+        private final LineRingBuffer lines;
+        private final File directory;
+        private String name = "session-" + System.currentTimeMillis();
+        private long maxSegmentBytes = 16 * 1024 * 1024;
+        private long maxSegmentMillis = 10 * 60 * 1000;
+        private long flushIntervalMillis = 200;
+        private SyncPolicy syncPolicy = SyncPolicy.ON_ROTATE;
+        private String lineSeparator = "\n";
+        private long fromSequence = -1;
+
+        /**
+         *
+         * @param lines Store of the lines journaled
+         * @param directory Folder the segment files are written to
+         */
+        public Builder(LineRingBuffer lines, File directory){
+            this.lines = lines;
+            this.directory = directory;
+        }
+
+        /**
+         *
+         * @param name Start of the name of every segment file, unique to the session
+         * @return This builder
+         */
+        public Builder name(String name){
+            this.name = name;
+            return this;
+        }
+
+        /**
+         *
+         * @param bytes Size a segment reaches before the next one is started, 0 for no limit
+         * @return This builder
+         */
+        public Builder maxSegmentBytes(long bytes){
+            if(bytes < 0) throw new IllegalArgumentException("maxSegmentBytes must not be negative");
+            this.maxSegmentBytes = bytes;
+            return this;
+        }
+
+        /**
+         *
+         * @param millis Age a segment reaches before the next one is started, 0 for no limit
+         * @return This builder
+         */
+        public Builder maxSegmentMillis(long millis){
+            if(millis < 0) throw new IllegalArgumentException("maxSegmentMillis must not be negative");
+            this.maxSegmentMillis = millis;
+            return this;
+        }
+
+        /**
+         *
+         * @param millis Time between two batches written, the most captured lines lost if the app dies
+         * @return This builder
+         */
+        public Builder flushIntervalMillis(long millis){
+            if(millis <= 0) throw new IllegalArgumentException("flushIntervalMillis must be positive");
+            this.flushIntervalMillis = millis;
+            return this;
+        }
+
+        /**
+         *
+         * @param syncPolicy When segments are synced to the disk
+         * @return This builder
+         */
+        public Builder syncPolicy(SyncPolicy syncPolicy){
+            this.syncPolicy = syncPolicy;
+            return this;
+        }
+
+        /**
+         *
+         * @param lineSeparator Written after every line
+         * @return This builder
+         */
+        public Builder lineSeparator(String lineSeparator){
+            this.lineSeparator = lineSeparator;
+            return this;
+        }
+
+        /**
+         *
+         * @param sequence Sequence of the first line journaled, instead of the oldest line held
+         * @return This builder
+         */
+        public Builder fromSequence(long sequence){
+            this.fromSequence = sequence;
+            return this;
+        }
+
+        /**
+         *
+         * @return New journal, not started
+         */
+        public SessionJournal build(){
+            return new SessionJournal(this);
+        }
+
+    }
+
+}
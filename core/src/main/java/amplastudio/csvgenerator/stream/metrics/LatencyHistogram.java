@@ -0,0 +1,143 @@
+package amplastudio.csvgenerator.stream.metrics;
+
+/**
+ * <p>Histogram of latencies with a fixed memory footprint, for percentiles over any number of samples. Values up to 64
+ * are counted exactly, larger values in buckets about 3% wide, so percentiles are exact to within that precision while
+ * the minimum and maximum are always exact.</p>
+ * <p>Values are non-negative and in whatever unit they are recorded in, usually microseconds. This class is thread-safe.</p>
+ */
+public class LatencyHistogram {
+
+    /**
+     * Every power of two above {@link #LINEAR_LIMIT} is split in 2^SUB_BUCKET_BITS buckets.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Values below this limit have a bucket of their own.
+     */
+    private static final int LINEAR_LIMIT = SUB_BUCKET_COUNT * 2;
+
+    /**
+     * Covers values up to 2^62, larger values are counted in the last bucket.
+     */
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + (62 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+
+    private long count = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    /**
+     * Counts a value.
+     * @param value Value recorded, negative values are counted as 0
+     */
+    public synchronized void record(long value){
+
+        if(value < 0) value = 0;
+
+        counts[bucketOf(value)]++;
+        count++;
+        sum += value;
+        if(value < min) min = value;
+        if(value > max) max = value;
+
+    }
+
+    /**
+     * Returns the value below which the given percentage of the values recorded fall.
+     * @param percentile Percentage, from 0 to 100
+     * @return Value at the percentile, 0 if nothing was recorded
+     */
+    public synchronized long getPercentile(double percentile){
+
+        if(percentile < 0 || percentile > 100) throw new IllegalArgumentException("percentile must be between 0 and 100");
+        if(count == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+
+        if(rank >= count) return max;
+
+        for(int i = 0; i < BUCKET_COUNT; i++){
+            seen += counts[i];
+            if(seen >= rank) return Math.max(min, Math.min(max, valueOf(i)));
+        }
+
+        return max;
+
+    }
+
+    /**
+     *
+     * @return Number of values recorded
+     */
+    public synchronized long getCount(){
+        return count;
+    }
+
+    /**
+     *
+     * @return Smallest value recorded, 0 if nothing was recorded
+     */
+    public synchronized long getMin(){
+        return count > 0 ? min : 0;
+    }
+
+    /**
+     *
+     * @return Largest value recorded, 0 if nothing was recorded
+     */
+    public synchronized long getMax(){
+        return max;
+    }
+
+    /**
+     *
+     * @return Mean of the values recorded, 0 if nothing was recorded
+     */
+    public synchronized double getMean(){
+        return count > 0 ? (double) sum / count : 0;
+    }
+
+    /**
+     * Forgets every value recorded.
+     */
+    public synchronized void reset(){
+        for(int i = 0; i < BUCKET_COUNT; i++) counts[i] = 0;
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    private static int bucketOf(long value){
+
+        if(value < LINEAR_LIMIT) return (int) value;
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS; /* value >> shift is in [32, 64) */
+        int bucket = LINEAR_LIMIT + (shift - 1) * SUB_BUCKET_COUNT + (int) (value >> shift) - SUB_BUCKET_COUNT;
+
+        return Math.min(bucket, BUCKET_COUNT - 1);
+
+    }
+
+    /**
+     * @return Middle value of a bucket
+     */
+    private static long valueOf(int bucket){
+
+        if(bucket < LINEAR_LIMIT) return bucket;
+
+        int shift = (bucket - LINEAR_LIMIT) / SUB_BUCKET_COUNT + 1;
+        long top = (bucket - LINEAR_LIMIT) % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+
+        return (top << shift) + (1L << (shift - 1));
+
+    }
+
+}
@@ -0,0 +1,319 @@
+package amplastudio.csvgenerator.stream.metrics;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import amplastudio.csvgenerator.stream.CaptureSession;
+
+/**
+ * <p>Measures the round trip time of commands over the link: sends probes at a set rate and matches the replies of a
+ * device echoing them back, recording the time between sending and receiving in a {@link LatencyHistogram}.</p>
+ * <p>A probe is a text line made of {@link #PROBE_PREFIX}, its sequence number and padding up to the payload size, such as
+ * {@code ~p42,xxxx\n}. The device must send every line starting with the prefix back unchanged, framed like its other
+ * lines; set this probe as the {@link CaptureSession.FrameInterceptor} of the session so replies are matched and kept out of
+ * the captured data. On an Arduino this is a couple of lines in the serial command handler.</p>
+ * <p>Probes are sent on a thread of their own, started by {@link #start()}. A probe not echoed before
+ * {@value #WINDOW_SIZE} newer probes were sent is counted as lost.</p>
+ */
+public class LatencyProbe implements Runnable, CaptureSession.FrameInterceptor {
+
+    /**
+     * Bytes starting every probe and every reply.
+     */
+    public static final String PROBE_PREFIX = "~p";
+
+    /**
+     * Smallest payload, enough for the prefix, a sequence number and the line feed.
+     */
+    public static final int MIN_PAYLOAD_SIZE = 16;
+
+    /**
+     * Number of probes that may wait for their reply at once.
+     */
+    private static final int WINDOW_SIZE = 1024;
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final byte[] PREFIX_BYTES = PROBE_PREFIX.getBytes(US_ASCII);
+
+    private final Sender sender;
+    private final double probesPerSecond;
+    private final int payloadSize;
+
+    /**
+     * Round trip times, in microseconds.
+     */
+    private final LatencyHistogram roundTripLatency = new LatencyHistogram();
+
+    /**
+     * Sequence and send time of the probes waiting for their reply, indexed by sequence modulo {@link #WINDOW_SIZE}.
+     * A sequence of -1 marks a free slot.
+     */
+    private final long[] slotSequences = new long[WINDOW_SIZE];
+    private final long[] slotSentNanos = new long[WINDOW_SIZE];
+
+    private long nextSequence = 0;
+    private long sentCount = 0;
+    private long echoedCount = 0;
+    private long lostCount = 0;
+    private long rejectedCount = 0;
+    private long unmatchedCount = 0;
+
+    private volatile Thread thread = null;
+
+    /**
+     *
+     * @param sender Sends the probes to the device
+     * @param probesPerSecond Rate of probes sent
+     * @param payloadSize Size of every probe, in bytes, including the line feed. At least {@link #MIN_PAYLOAD_SIZE}
+     */
+    public LatencyProbe(Sender sender, double probesPerSecond, int payloadSize){
+
+        if(probesPerSecond <= 0) throw new IllegalArgumentException("probesPerSecond must be positive");
+        if(payloadSize < MIN_PAYLOAD_SIZE) throw new IllegalArgumentException("payloadSize must be at least " + MIN_PAYLOAD_SIZE);
+
+        this.sender = sender;
+        this.probesPerSecond = probesPerSecond;
+        this.payloadSize = payloadSize;
+
+        for(int i = 0; i < WINDOW_SIZE; i++) slotSequences[i] = -1;
+    }
+
+    /**
+     * Starts sending probes, if not already started.
+     */
+    public synchronized void start(){
+        if(thread != null) return;
+        thread = new Thread(this, "LatencyProbe");
+        thread.start();
+    }
+
+    /**
+     * Stops sending probes. Replies still on the way are matched if they arrive.
+     */
+    public synchronized void stop(){
+        if(thread == null) return;
+        thread.interrupt();
+        thread = null;
+    }
+
+    /**
+     *
+     * @return True if probes are being sent
+     */
+    public boolean isRunning(){
+        return thread != null;
+    }
+
+    @Override
+    public void run() {
+
+        long start = System.nanoTime();
+        long sent = 0;
+        long due;
+
+        while(!Thread.currentThread().isInterrupted()){
+
+            due = (long) ((System.nanoTime() - start) * probesPerSecond / 1e9) + 1;
+
+            while(sent < due && !Thread.currentThread().isInterrupted()){
+                sendProbe();
+                sent++;
+            }
+
+            long nextNanos = start + (long) (sent * 1e9 / probesPerSecond);
+            long sleepMillis = TimeUnit.NANOSECONDS.toMillis(nextNanos - System.nanoTime());
+
+            try{
+                Thread.sleep(Math.max(1, sleepMillis));
+            }catch(InterruptedException e){
+                return;
+            }
+        }
+
+    }
+
+    /**
+     * Sends a single probe.
+     * @return False if the sender refused it
+     */
+    public boolean sendProbe(){
+
+        byte[] probe;
+        long sequence;
+
+        synchronized (this){
+            sequence = nextSequence++;
+            probe = encode(sequence);
+
+            int slot = (int) (sequence % WINDOW_SIZE);
+            if(slotSequences[slot] >= 0) lostCount++; /* its reply never came */
+
+            slotSequences[slot] = sequence;
+            slotSentNanos[slot] = System.nanoTime();
+        }
+
+        if(sender.send(probe)){
+            synchronized (this){
+                sentCount++;
+            }
+            return true;
+        }
+
+        synchronized (this){
+            int slot = (int) (sequence % WINDOW_SIZE);
+            if(slotSequences[slot] == sequence) slotSequences[slot] = -1;
+            rejectedCount++;
+        }
+
+        return false;
+
+    }
+
+    /**
+     * Matches replies to the probes sent, recording their round trip time.
+     * @return True if the frame is a reply to a probe
+     */
+    @Override
+    public boolean interceptFrame(byte[] frame, int offset, int length) {
+
+        long receivedNanos = System.nanoTime();
+
+        if(length < PREFIX_BYTES.length) return false;
+        for(int i = 0; i < PREFIX_BYTES.length; i++) if(frame[offset + i] != PREFIX_BYTES[i]) return false;
+
+        long sequence = 0;
+        int digits = 0;
+        byte b;
+
+        for(int i = offset + PREFIX_BYTES.length; i < offset + length; i++){
+            b = frame[i];
+            if(b < '0' || b > '9') break;
+            sequence = sequence * 10 + (b - '0');
+            digits++;
+        }
+
+        synchronized (this){
+
+            int slot = (int) (sequence % WINDOW_SIZE);
+
+            if(digits == 0 || slotSequences[slot] != sequence){ /* corrupted, duplicated or too late */
+                unmatchedCount++;
+                return true;
+            }
+
+            slotSequences[slot] = -1;
+            echoedCount++;
+            roundTripLatency.record(TimeUnit.NANOSECONDS.toMicros(receivedNanos - slotSentNanos[slot]));
+
+        }
+
+        return true;
+
+    }
+
+    private byte[] encode(long sequence){
+
+        byte[] probe = new byte[payloadSize];
+        byte[] header = (PROBE_PREFIX + sequence + ',').getBytes(US_ASCII);
+
+        System.arraycopy(header, 0, probe, 0, header.length);
+        for(int i = header.length; i < payloadSize - 1; i++) probe[i] = 'x';
+        probe[payloadSize - 1] = '\n';
+
+        return probe;
+
+    }
+
+    /**
+     *
+     * @return Round trip times of the probes echoed, in microseconds
+     */
+    public LatencyHistogram getRoundTripLatency(){
+        return roundTripLatency;
+    }
+
+    /**
+     *
+     * @return Number of probes handed to the sender
+     */
+    public synchronized long getSentCount(){
+        return sentCount;
+    }
+
+    /**
+     *
+     * @return Number of probes echoed back
+     */
+    public synchronized long getEchoedCount(){
+        return echoedCount;
+    }
+
+    /**
+     *
+     * @return Number of probes whose reply did not come before {@value #WINDOW_SIZE} newer probes were sent
+     */
+    public synchronized long getLostCount(){
+        return lostCount;
+    }
+
+    /**
+     *
+     * @return Number of probes the sender refused, such as when its queue was full
+     */
+    public synchronized long getRejectedCount(){
+        return rejectedCount;
+    }
+
+    /**
+     *
+     * @return Number of replies that matched no probe waiting, corrupted, duplicated or too late
+     */
+    public synchronized long getUnmatchedCount(){
+        return unmatchedCount;
+    }
+
+    /**
+     *
+     * @return Rate of probes sent
+     */
+    public double getProbesPerSecond(){
+        return probesPerSecond;
+    }
+
+    /**
+     *
+     * @return Size of every probe, in bytes
+     */
+    public int getPayloadSize(){
+        return payloadSize;
+    }
+
+    /**
+     * Forgets the latencies and counters measured so far. Probes waiting for their reply are forgotten too.
+     */
+    public synchronized void reset(){
+        roundTripLatency.reset();
+        for(int i = 0; i < WINDOW_SIZE; i++) slotSequences[i] = -1;
+        sentCount = 0;
+        echoedCount = 0;
+        lostCount = 0;
+        rejectedCount = 0;
+        unmatchedCount = 0;
+    }
+
+    /**
+     * Sends probes to the device.
+     */
+    public interface Sender{
+
+        /**
+         * Sends a probe without blocking.
+         * @param probe Probe to send, not changed afterwards
+         * @return False if the probe could not be sent
+         */
+        boolean send(byte[] probe);
+
+    }
+
+}
@@ -0,0 +1,336 @@
+package amplastudio.csvgenerator.stream.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import amplastudio.csvgenerator.stream.CaptureSession;
+import amplastudio.csvgenerator.stream.WriteQueue;
+import amplastudio.csvgenerator.stream.record.RecordColumns;
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
+
+/**
+ * <p>Health of the pipeline from the transport to the screen, telling whether slowness comes from the link, the parsing
+ * or the UI, and how long dropouts last. Counters are read from the {@link CaptureSession} set with {@link #setSession(CaptureSession)}, its store
+ * and its {@link WriteQueue}; rates are computed between two calls of {@link #sample()}. The time lines wait between
+ * being stored by the reading thread and being delivered to the UI is recorded by the deliverer with
+ * {@link #recordDeliveryLatency(long)}.</p>
+ * <p>This class is thread-safe, sampling is cheap enough to be done on the main thread every few hundred milliseconds.</p>
+ */
+public class PipelineMetrics {
+
+    /**
+     * Delivery latencies, in microseconds.
+     */
+    private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+
+    private volatile CaptureSession session = null;
+
+    private CaptureSession sampledSession = null;
+    private long sampleNanos = 0;
+    private long sampledByteCount = 0;
+    private long sampledFrameCount = 0;
+
+    /**
+     *
+     * @param session Session measured, may be null
+     */
+    public void setSession(CaptureSession session){
+        this.session = session;
+    }
+
+    /**
+     *
+     * @return Session measured, null if none
+     */
+    public CaptureSession getSession(){
+        return session;
+    }
+
+    /**
+     * Records how long stored data waited before being delivered to the UI.
+     * @param nanos Delivery latency, in nanoseconds
+     */
+    public void recordDeliveryLatency(long nanos){
+        deliveryLatency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     *
+     * @return Delivery latencies, in microseconds
+     */
+    public LatencyHistogram getDeliveryLatency(){
+        return deliveryLatency;
+    }
+
+    /**
+     * Forgets the latencies and rates measured so far.
+     */
+    public synchronized void reset(){
+        deliveryLatency.reset();
+        sampledSession = null;
+    }
+
+    /**
+     * Reads the current counters, computing the rates since the previous call.
+     * @return Current values
+     */
+    public synchronized Snapshot sample(){
+
+        Snapshot snapshot = new Snapshot();
+        CaptureSession current = session;
+        long now = System.nanoTime();
+
+        if(current != null){
+
+            snapshot.receivedByteCount = current.getReceivedByteCount();
+            snapshot.storedFrameCount = current.getStoredFrameCount();
+            snapshot.rejectedFrameCount = current.getRejectedFrameCount();
+
+            LineRingBuffer lines = current.getHeldData();
+            RecordColumns records = current.getRecordColumns();
+
+            if(lines != null){
+                snapshot.heldCount = lines.size();
+                snapshot.droppedLineCount = lines.getDroppedCount();
+                snapshot.overwrittenLineCount = lines.getOverwrittenCount();
+            }else if(records != null){
+                snapshot.heldCount = records.size();
+                snapshot.droppedLineCount = records.getDroppedCount();
+                snapshot.overwrittenLineCount = records.getOverwrittenCount();
+                snapshot.malformedRecordCount = records.getMalformedRecordCount();
+            }
+
+            WriteQueue writeQueue = current.getWriteQueue();
+
+            if(writeQueue != null){
+                snapshot.writeQueueDepth = writeQueue.getQueueDepth();
+                snapshot.maxWriteQueueDepth = writeQueue.getMaxQueueDepth();
+                snapshot.rejectedCommandCount = writeQueue.getRejectedCommandCount();
+            }
+
+            if(current == sampledSession && now > sampleNanos){
+
+                /* counters restart with every capture of the session */
+                long bytes = snapshot.receivedByteCount >= sampledByteCount ? snapshot.receivedByteCount - sampledByteCount : snapshot.receivedByteCount;
+                long frames = snapshot.storedFrameCount >= sampledFrameCount ? snapshot.storedFrameCount - sampledFrameCount : snapshot.storedFrameCount;
+                double seconds = (now - sampleNanos) / 1e9;
+
+                snapshot.bytesPerSecond = bytes / seconds;
+                snapshot.framesPerSecond = frames / seconds;
+            }
+
+            snapshot.isListening = current.isListening();
+            snapshot.isReconnecting = current.isReconnecting();
+
+            LatencyHistogram reconnectTime = current.getReconnectTime();
+            snapshot.reconnectCount = reconnectTime.getCount();
+            snapshot.reconnectP50Millis = reconnectTime.getPercentile(50);
+            snapshot.reconnectMaxMillis = reconnectTime.getMax();
+
+        }
+
+        snapshot.latencyP50Micros = deliveryLatency.getPercentile(50);
+        snapshot.latencyP99Micros = deliveryLatency.getPercentile(99);
+        snapshot.latencyMaxMicros = deliveryLatency.getMax();
+
+        sampledSession = current;
+        sampleNanos = now;
+        sampledByteCount = snapshot.receivedByteCount;
+        sampledFrameCount = snapshot.storedFrameCount;
+
+        return snapshot;
+
+    }
+
+    /**
+     * Values of the metrics at a point in time, see {@link #sample()}.
+     */
+    public static class Snapshot{
+
+        private boolean isListening = false;
+        private boolean isReconnecting = false;
+        private long reconnectCount = 0;
+        private long reconnectP50Millis = 0;
+        private long reconnectMaxMillis = 0;
+        private long receivedByteCount = 0;
+        private long storedFrameCount = 0;
+        private long rejectedFrameCount = 0;
+        private double bytesPerSecond = 0;
+        private double framesPerSecond = 0;
+        private long heldCount = 0;
+        private long droppedLineCount = 0;
+        private long overwrittenLineCount = 0;
+        private long malformedRecordCount = 0;
+        private int writeQueueDepth = 0;
+        private int maxWriteQueueDepth = 0;
+        private long rejectedCommandCount = 0;
+        private long latencyP50Micros = 0;
+        private long latencyP99Micros = 0;
+        private long latencyMaxMicros = 0;
+
+        private Snapshot(){
+
+        }
+
+        /**
+         *
+         * @return True if the session was reading its transport
+         */
+        public boolean isListening(){
+            return isListening;
+        }
+
+        /**
+         *
+         * @return True if the session was waiting to connect again after losing its stream
+         */
+        public boolean isReconnecting(){
+            return isReconnecting;
+        }
+
+        /**
+         *
+         * @return Number of times the session connected again after losing its stream
+         */
+        public long getReconnectCount(){
+            return reconnectCount;
+        }
+
+        /**
+         *
+         * @return Median time, in milliseconds, the session took to connect again
+         */
+        public long getReconnectP50Millis(){
+            return reconnectP50Millis;
+        }
+
+        /**
+         *
+         * @return Longest time, in milliseconds, the session took to connect again
+         */
+        public long getReconnectMaxMillis(){
+            return reconnectMaxMillis;
+        }
+
+        /**
+         *
+         * @return Bytes read by the current capture
+         */
+        public long getReceivedByteCount(){
+            return receivedByteCount;
+        }
+
+        /**
+         *
+         * @return Lines or records stored by the current capture
+         */
+        public long getStoredFrameCount(){
+            return storedFrameCount;
+        }
+
+        /**
+         *
+         * @return Frames the current capture could not store
+         */
+        public long getRejectedFrameCount(){
+            return rejectedFrameCount;
+        }
+
+        /**
+         *
+         * @return Bytes read per second since the previous sample, 0 on the first sample of a session
+         */
+        public double getBytesPerSecond(){
+            return bytesPerSecond;
+        }
+
+        /**
+         *
+         * @return Lines or records stored per second since the previous sample, 0 on the first sample of a session
+         */
+        public double getFramesPerSecond(){
+            return framesPerSecond;
+        }
+
+        /**
+         *
+         * @return Lines or records currently held
+         */
+        public long getHeldCount(){
+            return heldCount;
+        }
+
+        /**
+         *
+         * @return New lines, or records, dropped because the store was full
+         */
+        public long getDroppedLineCount(){
+            return droppedLineCount;
+        }
+
+        /**
+         *
+         * @return Old lines, or records, overwritten because the store was full
+         */
+        public long getOverwrittenLineCount(){
+            return overwrittenLineCount;
+        }
+
+        /**
+         *
+         * @return Frames that did not match the record layout
+         */
+        public long getMalformedRecordCount(){
+            return malformedRecordCount;
+        }
+
+        /**
+         *
+         * @return Commands waiting to be sent
+         */
+        public int getWriteQueueDepth(){
+            return writeQueueDepth;
+        }
+
+        /**
+         *
+         * @return Largest number of commands that waited to be sent at once
+         */
+        public int getMaxWriteQueueDepth(){
+            return maxWriteQueueDepth;
+        }
+
+        /**
+         *
+         * @return Commands refused because the write queue was full
+         */
+        public long getRejectedCommandCount(){
+            return rejectedCommandCount;
+        }
+
+        /**
+         *
+         * @return Median time, in microseconds, stored data waited before being delivered to the UI
+         */
+        public long getLatencyP50Micros(){
+            return latencyP50Micros;
+        }
+
+        /**
+         *
+         * @return 99th percentile of the time, in microseconds, stored data waited before being delivered to the UI
+         */
+        public long getLatencyP99Micros(){
+            return latencyP99Micros;
+        }
+
+        /**
+         *
+         * @return Longest time, in microseconds, stored data waited before being delivered to the UI
+         */
+        public long getLatencyMaxMicros(){
+            return latencyMaxMicros;
+        }
+
+    }
+
+}
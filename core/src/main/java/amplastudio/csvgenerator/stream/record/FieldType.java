@@ -0,0 +1,76 @@
+package amplastudio.csvgenerator.stream.record;
+
+/**
+ * Binary types of the fields of a record, named after the Arduino types they match.
+ * Each field is held in a primitive column of its own width, so a record takes as much memory as on the wire.
+ */
+public enum FieldType {
+
+    /**
+     * int8_t, held in a byte column
+     */
+    INT8(1),
+
+    /**
+     * uint8_t / byte, held in a byte column
+     */
+    UINT8(1),
+
+    /**
+     * int16_t / Uno's int, held in a short column
+     */
+    INT16(2),
+
+    /**
+     * uint16_t / Uno's unsigned int, held in a short column
+     */
+    UINT16(2),
+
+    /**
+     * int32_t / long, held in an int column
+     */
+    INT32(4),
+
+    /**
+     * uint32_t / unsigned long, as returned by millis(), held in an int column
+     */
+    UINT32(4),
+
+    /**
+     * int64_t, held in a long column
+     */
+    INT64(8),
+
+    /**
+     * float, held in a float column
+     */
+    FLOAT32(4),
+
+    /**
+     * double on 32 bit ARM boards (Due, Zero), held in a double column
+     */
+    FLOAT64(8);
+
+    private final int size;
+
+    FieldType(int size){
+        this.size = size;
+    }
+
+    /**
+     *
+     * @return Size of the field on the wire, in bytes
+     */
+    public int getSize(){
+        return size;
+    }
+
+    /**
+     *
+     * @return True if the field holds a floating point value
+     */
+    public boolean isFloatingPoint(){
+        return this == FLOAT32 || this == FLOAT64;
+    }
+
+}
@@ -0,0 +1,384 @@
+package amplastudio.csvgenerator.stream.record;
+
+import java.nio.ByteOrder;
+
+import amplastudio.csvgenerator.stream.framing.FrameListener;
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
+
+/**
+ * <p>Decodes binary records described by a {@link RecordLayout} straight into primitive column arrays, one array per field,
+ * without creating any object per record. Feed it with the frames of a {@link amplastudio.csvgenerator.stream.framing.FrameDecoder}.</p>
+ * <p>Each column is held in an array of the field width: byte[] for {@link FieldType#INT8} and {@link FieldType#UINT8},
+ * short[] for {@link FieldType#INT16} and {@link FieldType#UINT16}, int[] for {@link FieldType#INT32} and {@link FieldType#UINT32},
+ * long[] for {@link FieldType#INT64}, float[] for {@link FieldType#FLOAT32} and double[] for {@link FieldType#FLOAT64}.
+ * Unsigned values are widened by {@link #getLong(int, int)}.</p>
+ * <p>Frames whose length differs from the record size are dropped and counted by {@link #getMalformedRecordCount()}.
+ * Records are appended by the thread reading the stream and can be read from any thread.</p>
+ * <p>The columns grow up to a maximum number of records. When they are full, the {@link LineRingBuffer.EvictionPolicy}
+ * decides whether the oldest records are evicted, an eighth of the maximum at a time so appending stays cheap, or the new
+ * ones are dropped; both are counted, as in {@link LineRingBuffer}. Every record appended gets a sequence number, counting
+ * from zero, which does not change when older records are evicted: rows go from {@link #getFirstSequence()} at row 0 to
+ * {@link #getNextSequence()} (exclusive).</p>
+ */
+public class RecordColumns implements FrameListener {
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 1024;
+
+    /**
+     * Default maximum number of records held.
+     */
+    public static final int DEFAULT_MAX_RECORDS = 200000;
+
+    /**
+     * Records evicted at once when full, as a fraction of the maximum number of records.
+     */
+    private static final int EVICTION_DIVISOR = 8;
+
+    private final RecordLayout layout;
+    private final boolean isBigEndian;
+
+    /**
+     * One primitive array per field, see class docs for the array type of each field type.
+     */
+    private final Object[] columns;
+
+    private final int maxRecords;
+    private final LineRingBuffer.EvictionPolicy evictionPolicy;
+
+    private int capacity;
+    private int size = 0;
+    private long firstSequence = 0;
+    private long malformedRecordCount = 0;
+    private long overwrittenCount = 0;
+    private long droppedCount = 0;
+
+    public RecordColumns(RecordLayout layout){
+        this(layout, DEFAULT_INITIAL_CAPACITY);
+    }
+
+    /**
+     * Holds at most {@link #DEFAULT_MAX_RECORDS} records, or the initial capacity if larger, evicting the oldest ones.
+     * @param layout Layout of the records
+     * @param initialCapacity Number of records the columns can hold before growing
+     */
+    public RecordColumns(RecordLayout layout, int initialCapacity){
+        this(layout, initialCapacity, Math.max(initialCapacity, DEFAULT_MAX_RECORDS), LineRingBuffer.EvictionPolicy.DROP_OLDEST);
+    }
+
+    /**
+     *
+     * @param layout Layout of the records
+     * @param initialCapacity Number of records the columns can hold before growing, at most maxRecords
+     * @param maxRecords Maximum number of records held
+     * @param evictionPolicy What happens to a new record when the columns are full
+     */
+    public RecordColumns(RecordLayout layout, int initialCapacity, int maxRecords, LineRingBuffer.EvictionPolicy evictionPolicy){
+
+        if(initialCapacity <= 0 || maxRecords <= 0) throw new IllegalArgumentException("initialCapacity and maxRecords must be positive");
+
+        this.layout = layout;
+        this.isBigEndian = layout.getByteOrder() == ByteOrder.BIG_ENDIAN;
+        this.columns = new Object[layout.getFieldCount()];
+        this.maxRecords = maxRecords;
+        this.evictionPolicy = evictionPolicy;
+        this.capacity = Math.min(initialCapacity, maxRecords);
+
+        for(int i = 0; i < columns.length; i++) columns[i] = newColumn(layout.getFieldType(i), capacity);
+    }
+
+    /**
+     * Same as {@link #append(byte[], int, int)}.
+     */
+    @Override
+    public void onFrame(byte[] frame, int offset, int length){
+        append(frame, offset, length);
+    }
+
+    /**
+     * Decodes a frame holding one record and appends it to the columns.
+     * @param frame Array holding the frame
+     * @param offset Index of the first byte of the frame
+     * @param length Number of bytes of the frame
+     * @return False if the frame was dropped because its length differs from the record size, or because the columns
+     * are full and the policy is {@link LineRingBuffer.EvictionPolicy#DROP_NEWEST}
+     */
+    public synchronized boolean append(byte[] frame, int offset, int length){
+
+        if(length != layout.getRecordSize()){
+            malformedRecordCount++;
+            return false;
+        }
+
+        if(size == maxRecords){
+
+            if(evictionPolicy == LineRingBuffer.EvictionPolicy.DROP_NEWEST){
+                droppedCount++;
+                return false;
+            }
+
+            evict(Math.max(1, maxRecords / EVICTION_DIVISOR));
+        }
+
+        if(size == capacity) grow();
+
+        long bits;
+
+        for(int i = 0; i < columns.length; i++){
+
+            bits = readBits(frame, offset + layout.getFieldOffset(i), layout.getFieldType(i).getSize());
+
+            switch (layout.getFieldType(i)){
+
+                case INT8:
+                case UINT8:
+                    ((byte[]) columns[i])[size] = (byte) bits;
+                    break;
+
+                case INT16:
+                case UINT16:
+                    ((short[]) columns[i])[size] = (short) bits;
+                    break;
+
+                case INT32:
+                case UINT32:
+                    ((int[]) columns[i])[size] = (int) bits;
+                    break;
+
+                case INT64:
+                    ((long[]) columns[i])[size] = bits;
+                    break;
+
+                case FLOAT32:
+                    ((float[]) columns[i])[size] = Float.intBitsToFloat((int) bits);
+                    break;
+
+                case FLOAT64:
+                    ((double[]) columns[i])[size] = Double.longBitsToDouble(bits);
+                    break;
+
+            }
+
+        }
+
+        size++;
+        return true;
+
+    }
+
+    /**
+     *
+     * @return Layout of the records held
+     */
+    public RecordLayout getLayout(){
+        return layout;
+    }
+
+    /**
+     *
+     * @return Number of records held
+     */
+    public synchronized int size(){
+        return size;
+    }
+
+    /**
+     *
+     * @return Sequence of the record at row 0
+     */
+    public synchronized long getFirstSequence(){
+        return firstSequence;
+    }
+
+    /**
+     *
+     * @return Sequence the next record appended will get, which is also the number of records ever appended and not dropped
+     */
+    public synchronized long getNextSequence(){
+        return firstSequence + size;
+    }
+
+    /**
+     *
+     * @param column Field index
+     * @param row Record index
+     * @return Value of the field as an integer, unsigned types are zero extended and floating point values truncated
+     */
+    public synchronized long getLong(int column, int row){
+
+        checkRow(row);
+
+        switch (layout.getFieldType(column)){
+            case INT8: return ((byte[]) columns[column])[row];
+            case UINT8: return ((byte[]) columns[column])[row] & 0xFFL;
+            case INT16: return ((short[]) columns[column])[row];
+            case UINT16: return ((short[]) columns[column])[row] & 0xFFFFL;
+            case INT32: return ((int[]) columns[column])[row];
+            case UINT32: return ((int[]) columns[column])[row] & 0xFFFFFFFFL;
+            case INT64: return ((long[]) columns[column])[row];
+            case FLOAT32: return (long) ((float[]) columns[column])[row];
+            default: return (long) ((double[]) columns[column])[row];
+        }
+
+    }
+
+    /**
+     *
+     * @param column Field index
+     * @param row Record index
+     * @return Value of the field as a floating point number
+     */
+    public synchronized double getDouble(int column, int row){
+
+        switch (layout.getFieldType(column)){
+            case FLOAT32: checkRow(row); return ((float[]) columns[column])[row];
+            case FLOAT64: checkRow(row); return ((double[]) columns[column])[row];
+            default: return getLong(column, row);
+        }
+
+    }
+
+    /**
+     * Returns the array backing a column, of the type described in the class docs. Only the first {@link #size()}
+     * elements are valid, and the array is replaced when the columns grow and shifted when records are evicted, so it
+     * must not be held across appends.
+     * @param column Field index
+     * @return Primitive array holding the column
+     */
+    public synchronized Object getColumnArray(int column){
+        return columns[column];
+    }
+
+    /**
+     * Appends a record as a separated values row, without line separator.
+     * @param row Record index
+     * @param separator Character placed between fields
+     * @param out Builder that receives the row
+     */
+    public synchronized void appendRow(int row, char separator, StringBuilder out){
+
+        for(int i = 0; i < columns.length; i++){
+
+            if(i > 0) out.append(separator);
+
+            if(layout.getFieldType(i).isFloatingPoint()) out.append(getDouble(i, row));
+            else out.append(getLong(i, row));
+
+        }
+
+    }
+
+    /**
+     *
+     * @return Number of frames dropped because their length differs from the record size
+     */
+    public synchronized long getMalformedRecordCount(){
+        return malformedRecordCount;
+    }
+
+    /**
+     *
+     * @return Number of records evicted to make room for newer ones
+     * @see LineRingBuffer.EvictionPolicy#DROP_OLDEST
+     */
+    public synchronized long getOverwrittenCount(){
+        return overwrittenCount;
+    }
+
+    /**
+     *
+     * @return Number of records dropped because the columns were full
+     * @see LineRingBuffer.EvictionPolicy#DROP_NEWEST
+     */
+    public synchronized long getDroppedCount(){
+        return droppedCount;
+    }
+
+    /**
+     *
+     * @return Maximum number of records held
+     */
+    public int getMaxRecords(){
+        return maxRecords;
+    }
+
+    /**
+     *
+     * @return What happens to a new record when the columns are full
+     */
+    public LineRingBuffer.EvictionPolicy getEvictionPolicy(){
+        return evictionPolicy;
+    }
+
+    /**
+     * Removes every record held, keeping the allocated columns. Sequences go on from where they were.
+     */
+    public synchronized void clear(){
+        firstSequence += size;
+        size = 0;
+    }
+
+    private void checkRow(int row){
+        if(row < 0 || row >= size) throw new IndexOutOfBoundsException("row " + row + ", size " + size);
+    }
+
+    private long readBits(byte[] data, int offset, int width){
+
+        long bits = 0;
+
+        if(isBigEndian){
+            for(int i = 0; i < width; i++) bits = (bits << 8) | (data[offset + i] & 0xFF);
+        }
+
+        else{
+            for(int i = width - 1; i >= 0; i--) bits = (bits << 8) | (data[offset + i] & 0xFF);
+        }
+
+        return bits;
+
+    }
+
+    /**
+     * Removes the oldest records, moving the others to the start of the columns.
+     */
+    private void evict(int count){
+
+        for(Object column : columns) System.arraycopy(column, count, column, 0, size - count);
+
+        size -= count;
+        firstSequence += count;
+        overwrittenCount += count;
+
+    }
+
+    private void grow(){
+
+        int newCapacity = (int) Math.min((long) capacity * 2, maxRecords); /* no overflow past 2^30 */
+        Object newColumn;
+
+        for(int i = 0; i < columns.length; i++){
+            newColumn = newColumn(layout.getFieldType(i), newCapacity);
+            System.arraycopy(columns[i], 0, newColumn, 0, size);
+            columns[i] = newColumn;
+        }
+
+        capacity = newCapacity;
+
+    }
+
+    private static Object newColumn(FieldType type, int capacity){
+
+        switch (type){
+            case INT8:
+            case UINT8: return new byte[capacity];
+            case INT16:
+            case UINT16: return new short[capacity];
+            case INT32:
+            case UINT32: return new int[capacity];
+            case INT64: return new long[capacity];
+            case FLOAT32: return new float[capacity];
+            default: return new double[capacity];
+        }
+
+    }
+
+}
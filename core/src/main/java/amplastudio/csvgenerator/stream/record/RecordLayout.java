@@ -0,0 +1,148 @@
+package amplastudio.csvgenerator.stream.record;
+
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+/**
+ * <p>Describes a fixed-width binary record sent by a device, such as a packed struct of 8 int16_t channels.
+ * Fields are laid out in the order they are added, without padding. Use {@link Builder} to create a layout:</p>
+ * <pre>
+ * RecordLayout layout = new RecordLayout.Builder(ByteOrder.LITTLE_ENDIAN)
+ *         .addField("millis", FieldType.UINT32)
+ *         .addFields("ch", 8, FieldType.INT16)
+ *         .build();
+ * </pre>
+ * Instances are immutable.
+ * @see RecordColumns
+ */
+public class RecordLayout {
+
+    private final String[] names;
+    private final FieldType[] types;
+    private final int[] offsets;
+    private final ByteOrder byteOrder;
+    private final int recordSize;
+
+    private RecordLayout(Builder builder){
+
+        int count = builder.names.size();
+
+        names = builder.names.toArray(new String[count]);
+        types = builder.types.toArray(new FieldType[count]);
+        offsets = new int[count];
+        byteOrder = builder.byteOrder;
+
+        int offset = 0;
+        for(int i = 0; i < count; i++){
+            offsets[i] = offset;
+            offset += types[i].getSize();
+        }
+
+        recordSize = offset;
+    }
+
+    /**
+     *
+     * @return Number of fields of a record
+     */
+    public int getFieldCount(){
+        return names.length;
+    }
+
+    /**
+     *
+     * @param field Field index
+     * @return Field name, used as column header on export
+     */
+    public String getFieldName(int field){
+        return names[field];
+    }
+
+    /**
+     *
+     * @param field Field index
+     * @return Field type
+     */
+    public FieldType getFieldType(int field){
+        return types[field];
+    }
+
+    /**
+     *
+     * @param field Field index
+     * @return Offset of the field from the start of the record, in bytes
+     */
+    public int getFieldOffset(int field){
+        return offsets[field];
+    }
+
+    /**
+     *
+     * @return Byte order of every field
+     */
+    public ByteOrder getByteOrder(){
+        return byteOrder;
+    }
+
+    /**
+     *
+     * @return Size of a record on the wire, in bytes
+     */
+    public int getRecordSize(){
+        return recordSize;
+    }
+
+    /**
+     * Builds a {@link RecordLayout}, adding fields in the order they appear in the record.
+     */
+    public static class Builder{
+
+        private final ByteOrder byteOrder;
+        private final ArrayList<String> names = new ArrayList<>();
+        private final ArrayList<FieldType> types = new ArrayList<>();
+
+        /**
+         *
+         * @param byteOrder Byte order of every field. AVR and ARM Arduino boards are {@link ByteOrder#LITTLE_ENDIAN}
+         */
+        public Builder(ByteOrder byteOrder){
+            this.byteOrder = byteOrder;
+        }
+
+        /**
+         * Appends a field to the record.
+         * @param name Field name
+         * @param type Field type
+         * @return This builder
+         */
+        public Builder addField(String name, FieldType type){
+            names.add(name);
+            types.add(type);
+            return this;
+        }
+
+        /**
+         * Appends fields of the same type named with the given prefix followed by their index, such as an array of channels.
+         * @param prefix Name prefix
+         * @param count Number of fields
+         * @param type Type of every field
+         * @return This builder
+         */
+        public Builder addFields(String prefix, int count, FieldType type){
+            for(int i = 0; i < count; i++) addField(prefix + i, type);
+            return this;
+        }
+
+        /**
+         *
+         * @return New layout
+         * @throws IllegalStateException If no field was added
+         */
+        public RecordLayout build(){
+            if(names.isEmpty()) throw new IllegalStateException("a record layout needs at least one field");
+            return new RecordLayout(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,618 @@
+package amplastudio.csvgenerator.stream.simulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import amplastudio.csvgenerator.stream.record.FieldType;
+import amplastudio.csvgenerator.stream.record.RecordLayout;
+import amplastudio.csvgenerator.stream.transport.LoopbackTransport;
+import amplastudio.csvgenerator.stream.transport.Transport;
+
+/**
+ * <p>Emulates an Arduino streaming readings, for load and soak tests without hardware. Every transport created by
+ * {@link #newTransport()} is a loopback link to the device: once opened, the device writes lines into it at the configured
+ * rate on a thread of its own, with jitter, bursts, random chunk fragmentation and periodic disconnects.</p>
+ * <p>Every line starts with a sequence number that keeps counting across transports, so the receiver can check that no
+ * line was lost, duplicated or reordered. Lines are either CSV text, {@code sequence,millis,ch0,ch1,...\n}, or COBS framed
+ * binary records of the layout returned by {@link #getRecordLayout()}. Use {@link Builder} to create a device:</p>
+ * <pre>
+ * SimulatedDevice device = new SimulatedDevice.Builder()
+ *         .linesPerSecond(1000)
+ *         .chunkSize(1, 64)
+ *         .disconnectEvery(10000)
+ *         .build();
+ * session.startListen(device.newTransport());
+ * </pre>
+ * <p>As a {@link Transport.Factory}, a device also lets a session reconnect after every disconnect.</p>
+ */
+public class SimulatedDevice implements Transport.Factory {
+
+    /**
+     * Encoding of the lines sent.
+     */
+    public enum Format{
+
+        /**
+         * Text lines of comma separated decimal values terminated by a line feed
+         */
+        CSV,
+
+        /**
+         * Binary records of {@link #getRecordLayout()}, little endian, COBS encoded and terminated by a zero byte
+         */
+        COBS_RECORDS
+
+    }
+
+    private final Format format;
+    private final double linesPerSecond;
+    private final int channelCount;
+    private final int jitterMillis;
+    private final int burstLines;
+    private final long burstIntervalMillis;
+    private final int minChunkSize;
+    private final int maxChunkSize;
+    private final long disconnectIntervalMillis;
+    private final long maxLines;
+    private final int pipeCapacity;
+    private final long seed;
+    private final byte[] echoPrefix;
+    private final RecordLayout recordLayout;
+
+    /**
+     * Sequence of the next line sent, only advanced by the link sending.
+     */
+    private volatile long nextSequence = 0;
+
+    /**
+     * Link currently sending, a device sends through one transport at a time.
+     */
+    private volatile Link activeLink = null;
+
+    private volatile long sentLineCount = 0;
+    private volatile long sentByteCount = 0;
+    private volatile long receivedByteCount = 0;
+    private volatile long disconnectCount = 0;
+
+    private SimulatedDevice(Builder builder){
+        format = builder.format;
+        linesPerSecond = builder.linesPerSecond;
+        channelCount = builder.channelCount;
+        jitterMillis = builder.jitterMillis;
+        burstLines = builder.burstLines;
+        burstIntervalMillis = builder.burstIntervalMillis;
+        minChunkSize = builder.minChunkSize;
+        maxChunkSize = builder.maxChunkSize;
+        disconnectIntervalMillis = builder.disconnectIntervalMillis;
+        maxLines = builder.maxLines;
+        pipeCapacity = builder.pipeCapacity;
+        seed = builder.seed;
+        echoPrefix = builder.echoPrefix != null ? builder.echoPrefix.getBytes(Charset.forName("US-ASCII")) : null;
+
+        recordLayout = new RecordLayout.Builder(ByteOrder.LITTLE_ENDIAN)
+                .addField("sequence", FieldType.UINT32)
+                .addField("millis", FieldType.UINT32)
+                .addFields("ch", channelCount, FieldType.INT16)
+                .build();
+    }
+
+    /**
+     * Creates a link to this device. The device starts sending once the transport is opened, and stops when it is closed,
+     * when a disconnect is due or when every line was sent, ending the stream. Opening a new transport closes the previous one.
+     * @return New transport connected to this device
+     */
+    @Override
+    public Transport newTransport(){
+        return new Link();
+    }
+
+    /**
+     * Stops sending and ends the stream of the current transport.
+     */
+    public void stop(){
+        Link link = activeLink;
+        if(link != null) link.close();
+    }
+
+    /**
+     *
+     * @return Layout of the records sent with {@link Format#COBS_RECORDS}: sequence, millis and the channels
+     */
+    public RecordLayout getRecordLayout(){
+        return recordLayout;
+    }
+
+    /**
+     *
+     * @return Encoding of the lines sent
+     */
+    public Format getFormat(){
+        return format;
+    }
+
+    /**
+     *
+     * @return Sequence the next line will carry
+     */
+    public long getNextSequence(){
+        return nextSequence;
+    }
+
+    /**
+     *
+     * @return Number of lines fully written to a transport
+     */
+    public long getSentLineCount(){
+        return sentLineCount;
+    }
+
+    /**
+     *
+     * @return Number of bytes written to transports
+     */
+    public long getSentByteCount(){
+        return sentByteCount;
+    }
+
+    /**
+     *
+     * @return Number of bytes the host sent to the device
+     */
+    public long getReceivedByteCount(){
+        return receivedByteCount;
+    }
+
+    /**
+     *
+     * @return Number of streams ended by a scheduled disconnect
+     */
+    public long getDisconnectCount(){
+        return disconnectCount;
+    }
+
+    /**
+     *
+     * @return True if every line configured with {@link Builder#maxLines(long)} was sent
+     */
+    public boolean isFinished(){
+        return maxLines > 0 && nextSequence >= maxLines;
+    }
+
+    /**
+     * Encodes the line of the given sequence.
+     * @param record Scratch buffer of a record size, for the binary format
+     * @param line Buffer the line is written to
+     * @return Length of the line
+     */
+    private int encodeLine(long sequence, long millis, byte[] record, byte[] line, Random random){
+
+        if(format == Format.CSV){
+
+            StringBuilder text = new StringBuilder(16 + channelCount * 6);
+            text.append(sequence).append(',').append(millis);
+            for(int c = 0; c < channelCount; c++) text.append(',').append(channel(sequence, c, random));
+            text.append('\n');
+
+            int length = text.length();
+            for(int i = 0; i < length; i++) line[i] = (byte) text.charAt(i); /* ASCII only */
+            return length;
+
+        }
+
+        writeLittleEndian(record, 0, sequence, 4);
+        writeLittleEndian(record, 4, millis, 4);
+        for(int c = 0; c < channelCount; c++) writeLittleEndian(record, 8 + c * 2, channel(sequence, c, random), 2);
+
+        return encodeCobs(record, 0, record.length, line);
+
+    }
+
+    /**
+     * Reading of a channel: a slow sine wave per channel with some noise, in the 10 bit range of an analog input.
+     */
+    private static int channel(long sequence, int channel, Random random){
+        return (int) (512 + 400 * Math.sin((sequence + channel * 50) / 100.0)) + random.nextInt(8);
+    }
+
+    private static void writeLittleEndian(byte[] data, int offset, long value, int width){
+        for(int i = 0; i < width; i++) data[offset + i] = (byte) (value >> (8 * i));
+    }
+
+    /**
+     * COBS encodes the data, followed by the zero delimiter.
+     * @param out Buffer of at least length + length / 254 + 2 bytes
+     * @return Length of the encoded frame
+     */
+    private static int encodeCobs(byte[] data, int offset, int length, byte[] out){
+
+        int codeIndex = 0;
+        int position = 1;
+        int code = 1;
+
+        for(int i = offset; i < offset + length; i++){
+
+            if(data[i] == 0){
+                out[codeIndex] = (byte) code;
+                codeIndex = position++;
+                code = 1;
+                continue;
+            }
+
+            out[position++] = data[i];
+
+            if(++code == 0xFF){ /* longest block without zero */
+                out[codeIndex] = (byte) code;
+                codeIndex = position++;
+                code = 1;
+            }
+        }
+
+        out[codeIndex] = (byte) code;
+        out[position++] = 0;
+
+        return position;
+
+    }
+
+    private static boolean startsWith(byte[] data, int length, byte[] prefix){
+
+        if(length < prefix.length) return false;
+        for(int i = 0; i < prefix.length; i++) if(data[i] != prefix[i]) return false;
+        return true;
+
+    }
+
+    /**
+     * Loopback transport with the device thread writing into it.
+     */
+    private class Link implements Transport, Runnable{
+
+        private final LoopbackTransport loopback = new LoopbackTransport(pipeCapacity);
+        private volatile boolean isClosed = false;
+
+        /**
+         * Bytes written on the next write, only used by the device thread.
+         */
+        private byte[] pending = new byte[4096];
+        private int pendingLength = 0;
+
+        /**
+         * Command line being received from the host.
+         */
+        private byte[] command = new byte[256];
+        private int commandLength = 0;
+
+        @Override
+        public void open() throws IOException {
+
+            loopback.open();
+
+            Link previous = activeLink;
+            if(previous != null) previous.close();
+
+            activeLink = this;
+            new Thread(this, "SimulatedDevice").start();
+
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return loopback.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return loopback.getOutputStream();
+        }
+
+        @Override
+        public void close() {
+            isClosed = true;
+            loopback.close();
+        }
+
+        @Override
+        public void run() {
+
+            OutputStream out = loopback.getDeviceOutputStream();
+            InputStream commands = loopback.getDeviceInputStream();
+            Random random = new Random(seed ^ nextSequence);
+
+            byte[] record = new byte[recordLayout.getRecordSize()];
+            byte[] line = new byte[64 + channelCount * 8];
+            int pendingLines = 0;
+            int length;
+
+            long start = System.nanoTime();
+            long firstSequence = nextSequence;
+            long due;
+            long elapsedNanos;
+
+            try{
+
+                while(!isClosed){
+
+                    elapsedNanos = System.nanoTime() - start;
+
+                    if(disconnectIntervalMillis > 0 && elapsedNanos >= TimeUnit.MILLISECONDS.toNanos(disconnectIntervalMillis)){
+                        disconnectCount++;
+                        break;
+                    }
+
+                    due = firstSequence + (long) (elapsedNanos * linesPerSecond / 1e9);
+                    if(burstLines > 0) due += (TimeUnit.NANOSECONDS.toMillis(elapsedNanos) / burstIntervalMillis) * burstLines;
+                    if(maxLines > 0) due = Math.min(due, maxLines);
+
+                    while(nextSequence < due){
+                        length = encodeLine(nextSequence, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), record, line, random);
+                        appendPending(line, 0, length);
+                        pendingLines++;
+                        nextSequence++;
+                    }
+
+                    readCommands(commands);
+
+                    writeFragmented(out, pending, pendingLength, random);
+                    sentLineCount += pendingLines;
+                    pendingLength = 0;
+                    pendingLines = 0;
+
+                    if(maxLines > 0 && nextSequence >= maxLines) break; /* every line sent */
+
+                    Thread.sleep(1 + (jitterMillis > 0 ? random.nextInt(jitterMillis + 1) : 0));
+                }
+
+            }catch(IOException e){
+                /* the host closed the transport, lines not written yet are lost as on a real link */
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+
+            try{
+                out.close(); /* ends the stream read by the host, after the bytes already written */
+            }catch(IOException e){
+                e.printStackTrace();
+            }
+
+            if(activeLink == this) activeLink = null;
+
+        }
+
+        private void appendPending(byte[] data, int offset, int length){
+
+            if(pendingLength + length > pending.length){
+                byte[] grown = new byte[Math.max(pending.length * 2, pendingLength + length)];
+                System.arraycopy(pending, 0, grown, 0, pendingLength);
+                pending = grown;
+            }
+
+            System.arraycopy(data, offset, pending, pendingLength, length);
+            pendingLength += length;
+
+        }
+
+        /**
+         * Reads the commands sent by the host, echoing the lines starting with the echo prefix after the lines already pending.
+         */
+        private void readCommands(InputStream commands) throws IOException {
+
+            byte b;
+
+            while(commands.available() > 0){
+
+                b = (byte) commands.read();
+                receivedByteCount++;
+
+                if(b != '\n'){
+                    if(commandLength == command.length){
+                        byte[] grown = new byte[command.length * 2];
+                        System.arraycopy(command, 0, grown, 0, commandLength);
+                        command = grown;
+                    }
+                    command[commandLength++] = b;
+                    continue;
+                }
+
+                if(echoPrefix != null && startsWith(command, commandLength, echoPrefix)) echo(command, commandLength);
+                commandLength = 0;
+
+            }
+
+        }
+
+        private void echo(byte[] line, int length){
+
+            if(format == Format.CSV){
+                appendPending(line, 0, length);
+                appendPending(new byte[]{'\n'}, 0, 1);
+                return;
+            }
+
+            byte[] frame = new byte[length + length / 254 + 2];
+            appendPending(frame, 0, encodeCobs(line, 0, length, frame));
+
+        }
+
+        /**
+         * Writes the bytes in chunks of random sizes, as a radio link delivers them.
+         */
+        private void writeFragmented(OutputStream out, byte[] data, int length, Random random) throws IOException {
+
+            int offset = 0;
+            int chunk;
+
+            while(offset < length){
+                chunk = minChunkSize + random.nextInt(maxChunkSize - minChunkSize + 1);
+                chunk = Math.min(chunk, length - offset);
+                out.write(data, offset, chunk);
+                offset += chunk;
+                sentByteCount += chunk;
+            }
+
+        }
+
+        @Override
+        public String toString() {
+            return "simulated";
+        }
+
+    }
+
+    /**
+     * Builds a {@link SimulatedDevice}. Defaults to 100 CSV lines per second of 6 channels, in chunks of 1 to 64 bytes,
+     * without jitter, bursts nor disconnects, sending forever.
+     */
+    public static class Builder{
+
+        private Format format = Format.CSV;
+        private double linesPerSecond = 100;
+        private int channelCount = 6;
+        private int jitterMillis = 0;
+        private int burstLines = 0;
+        private long burstIntervalMillis = 0;
+        private int minChunkSize = 1;
+        private int maxChunkSize = 64;
+        private long disconnectIntervalMillis = 0;
+        private long maxLines = 0;
+        private int pipeCapacity = LoopbackTransport.DEFAULT_PIPE_CAPACITY;
+        private long seed = 42;
+        private String echoPrefix = null;
+
+        /**
+         *
+         * @param format Encoding of the lines sent
+         * @return This builder
+         */
+        public Builder format(Format format){
+            this.format = format;
+            return this;
+        }
+
+        /**
+         *
+         * @param linesPerSecond Steady rate of lines sent
+         * @return This builder
+         */
+        public Builder linesPerSecond(double linesPerSecond){
+            if(linesPerSecond < 0) throw new IllegalArgumentException("linesPerSecond must not be negative");
+            this.linesPerSecond = linesPerSecond;
+            return this;
+        }
+
+        /**
+         *
+         * @param channelCount Number of readings after the sequence and millis fields
+         * @return This builder
+         */
+        public Builder channelCount(int channelCount){
+            if(channelCount < 0 || channelCount > 100) throw new IllegalArgumentException("channelCount must be between 0 and 100");
+            this.channelCount = channelCount;
+            return this;
+        }
+
+        /**
+         *
+         * @param jitterMillis Maximum random delay added between writes, in milliseconds
+         * @return This builder
+         */
+        public Builder jitterMillis(int jitterMillis){
+            if(jitterMillis < 0) throw new IllegalArgumentException("jitterMillis must not be negative");
+            this.jitterMillis = jitterMillis;
+            return this;
+        }
+
+        /**
+         * Sends extra lines at once, periodically, on top of the steady rate.
+         * @param lines Number of lines of every burst
+         * @param intervalMillis Time between bursts, in milliseconds
+         * @return This builder
+         */
+        public Builder burst(int lines, long intervalMillis){
+            if(lines < 0 || intervalMillis <= 0) throw new IllegalArgumentException("invalid burst");
+            this.burstLines = lines;
+            this.burstIntervalMillis = intervalMillis;
+            return this;
+        }
+
+        /**
+         * Splits the bytes written in chunks of random sizes, regardless of line boundaries.
+         * @param min Minimum chunk size, in bytes
+         * @param max Maximum chunk size, in bytes
+         * @return This builder
+         */
+        public Builder chunkSize(int min, int max){
+            if(min <= 0 || max < min) throw new IllegalArgumentException("invalid chunk size");
+            this.minChunkSize = min;
+            this.maxChunkSize = max;
+            return this;
+        }
+
+        /**
+         * Ends the stream of every transport after it sent for the given time, as a lost connection would.
+         * @param intervalMillis Time a transport stays connected, in milliseconds, 0 never disconnects
+         * @return This builder
+         */
+        public Builder disconnectEvery(long intervalMillis){
+            if(intervalMillis < 0) throw new IllegalArgumentException("intervalMillis must not be negative");
+            this.disconnectIntervalMillis = intervalMillis;
+            return this;
+        }
+
+        /**
+         *
+         * @param maxLines Number of lines sent before the device ends the stream, 0 sends forever
+         * @return This builder
+         */
+        public Builder maxLines(long maxLines){
+            if(maxLines < 0) throw new IllegalArgumentException("maxLines must not be negative");
+            this.maxLines = maxLines;
+            return this;
+        }
+
+        /**
+         *
+         * @param pipeCapacity Bytes the link buffers before blocking the device, as the socket buffers of a real link
+         * @return This builder
+         */
+        public Builder pipeCapacity(int pipeCapacity){
+            this.pipeCapacity = pipeCapacity;
+            return this;
+        }
+
+        /**
+         *
+         * @param seed Seed of the random jitter, fragmentation and noise, for reproducible runs
+         * @return This builder
+         */
+        public Builder seed(long seed){
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * Sends back the command lines received from the host that start with the given prefix, framed like the other
+         * lines, as a device answering {@link amplastudio.csvgenerator.stream.metrics.LatencyProbe} does.
+         * @param prefix Prefix of the lines echoed, null to echo nothing
+         * @return This builder
+         */
+        public Builder echoLines(String prefix){
+            this.echoPrefix = prefix;
+            return this;
+        }
+
+        /**
+         *
+         * @return New device
+         */
+        public SimulatedDevice build(){
+            return new SimulatedDevice(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,546 @@
+package amplastudio.csvgenerator.stream.store;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Bounded store of received lines. Line bytes are packed one after another into a few large byte arrays (segments)
+ * shared by every line, and an index keeps the position, length and receive time of each line, so a line costs its bytes
+ * plus 20 bytes of index instead of a {@link String} with its object headers and UTF-16 characters.</p>
+ * <p>The store holds at most a given number of lines and bytes. When it is full, the {@link EvictionPolicy} decides whether
+ * the oldest lines are overwritten or the new ones are dropped; both are counted, so memory stays flat however long a
+ * capture runs and the loss is known.</p>
+ * <p>Every line added gets a sequence number, counting from zero, which does not change when older lines are evicted.
+ * Lines from {@link #getFirstSequence()} (inclusive) to {@link #getNextSequence()} (exclusive) are held.</p>
+ * <p>The store is a lock-free single producer ring, in the manner of the LMAX Disruptor: one thread, the one reading the
+ * stream, calls {@link #add(byte[], int, int)} and publishes each line by advancing a cursor, while any number of
+ * {@link Consumer}s read the published lines at their own pace, each with its own sequence, without locks and without
+ * slowing the producer down. A consumer that falls so far behind that its lines are overwritten skips them and counts them
+ * as missed. Lines are read through a buffer owned by each consumer, which is checked after the copy, so a consumer never
+ * sees a line being overwritten. Segments are allocated when first needed.</p>
+ * <p>The check is a sequence lock: the producer moves the first sequence with a compare-and-set before it overwrites the
+ * bytes or the index of the lines it evicts, and a reader copies the line and its index with plain reads, then reads the
+ * first sequence again. A volatile read alone does not keep the plain reads before it from being reordered after it, so
+ * the reader writes a volatile field of its own in between: no read may move after a volatile write, and no volatile read
+ * before a volatile write, so the copy is done when the first sequence is read again.</p>
+ */
+public class LineRingBuffer {
+
+    /**
+     * What happens to a new line when the store is full.
+     */
+    public enum EvictionPolicy{
+
+        /**
+         * The oldest lines are overwritten to make room for the new one, counted by {@link #getOverwrittenCount()}
+         */
+        DROP_OLDEST,
+
+        /**
+         * The new line is dropped, counted by {@link #getDroppedCount()}
+         */
+        DROP_NEWEST
+
+    }
+
+    /**
+     * Default maximum number of lines held.
+     */
+    public static final int DEFAULT_MAX_LINES = 200000;
+
+    /**
+     * Default maximum number of line bytes held.
+     */
+    public static final int DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * Size of the byte arrays lines are packed in. Lines never span two segments, so this is also the maximum line length.
+     */
+    private static final int MAX_SEGMENT_SIZE = 1024 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int maxLines;
+    private final int segmentSize;
+    private final long capacity;
+    private final EvictionPolicy evictionPolicy;
+
+    private final byte[][] segments;
+
+    /**
+     * Absolute byte position of each line, indexed by sequence modulo {@link #maxLines}.
+     * The position modulo {@link #capacity} locates the line in the segments.
+     */
+    private final long[] starts;
+
+    /**
+     * Length of each line, indexed by sequence modulo {@link #maxLines}.
+     */
+    private final int[] lengths;
+
+    /**
+     * Time each line was added, in milliseconds since the epoch, indexed by sequence modulo {@link #maxLines}.
+     */
+    private final long[] timestamps;
+
+    /**
+     * Sequence after the newest published line. Advanced by the producer once a line is fully written.
+     */
+    private final AtomicLong cursor = new AtomicLong(0);
+
+    /**
+     * Sequence of the oldest line held. Advanced by the producer before a line is overwritten, and by {@link #clear()}.
+     */
+    private final AtomicLong firstSequence = new AtomicLong(0);
+
+    /**
+     * Sequence of the next line added, only accessed by the producer.
+     */
+    private long nextSequence = 0;
+
+    /**
+     * Absolute byte position after the newest line, only accessed by the producer.
+     */
+    private long writePosition = 0;
+
+    /**
+     * Written by {@link #get(long)} and {@link #getTimestamp(long)} between the copy and its check, so the copy cannot be
+     * reordered after the check.
+     */
+    private volatile long readFence = 0;
+
+    /* written by the producer only */
+    private volatile long overwrittenCount = 0;
+    private volatile long droppedCount = 0;
+
+    public LineRingBuffer(){
+        this(DEFAULT_MAX_LINES, DEFAULT_MAX_BYTES, EvictionPolicy.DROP_OLDEST);
+    }
+
+    /**
+     *
+     * @param maxLines Maximum number of lines held
+     * @param maxBytes Maximum number of line bytes held, rounded up to a whole number of segments.
+     *                 Lines longer than the smallest of this value and 1 MiB are dropped.
+     * @param evictionPolicy What happens to a new line when the store is full
+     */
+    public LineRingBuffer(int maxLines, int maxBytes, EvictionPolicy evictionPolicy){
+
+        if(maxLines <= 0 || maxBytes <= 0) throw new IllegalArgumentException("maxLines and maxBytes must be positive");
+
+        this.maxLines = maxLines;
+        this.segmentSize = Math.min(maxBytes, MAX_SEGMENT_SIZE);
+        this.segments = new byte[(maxBytes + segmentSize - 1) / segmentSize][];
+        this.capacity = (long) segments.length * segmentSize;
+        this.evictionPolicy = evictionPolicy;
+        this.starts = new long[maxLines];
+        this.lengths = new int[maxLines];
+        this.timestamps = new long[maxLines];
+    }
+
+    /**
+     * Copies a line into the store and publishes it, stamped with the current time, evicting the oldest lines if needed.
+     * Must only be called by a single thread, the producer.
+     * @param line Array holding the line
+     * @param offset Index of the first byte of the line
+     * @param length Number of bytes of the line
+     * @return Sequence of the line, or -1 if it was dropped
+     */
+    public long add(byte[] line, int offset, int length){
+        return add(line, offset, length, System.currentTimeMillis());
+    }
+
+    /**
+     * Copies a line into the store and publishes it, evicting the oldest lines if needed.
+     * Must only be called by a single thread, the producer.
+     * @param line Array holding the line
+     * @param offset Index of the first byte of the line
+     * @param length Number of bytes of the line
+     * @param timestampMillis Time the line was received, in milliseconds since the epoch
+     * @return Sequence of the line, or -1 if it was dropped
+     */
+    public long add(byte[] line, int offset, int length, long timestampMillis){
+
+        if(length > segmentSize){
+            droppedCount++;
+            return -1;
+        }
+
+        long position = writePosition;
+        int segmentOffset = (int) (position % segmentSize);
+
+        /* lines never span two segments: skip the end of the current one if the line does not fit */
+        if(segmentOffset + length > segmentSize){
+            position += segmentSize - segmentOffset;
+            segmentOffset = 0;
+        }
+
+        long first = firstSequence.get();
+        long newFirst = first;
+
+        while(newFirst < nextSequence
+                && (nextSequence - newFirst >= maxLines || position + length - starts[index(newFirst)] > capacity)){
+
+            if(evictionPolicy == EvictionPolicy.DROP_NEWEST){
+                droppedCount++;
+                return -1;
+            }
+
+            newFirst++;
+        }
+
+        /* consumers must see the lines as evicted before their bytes are overwritten */
+        if(newFirst > first) overwrittenCount += advanceFirstSequence(newFirst);
+
+        int segment = (int) ((position / segmentSize) % segments.length);
+        if(segments[segment] == null) segments[segment] = new byte[segmentSize];
+
+        System.arraycopy(line, offset, segments[segment], segmentOffset, length);
+
+        int index = index(nextSequence);
+        starts[index] = position;
+        lengths[index] = length;
+        timestamps[index] = timestampMillis;
+        writePosition = position + length;
+
+        cursor.lazySet(++nextSequence); /* publishes the line */
+
+        return nextSequence - 1;
+
+    }
+
+    /**
+     * Encodes a line as UTF-8 and adds it to the store. Must only be called by the producer.
+     * @param line Line to add
+     * @return Sequence of the line, or -1 if it was dropped
+     * @see #add(byte[], int, int)
+     */
+    public long add(String line){
+        byte[] bytes = line.getBytes(UTF_8);
+        return add(bytes, 0, bytes.length);
+    }
+
+    /**
+     *
+     * @param sequence Sequence of the line
+     * @return Line decoded from UTF-8, or null if the line is not held
+     */
+    public String get(long sequence){
+
+        if(sequence >= cursor.get() || sequence < firstSequence.get()) return null;
+
+        int index = index(sequence);
+        long start = starts[index];
+        int length = lengths[index];
+
+        if(!isInBounds(start, length)) return null; /* index overwritten while being read */
+
+        byte[] line = new byte[length];
+        System.arraycopy(segments[segmentOf(start)], (int) (start % segmentSize), line, 0, length);
+
+        readFence = sequence;
+
+        return sequence < firstSequence.get() ? null : new String(line, UTF_8);
+
+    }
+
+    /**
+     *
+     * @param sequence Sequence of the line
+     * @return Time the line was added, in milliseconds since the epoch, or -1 if the line is not held
+     */
+    public long getTimestamp(long sequence){
+
+        if(sequence >= cursor.get() || sequence < firstSequence.get()) return -1;
+
+        long timestamp = timestamps[index(sequence)];
+
+        readFence = sequence;
+
+        return sequence < firstSequence.get() ? -1 : timestamp;
+
+    }
+
+    /**
+     * Creates a consumer that reads the lines from the oldest line held.
+     * @return New consumer
+     */
+    public Consumer newConsumer(){
+        return new Consumer(firstSequence.get());
+    }
+
+    /**
+     *
+     * @return Number of lines held
+     */
+    public int size(){
+        long end = cursor.get();
+        return (int) Math.max(0, end - firstSequence.get());
+    }
+
+    /**
+     *
+     * @return True if no line is held
+     */
+    public boolean isEmpty(){
+        return size() == 0;
+    }
+
+    /**
+     *
+     * @return Sequence of the oldest line held
+     */
+    public long getFirstSequence(){
+        return firstSequence.get();
+    }
+
+    /**
+     *
+     * @return Sequence the next line added will get, which is also the number of lines ever added and not dropped
+     */
+    public long getNextSequence(){
+        return cursor.get();
+    }
+
+    /**
+     *
+     * @return Number of lines overwritten to make room for newer ones
+     * @see EvictionPolicy#DROP_OLDEST
+     */
+    public long getOverwrittenCount(){
+        return overwrittenCount;
+    }
+
+    /**
+     *
+     * @return Number of lines dropped because the store was full or because they were too long
+     * @see EvictionPolicy#DROP_NEWEST
+     */
+    public long getDroppedCount(){
+        return droppedCount;
+    }
+
+    /**
+     *
+     * @return Maximum number of lines held
+     */
+    public int getMaxLines(){
+        return maxLines;
+    }
+
+    /**
+     *
+     * @return Maximum number of line bytes held
+     */
+    public long getMaxBytes(){
+        return capacity;
+    }
+
+    /**
+     *
+     * @return What happens to a new line when the store is full
+     */
+    public EvictionPolicy getEvictionPolicy(){
+        return evictionPolicy;
+    }
+
+    /**
+     * Removes every line published, keeping the allocated segments. Sequences keep counting from where they were.
+     * May be called from any thread.
+     */
+    public void clear(){
+        advanceFirstSequence(cursor.get());
+    }
+
+    /**
+     * Moves the first sequence forward, never backwards, since both the producer and {@link #clear()} move it.
+     * @return Number of lines the first sequence moved over
+     */
+    private long advanceFirstSequence(long sequence){
+
+        long current;
+
+        do{
+            current = firstSequence.get();
+            if(current >= sequence) return 0;
+        }while(!firstSequence.compareAndSet(current, sequence));
+
+        return sequence - current;
+
+    }
+
+    private int index(long sequence){
+        return (int) (sequence % maxLines);
+    }
+
+    /**
+     * Tells whether an index entry read while it may be overwritten locates a line within a segment, so the copy cannot
+     * fail before the entry is checked. A 64-bit start may even be read half written.
+     */
+    private boolean isInBounds(long start, int length){
+        return start >= 0 && length >= 0 && start % segmentSize + length <= segmentSize && segments[segmentOf(start)] != null;
+    }
+
+    private int segmentOf(long start){
+        return (int) ((start / segmentSize) % segments.length);
+    }
+
+    /**
+     * Receives the lines read by a {@link Consumer}.
+     */
+    public interface LineHandler{
+
+        /**
+         * Called for every line read. The array is reused for the next line, so its content must be consumed or copied
+         * before this method returns.
+         * @param sequence Sequence of the line
+         * @param line Array holding the line
+         * @param offset Index of the first byte of the line
+         * @param length Number of bytes of the line
+         */
+        void onLine(long sequence, byte[] line, int offset, int length);
+
+    }
+
+    /**
+     * <p>Reads the lines of the store in order, from its own sequence, without locks. Each consumer must be used by a single
+     * thread, but different consumers may run on different threads, such as the main thread and a disk writer.</p>
+     */
+    public class Consumer{
+
+        /**
+         * Sequence of the next line read.
+         */
+        private volatile long sequence;
+
+        private volatile long missedCount = 0;
+
+        /**
+         * Time the line being handed over was added.
+         */
+        private long lineTimestamp = 0;
+
+        /**
+         * Lines are copied here and checked before being handed over.
+         */
+        private byte[] buffer = new byte[256];
+
+        /**
+         * Written between the copy of a line and its check, so the copy cannot be reordered after the check.
+         */
+        private volatile long readFence = 0;
+
+        private Consumer(long sequence){
+            this.sequence = sequence;
+        }
+
+        /**
+         * Reads the lines published since the previous call.
+         * @param handler Handler that receives the lines
+         * @param maxLines Maximum number of lines read
+         * @return Number of lines read
+         */
+        public int poll(LineHandler handler, int maxLines){
+            return poll(handler, maxLines, Long.MAX_VALUE);
+        }
+
+        /**
+         * Reads the lines published since the previous call, up to the given sequence.
+         * @param handler Handler that receives the lines
+         * @param maxLines Maximum number of lines read
+         * @param endSequence Sequence where reading stops, exclusive
+         * @return Number of lines read
+         */
+        public int poll(LineHandler handler, int maxLines, long endSequence){
+
+            long end = Math.min(cursor.get(), endSequence);
+            long next = sequence;
+            long first;
+            long start;
+            int length;
+            boolean isInBounds;
+            int count = 0;
+
+            while(next < end && count < maxLines){
+
+                first = firstSequence.get();
+
+                if(next < first){ /* overwritten before being read */
+                    missedCount += Math.min(first, end) - next;
+                    next = Math.min(first, end);
+                    continue;
+                }
+
+                int index = index(next);
+                start = starts[index];
+                length = lengths[index];
+                isInBounds = isInBounds(start, length);
+
+                if(isInBounds){
+                    if(buffer.length < length) buffer = new byte[Math.max(length, buffer.length * 2)];
+                    System.arraycopy(segments[segmentOf(start)], (int) (start % segmentSize), buffer, 0, length);
+                }
+
+                lineTimestamp = timestamps[index];
+
+                readFence = next; /* the reads above are done before the first sequence is read again */
+
+                if(next < firstSequence.get() || !isInBounds){ /* overwritten while being read */
+                    missedCount++;
+                    next++;
+                    continue;
+                }
+
+                handler.onLine(next, buffer, 0, length);
+                next++;
+                count++;
+            }
+
+            sequence = next;
+            return count;
+
+        }
+
+        /**
+         * Tells when the line being handed over was received. Only valid within {@link LineHandler#onLine(long, byte[], int, int)}.
+         * @return Time the line was added to the store, in milliseconds since the epoch
+         */
+        public long getLineTimestamp(){
+            return lineTimestamp;
+        }
+
+        /**
+         *
+         * @return Sequence of the next line read
+         */
+        public long getSequence(){
+            return sequence;
+        }
+
+        /**
+         * Moves the consumer to the given sequence.
+         * @param sequence Sequence of the next line read
+         */
+        public void seek(long sequence){
+            this.sequence = sequence;
+        }
+
+        /**
+         *
+         * @return Number of lines published but not read yet
+         */
+        public long getLag(){
+            return Math.max(0, cursor.get() - sequence);
+        }
+
+        /**
+         *
+         * @return Number of lines overwritten before this consumer could read them
+         */
+        public long getMissedCount(){
+            return missedCount;
+        }
+
+    }
+
+}
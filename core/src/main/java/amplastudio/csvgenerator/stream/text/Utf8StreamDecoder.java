@@ -0,0 +1,162 @@
+package amplastudio.csvgenerator.stream.text;
+
+/**
+ * <p>Decodes UTF-8 bytes to characters as they arrive in chunks, keeping the bytes of a character split between two chunks
+ * until its last byte arrives, so characters straddling two reads are not corrupted.</p>
+ * <p>Runs of ASCII, the bulk of a CSV stream, are copied by a loop that only tests the sign of each byte; other bytes go
+ * through a small state machine. Malformed input, such as overlong forms, surrogates or truncated
+ * sequences, is replaced by {@link #REPLACEMENT}, one per maximal invalid subpart as Unicode recommends. This is what
+ * {@link java.nio.charset.CharsetDecoder} does, except for encoded surrogates, which it replaces by a single character.</p>
+ * <p>A decoder keeps the state of a single stream, and is not thread-safe.</p>
+ */
+public class Utf8StreamDecoder {
+
+    /**
+     * Character written in place of malformed input.
+     */
+    public static final char REPLACEMENT = '\uFFFD';
+
+    /**
+     * Bits of the character being decoded.
+     */
+    private int codePoint = 0;
+
+    /**
+     * Continuation bytes still expected by the character being decoded, 0 between characters.
+     */
+    private int needed = 0;
+
+    /**
+     * Range of the next continuation byte, narrower than 0x80..0xBF after some lead bytes to reject overlong forms,
+     * surrogates and code points above U+10FFFF.
+     */
+    private int lower = 0x80;
+    private int upper = 0xBF;
+
+    /**
+     *
+     * @param byteCount Number of bytes decoded by a call
+     * @return Number of characters a call of {@link #decode(byte[], int, int, char[], int)} or {@link #flush(char[], int)}
+     * may write at most
+     */
+    public static int maxCharCount(int byteCount){
+        return byteCount + 1;
+    }
+
+    /**
+     * Decodes a chunk of the stream. The bytes of a character not complete at the end of the chunk are kept for the next call.
+     * @param source Array holding the chunk
+     * @param offset Index of the first byte of the chunk
+     * @param length Number of bytes of the chunk
+     * @param destination Array receiving the characters, with room for {@link #maxCharCount(int)} characters
+     * @param destinationOffset Index where the first character is written
+     * @return Number of characters written
+     */
+    public int decode(byte[] source, int offset, int length, char[] destination, int destinationOffset){
+
+        int i = offset;
+        int end = offset + length;
+        int j = destinationOffset;
+        int b;
+
+        while(i < end){
+
+            if(needed == 0){
+
+                /* ASCII fast path, a tight loop the compiler unrolls; checking blocks of bytes first measured slower */
+                while(i < end){
+                    b = source[i];
+                    if(b < 0) break;
+                    destination[j++] = (char) b;
+                    i++;
+                }
+
+                if(i == end) break;
+
+                b = source[i++] & 0xFF;
+
+                if(b >= 0xC2 && b <= 0xDF){
+                    codePoint = b & 0x1F;
+                    needed = 1;
+                }else if(b >= 0xE0 && b <= 0xEF){
+                    codePoint = b & 0x0F;
+                    needed = 2;
+                    if(b == 0xE0) lower = 0xA0; /* overlong */
+                    else if(b == 0xED) upper = 0x9F; /* surrogates */
+                }else if(b >= 0xF0 && b <= 0xF4){
+                    codePoint = b & 0x07;
+                    needed = 3;
+                    if(b == 0xF0) lower = 0x90; /* overlong */
+                    else if(b == 0xF4) upper = 0x8F; /* above U+10FFFF */
+                }else{
+                    destination[j++] = REPLACEMENT; /* continuation byte without lead, or invalid lead */
+                }
+
+                continue;
+            }
+
+            b = source[i] & 0xFF;
+
+            if(b < lower || b > upper){ /* truncated, the byte starts over as the start of a character */
+                destination[j++] = REPLACEMENT;
+                reset();
+                continue;
+            }
+
+            i++;
+            codePoint = (codePoint << 6) | (b & 0x3F);
+            lower = 0x80;
+            upper = 0xBF;
+
+            if(--needed > 0) continue;
+
+            if(codePoint < 0x10000){
+                destination[j++] = (char) codePoint;
+            }else{ /* surrogate pair, Character.highSurrogate() needs a newer Android */
+                destination[j++] = (char) (0xD7C0 + (codePoint >>> 10));
+                destination[j++] = (char) (0xDC00 + (codePoint & 0x3FF));
+            }
+
+            codePoint = 0;
+        }
+
+        return j - destinationOffset;
+
+    }
+
+    /**
+     * Ends the stream: a character left incomplete by the last chunk is written as {@link #REPLACEMENT}.
+     * The decoder is then ready for a new stream.
+     * @param destination Array receiving the characters, with room for {@link #maxCharCount(int)} of 0 characters
+     * @param destinationOffset Index where the first character is written
+     * @return Number of characters written
+     */
+    public int flush(char[] destination, int destinationOffset){
+
+        if(needed == 0) return 0;
+
+        destination[destinationOffset] = REPLACEMENT;
+        reset();
+        return 1;
+
+    }
+
+    /**
+     * Drops a character left incomplete, without writing it.
+     */
+    public void reset(){
+        codePoint = 0;
+        needed = 0;
+        lower = 0x80;
+        upper = 0xBF;
+    }
+
+    /**
+     *
+     * @return True if bytes of a character left incomplete by the last chunk are kept
+     */
+    public boolean hasPending(){
+        return needed > 0;
+    }
+
+}
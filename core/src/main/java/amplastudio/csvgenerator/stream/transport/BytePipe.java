@@ -0,0 +1,157 @@
+package amplastudio.csvgenerator.stream.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Bounded in-memory byte pipe between a writing thread and a reading thread. Unlike {@link java.io.PipedInputStream},
+ * a waiting thread wakes as soon as the other side acts, instead of polling every second, and reads return every byte
+ * available at once.
+ */
+class BytePipe {
+
+    private final byte[] buffer;
+    private int readPosition = 0;
+    private int count = 0;
+    private boolean isClosed = false;
+
+    private final InputStream source = new InputStream() {
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return BytePipe.this.read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return BytePipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return BytePipe.this.available();
+        }
+
+        @Override
+        public void close() {
+            BytePipe.this.close();
+        }
+
+    };
+
+    private final OutputStream sink = new OutputStream() {
+
+        @Override
+        public void write(int b) throws IOException {
+            BytePipe.this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            BytePipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            BytePipe.this.close();
+        }
+
+    };
+
+    BytePipe(int capacity){
+        if(capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        buffer = new byte[capacity];
+    }
+
+    /**
+     *
+     * @return Stream reading the bytes written to {@link #sink()}
+     */
+    InputStream source(){
+        return source;
+    }
+
+    /**
+     *
+     * @return Stream writing the bytes read from {@link #source()}
+     */
+    OutputStream sink(){
+        return sink;
+    }
+
+    /**
+     * Ends the pipe. The bytes already written can still be read, then reads return -1, while writes fail right away.
+     */
+    synchronized void close(){
+        isClosed = true;
+        notifyAll();
+    }
+
+    private synchronized int available(){
+        return count;
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+
+        if(len == 0) return 0;
+
+        while(count == 0 && !isClosed) await();
+
+        if(count == 0) return -1; /* closed and drained */
+
+        int n = Math.min(len, count);
+        int first = Math.min(n, buffer.length - readPosition);
+
+        System.arraycopy(buffer, readPosition, b, off, first);
+        System.arraycopy(buffer, 0, b, off + first, n - first);
+
+        readPosition = (readPosition + n) % buffer.length;
+        count -= n;
+        notifyAll();
+
+        return n;
+
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+
+        int n;
+        int writePosition;
+        int first;
+
+        while(len > 0){
+
+            while(count == buffer.length && !isClosed) await();
+
+            if(isClosed) throw new IOException("pipe closed");
+
+            n = Math.min(len, buffer.length - count);
+            writePosition = (readPosition + count) % buffer.length;
+            first = Math.min(n, buffer.length - writePosition);
+
+            System.arraycopy(b, off, buffer, writePosition, first);
+            System.arraycopy(b, off + first, buffer, 0, n - first);
+
+            count += n;
+            off += n;
+            len -= n;
+            notifyAll();
+        }
+
+    }
+
+    private void await() throws InterruptedIOException {
+
+        try{
+            wait();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting on pipe");
+        }
+
+    }
+
+}
@@ -0,0 +1,82 @@
+package amplastudio.csvgenerator.stream.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * <p>In-memory transport connected to a device emulated by the caller: bytes written to {@link #getDeviceOutputStream()}
+ * are read from {@link #getInputStream()}, and bytes written to {@link #getOutputStream()} are read from
+ * {@link #getDeviceInputStream()}. Lets framing, decoding and storage be measured and tested without a radio.</p>
+ * <p>The device side can be used before the transport is opened; its bytes wait in the pipe, which blocks the device once
+ * it holds the given capacity, as a real link would.</p>
+ */
+public class LoopbackTransport implements Transport {
+
+    /**
+     * Default number of bytes each direction holds before blocking its writer.
+     */
+    public static final int DEFAULT_PIPE_CAPACITY = 64 * 1024;
+
+    private final BytePipe fromDevice;
+    private final BytePipe toDevice;
+
+    private volatile boolean isClosed = false;
+
+    public LoopbackTransport(){
+        this(DEFAULT_PIPE_CAPACITY);
+    }
+
+    /**
+     *
+     * @param pipeCapacity Number of bytes each direction holds before blocking its writer
+     */
+    public LoopbackTransport(int pipeCapacity){
+        fromDevice = new BytePipe(pipeCapacity);
+        toDevice = new BytePipe(pipeCapacity);
+    }
+
+    @Override
+    public void open() throws IOException {
+        if(isClosed) throw new IOException("transport closed");
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return fromDevice.source();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return toDevice.sink();
+    }
+
+    /**
+     *
+     * @return Stream where the emulated device writes the bytes it sends. Closing it ends the stream read by the host
+     */
+    public OutputStream getDeviceOutputStream() {
+        return fromDevice.sink();
+    }
+
+    /**
+     *
+     * @return Stream where the emulated device reads the bytes sent to it
+     */
+    public InputStream getDeviceInputStream() {
+        return toDevice.source();
+    }
+
+    @Override
+    public void close() {
+        isClosed = true;
+        fromDevice.close();
+        toDevice.close();
+    }
+
+    @Override
+    public String toString() {
+        return "loopback";
+    }
+
+}
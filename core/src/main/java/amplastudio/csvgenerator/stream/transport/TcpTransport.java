@@ -0,0 +1,103 @@
+package amplastudio.csvgenerator.stream.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Transport over a TCP socket, such as a TCP to serial bridge (ser2net, ESP8266/ESP32 serial servers) on the bench,
+ * or a local server when measuring the data path on a desktop machine.
+ */
+public class TcpTransport implements Transport {
+
+    /**
+     * Default maximum time, in milliseconds, waited for the connection to be made.
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private final String host;
+    private final int port;
+    private final int connectTimeoutMillis;
+
+    private final Socket socket = new Socket();
+    private volatile boolean isClosed = false;
+
+    private InputStream inputStream;
+    private OutputStream outputStream;
+
+    public TcpTransport(String host, int port){
+        this(host, port, DEFAULT_CONNECT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     *
+     * @param host Host name or address of the device
+     * @param port TCP port of the device
+     * @param connectTimeoutMillis Maximum time, in milliseconds, waited for the connection to be made, 0 waits forever
+     */
+    public TcpTransport(String host, int port, int connectTimeoutMillis){
+        this.host = host;
+        this.port = port;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    @Override
+    public void open() throws IOException {
+
+        if(isClosed) throw new IOException("transport closed");
+
+        socket.setTcpNoDelay(true); /* commands are small and already coalesced by the write queue */
+        socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+
+        inputStream = socket.getInputStream();
+        outputStream = socket.getOutputStream();
+
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public void close() {
+
+        isClosed = true;
+
+        try{
+            socket.close();
+        }catch(IOException e){
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     *
+     * @return Host name or address of the device
+     */
+    public String getHost(){
+        return host;
+    }
+
+    /**
+     *
+     * @return TCP port of the device
+     */
+    public int getPort(){
+        return port;
+    }
+
+    @Override
+    public String toString() {
+        return "tcp://" + host + ":" + port;
+    }
+
+}
@@ -0,0 +1,54 @@
+package amplastudio.csvgenerator.stream.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * <p>Byte stream connection to a device, such as a bluetooth RFCOMM socket, a TCP socket to a serial bridge or an
+ * in-memory {@link LoopbackTransport}. A {@link amplastudio.csvgenerator.stream.CaptureSession} reads and writes any
+ * transport the same way.</p>
+ * <p>A transport is opened once; create a new instance to connect again, such as with a {@link Factory}.</p>
+ * @see TcpTransport
+ * @see LoopbackTransport
+ */
+public interface Transport {
+
+    /**
+     * Connects to the device, blocking until the connection is made.
+     * @throws IOException If the connection failed or the transport was closed meanwhile
+     */
+    void open() throws IOException;
+
+    /**
+     *
+     * @return Stream of the bytes sent by the device, valid once {@link #open()} returned
+     */
+    InputStream getInputStream();
+
+    /**
+     *
+     * @return Stream of the bytes sent to the device, valid once {@link #open()} returned
+     */
+    OutputStream getOutputStream();
+
+    /**
+     * Closes the connection, unblocking {@link #open()} and any pending read or write. May be called from any thread,
+     * more than once.
+     */
+    void close();
+
+    /**
+     * Creates the transports of successive connections to the same device, used to connect again after a transport was lost.
+     */
+    interface Factory{
+
+        /**
+         *
+         * @return New transport, not opened yet
+         */
+        Transport newTransport();
+
+    }
+
+}
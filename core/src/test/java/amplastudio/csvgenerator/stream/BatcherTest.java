@@ -0,0 +1,73 @@
+package amplastudio.csvgenerator.stream;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BatcherTest {
+
+    @Test
+    public void requestsDelayedFlushForFirstItemAndImmediateFlushWhenFull() {
+        RecordingScheduler scheduler = new RecordingScheduler();
+        Batcher<String> batcher = new Batcher<>(3, 40, scheduler);
+
+        batcher.add("a");
+        batcher.add("b");
+        assertEquals(1, scheduler.delays.size());
+        assertEquals(40L, (long) scheduler.delays.get(0));
+
+        batcher.add("c");
+        batcher.add("d");
+        assertEquals(2, scheduler.delays.size());
+        assertEquals(0L, (long) scheduler.delays.get(1));
+
+        List<String> target = new ArrayList<>();
+        assertEquals(4, batcher.drainTo(target));
+        assertEquals("[a, b, c, d]", target.toString());
+        assertEquals(0, batcher.getPendingCount());
+
+        batcher.add("e");
+        assertEquals(3, scheduler.delays.size());
+        assertEquals(40L, (long) scheduler.delays.get(2));
+    }
+
+    @Test
+    public void countsNullItemsWithoutHoldingThem() {
+        Batcher<String> batcher = new Batcher<>(10, 0, new RecordingScheduler());
+
+        batcher.add(null);
+        batcher.add(null);
+
+        List<String> target = new ArrayList<>();
+        assertEquals(2, batcher.drainTo(target));
+        assertTrue(target.isEmpty());
+        assertEquals(0, batcher.drainTo(null));
+    }
+
+    @Test
+    public void measuresHowLongTheOldestItemWaited() throws Exception {
+        Batcher<String> batcher = new Batcher<>(10, 0, new RecordingScheduler());
+        assertEquals(0, batcher.getPendingNanos());
+
+        batcher.add("a");
+        Thread.sleep(5);
+        batcher.add("b");
+
+        assertTrue(batcher.getPendingNanos() >= 5000000);
+        batcher.drainTo(null);
+        assertEquals(0, batcher.getPendingNanos());
+    }
+
+    private static class RecordingScheduler implements Batcher.FlushScheduler {
+        final List<Long> delays = new ArrayList<>();
+
+        @Override
+        public void scheduleFlush(long delayMillis) {
+            delays.add(delayMillis);
+        }
+    }
+
+}
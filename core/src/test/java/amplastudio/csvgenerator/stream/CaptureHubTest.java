@@ -0,0 +1,119 @@
+package amplastudio.csvgenerator.stream;
+
+import org.junit.Test;
+
+import amplastudio.csvgenerator.stream.framing.DelimiterFrameDecoder;
+import amplastudio.csvgenerator.stream.simulator.SimulatedDevice;
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
+
+import static org.junit.Assert.*;
+
+public class CaptureHubTest {
+
+    @Test(timeout = 10000)
+    public void capturesDevicesConcurrentlyIntoTheirOwnStores() throws Exception {
+        CaptureHub hub = new CaptureHub(4);
+
+        for(int i = 0; i < 4; i++){
+            SimulatedDevice device = new SimulatedDevice.Builder()
+                    .linesPerSecond(10000)
+                    .chunkSize(1, 32)
+                    .maxLines(2000)
+                    .seed(i)
+                    .build();
+            hub.addDevice("node" + i, device, DelimiterFrameDecoder.lineFeed(), new LineRingBuffer(), null);
+        }
+
+        hub.startAll();
+
+        for(CaptureHub.Device device : hub.getDevices()) assertTrue(device.getSession().awaitClosed(5000));
+
+        for(CaptureHub.Device device : hub.getDevices()){
+            LineRingBuffer lines = device.getSession().getHeldData();
+            assertEquals(2000, lines.size());
+            for(int i = 0; i < 2000; i++) assertTrue(lines.get(i).startsWith(i + ","));
+            assertEquals(2000, device.getMetrics().sample().getStoredFrameCount());
+        }
+
+        hub.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void droppedDeviceDoesNotStopTheOthers() throws Exception {
+        CaptureHub hub = new CaptureHub(3);
+        SimulatedDevice[] devices = new SimulatedDevice[3];
+
+        for(int i = 0; i < devices.length; i++){
+            devices[i] = new SimulatedDevice.Builder().linesPerSecond(1000).seed(i).build();
+            hub.addDevice("node" + i, devices[i], DelimiterFrameDecoder.lineFeed(), new LineRingBuffer(), null);
+        }
+
+        hub.startAll();
+        for(CaptureHub.Device device : hub.getDevices()) while(device.getSession().getHeldData().size() == 0) Thread.sleep(1);
+
+        /* the link to node1 drops */
+        devices[1].stop();
+        assertSame(hub.getDevice("node1"), hub.onConnectionLost("node1"));
+        assertNull(hub.onConnectionLost("unknown"));
+
+        CaptureHub.Device dropped = hub.getDevice("node1");
+        assertTrue(dropped.getSession().awaitClosed(5000));
+
+        for(String name : new String[]{"node0", "node2"}){
+            CaptureHub.Device device = hub.getDevice(name);
+            long held = device.getSession().getHeldData().getNextSequence();
+            while(device.getSession().getHeldData().getNextSequence() == held) Thread.sleep(1);
+            assertTrue(device.getSession().isListening());
+        }
+
+        hub.shutdown();
+    }
+
+    @Test
+    public void boundsTheNumberOfDevices() {
+        CaptureHub hub = new CaptureHub(2);
+        SimulatedDevice device = new SimulatedDevice.Builder().build();
+
+        hub.addDevice("a", device, DelimiterFrameDecoder.lineFeed(), new LineRingBuffer(), null);
+
+        try{
+            hub.addDevice("a", device, DelimiterFrameDecoder.lineFeed(), new LineRingBuffer(), null);
+            fail("duplicate name");
+        }catch(IllegalStateException e){
+            /* expected */
+        }
+
+        hub.addDevice("b", device, DelimiterFrameDecoder.lineFeed(), new LineRingBuffer(), null);
+
+        try{
+            hub.addDevice("c", device, DelimiterFrameDecoder.lineFeed(), new LineRingBuffer(), null);
+            fail("hub full");
+        }catch(IllegalStateException e){
+            /* expected */
+        }
+
+        assertNotNull(hub.removeDevice("a"));
+        assertNull(hub.getDevice("a"));
+        hub.addDevice("c", device, DelimiterFrameDecoder.lineFeed(), new LineRingBuffer(), null);
+        assertEquals("b", hub.getDevices().get(0).getName());
+        assertEquals(2, hub.getDeviceCount());
+
+        hub.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void removingADeviceStopsItsCapture() throws Exception {
+        CaptureHub hub = new CaptureHub(1);
+        CaptureHub.Device device = hub.addDevice("a", new SimulatedDevice.Builder().build(),
+                DelimiterFrameDecoder.lineFeed(), new LineRingBuffer(), new ReconnectPolicy());
+
+        device.start();
+        while(!device.getSession().isOpen()) Thread.sleep(1);
+
+        hub.removeDevice("a");
+        assertTrue(device.getSession().awaitClosed(5000));
+
+        hub.shutdown();
+    }
+
+}
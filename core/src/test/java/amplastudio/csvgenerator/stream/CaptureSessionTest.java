@@ -0,0 +1,289 @@
+package amplastudio.csvgenerator.stream;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteOrder;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import amplastudio.csvgenerator.stream.framing.CobsFrameDecoder;
+import amplastudio.csvgenerator.stream.framing.DelimiterFrameDecoder;
+import amplastudio.csvgenerator.stream.record.FieldType;
+import amplastudio.csvgenerator.stream.record.RecordColumns;
+import amplastudio.csvgenerator.stream.record.RecordLayout;
+import amplastudio.csvgenerator.stream.simulator.SimulatedDevice;
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
+import amplastudio.csvgenerator.stream.transport.LoopbackTransport;
+import amplastudio.csvgenerator.stream.transport.TcpTransport;
+import amplastudio.csvgenerator.stream.transport.Transport;
+
+import static org.junit.Assert.*;
+
+public class CaptureSessionTest {
+
+    @Test(timeout = 5000)
+    public void capturesLinesFromLoopback() throws Exception {
+        LineRingBuffer lines = new LineRingBuffer();
+        CaptureSession session = new CaptureSession(DelimiterFrameDecoder.lineFeed(), lines);
+        RecordingListener listener = new RecordingListener();
+        session.setListener(listener);
+
+        LoopbackTransport transport = new LoopbackTransport();
+        session.startListen(transport);
+        assertTrue(listener.opened.await(5, TimeUnit.SECONDS));
+
+        OutputStream device = transport.getDeviceOutputStream();
+        device.write("1,2\n3,".getBytes());
+        device.write("4\n".getBytes());
+        device.close();
+
+        assertTrue(session.awaitClosed(5000));
+        assertTrue(listener.closed.await(5, TimeUnit.SECONDS));
+        assertNull(listener.cause);
+        assertFalse(session.isListening());
+
+        assertEquals(2, lines.size());
+        assertEquals("1,2", lines.get(0));
+        assertEquals("3,4", lines.get(1));
+        assertEquals(2, listener.storedCount);
+        assertEquals(8, session.getReceivedByteCount());
+    }
+
+    @Test(timeout = 5000)
+    public void decodesRecordsAndSendsCommands() throws Exception {
+        RecordColumns records = new RecordColumns(new RecordLayout.Builder(ByteOrder.LITTLE_ENDIAN)
+                .addField("value", FieldType.INT16)
+                .build());
+        CaptureSession session = new CaptureSession(new CobsFrameDecoder(), records);
+        RecordingListener listener = new RecordingListener();
+        session.setListener(listener);
+
+        LoopbackTransport transport = new LoopbackTransport();
+        session.startListen(transport);
+        assertTrue(listener.opened.await(5, TimeUnit.SECONDS));
+
+        /* COBS frames of the records 0x0102 and 0x0000 */
+        transport.getDeviceOutputStream().write(new byte[]{3, 2, 1, 0, 1, 1, 1, 0});
+
+        assertTrue(session.sendData("s".getBytes(), null));
+        InputStream deviceInput = transport.getDeviceInputStream();
+        assertEquals('s', deviceInput.read());
+
+        while(records.size() < 2) Thread.sleep(1);
+        session.stopListen(null);
+        assertTrue(session.awaitClosed(5000));
+
+        assertEquals(2, records.size());
+        assertEquals(0x0102, records.getLong(0, 0));
+        assertEquals(0, records.getLong(0, 1));
+        assertNull(listener.cause);
+        assertFalse(session.sendData("x".getBytes(), null));
+    }
+
+    @Test(timeout = 10000)
+    public void capturesLinesFromTcp() throws Exception {
+        final ServerSocket server = new ServerSocket(0);
+        Thread device = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    Socket socket = server.accept();
+                    OutputStream out = socket.getOutputStream();
+                    for(int i = 0; i < 1000; i++) out.write((i + ",0\n").getBytes());
+                    out.flush();
+                    socket.close();
+                }catch(IOException e){
+                    e.printStackTrace();
+                }
+            }
+        });
+        device.start();
+
+        LineRingBuffer lines = new LineRingBuffer();
+        CaptureSession session = new CaptureSession(DelimiterFrameDecoder.lineFeed(), lines);
+        RecordingListener listener = new RecordingListener();
+        session.setListener(listener);
+        session.startListen(new TcpTransport("127.0.0.1", server.getLocalPort()));
+
+        assertTrue(listener.closed.await(5, TimeUnit.SECONDS));
+        device.join();
+        server.close();
+
+        assertEquals(1000, lines.size());
+        assertEquals("999,0", lines.get(999));
+    }
+
+    @Test(timeout = 10000)
+    public void reportsTransportsThatFailToOpen() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        int port = server.getLocalPort();
+        server.close(); /* nothing listens on this port anymore */
+
+        CaptureSession session = new CaptureSession(DelimiterFrameDecoder.lineFeed(), new LineRingBuffer());
+        RecordingListener listener = new RecordingListener();
+        session.setListener(listener);
+        session.startListen(new TcpTransport("127.0.0.1", port));
+
+        assertTrue(listener.closed.await(5, TimeUnit.SECONDS));
+        assertNotNull(listener.cause);
+        assertEquals(1, listener.opened.getCount());
+    }
+
+    @Test(timeout = 10000)
+    public void reconnectsAndMarksGaps() throws Exception {
+        SimulatedDevice device = new SimulatedDevice.Builder()
+                .linesPerSecond(5000)
+                .disconnectEvery(50)
+                .build();
+
+        LineRingBuffer lines = new LineRingBuffer();
+        CaptureSession session = new CaptureSession(DelimiterFrameDecoder.lineFeed(), lines);
+        RecordingListener listener = new RecordingListener();
+        session.setListener(listener);
+
+        session.startListen(device, new ReconnectPolicy(5, 20, 2, 0));
+        while(session.getReconnectTime().getCount() < 3) Thread.sleep(5);
+
+        session.stopListen(null);
+        assertTrue(session.awaitClosed(5000));
+        assertNull(listener.cause);
+        assertFalse(session.isReconnecting());
+        assertTrue(listener.reconnectingCount >= 3);
+
+        long expected = 0;
+        int gaps = 0;
+
+        for(long i = lines.getFirstSequence(); i < lines.getNextSequence(); i++){
+            String line = lines.get(i);
+
+            if(line.startsWith(CaptureSession.GAP_MARKER_PREFIX)){
+                assertEquals(3, line.split(",").length);
+                gaps++;
+                continue;
+            }
+
+            assertEquals(expected++, Long.parseLong(line.substring(0, line.indexOf(','))));
+        }
+
+        assertTrue(gaps >= 3);
+        assertEquals(gaps, session.getReconnectTime().getCount());
+    }
+
+    @Test(timeout = 5000)
+    public void givesUpAfterTheLastAttempt() throws Exception {
+        final SimulatedDevice device = new SimulatedDevice.Builder().disconnectEvery(20).build();
+        Transport.Factory factory = new Transport.Factory() {
+            private int created = 0;
+
+            @Override
+            public Transport newTransport() {
+                if(created++ == 0) return device.newTransport();
+                return new TcpTransport("127.0.0.1", 1, 100); /* nothing listens there */
+            }
+        };
+
+        CaptureSession session = new CaptureSession(DelimiterFrameDecoder.lineFeed(), new LineRingBuffer());
+        RecordingListener listener = new RecordingListener();
+        session.setListener(listener);
+
+        session.startListen(factory, new ReconnectPolicy(1, 1, 1, 2));
+
+        assertTrue(listener.closed.await(5, TimeUnit.SECONDS));
+        assertNotNull(listener.cause);
+        assertEquals(2, listener.reconnectingCount);
+        assertEquals(0, session.getReconnectTime().getCount());
+    }
+
+    @Test(timeout = 5000)
+    public void startsTheNextCaptureOnlyOnceThePreviousOneClosed() throws Exception {
+        LineRingBuffer lines = new LineRingBuffer();
+        CaptureSession session = new CaptureSession(DelimiterFrameDecoder.lineFeed(), lines);
+        RecordingListener listener = new RecordingListener();
+        session.setListener(listener);
+
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        session.startListen(new LoopbackTransport(){
+            @Override
+            public InputStream getInputStream() {
+                return new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        /* a reader that does not end when its transport is closed */
+                        reading.countDown();
+                        while(released.getCount() > 0){
+                            try{
+                                released.await();
+                            }catch(InterruptedException ignored){
+                            }
+                        }
+                        return -1;
+                    }
+                };
+            }
+        });
+        assertTrue(reading.await(5, TimeUnit.SECONDS));
+
+        final CountDownLatch nextOpened = new CountDownLatch(1);
+        LoopbackTransport next = new LoopbackTransport(){
+            @Override
+            public void open() throws IOException {
+                super.open();
+                nextOpened.countDown();
+            }
+        };
+
+        session.startListen(next);
+        assertFalse(nextOpened.await(200, TimeUnit.MILLISECONDS));
+        assertFalse(session.isClosed());
+
+        released.countDown();
+        assertTrue(nextOpened.await(5, TimeUnit.SECONDS));
+
+        next.getDeviceOutputStream().write("1,2\n".getBytes());
+        while(lines.size() < 1) Thread.sleep(1);
+        assertEquals("1,2", lines.get(lines.getNextSequence() - 1));
+        assertTrue(session.isListening());
+
+        next.getDeviceOutputStream().close();
+        assertTrue(session.awaitClosed(5000));
+        assertTrue(session.isClosed());
+    }
+
+    private static class RecordingListener implements CaptureSession.Listener{
+
+        final CountDownLatch opened = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        volatile int storedCount = 0;
+        volatile int reconnectingCount = 0;
+        volatile IOException cause;
+
+        @Override
+        public void onSessionOpened(CaptureSession session) {
+            opened.countDown();
+        }
+
+        @Override
+        public void onFrameStored(CaptureSession session, long index) {
+            storedCount++;
+        }
+
+        @Override
+        public void onReconnecting(CaptureSession session, IOException cause, int attempt, long delayMillis) {
+            reconnectingCount++;
+        }
+
+        @Override
+        public void onSessionClosed(CaptureSession session, IOException cause) {
+            this.cause = cause;
+            closed.countDown();
+        }
+
+    }
+
+}
@@ -0,0 +1,45 @@
+package amplastudio.csvgenerator.stream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ReconnectPolicyTest {
+
+    @Test
+    public void delaysGrowExponentiallyUpToTheCap() {
+        ReconnectPolicy policy = new ReconnectPolicy(100, 1000, 2, 0);
+
+        assertEquals(100, policy.getBaseDelayMillis(1));
+        assertEquals(200, policy.getBaseDelayMillis(2));
+        assertEquals(800, policy.getBaseDelayMillis(4));
+        assertEquals(1000, policy.getBaseDelayMillis(5));
+        assertEquals(1000, policy.getBaseDelayMillis(1000));
+    }
+
+    @Test
+    public void jitterOnlyShortensTheDelay() {
+        ReconnectPolicy policy = new ReconnectPolicy(100, 1000, 2, 0);
+
+        for(int i = 0; i < 100; i++){
+            long delay = policy.getDelayMillis(3);
+            assertTrue(delay <= 400);
+            assertTrue(delay >= 400 * (1 - ReconnectPolicy.JITTER));
+        }
+    }
+
+    @Test
+    public void stopsAfterTheMaximumAttempts() {
+        assertTrue(new ReconnectPolicy().shouldRetry(Integer.MAX_VALUE));
+
+        ReconnectPolicy policy = new ReconnectPolicy(1, 1, 1, 3);
+        assertTrue(policy.shouldRetry(3));
+        assertFalse(policy.shouldRetry(4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsACapBelowTheInitialDelay() {
+        new ReconnectPolicy(100, 10, 2, 0);
+    }
+
+}
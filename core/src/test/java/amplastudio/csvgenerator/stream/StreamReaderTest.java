@@ -0,0 +1,269 @@
+package amplastudio.csvgenerator.stream;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class StreamReaderTest {
+
+    private static final int STREAM_SIZE = 256 * 1024;
+    private static final int CHUNK_SIZE = 4096;
+    private static final long CHUNK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    @Test
+    public void readsWholeStreamAndReportsEnd() throws Exception {
+        byte[] data = new byte[10000];
+        for(int i = 0; i < data.length; i++) data[i] = (byte) i;
+
+        CollectingListener listener = new CollectingListener();
+        new StreamReader(new PacedInputStream(data, 333, 0), listener, 128).run();
+
+        assertArrayEquals(data, listener.received.toByteArray());
+        assertNull(listener.closeCause);
+        assertEquals(1, listener.closeCount);
+    }
+
+    @Test(timeout = 5000)
+    public void stopUnblocksPendingRead() throws Exception {
+        PipedOutputStream device = new PipedOutputStream();
+        PipedInputStream inputStream = new PipedInputStream(device);
+        CollectingListener listener = new CollectingListener();
+        final StreamReader reader = new StreamReader(inputStream, listener);
+
+        Thread thread = new Thread(reader);
+        thread.start();
+        device.write(new byte[]{1, 2, 3});
+        device.flush();
+        listener.awaitBytes(3);
+
+        reader.stop();
+        thread.join();
+
+        assertTrue(reader.isStopped());
+        assertNull(listener.closeCause);
+        assertEquals(1, listener.closeCount);
+    }
+
+    @Test(timeout = 5000)
+    public void stopDoesNotLeaveTheThreadInterrupted() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        CollectingListener listener = new CollectingListener();
+
+        /* a link that only unblocks when closed, keeping the interrupt it received */
+        final StreamReader reader = new StreamReader(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                reading.countDown();
+                while(closed.getCount() > 0){
+                    try{
+                        Thread.sleep(1);
+                    }catch(InterruptedException e){
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return -1;
+            }
+
+            @Override
+            public void close() {
+                closed.countDown();
+            }
+        }, listener);
+
+        final boolean[] interrupted = new boolean[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                reader.run();
+                /* a pooled thread goes on with its next task here */
+                interrupted[0] = Thread.currentThread().isInterrupted();
+            }
+        });
+        thread.start();
+        reading.await();
+
+        reader.stop();
+        thread.join();
+
+        assertFalse(interrupted[0]);
+        assertEquals(1, listener.closeCount);
+    }
+
+    @Test
+    public void reportsStreamErrors() throws Exception {
+        CollectingListener listener = new CollectingListener();
+        new StreamReader(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("broken link");
+            }
+        }, listener).run();
+
+        assertNotNull(listener.closeCause);
+    }
+
+    /**
+     * Compares the CPU time needed to ingest a slow stream with the blocking reader against the
+     * original {@link InputStream#available()} polling loop.
+     */
+    @Test
+    public void blockingReadUsesLessCpuPerMegabyteThanPolling() throws Exception {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean.isCurrentThreadCpuTimeSupported());
+        threadBean.setThreadCpuTimeEnabled(true);
+
+        final byte[] data = new byte[STREAM_SIZE];
+
+        final long[] blockingCpu = new long[1];
+        runOnNewThread(new Runnable() {
+            @Override
+            public void run() {
+                long start = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+                new StreamReader(new PacedInputStream(data, CHUNK_SIZE, CHUNK_INTERVAL_NANOS), new CollectingListener()).run();
+                blockingCpu[0] = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime() - start;
+            }
+        });
+
+        final long[] pollingCpu = new long[1];
+        runOnNewThread(new Runnable() {
+            @Override
+            public void run() {
+                long start = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+                pollingLoop(new PacedInputStream(data, CHUNK_SIZE, CHUNK_INTERVAL_NANOS), data.length);
+                pollingCpu[0] = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime() - start;
+            }
+        });
+
+        assertTrue("CPU ns: blocking read " + blockingCpu[0] + ", available() polling " + pollingCpu[0],
+                blockingCpu[0] < pollingCpu[0]);
+    }
+
+    /**
+     * Copy of the loop previously found in BluetoothCommunicator.ConnectThread, bounded by the expected stream size.
+     */
+    private static void pollingLoop(InputStream inputStream, int expectedBytes){
+        int bytesAvailable;
+        int total = 0;
+        byte buffer[];
+
+        while(total < expectedBytes){
+            try {
+                bytesAvailable = inputStream.available();
+                if(bytesAvailable > 0) {
+                    buffer = new byte[bytesAvailable];
+                    total += inputStream.read(buffer);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+        }
+    }
+
+    private static void runOnNewThread(Runnable runnable) throws InterruptedException {
+        Thread thread = new Thread(runnable);
+        thread.start();
+        thread.join();
+    }
+
+    /**
+     * Fake device stream that releases a chunk of data every interval, as a radio link would.
+     * {@link #read(byte[], int, int)} sleeps until the next chunk is released.
+     */
+    private static class PacedInputStream extends InputStream {
+
+        private final byte[] data;
+        private final int chunkSize;
+        private final long intervalNanos;
+        private final long startNanos = System.nanoTime();
+        private int position = 0;
+
+        PacedInputStream(byte[] data, int chunkSize, long intervalNanos){
+            this.data = data;
+            this.chunkSize = chunkSize;
+            this.intervalNanos = intervalNanos;
+        }
+
+        private int released(){
+            if(intervalNanos == 0) return data.length;
+            long chunks = (System.nanoTime() - startNanos) / intervalNanos + 1;
+            return (int) Math.min(data.length, chunks * chunkSize);
+        }
+
+        @Override
+        public int available(){
+            return released() - position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if(position == data.length) return -1;
+
+            while(available() == 0){
+                long next = (released() / chunkSize) * intervalNanos + startNanos;
+                long waitNanos = Math.max(next - System.nanoTime(), 100000);
+                try {
+                    Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                } catch (InterruptedException e) {
+                    throw new java.io.InterruptedIOException();
+                }
+            }
+
+            int count = Math.min(Math.min(length, available()), chunkSize);
+            System.arraycopy(data, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+    }
+
+    private static class CollectingListener implements StreamReader.Listener {
+
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final CountDownLatch firstChunk = new CountDownLatch(1);
+        volatile IOException closeCause;
+        volatile int closeCount;
+
+        @Override
+        public void onChunkRead(byte[] buffer, int offset, int length) {
+            synchronized (received){
+                received.write(buffer, offset, length);
+            }
+            firstChunk.countDown();
+        }
+
+        @Override
+        public void onStreamClosed(IOException cause) {
+            closeCause = cause;
+            closeCount++;
+        }
+
+        void awaitBytes(int count) throws InterruptedException {
+            firstChunk.await();
+            while(true){
+                synchronized (received){
+                    if(received.size() >= count) return;
+                }
+                Thread.sleep(1);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,242 @@
+package amplastudio.csvgenerator.stream;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class WriteQueueTest {
+
+    private WriteQueue writeQueue;
+    private Thread writerThread;
+
+    @After
+    public void stopWriter() throws Exception {
+        if(writeQueue != null) writeQueue.stop();
+        if(writerThread != null) writerThread.join(5000);
+    }
+
+    @Test(timeout = 5000)
+    public void coalescesCommandsQueuedDuringAWrite() throws Exception {
+        GatedOutputStream out = new GatedOutputStream();
+        start(new WriteQueue(out, 16, 6));
+
+        writeQueue.offer("a".getBytes());
+        out.firstWriteEntered.await();
+
+        /* queued while the first write is stalled */
+        writeQueue.offer("bb".getBytes());
+        writeQueue.offer("cc".getBytes());
+        writeQueue.offer("dd".getBytes());
+        writeQueue.offer("ee".getBytes());
+        out.release.countDown();
+
+        waitForWrittenCommands(5);
+
+        assertEquals("abbccddee", out.written());
+        assertEquals("[a, bbccdd, ee]", out.writes.toString()); /* bounded by the maximum write size */
+        assertEquals(3, writeQueue.getWriteCount());
+        assertEquals(9, writeQueue.getWrittenByteCount());
+        assertEquals(0, writeQueue.getQueueDepth());
+        assertEquals(4, writeQueue.getMaxQueueDepth());
+    }
+
+    @Test(timeout = 5000)
+    public void writesLongCommandsOnTheirOwn() throws Exception {
+        GatedOutputStream out = new GatedOutputStream();
+        out.release.countDown();
+        start(new WriteQueue(out, 16, 4));
+
+        writeQueue.offer("0123456789".getBytes());
+        waitForWrittenCommands(1);
+
+        assertEquals("[0123456789]", out.writes.toString());
+    }
+
+    @Test(timeout = 5000)
+    public void reportsCompletionOfEveryCommand() throws Exception {
+        GatedOutputStream out = new GatedOutputStream();
+        out.release.countDown();
+        start(new WriteQueue(out));
+
+        RecordingListener listener = new RecordingListener(3);
+        writeQueue.offer("x".getBytes(), listener);
+        writeQueue.offer("y".getBytes(), listener);
+        writeQueue.offer("z".getBytes(), listener);
+
+        assertTrue(listener.completed.await(5, TimeUnit.SECONDS));
+        assertEquals("[x, y, z]", listener.commands.toString());
+        assertEquals("[null, null, null]", listener.errors.toString());
+    }
+
+    @Test(timeout = 5000)
+    public void rejectsCommandsWhenFull() throws Exception {
+        GatedOutputStream out = new GatedOutputStream();
+        start(new WriteQueue(out, 2, 64));
+
+        writeQueue.offer("a".getBytes());
+        out.firstWriteEntered.await();
+
+        assertTrue(writeQueue.offer("b".getBytes()));
+        assertTrue(writeQueue.offer("c".getBytes()));
+        assertFalse(writeQueue.offer("d".getBytes()));
+
+        assertEquals(2, writeQueue.getQueueDepth());
+        assertEquals(1, writeQueue.getRejectedCommandCount());
+
+        out.release.countDown();
+        waitForWrittenCommands(3);
+        assertEquals("abc", out.written());
+    }
+
+    @Test(timeout = 5000)
+    public void failsQueuedCommandsWhenWriteFails() throws Exception {
+        RecordingListener listener = new RecordingListener(2);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        start(new WriteQueue(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("link lost");
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try{
+                    release.await();
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+                throw new IOException("link lost");
+            }
+        }, 4, 1));
+
+        writeQueue.offer("a".getBytes(), listener);
+        writeQueue.offer("b".getBytes(), listener);
+        release.countDown();
+
+        assertTrue(listener.completed.await(5, TimeUnit.SECONDS));
+        assertEquals("[link lost, link lost]", listener.errors.toString());
+        writerThread.join();
+        assertTrue(writeQueue.isStopped());
+        assertEquals(2, writeQueue.getFailedCommandCount());
+        assertFalse(writeQueue.offer("c".getBytes()));
+    }
+
+    @Test(timeout = 5000)
+    public void stopDoesNotLeaveTheThreadInterrupted() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+
+        /* a link whose write ends normally once interrupted, keeping the interrupt */
+        final WriteQueue queue = new WriteQueue(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                writing.countDown();
+                try{
+                    new CountDownLatch(1).await();
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        final boolean[] interrupted = new boolean[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                queue.run();
+                /* a pooled thread goes on with its next task here */
+                interrupted[0] = Thread.currentThread().isInterrupted();
+            }
+        });
+        thread.start();
+        queue.offer("a".getBytes());
+        writing.await();
+
+        queue.stop();
+        thread.join();
+
+        assertFalse(interrupted[0]);
+        assertTrue(queue.isStopped());
+    }
+
+    private void start(WriteQueue queue){
+        writeQueue = queue;
+        writerThread = new Thread(queue);
+        writerThread.start();
+    }
+
+    private void waitForWrittenCommands(int count) throws InterruptedException {
+        while(writeQueue.getWrittenCommandCount() < count) Thread.sleep(1);
+    }
+
+    /**
+     * Records every write, stalling the first one until released.
+     */
+    private static class GatedOutputStream extends OutputStream{
+
+        final CountDownLatch firstWriteEntered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> writes = new ArrayList<>();
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        @Override
+        public void write(int b) {
+            bytes.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+
+            firstWriteEntered.countDown();
+
+            try{
+                release.await();
+            }catch(InterruptedException e){
+                throw new IOException(e);
+            }
+
+            synchronized (this){
+                writes.add(new String(b, off, len));
+                bytes.write(b, off, len);
+            }
+        }
+
+        synchronized String written(){
+            return bytes.toString();
+        }
+
+    }
+
+    private static class RecordingListener implements WriteQueue.CompletionListener{
+
+        final List<String> commands = new ArrayList<>();
+        final List<String> errors = new ArrayList<>();
+        final CountDownLatch completed;
+
+        RecordingListener(int count){
+            completed = new CountDownLatch(count);
+        }
+
+        @Override
+        public void onWriteCompleted(byte[] data, IOException error) {
+            commands.add(new String(data));
+            errors.add(error == null ? null : error.getMessage());
+            completed.countDown();
+        }
+
+    }
+
+}
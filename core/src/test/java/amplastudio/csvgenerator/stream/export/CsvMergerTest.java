@@ -0,0 +1,124 @@
+package amplastudio.csvgenerator.stream.export;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
+
+import static org.junit.Assert.*;
+
+public class CsvMergerTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void mergesByReceiveTime() throws Exception {
+        LineRingBuffer a = new LineRingBuffer();
+        LineRingBuffer b = new LineRingBuffer();
+
+        add(a, "1,10", 100);
+        add(a, "2,20", 300);
+        add(a, "# gap,300,50", 350);
+        add(b, "7,70", 200);
+        add(b, "8,80", 300);
+
+        CsvMerger merger = new CsvMerger.Builder()
+                .addSource("a", a)
+                .addSource("b", b)
+                .readAhead(1)
+                .build();
+
+        assertEquals("device,time,line\n"
+                + "a,100,\"1,10\"\n"
+                + "b,200,\"7,70\"\n"
+                + "a,300,\"2,20\"\n"
+                + "b,300,\"8,80\"\n"
+                + "a,350,\"# gap,300,50\"\n", merge(merger, 5));
+    }
+
+    @Test
+    public void mergesByDeviceTimestampIntoWideRows() throws Exception {
+        LineRingBuffer a = new LineRingBuffer();
+        LineRingBuffer b = new LineRingBuffer();
+
+        add(a, "0.5,1,2", 0);
+        add(a, "# gap,0,10", 0);
+        add(a, "2.0,3", 0); /* short line, padded */
+        add(b, "1.25,9", 0);
+
+        CsvMerger merger = new CsvMerger.Builder()
+                .addSource("a", a)
+                .addSource("b", b)
+                .layout(CsvMerger.Layout.WIDE)
+                .timestampColumn(0)
+                .build();
+
+        assertEquals("time,a_1,a_2,a_3,b_1,b_2\n"
+                + "0.5,0.5,1,2,,\n"
+                + "1.25,0.5,1,2,1.25,9\n"
+                + "2.0,2.0,3,,1.25,9\n", merge(merger, 3));
+    }
+
+    @Test
+    public void mergesOnlyTheLinesHeldWhenStarted() throws Exception {
+        LineRingBuffer a = new LineRingBuffer(2, 1000, LineRingBuffer.EvictionPolicy.DROP_OLDEST);
+
+        for(int i = 0; i < 4; i++) add(a, "line" + i, i);
+
+        CsvMerger merger = new CsvMerger.Builder()
+                .addSource("a", a)
+                .writeHeader(false)
+                .build();
+
+        assertEquals("a,2,\"line2\"\na,3,\"line3\"\n", merge(merger, 2));
+    }
+
+    @Test
+    public void quotesLinesAndNamesInTheLongLayout() throws Exception {
+        LineRingBuffer a = new LineRingBuffer();
+
+        add(a, "say \"hi\",1", 5);
+        add(a, "\"", 6);
+        add(a, "", 7);
+
+        CsvMerger merger = new CsvMerger.Builder()
+                .addSource("dev,1", a)
+                .writeHeader(false)
+                .build();
+
+        assertEquals("\"dev,1\",5,\"say \"\"hi\"\",1\"\n"
+                + "\"dev,1\",6,\"\"\"\"\n"
+                + "\"dev,1\",7,\"\"\n", merge(merger, 3));
+    }
+
+    @Test
+    public void parsesTimestampsLikeDoubleParseDouble(){
+        String[] numbers = {"0", "12", "-7", "+3", " 42 ", "0.5", "-0.125", "1.", ".25", "1467900000000", "1467900000.123",
+                "1e3", "2.5E-3", "-1.5e+10", "123456789012345678", "12345678901234567890123", "0.000000000000000000001"};
+
+        for(String number : numbers){
+            byte[] bytes = ("x" + number + "y").getBytes(UTF_8);
+            assertEquals(number, Double.parseDouble(number), CsvMerger.parseNumber(bytes, 1, bytes.length - 1),
+                    Math.ulp(Double.parseDouble(number)) * 2);
+        }
+
+        for(String notNumber : new String[]{"", " ", "time", "-", ".", "1,5", "1e", "1e+", "12a", "0x10", "1.2.3"}){
+            byte[] bytes = notNumber.getBytes(UTF_8);
+            assertTrue(notNumber, Double.isNaN(CsvMerger.parseNumber(bytes, 0, bytes.length)));
+        }
+    }
+
+    private static void add(LineRingBuffer buffer, String line, long timestamp){
+        byte[] bytes = line.getBytes(UTF_8);
+        buffer.add(bytes, 0, bytes.length, timestamp);
+    }
+
+    private static String merge(CsvMerger merger, long expectedRows) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(expectedRows, merger.writeTo(out));
+        return new String(out.toByteArray(), UTF_8);
+    }
+
+}
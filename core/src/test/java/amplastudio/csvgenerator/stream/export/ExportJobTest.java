@@ -0,0 +1,113 @@
+package amplastudio.csvgenerator.stream.export;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
+
+import static org.junit.Assert.*;
+
+public class ExportJobTest {
+
+    @Test(timeout = 10000)
+    public void writesTheFileAndSummarizesTheExport() throws Exception {
+        LineRingBuffer lines = new LineRingBuffer();
+        File file = File.createTempFile("export", ".csv");
+        RecordingListener listener = new RecordingListener();
+
+        for(int i = 0; i < 1000; i++) lines.add(i + ",1,2");
+
+        ExportJob job = new ExportJob(new LineExporter(lines), file, "\n", listener);
+        job.start();
+        listener.ended.await();
+
+        assertFalse(job.isRunning());
+        assertEquals("finished", listener.end);
+        assertEquals(1000, listener.summary.getLineCount());
+        assertEquals(file.length(), listener.summary.getByteCount());
+        assertTrue(listener.summary.getMegabytesPerSecond() > 0);
+
+        file.delete();
+    }
+
+    @Test(timeout = 10000)
+    public void cancellingDeletesThePartialFile() throws Exception {
+        File file = File.createTempFile("export", ".csv");
+        RecordingListener listener = new RecordingListener();
+        final CountDownLatch writing = new CountDownLatch(1);
+
+        final ExportJob job = new ExportJob(new Exporter() {
+            @Override
+            public long writeTo(LineWriter writer) throws IOException {
+                byte[] line = new byte[1000];
+                while(true){ /* ends only when cancelled */
+                    writer.writeLine(line, 0, line.length);
+                    writing.countDown();
+                }
+            }
+
+            @Override
+            public long getLineCount() {
+                return 0;
+            }
+        }, file, "\n", listener);
+
+        job.start();
+        writing.await();
+        job.cancel();
+        listener.ended.await();
+
+        assertEquals("cancelled", listener.end);
+        assertFalse(file.exists());
+    }
+
+    @Test(timeout = 10000)
+    public void reportsFailures() throws Exception {
+        File folder = File.createTempFile("export", "");
+        folder.delete();
+        RecordingListener listener = new RecordingListener();
+
+        new ExportJob(new LineExporter(new LineRingBuffer()), new File(folder, "missing/file.csv"), "\n", listener).run();
+
+        assertTrue(listener.ended.await(0, TimeUnit.MILLISECONDS));
+        assertEquals("failed", listener.end);
+    }
+
+    private static class RecordingListener implements ExportJob.Listener{
+
+        final CountDownLatch ended = new CountDownLatch(1);
+        volatile String end;
+        volatile ExportJob.Summary summary;
+        volatile int progressCount = 0;
+
+        @Override
+        public void onExportProgress(ExportJob job, long lineCount, long byteCount, long totalLines) {
+            progressCount++;
+        }
+
+        @Override
+        public void onExportFinished(ExportJob job, ExportJob.Summary summary) {
+            this.summary = summary;
+            end = "finished";
+            ended.countDown();
+        }
+
+        @Override
+        public void onExportCancelled(ExportJob job) {
+            end = "cancelled";
+            ended.countDown();
+        }
+
+        @Override
+        public void onExportFailed(ExportJob job, IOException cause) {
+            end = "failed";
+            ended.countDown();
+        }
+
+    }
+
+}
@@ -0,0 +1,100 @@
+package amplastudio.csvgenerator.stream.export;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
+
+import static org.junit.Assert.*;
+
+public class LineExporterTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void exportsTheLinesHeldWhenStarted() throws Exception {
+        LineRingBuffer lines = new LineRingBuffer(3, 1000, LineRingBuffer.EvictionPolicy.DROP_OLDEST);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LineWriter writer = new LineWriter(out, "\r\n", 4);
+
+        for(int i = 0; i < 5; i++) lines.add("line" + i);
+
+        assertEquals(3, new LineExporter(lines).writeTo(writer));
+        lines.add("line5");
+        writer.flush();
+
+        assertEquals("line2\r\nline3\r\nline4\r\n", new String(out.toByteArray(), UTF_8));
+        assertEquals(out.size(), writer.getByteCount());
+    }
+
+    @Test
+    public void buffersSmallWritesAndPassesLargeOnes() throws Exception {
+        CountingStream out = new CountingStream();
+        LineWriter writer = new LineWriter(out, "\n", 16);
+        byte[] large = new byte[100];
+
+        for(int i = 0; i < 8; i++) writer.write((byte) 'a'); /* buffered */
+        assertEquals(0, out.writes);
+
+        writer.write(large, 0, large.length); /* hands the buffer over, then the large array as is */
+        assertEquals(2, out.writes);
+        assertEquals(108, out.bytes);
+
+        writer.writeLine(large, 0, 3);
+        writer.close();
+
+        assertEquals(112, out.bytes);
+        assertEquals(112, writer.getByteCount());
+        assertTrue(out.closed);
+    }
+
+    @Test
+    public void reportsWriteFailures() {
+        LineRingBuffer lines = new LineRingBuffer();
+        lines.add("a");
+
+        LineWriter writer = new LineWriter(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+        }, "\n", 1);
+
+        try{
+            new LineExporter(lines).writeTo(writer);
+            fail();
+        }catch(IOException e){
+            assertEquals("disk full", e.getMessage());
+        }
+    }
+
+    private static class CountingStream extends OutputStream{
+
+        int writes = 0;
+        long bytes = 0;
+        boolean closed = false;
+
+        @Override
+        public void write(int b) {
+            writes++;
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            writes++;
+            bytes += len;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+    }
+
+}
@@ -0,0 +1,153 @@
+package amplastudio.csvgenerator.stream.framing;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BinaryFrameDecodersTest {
+
+    @Test
+    public void cobsDecodesFramesHoldingZeros() {
+        CollectingListener listener = new CollectingListener();
+        CobsFrameDecoder decoder = new CobsFrameDecoder();
+
+        byte[] stream = concat(
+                cobsEncode(new byte[]{0}),
+                cobsEncode(new byte[]{1, 0, 2, 0, 0, 3}),
+                cobsEncode(new byte[]{}),
+                cobsEncode(sequence(600)));
+
+        feedOneByteAtATime(decoder, listener, stream);
+
+        assertEquals(4, listener.frames.size());
+        assertArrayEquals(new byte[]{0}, listener.frames.get(0));
+        assertArrayEquals(new byte[]{1, 0, 2, 0, 0, 3}, listener.frames.get(1));
+        assertArrayEquals(new byte[]{}, listener.frames.get(2));
+        assertArrayEquals(sequence(600), listener.frames.get(3));
+        assertEquals(0, decoder.getMalformedFrameCount());
+    }
+
+    @Test
+    public void cobsDropsTruncatedAndOversizedFrames() {
+        CollectingListener listener = new CollectingListener();
+        CobsFrameDecoder decoder = new CobsFrameDecoder(4);
+
+        byte[] stream = concat(
+                new byte[]{5, 1, 2, 0},
+                cobsEncode(new byte[]{1, 2, 3, 4, 5}),
+                cobsEncode(new byte[]{9, 8}));
+        decoder.decode(stream, 0, stream.length, listener);
+
+        assertEquals(1, listener.frames.size());
+        assertArrayEquals(new byte[]{9, 8}, listener.frames.get(0));
+        assertEquals(2, decoder.getMalformedFrameCount());
+    }
+
+    @Test
+    public void slipDecodesEscapedFrames() {
+        CollectingListener listener = new CollectingListener();
+        SlipFrameDecoder decoder = new SlipFrameDecoder();
+
+        byte[] stream = new byte[]{
+                (byte) 0xC0, 1, (byte) 0xDB, (byte) 0xDC, 2, (byte) 0xDB, (byte) 0xDD, (byte) 0xC0,
+                (byte) 0xC0, 3, (byte) 0xDB, 4, (byte) 0xC0,
+                5, 6, (byte) 0xC0};
+        feedOneByteAtATime(decoder, listener, stream);
+
+        assertEquals(2, listener.frames.size());
+        assertArrayEquals(new byte[]{1, (byte) 0xC0, 2, (byte) 0xDB}, listener.frames.get(0));
+        assertArrayEquals(new byte[]{5, 6}, listener.frames.get(1));
+        assertEquals(1, decoder.getMalformedFrameCount());
+    }
+
+    @Test
+    public void lengthPrefixedDecodesLittleAndBigEndianHeaders() {
+        CollectingListener listener = new CollectingListener();
+        LengthPrefixedFrameDecoder littleEndian = new LengthPrefixedFrameDecoder(2, ByteOrder.LITTLE_ENDIAN);
+        byte[] stream = new byte[]{3, 0, 7, 8, 9, 0, 0, 1, 0, 42};
+
+        littleEndian.decode(stream, 0, stream.length, listener);
+        feedOneByteAtATime(littleEndian, listener, stream);
+
+        LengthPrefixedFrameDecoder bigEndian = new LengthPrefixedFrameDecoder(4, ByteOrder.BIG_ENDIAN);
+        stream = new byte[]{0, 0, 0, 2, 5, 6};
+        bigEndian.decode(stream, 0, stream.length, listener);
+
+        assertEquals(7, listener.frames.size());
+        assertArrayEquals(new byte[]{7, 8, 9}, listener.frames.get(0));
+        assertArrayEquals(new byte[]{}, listener.frames.get(1));
+        assertArrayEquals(new byte[]{42}, listener.frames.get(2));
+        assertArrayEquals(new byte[]{7, 8, 9}, listener.frames.get(3));
+        assertArrayEquals(new byte[]{5, 6}, listener.frames.get(6));
+    }
+
+    @Test
+    public void lengthPrefixedSkipsOversizedFrames() {
+        CollectingListener listener = new CollectingListener();
+        LengthPrefixedFrameDecoder decoder = new LengthPrefixedFrameDecoder(1, ByteOrder.LITTLE_ENDIAN, 2);
+        byte[] stream = new byte[]{3, 1, 2, 3, 2, 4, 5};
+
+        decoder.decode(stream, 0, stream.length, listener);
+
+        assertEquals(1, listener.frames.size());
+        assertArrayEquals(new byte[]{4, 5}, listener.frames.get(0));
+        assertEquals(1, decoder.getMalformedFrameCount());
+    }
+
+    private static void feedOneByteAtATime(FrameDecoder decoder, FrameListener listener, byte[] stream){
+        for(int i = 0; i < stream.length; i++) decoder.decode(stream, i, 1, listener);
+    }
+
+    private static byte[] cobsEncode(byte[] data){
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+
+        for(byte b : data){
+            if(b == 0){
+                out.write(block.size() + 1);
+                out.write(block.toByteArray(), 0, block.size());
+                block.reset();
+                continue;
+            }
+            block.write(b);
+            if(block.size() == 254){
+                out.write(0xFF);
+                out.write(block.toByteArray(), 0, block.size());
+                block.reset();
+            }
+        }
+
+        out.write(block.size() + 1);
+        out.write(block.toByteArray(), 0, block.size());
+        out.write(0);
+        return out.toByteArray();
+    }
+
+    private static byte[] sequence(int length){
+        byte[] data = new byte[length];
+        for(int i = 0; i < length; i++) data[i] = (byte) (i % 255 + 1);
+        return data;
+    }
+
+    private static byte[] concat(byte[]... arrays){
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(byte[] array : arrays) out.write(array, 0, array.length);
+        return out.toByteArray();
+    }
+
+    private static class CollectingListener implements FrameListener {
+        final List<byte[]> frames = new ArrayList<>();
+
+        @Override
+        public void onFrame(byte[] frame, int offset, int length) {
+            frames.add(Arrays.copyOfRange(frame, offset, offset + length));
+        }
+    }
+
+}
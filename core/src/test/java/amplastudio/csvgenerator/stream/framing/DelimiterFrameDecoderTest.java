@@ -0,0 +1,155 @@
+package amplastudio.csvgenerator.stream.framing;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class DelimiterFrameDecoderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void emitsEveryLineOfAChunk() {
+        CollectingListener listener = new CollectingListener();
+        DelimiterFrameDecoder decoder = DelimiterFrameDecoder.lineFeed();
+
+        feed(decoder, listener, "1,2,3\n4,5,6\n7,8,9\n");
+
+        assertEquals(3, listener.lines.size());
+        assertEquals("1,2,3", listener.lines.get(0));
+        assertEquals("4,5,6", listener.lines.get(1));
+        assertEquals("7,8,9", listener.lines.get(2));
+        assertEquals(0, decoder.getPendingLength());
+    }
+
+    @Test
+    public void carriesPartialLinesAcrossChunks() {
+        CollectingListener listener = new CollectingListener();
+        DelimiterFrameDecoder decoder = new DelimiterFrameDecoder(new byte[]{'\n'}, 2, DelimiterFrameDecoder.DEFAULT_MAX_FRAME_LENGTH);
+
+        feed(decoder, listener, "12");
+        feed(decoder, listener, "34\n56");
+        feed(decoder, listener, "");
+        feed(decoder, listener, "78");
+        feed(decoder, listener, "\n\n9\r\n0");
+
+        assertEquals(4, listener.lines.size());
+        assertEquals("1234", listener.lines.get(0));
+        assertEquals("5678", listener.lines.get(1));
+        assertEquals("", listener.lines.get(2));
+        assertEquals("9\r", listener.lines.get(3));
+        assertEquals(1, decoder.getPendingLength());
+
+        decoder.flush(listener);
+        assertEquals("0", listener.lines.get(4));
+    }
+
+    @Test
+    public void splitsLinesLongerThanMaximum() {
+        CollectingListener listener = new CollectingListener();
+        DelimiterFrameDecoder decoder = new DelimiterFrameDecoder(new byte[]{'\n'}, 4, 4);
+
+        feed(decoder, listener, "abcdefghij\nxy");
+        feed(decoder, listener, "zwvu\n");
+
+        assertEquals(5, listener.lines.size());
+        assertEquals(3, decoder.getMalformedFrameCount());
+        assertEquals("abcd", listener.lines.get(0));
+        assertEquals("efgh", listener.lines.get(1));
+        assertEquals("ij", listener.lines.get(2));
+        assertEquals("xyzw", listener.lines.get(3));
+        assertEquals("vu", listener.lines.get(4));
+    }
+
+    @Test
+    public void framingAllocatesNothingPerChunk() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        byte[] chunk = "1023,511,-7\n1024,512,-8\n10".getBytes(UTF_8);
+        CountingListener listener = new CountingListener();
+        DelimiterFrameDecoder decoder = DelimiterFrameDecoder.lineFeed();
+
+        for(int i = 0; i < 1000; i++) decoder.decode(chunk, 0, chunk.length, listener); /* warm up */
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for(int i = 0; i < 100000; i++) decoder.decode(chunk, 0, chunk.length, listener);
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(1000 * 2 + 100000 * 2, listener.count);
+        assertTrue("allocated " + allocated + " bytes", allocated < 10000);
+    }
+
+    @Test
+    public void matchesDelimitersSplitAcrossChunks() {
+        CollectingListener listener = new CollectingListener();
+        DelimiterFrameDecoder decoder = DelimiterFrameDecoder.crLf();
+
+        feed(decoder, listener, "a\rb\r");
+        feed(decoder, listener, "\nc\r\nd\r\r");
+        feed(decoder, listener, "\n");
+
+        assertEquals(3, listener.lines.size());
+        assertEquals("a\rb", listener.lines.get(0));
+        assertEquals("c", listener.lines.get(1));
+        assertEquals("d\r", listener.lines.get(2));
+    }
+
+    @Test
+    public void matchesDelimitersWithRepeatedPrefix() {
+        CollectingListener listener = new CollectingListener();
+        DelimiterFrameDecoder decoder = new DelimiterFrameDecoder(new byte[]{'#', '#', '!'});
+
+        feed(decoder, listener, "x##");
+        feed(decoder, listener, "#!y#!##!");
+
+        assertEquals(2, listener.lines.size());
+        assertEquals("x#", listener.lines.get(0));
+        assertEquals("y#!", listener.lines.get(1));
+    }
+
+    @Test
+    public void carriageReturnDecoderSplitsOnCarriageReturn() {
+        CollectingListener listener = new CollectingListener();
+
+        feed(DelimiterFrameDecoder.carriageReturn(), listener, "1\r2\n\r");
+
+        assertEquals(2, listener.lines.size());
+        assertEquals("1", listener.lines.get(0));
+        assertEquals("2\n", listener.lines.get(1));
+    }
+
+    private static void feed(DelimiterFrameDecoder decoder, FrameListener listener, String chunk){
+        byte[] data = ("##" + chunk + "##").getBytes(UTF_8);
+        decoder.decode(data, 2, data.length - 4, listener);
+    }
+
+    private static class CollectingListener implements FrameListener {
+        final List<String> lines = new ArrayList<>();
+
+        @Override
+        public void onFrame(byte[] frame, int offset, int length) {
+            lines.add(new String(frame, offset, length, UTF_8));
+        }
+    }
+
+    private static class CountingListener implements FrameListener {
+        long count;
+
+        @Override
+        public void onFrame(byte[] frame, int offset, int length) {
+            count++;
+        }
+    }
+
+}
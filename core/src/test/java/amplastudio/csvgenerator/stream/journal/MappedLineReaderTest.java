@@ -0,0 +1,112 @@
+package amplastudio.csvgenerator.stream.journal;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
+
+import static org.junit.Assert.*;
+
+public class MappedLineReaderTest {
+
+    @Test(timeout = 10000)
+    public void readsLinesAcrossSegmentsAsTheyAreJournaled() throws Exception {
+        File directory = newDirectory();
+        LineRingBuffer lines = new LineRingBuffer();
+
+        SessionJournal journal = new SessionJournal.Builder(lines, directory)
+                .maxSegmentBytes(1000)
+                .flushIntervalMillis(5)
+                .lineSeparator("\r\n")
+                .build();
+        MappedLineReader reader = new MappedLineReader(journal);
+        journal.start();
+
+        assertEquals(0, reader.refresh());
+        assertNull(reader.get(0));
+
+        for(int i = 0; i < 500; i++) lines.add("line" + i);
+        while(journal.getCheckpoint().getLineCount() < 500) Thread.sleep(5);
+
+        assertEquals(500, journal.getCheckpoint().getNextSequence());
+        assertEquals(500, reader.refresh());
+
+        for(int i = 0; i < 2000; i++) lines.add(i % 7 == 0 ? "" : "line" + (500 + i));
+        lines.add("ção");
+        while(journal.getCheckpoint().getLineCount() < 2501) Thread.sleep(5);
+
+        assertEquals(2501, reader.refresh());
+        assertTrue(journal.getSegments().size() > 10);
+
+        for(int i = 0; i < 500; i++) assertEquals("line" + i, reader.get(i));
+        for(int i = 0; i < 2000; i++) assertEquals(i % 7 == 0 ? "" : "line" + (500 + i), reader.get(500 + i));
+        assertEquals("ção", reader.get(2500));
+        assertNull(reader.get(2501));
+
+        journal.discard();
+        while(journal.isRunning()) Thread.sleep(5);
+
+        assertEquals(2501, reader.refresh()); /* mapped segments stay readable once deleted */
+        assertEquals("line1234", reader.get(1234));
+
+        directory.delete();
+    }
+
+    @Test(timeout = 20000)
+    public void readsWhileAnotherThreadRefreshes() throws Exception {
+        File directory = newDirectory();
+        LineRingBuffer lines = new LineRingBuffer();
+
+        final SessionJournal journal = new SessionJournal.Builder(lines, directory)
+                .maxSegmentBytes(4000)
+                .flushIntervalMillis(1)
+                .build();
+        final MappedLineReader reader = new MappedLineReader(journal);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        journal.start();
+
+        Thread refresher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    while(reader.refresh() < 20000) Thread.sleep(1);
+                }catch(Throwable e){
+                    failure.set(e);
+                }
+            }
+        });
+        refresher.start();
+
+        for(int i = 0; i < 20000; i++) lines.add("line" + i);
+
+        Random random = new Random(7);
+        long count;
+
+        do{
+            count = reader.getLineCount();
+            for(int i = 0; i < 100 && count > 0; i++){
+                long index = (long) (random.nextDouble() * count);
+                assertEquals("line" + index, reader.get(index));
+            }
+        }while(count < 20000 && failure.get() == null);
+
+        refresher.join();
+        assertNull(failure.get());
+
+        journal.discard();
+        while(journal.isRunning()) Thread.sleep(5);
+        directory.delete();
+    }
+
+    private static File newDirectory() throws IOException {
+        File directory = File.createTempFile("journal", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        return directory;
+    }
+
+}
@@ -0,0 +1,208 @@
+package amplastudio.csvgenerator.stream.journal;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
+
+import static org.junit.Assert.*;
+
+public class SessionJournalTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test(timeout = 10000)
+    public void rotatesSegmentsAndJoinsThemWhenFinished() throws Exception {
+        File directory = newDirectory();
+        LineRingBuffer lines = new LineRingBuffer();
+        StringBuilder expected = new StringBuilder();
+
+        SessionJournal journal = new SessionJournal.Builder(lines, directory)
+                .name("test")
+                .maxSegmentBytes(100)
+                .flushIntervalMillis(5)
+                .syncPolicy(SessionJournal.SyncPolicy.ON_FLUSH)
+                .build();
+        journal.start();
+
+        for(int i = 0; i < 100; i++){
+            lines.add(i + ",123456789");
+            expected.append(i).append(",123456789\n");
+            if(i % 10 == 0) Thread.sleep(10);
+        }
+
+        while(journal.getCheckpoint().getLineCount() < 100) Thread.sleep(5);
+
+        List<File> segments = journal.getSegments();
+        assertTrue(segments.size() > 1);
+        assertEquals(new File(directory, "test-0000" + SessionJournal.SEGMENT_SUFFIX), segments.get(0));
+        assertTrue(journal.getSyncCount() > 0);
+
+        File target = new File(directory, "session.csv");
+        journal.finish(target);
+
+        assertFalse(journal.isRunning());
+        assertEquals(expected.toString(), read(target));
+        assertEquals(target.length(), journal.getByteCount());
+        for(File segment : segments) assertFalse(segment.exists());
+        assertTrue(journal.getSegments().isEmpty());
+
+        delete(directory);
+    }
+
+    @Test(timeout = 10000)
+    public void renamesASingleSegmentAndWritesTheLinesCapturedBeforeStopping() throws Exception {
+        File directory = newDirectory();
+        LineRingBuffer lines = new LineRingBuffer();
+
+        lines.add("before");
+
+        SessionJournal journal = new SessionJournal.Builder(lines, directory)
+                .fromSequence(lines.getNextSequence())
+                .flushIntervalMillis(60000)
+                .lineSeparator("\r\n")
+                .build();
+        assertEquals(1, journal.getStartSequence());
+        journal.start();
+
+        lines.add("a");
+        lines.add("b");
+
+        File target = new File(directory, "session.csv");
+        journal.finish(target); /* the journal sleeps, stopping it writes the lines waiting */
+
+        assertEquals("a\r\nb\r\n", read(target));
+        assertEquals(2, journal.getLineCount());
+        assertEquals(1, directory.listFiles().length);
+
+        try{
+            journal.finish(target);
+            fail();
+        }catch(IOException e){
+            /* the target already exists */
+        }
+
+        delete(directory);
+    }
+
+    @Test(timeout = 10000)
+    public void discardingDeletesTheSegments() throws Exception {
+        File directory = newDirectory();
+        LineRingBuffer lines = new LineRingBuffer();
+
+        SessionJournal journal = new SessionJournal.Builder(lines, directory)
+                .flushIntervalMillis(5)
+                .build();
+        journal.start();
+
+        lines.add("a");
+        while(journal.getLineCount() < 1) Thread.sleep(5);
+        assertEquals(1, directory.listFiles().length);
+
+        journal.discard();
+        while(journal.isRunning()) Thread.sleep(5);
+
+        assertEquals(0, directory.listFiles().length);
+        assertTrue(journal.getSegments().isEmpty());
+
+        delete(directory);
+    }
+
+    @Test(timeout = 10000)
+    public void recoversTheSegmentsOfJournalsNeverFinished() throws Exception {
+        File directory = newDirectory();
+        LineRingBuffer lines = new LineRingBuffer();
+
+        SessionJournal orphan = new SessionJournal.Builder(lines, directory)
+                .name("session-1")
+                .maxSegmentBytes(10)
+                .flushIntervalMillis(5)
+                .build();
+        orphan.start();
+
+        for(int i = 0; i < 30; i++) lines.add("line" + i);
+        while(orphan.getLineCount() < 30) Thread.sleep(5);
+        orphan.stop(); /* left behind, as by a process killed while capturing */
+        while(orphan.isRunning()) Thread.sleep(5);
+        assertTrue(orphan.getSegments().size() > 10);
+
+        SessionJournal running = new SessionJournal.Builder(lines, directory)
+                .name("session-2")
+                .flushIntervalMillis(5)
+                .build();
+        running.start();
+        lines.add("kept");
+        while(running.getLineCount() < 1) Thread.sleep(5);
+
+        assertTrue(new File(directory, "notes-x.journal").createNewFile());
+
+        List<File> recovered = SessionJournal.recover(directory, ".csv", Collections.singleton(running.getName()));
+
+        assertEquals(1, recovered.size());
+        assertEquals(new File(directory, "session-1.csv"), recovered.get(0));
+
+        StringBuilder expected = new StringBuilder();
+        for(int i = 0; i < 30; i++) expected.append("line").append(i).append('\n');
+        assertEquals(expected.toString(), read(recovered.get(0)));
+
+        for(File segment : orphan.getSegments()) assertFalse(segment.exists());
+        assertTrue(running.getSegments().get(0).exists());
+        assertTrue(new File(directory, "notes-x.journal").exists());
+
+        running.discard();
+        while(running.isRunning()) Thread.sleep(5);
+        delete(directory);
+    }
+
+    @Test(timeout = 10000)
+    public void marksTheLinesOverwrittenBeforeBeingJournaled() throws Exception {
+        File directory = newDirectory();
+        LineRingBuffer lines = new LineRingBuffer(4, 1024, LineRingBuffer.EvictionPolicy.DROP_OLDEST);
+
+        SessionJournal journal = new SessionJournal.Builder(lines, directory)
+                .flushIntervalMillis(60000)
+                .build();
+
+        for(String line : new String[]{"a", "b", "c", "d", "e", "f"}) lines.add(line);
+
+        journal.start();
+        File target = new File(directory, "session.csv");
+        journal.finish(target);
+
+        assertEquals(2, journal.getMissedCount());
+        assertEquals("# gap,missed,2\nc\nd\ne\nf\n", read(target));
+        assertEquals(5, journal.getLineCount());
+
+        delete(directory);
+    }
+
+    private static File newDirectory() throws IOException {
+        File directory = File.createTempFile("journal", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        return directory;
+    }
+
+    private static String read(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileInputStream in = new FileInputStream(file);
+        byte[] buffer = new byte[4096];
+        int count;
+        while((count = in.read(buffer)) > 0) out.write(buffer, 0, count);
+        in.close();
+        return new String(out.toByteArray(), UTF_8);
+    }
+
+    private static void delete(File directory){
+        for(File file : directory.listFiles()) file.delete();
+        directory.delete();
+    }
+
+}
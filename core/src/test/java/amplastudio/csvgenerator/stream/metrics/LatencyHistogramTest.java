@@ -0,0 +1,66 @@
+package amplastudio.csvgenerator.stream.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(int i = 1; i <= 60; i++) histogram.record(i);
+
+        assertEquals(60, histogram.getCount());
+        assertEquals(1, histogram.getMin());
+        assertEquals(60, histogram.getMax());
+        assertEquals(30, histogram.getPercentile(50));
+        assertEquals(60, histogram.getPercentile(100));
+        assertEquals(30.5, histogram.getMean(), 1e-9);
+    }
+
+    @Test
+    public void largeValuesAreWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(int i = 1; i <= 100000; i++) histogram.record(i);
+
+        assertEquals(50000, histogram.getPercentile(50), 50000 * 0.04);
+        assertEquals(99000, histogram.getPercentile(99), 99000 * 0.04);
+        assertEquals(100000, histogram.getMax());
+        assertEquals(100000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void hugeValuesAreClampedToTheMaximum() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(-5);
+
+        assertEquals(0, histogram.getMin());
+        assertEquals(Long.MAX_VALUE, histogram.getMax());
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void resetForgetsValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        histogram.record(7);
+        assertEquals(7, histogram.getMin());
+    }
+
+}
@@ -0,0 +1,143 @@
+package amplastudio.csvgenerator.stream.metrics;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import amplastudio.csvgenerator.stream.CaptureSession;
+import amplastudio.csvgenerator.stream.framing.CobsFrameDecoder;
+import amplastudio.csvgenerator.stream.framing.DelimiterFrameDecoder;
+import amplastudio.csvgenerator.stream.record.RecordColumns;
+import amplastudio.csvgenerator.stream.simulator.SimulatedDevice;
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
+
+import static org.junit.Assert.*;
+
+public class LatencyProbeTest {
+
+    @Test
+    public void matchesEchoedProbes() {
+        QueueSender sender = new QueueSender();
+        LatencyProbe probe = new LatencyProbe(sender, 10, 32);
+
+        assertTrue(probe.sendProbe());
+        assertTrue(probe.sendProbe());
+        assertEquals(2, sender.sent.size());
+        assertEquals(32, sender.sent.get(0).length);
+        assertTrue(new String(sender.sent.get(1)).startsWith("~p1,xx"));
+
+        assertTrue(echo(probe, sender.sent.get(1)));
+        assertTrue(echo(probe, sender.sent.get(1))); /* duplicate */
+        assertFalse(probe.interceptFrame("12,34".getBytes(), 0, 5));
+
+        assertEquals(2, probe.getSentCount());
+        assertEquals(1, probe.getEchoedCount());
+        assertEquals(1, probe.getUnmatchedCount());
+        assertEquals(1, probe.getRoundTripLatency().getCount());
+    }
+
+    @Test
+    public void countsRejectedAndLostProbes() {
+        QueueSender sender = new QueueSender();
+        LatencyProbe probe = new LatencyProbe(sender, 10, 16);
+
+        sender.accept = false;
+        assertFalse(probe.sendProbe());
+        assertEquals(1, probe.getRejectedCount());
+        assertEquals(0, probe.getSentCount());
+
+        sender.accept = true;
+        for(int i = 0; i < 1024 + 10; i++) probe.sendProbe();
+        assertEquals(10, probe.getLostCount()); /* probes 1 to 10 overwritten, the rejected probe left its slot free */
+
+        probe.reset();
+        assertEquals(0, probe.getLostCount());
+        assertEquals(0, probe.getSentCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsPayloadsTooSmallForAProbe() {
+        new LatencyProbe(new QueueSender(), 10, 8);
+    }
+
+    @Test(timeout = 10000)
+    public void measuresRoundTripThroughAnEchoingDevice() throws Exception {
+        SimulatedDevice device = new SimulatedDevice.Builder()
+                .linesPerSecond(1000)
+                .echoLines(LatencyProbe.PROBE_PREFIX)
+                .build();
+
+        LineRingBuffer lines = new LineRingBuffer();
+        final CaptureSession session = new CaptureSession(DelimiterFrameDecoder.lineFeed(), lines);
+        LatencyProbe probe = new LatencyProbe(new LatencyProbe.Sender() {
+            @Override
+            public boolean send(byte[] data) {
+                return session.sendData(data, null);
+            }
+        }, 200, 64);
+        session.setFrameInterceptor(probe);
+
+        session.startListen(device.newTransport());
+        while(!session.isOpen()) Thread.sleep(1);
+
+        probe.start();
+        while(probe.getEchoedCount() < 20) Thread.sleep(5);
+        probe.stop();
+        assertFalse(probe.isRunning());
+
+        device.stop();
+        assertTrue(session.awaitClosed(5000));
+
+        assertEquals(0, probe.getUnmatchedCount());
+        assertTrue(probe.getRoundTripLatency().getMax() > 0);
+        for(long i = lines.getFirstSequence(); i < lines.getNextSequence(); i++) assertFalse(lines.get(i).startsWith("~p"));
+    }
+
+    @Test(timeout = 10000)
+    public void matchesProbesEchoedAsCobsFrames() throws Exception {
+        SimulatedDevice device = new SimulatedDevice.Builder()
+                .format(SimulatedDevice.Format.COBS_RECORDS)
+                .linesPerSecond(1000)
+                .echoLines(LatencyProbe.PROBE_PREFIX)
+                .build();
+
+        RecordColumns records = new RecordColumns(device.getRecordLayout());
+        final CaptureSession session = new CaptureSession(new CobsFrameDecoder(), records);
+        LatencyProbe probe = new LatencyProbe(new LatencyProbe.Sender() {
+            @Override
+            public boolean send(byte[] data) {
+                return session.sendData(data, null);
+            }
+        }, 100, 300);
+        session.setFrameInterceptor(probe);
+
+        session.startListen(device.newTransport());
+        while(!session.isOpen()) Thread.sleep(1);
+
+        for(int i = 0; i < 5; i++) assertTrue(probe.sendProbe());
+        while(probe.getEchoedCount() < 5) Thread.sleep(5);
+
+        device.stop();
+        assertTrue(session.awaitClosed(5000));
+
+        assertEquals(0, records.getMalformedRecordCount());
+        assertEquals(0, probe.getUnmatchedCount());
+    }
+
+    private static boolean echo(LatencyProbe probe, byte[] sent){
+        return probe.interceptFrame(sent, 0, sent.length - 1); /* framed without its line feed */
+    }
+
+    private static class QueueSender implements LatencyProbe.Sender {
+        final List<byte[]> sent = new ArrayList<>();
+        boolean accept = true;
+
+        @Override
+        public boolean send(byte[] probe) {
+            if(accept) sent.add(probe);
+            return accept;
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+package amplastudio.csvgenerator.stream.metrics;
+
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import amplastudio.csvgenerator.stream.CaptureSession;
+import amplastudio.csvgenerator.stream.framing.DelimiterFrameDecoder;
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
+import amplastudio.csvgenerator.stream.transport.LoopbackTransport;
+
+import static org.junit.Assert.*;
+
+public class PipelineMetricsTest {
+
+    @Test
+    public void samplesWithoutSessionAreEmpty() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        PipelineMetrics.Snapshot snapshot = metrics.sample();
+
+        assertFalse(snapshot.isListening());
+        assertEquals(0, snapshot.getHeldCount());
+        assertEquals(0, snapshot.getBytesPerSecond(), 0);
+    }
+
+    @Test(timeout = 5000)
+    public void countsFramesRatesAndDrops() throws Exception {
+        LineRingBuffer lines = new LineRingBuffer(2, 1024, LineRingBuffer.EvictionPolicy.DROP_NEWEST);
+        CaptureSession session = new CaptureSession(DelimiterFrameDecoder.lineFeed(), lines);
+        PipelineMetrics metrics = new PipelineMetrics();
+        metrics.setSession(session);
+
+        LoopbackTransport transport = new LoopbackTransport();
+        session.startListen(transport);
+        while(!session.isOpen()) Thread.sleep(1);
+
+        assertEquals(0, metrics.sample().getFramesPerSecond(), 0);
+
+        OutputStream device = transport.getDeviceOutputStream();
+        device.write("a\nb\nc\n".getBytes());
+        while(session.getStoredFrameCount() + session.getRejectedFrameCount() < 3) Thread.sleep(1);
+        Thread.sleep(10);
+
+        PipelineMetrics.Snapshot snapshot = metrics.sample();
+        assertTrue(snapshot.isListening());
+        assertEquals(6, snapshot.getReceivedByteCount());
+        assertEquals(2, snapshot.getStoredFrameCount());
+        assertEquals(1, snapshot.getRejectedFrameCount());
+        assertEquals(2, snapshot.getHeldCount());
+        assertEquals(1, snapshot.getDroppedLineCount());
+        assertTrue(snapshot.getBytesPerSecond() > 0);
+        assertTrue(snapshot.getFramesPerSecond() > 0);
+
+        session.stopListen(null);
+        assertTrue(session.awaitClosed(5000));
+    }
+
+    @Test
+    public void reportsDeliveryLatencyInMicroseconds() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        metrics.recordDeliveryLatency(TimeUnit.MILLISECONDS.toNanos(2));
+        metrics.recordDeliveryLatency(TimeUnit.MILLISECONDS.toNanos(40));
+
+        PipelineMetrics.Snapshot snapshot = metrics.sample();
+        assertEquals(2000, snapshot.getLatencyP50Micros(), 2000 * 0.04);
+        assertEquals(40000, snapshot.getLatencyMaxMicros());
+
+        metrics.reset();
+        assertEquals(0, metrics.sample().getLatencyMaxMicros());
+    }
+
+}
@@ -0,0 +1,116 @@
+package amplastudio.csvgenerator.stream.record;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
+
+import static org.junit.Assert.*;
+
+public class RecordColumnsTest {
+
+    @Test
+    public void decodesLittleEndianInt16ChannelsIntoShortColumns() {
+        RecordLayout layout = new RecordLayout.Builder(ByteOrder.LITTLE_ENDIAN)
+                .addFields("ch", 8, FieldType.INT16)
+                .build();
+        RecordColumns columns = new RecordColumns(layout, 2);
+
+        ByteBuffer frame = ByteBuffer.allocate(layout.getRecordSize()).order(ByteOrder.LITTLE_ENDIAN);
+        for(int record = 0; record < 5; record++){
+            frame.clear();
+            for(int channel = 0; channel < 8; channel++) frame.putShort((short) (record * 1000 - channel));
+            columns.onFrame(frame.array(), 0, frame.capacity());
+        }
+
+        assertEquals(16, layout.getRecordSize());
+        assertEquals(5, columns.size());
+        assertEquals("ch7", layout.getFieldName(7));
+        assertEquals(3993, columns.getLong(7, 4));
+        assertEquals(-3, ((short[]) columns.getColumnArray(3))[0]);
+    }
+
+    @Test
+    public void decodesMixedBigEndianFields() {
+        RecordLayout layout = new RecordLayout.Builder(ByteOrder.BIG_ENDIAN)
+                .addField("millis", FieldType.UINT32)
+                .addField("flags", FieldType.UINT8)
+                .addField("offset", FieldType.INT8)
+                .addField("raw", FieldType.UINT16)
+                .addField("temperature", FieldType.FLOAT32)
+                .addField("position", FieldType.FLOAT64)
+                .addField("counter", FieldType.INT64)
+                .build();
+        RecordColumns columns = new RecordColumns(layout);
+
+        ByteBuffer frame = ByteBuffer.allocate(layout.getRecordSize()).order(ByteOrder.BIG_ENDIAN);
+        frame.putInt(0xF0000001).put((byte) 0xFE).put((byte) -2).putShort((short) 0xFFFF)
+                .putFloat(21.5f).putDouble(-0.25).putLong(-9);
+        byte[] data = new byte[frame.capacity() + 3];
+        System.arraycopy(frame.array(), 0, data, 3, frame.capacity());
+
+        columns.onFrame(data, 3, frame.capacity());
+
+        assertEquals(0xF0000001L, columns.getLong(0, 0));
+        assertEquals(254, columns.getLong(1, 0));
+        assertEquals(-2, columns.getLong(2, 0));
+        assertEquals(65535, columns.getLong(3, 0));
+        assertEquals(21.5, columns.getDouble(4, 0), 0);
+        assertEquals(-0.25, columns.getDouble(5, 0), 0);
+        assertEquals(-9, columns.getLong(6, 0));
+
+        StringBuilder row = new StringBuilder();
+        columns.appendRow(0, ',', row);
+        assertEquals("4026531841,254,-2,65535,21.5,-0.25,-9", row.toString());
+    }
+
+    @Test
+    public void evictsTheOldestRecordsOnceFull() {
+        RecordLayout layout = new RecordLayout.Builder(ByteOrder.LITTLE_ENDIAN).addField("value", FieldType.INT32).build();
+        RecordColumns columns = new RecordColumns(layout, 2, 12, LineRingBuffer.EvictionPolicy.DROP_OLDEST);
+
+        for(int i = 0; i < 15; i++) assertTrue(columns.append(new byte[]{(byte) i, 0, 0, 0}, 0, 4));
+
+        assertEquals(12, columns.size());
+        assertEquals(12, ((int[]) columns.getColumnArray(0)).length); /* grown up to the maximum only */
+        assertEquals(3, columns.getOverwrittenCount());
+        assertEquals(3, columns.getFirstSequence());
+        assertEquals(15, columns.getNextSequence());
+        assertEquals(3, columns.getLong(0, 0));
+        assertEquals(14, columns.getLong(0, 11));
+
+        columns.clear();
+        assertEquals(15, columns.getFirstSequence());
+        assertEquals(15, columns.getNextSequence());
+    }
+
+    @Test
+    public void dropsNewRecordsOnceFull() {
+        RecordLayout layout = new RecordLayout.Builder(ByteOrder.LITTLE_ENDIAN).addField("value", FieldType.INT32).build();
+        RecordColumns columns = new RecordColumns(layout, 1024, 3, LineRingBuffer.EvictionPolicy.DROP_NEWEST);
+
+        for(int i = 0; i < 3; i++) assertTrue(columns.append(new byte[]{(byte) i, 0, 0, 0}, 0, 4));
+        assertFalse(columns.append(new byte[]{3, 0, 0, 0}, 0, 4));
+        assertFalse(columns.append(new byte[]{4, 0, 0, 0}, 0, 4));
+
+        assertEquals(3, columns.size());
+        assertEquals(2, columns.getDroppedCount());
+        assertEquals(0, columns.getOverwrittenCount());
+        assertEquals(2, columns.getLong(0, 2));
+    }
+
+    @Test
+    public void dropsFramesOfWrongSize() {
+        RecordLayout layout = new RecordLayout.Builder(ByteOrder.LITTLE_ENDIAN).addField("value", FieldType.INT32).build();
+        RecordColumns columns = new RecordColumns(layout);
+
+        columns.onFrame(new byte[]{1, 2, 3}, 0, 3);
+        columns.onFrame(new byte[]{1, 0, 0, 0}, 0, 4);
+
+        assertEquals(1, columns.size());
+        assertEquals(1, columns.getMalformedRecordCount());
+    }
+
+}
@@ -0,0 +1,115 @@
+package amplastudio.csvgenerator.stream.simulator;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import amplastudio.csvgenerator.stream.CaptureSession;
+import amplastudio.csvgenerator.stream.framing.DelimiterFrameDecoder;
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Streams from a simulated device while a consumer reads the store, checking no line is lost and the heap stays bounded.
+ * Runs for a couple of seconds by default; soak for longer with ./gradlew :core:test -PsoakSeconds=3600 -PsoakRate=10000
+ */
+public class SimulatedDeviceSoakTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Heap the test may grow by, the store being full once its lines wrap.
+     */
+    private static final long MAX_HEAP_GROWTH = 64L * 1024 * 1024;
+
+    @Test
+    public void keepsEveryLineWithBoundedHeap() throws Exception {
+        final long seconds = Long.getLong("soak.seconds", 2);
+        double rate = Double.parseDouble(System.getProperty("soak.rate", "10000"));
+
+        SimulatedDevice device = new SimulatedDevice.Builder()
+                .linesPerSecond(rate)
+                .chunkSize(1, 200)
+                .jitterMillis(3)
+                .burst((int) (rate / 10), 1000)
+                .disconnectEvery(Math.max(500, seconds * 1000 / 10))
+                .build();
+
+        LineRingBuffer lines = new LineRingBuffer(100000, 4 * 1024 * 1024, LineRingBuffer.EvictionPolicy.DROP_OLDEST);
+        CaptureSession session = new CaptureSession(DelimiterFrameDecoder.lineFeed(), lines);
+        final LineRingBuffer.Consumer consumer = lines.newConsumer();
+        final SequenceChecker checker = new SequenceChecker();
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(!Thread.currentThread().isInterrupted()){
+                    if(consumer.poll(checker, 4096) == 0){
+                        try{
+                            Thread.sleep(1);
+                        }catch(InterruptedException e){
+                            return;
+                        }
+                    }
+                }
+            }
+        });
+        reader.start();
+
+        long heapBefore = usedHeap();
+        long end = System.currentTimeMillis() + seconds * 1000;
+
+        while(System.currentTimeMillis() < end){
+            session.startListen(device.newTransport());
+            while(session.isListening() && System.currentTimeMillis() < end) Thread.sleep(10);
+        }
+
+        device.stop();
+        assertTrue(session.awaitClosed(5000));
+
+        while(consumer.getLag() > 0) Thread.sleep(1);
+        reader.interrupt();
+        reader.join();
+
+        long heapAfter = usedHeap();
+
+        if(checker.error != null) fail(checker.error);
+        assertEquals(0, consumer.getMissedCount());
+        assertEquals(0, lines.getDroppedCount());
+        assertEquals(device.getSentLineCount(), checker.count);
+        assertTrue(checker.count >= rate * seconds / 2);
+        assertTrue("heap grew by " + (heapAfter - heapBefore) + " bytes", heapAfter - heapBefore < MAX_HEAP_GROWTH);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 3; i++){
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Checks every line carries the sequence following the previous one.
+     */
+    private static class SequenceChecker implements LineRingBuffer.LineHandler {
+
+        private volatile long count = 0;
+        private volatile String error = null;
+
+        @Override
+        public void onLine(long sequence, byte[] line, int offset, int length) {
+            if(error != null) return;
+
+            String text = new String(line, offset, length, UTF_8);
+            long received = Long.parseLong(text.substring(0, text.indexOf(',')));
+
+            if(received != count) error = "expected line " + count + " but got " + text;
+            count++;
+        }
+
+    }
+
+}
@@ -0,0 +1,82 @@
+package amplastudio.csvgenerator.stream.simulator;
+
+import org.junit.Test;
+
+import amplastudio.csvgenerator.stream.CaptureSession;
+import amplastudio.csvgenerator.stream.framing.CobsFrameDecoder;
+import amplastudio.csvgenerator.stream.framing.DelimiterFrameDecoder;
+import amplastudio.csvgenerator.stream.record.RecordColumns;
+import amplastudio.csvgenerator.stream.store.LineRingBuffer;
+
+import static org.junit.Assert.*;
+
+public class SimulatedDeviceTest {
+
+    @Test(timeout = 10000)
+    public void sendsContiguousCsvLinesAcrossDisconnects() throws Exception {
+        SimulatedDevice device = new SimulatedDevice.Builder()
+                .linesPerSecond(20000)
+                .channelCount(3)
+                .chunkSize(1, 7)
+                .jitterMillis(2)
+                .burst(100, 10)
+                .disconnectEvery(30)
+                .maxLines(3000)
+                .build();
+
+        LineRingBuffer lines = new LineRingBuffer();
+        CaptureSession session = new CaptureSession(DelimiterFrameDecoder.lineFeed(), lines);
+
+        while(!device.isFinished()){
+            session.startListen(device.newTransport());
+            assertTrue(session.awaitClosed(5000));
+        }
+
+        assertTrue(device.getDisconnectCount() > 0);
+        assertEquals(3000, device.getSentLineCount());
+        assertEquals(3000, lines.size());
+
+        for(int i = 0; i < 3000; i++){
+            String[] fields = lines.get(i).split(",");
+            assertEquals(5, fields.length);
+            assertEquals(i, Long.parseLong(fields[0]));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void sendsCobsRecordsOfItsLayout() throws Exception {
+        SimulatedDevice device = new SimulatedDevice.Builder()
+                .format(SimulatedDevice.Format.COBS_RECORDS)
+                .linesPerSecond(10000)
+                .chunkSize(1, 5)
+                .maxLines(1000)
+                .build();
+
+        RecordColumns records = new RecordColumns(device.getRecordLayout());
+        CaptureSession session = new CaptureSession(new CobsFrameDecoder(), records);
+
+        session.startListen(device.newTransport());
+        assertTrue(session.awaitClosed(5000));
+
+        assertEquals(1000, records.size());
+        assertEquals(0, records.getMalformedRecordCount());
+        for(int i = 0; i < 1000; i++) assertEquals(i, records.getLong(0, i));
+    }
+
+    @Test(timeout = 5000)
+    public void readsCommandsSentByTheHost() throws Exception {
+        SimulatedDevice device = new SimulatedDevice.Builder().linesPerSecond(100).build();
+        CaptureSession session = new CaptureSession(DelimiterFrameDecoder.lineFeed(), new LineRingBuffer());
+
+        session.startListen(device.newTransport());
+        while(!session.isOpen()) Thread.sleep(1);
+        assertTrue(session.sendData("start\n".getBytes(), null));
+
+        while(device.getReceivedByteCount() < 6) Thread.sleep(1);
+        device.stop();
+
+        assertTrue(session.awaitClosed(5000));
+        assertEquals(6, device.getReceivedByteCount());
+    }
+
+}
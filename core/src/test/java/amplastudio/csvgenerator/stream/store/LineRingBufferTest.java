@@ -0,0 +1,283 @@
+package amplastudio.csvgenerator.stream.store;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class LineRingBufferTest {
+
+    @Test
+    public void holdsLinesBySequence() {
+        LineRingBuffer buffer = new LineRingBuffer(10, 1000, LineRingBuffer.EvictionPolicy.DROP_OLDEST);
+
+        assertEquals(0, buffer.add("1,2,3"));
+        assertEquals(1, buffer.add(""));
+        assertEquals(2, buffer.add("\u00e7\u00e3o"));
+
+        assertEquals(3, buffer.size());
+        assertEquals("1,2,3", buffer.get(0));
+        assertEquals("", buffer.get(1));
+        assertEquals("\u00e7\u00e3o", buffer.get(2));
+        assertNull(buffer.get(3));
+
+        buffer.clear();
+        assertTrue(buffer.isEmpty());
+        assertNull(buffer.get(0));
+        assertEquals(3, buffer.add("x"));
+        assertEquals(3, buffer.getFirstSequence());
+        assertEquals("x", buffer.get(3));
+    }
+
+    @Test
+    public void overwritesOldestLinesWhenLineLimitIsReached() {
+        LineRingBuffer buffer = new LineRingBuffer(3, 1000, LineRingBuffer.EvictionPolicy.DROP_OLDEST);
+
+        for(int i = 0; i < 5; i++) buffer.add("line" + i);
+
+        assertEquals(3, buffer.size());
+        assertEquals(2, buffer.getFirstSequence());
+        assertNull(buffer.get(1));
+        assertEquals("line2", buffer.get(2));
+        assertEquals("line4", buffer.get(4));
+        assertEquals(2, buffer.getOverwrittenCount());
+        assertEquals(0, buffer.getDroppedCount());
+    }
+
+    @Test
+    public void overwritesOldestLinesWhenByteLimitIsReached() {
+        LineRingBuffer buffer = new LineRingBuffer(100, 10, LineRingBuffer.EvictionPolicy.DROP_OLDEST);
+
+        buffer.add("aaaa");
+        buffer.add("bbbb");
+        buffer.add("cccc"); /* does not fit after "bbbb", wraps to the start of the segment */
+
+        assertEquals(2, buffer.size());
+        assertEquals("bbbb", buffer.get(1));
+        assertEquals("cccc", buffer.get(2));
+
+        buffer.add("dd");
+        buffer.add("eeeeeeeeee");
+        assertEquals(1, buffer.size());
+        assertEquals("eeeeeeeeee", buffer.get(4));
+
+        assertEquals(-1, buffer.add("fffffffffff"));
+        assertEquals(1, buffer.getDroppedCount());
+        assertEquals(4, buffer.getOverwrittenCount());
+    }
+
+    @Test
+    public void dropsNewestLinesWhenFull() {
+        LineRingBuffer buffer = new LineRingBuffer(2, 1000, LineRingBuffer.EvictionPolicy.DROP_NEWEST);
+
+        buffer.add("a");
+        buffer.add("b");
+        assertEquals(-1, buffer.add("c"));
+
+        assertEquals(2, buffer.size());
+        assertEquals("a", buffer.get(0));
+        assertNull(buffer.get(2));
+        assertEquals(1, buffer.getDroppedCount());
+        assertEquals(0, buffer.getOverwrittenCount());
+    }
+
+    @Test
+    public void memoryStaysBoundedOverLongCaptures() {
+        LineRingBuffer buffer = new LineRingBuffer(1000, 16 * 1024, LineRingBuffer.EvictionPolicy.DROP_OLDEST);
+        byte[] line = "1023,1023,1023,1023,1023,1023,1023,1023".getBytes();
+
+        for(int i = 0; i < 1000000; i++) buffer.add(line, 0, line.length);
+
+        assertTrue(buffer.size() <= 1000);
+        assertEquals(1000000, buffer.getNextSequence());
+        assertEquals(1000000 - buffer.size(), buffer.getOverwrittenCount());
+        assertEquals("1023,1023,1023,1023,1023,1023,1023,1023", buffer.get(999999));
+    }
+
+    @Test
+    public void consumersReadAtTheirOwnPace() {
+        LineRingBuffer buffer = new LineRingBuffer(10, 1000, LineRingBuffer.EvictionPolicy.DROP_OLDEST);
+        LineRingBuffer.Consumer fast = buffer.newConsumer();
+        LineRingBuffer.Consumer slow = buffer.newConsumer();
+        CollectingHandler fastLines = new CollectingHandler();
+        CollectingHandler slowLines = new CollectingHandler();
+
+        buffer.add("a");
+        buffer.add("b");
+        buffer.add("c");
+
+        assertEquals(3, fast.poll(fastLines, 100));
+        assertEquals(1, slow.poll(slowLines, 1));
+        assertEquals(0, fast.getLag());
+        assertEquals(2, slow.getLag());
+
+        buffer.add("d");
+
+        assertEquals(1, fast.poll(fastLines, 100));
+        assertEquals(2, slow.poll(slowLines, 100, 3));
+        assertEquals("[a, b, c, d]", fastLines.lines.toString());
+        assertEquals("[a, b, c]", slowLines.lines.toString());
+        assertEquals(3, slow.getSequence());
+    }
+
+    @Test
+    public void consumerSkipsOverwrittenLines() {
+        LineRingBuffer buffer = new LineRingBuffer(3, 1000, LineRingBuffer.EvictionPolicy.DROP_OLDEST);
+        LineRingBuffer.Consumer consumer = buffer.newConsumer();
+        CollectingHandler handler = new CollectingHandler();
+
+        for(int i = 0; i < 5; i++) buffer.add("line" + i);
+
+        assertEquals(3, consumer.poll(handler, 100));
+        assertEquals("[line2, line3, line4]", handler.lines.toString());
+        assertEquals(2, consumer.getMissedCount());
+    }
+
+    @Test
+    public void keepsTheReceiveTimeOfEveryLine() {
+        LineRingBuffer buffer = new LineRingBuffer(2, 1000, LineRingBuffer.EvictionPolicy.DROP_OLDEST);
+        final LineRingBuffer.Consumer consumer = buffer.newConsumer();
+        final ArrayList<Long> timestamps = new ArrayList<>();
+
+        for(int i = 0; i < 3; i++) buffer.add(new byte[]{'a'}, 0, 1, 1000 + i);
+
+        assertEquals(-1, buffer.getTimestamp(0));
+        assertEquals(1001, buffer.getTimestamp(1));
+        assertEquals(1002, buffer.getTimestamp(2));
+        assertEquals(-1, buffer.getTimestamp(3));
+
+        consumer.poll(new LineRingBuffer.LineHandler() {
+            @Override
+            public void onLine(long sequence, byte[] line, int offset, int length) {
+                timestamps.add(consumer.getLineTimestamp());
+            }
+        }, 100);
+
+        assertEquals("[1001, 1002]", timestamps.toString());
+    }
+
+    @Test(timeout = 20000)
+    public void consumersNeverSeeTornLinesWhileTheProducerWrites() throws Exception {
+        final LineRingBuffer buffer = new LineRingBuffer(64, 2048, LineRingBuffer.EvictionPolicy.DROP_OLDEST);
+        final int lineCount = 500000;
+        final AtomicReference<String> failure = new AtomicReference<>();
+        Thread[] consumers = new Thread[2];
+
+        for(int c = 0; c < consumers.length; c++){
+            final LineRingBuffer.Consumer consumer = buffer.newConsumer();
+            consumers[c] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final long[] received = new long[1];
+                    LineRingBuffer.LineHandler handler = new LineRingBuffer.LineHandler() {
+                        @Override
+                        public void onLine(long sequence, byte[] line, int offset, int length) {
+                            /* every line holds its own sequence, repeated to make tearing visible */
+                            String expected = sequence + "," + sequence + "," + sequence;
+                            String actual = new String(line, offset, length);
+                            if(!expected.equals(actual)) failure.compareAndSet(null, actual + " at " + sequence);
+                            received[0]++;
+                        }
+                    };
+
+                    while(consumer.getSequence() < lineCount) consumer.poll(handler, 100);
+
+                    if(received[0] + consumer.getMissedCount() != lineCount)
+                        failure.compareAndSet(null, received[0] + " received, " + consumer.getMissedCount() + " missed");
+                }
+            });
+            consumers[c].start();
+        }
+
+        for(int i = 0; i < lineCount; i++) buffer.add(i + "," + i + "," + i);
+        for(Thread consumer : consumers) consumer.join();
+
+        assertNull(failure.get());
+    }
+
+    @Test(timeout = 30000)
+    public void readersNeverSeeTornContentsLengthsOrTimestamps() throws Exception {
+        final LineRingBuffer buffer = new LineRingBuffer(32, 1024, LineRingBuffer.EvictionPolicy.DROP_OLDEST);
+        final int lineCount = 400000;
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final AtomicBoolean isProducing = new AtomicBoolean(true);
+        Thread[] readers = new Thread[4];
+
+        for(int r = 0; r < readers.length; r++){
+
+            final boolean isConsumer = r % 2 == 0;
+            final LineRingBuffer.Consumer consumer = buffer.newConsumer();
+
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    Random random = new Random(consumer.hashCode());
+                    LineRingBuffer.LineHandler handler = new LineRingBuffer.LineHandler() {
+                        @Override
+                        public void onLine(long sequence, byte[] line, int offset, int length) {
+                            check(sequence, new String(line, offset, length), consumer.getLineTimestamp(), failure);
+                        }
+                    };
+
+                    while(isProducing.get() || (isConsumer && consumer.getLag() > 0)){
+
+                        if(isConsumer){
+                            consumer.poll(handler, 50);
+                            continue;
+                        }
+
+                        /* random access, as the monitor binds rows */
+                        long sequence = buffer.getNextSequence() - 1 - random.nextInt(40);
+                        long timestamp = buffer.getTimestamp(sequence);
+                        String line = buffer.get(sequence);
+                        if(line != null) check(sequence, line, 1000 + sequence, failure);
+                        if(timestamp != -1 && timestamp != 1000 + sequence)
+                            failure.compareAndSet(null, "timestamp " + timestamp + " at " + sequence);
+                    }
+                }
+            });
+            readers[r].start();
+        }
+
+        for(int i = 0; i < lineCount; i++){
+            byte[] line = line(i).getBytes("UTF-8");
+            buffer.add(line, 0, line.length, 1000 + i);
+        }
+        isProducing.set(false);
+
+        for(Thread reader : readers) reader.join();
+
+        assertNull(failure.get());
+    }
+
+    /**
+     * Line of the given sequence, whose length varies so a length read from another line shows.
+     */
+    private static String line(long sequence){
+        StringBuilder line = new StringBuilder();
+        for(int i = 0; i <= sequence % 7; i++) line.append(sequence).append(';');
+        return line.toString();
+    }
+
+    private static void check(long sequence, String line, long timestamp, AtomicReference<String> failure){
+        if(!line(sequence).equals(line)) failure.compareAndSet(null, line + " at " + sequence);
+        if(timestamp != 1000 + sequence) failure.compareAndSet(null, "timestamp " + timestamp + " at " + sequence);
+    }
+
+    private static class CollectingHandler implements LineRingBuffer.LineHandler{
+
+        final ArrayList<String> lines = new ArrayList<>();
+
+        @Override
+        public void onLine(long sequence, byte[] line, int offset, int length) {
+            lines.add(new String(line, offset, length));
+        }
+
+    }
+
+}
@@ -0,0 +1,85 @@
+package amplastudio.csvgenerator.stream.text;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Utf8StreamDecoderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void decodesCharactersSplitAtEveryByte() throws Exception {
+        String text = "t=12,3;ação,€9,😀x,ñ\r\n0123456789abcdef";
+        byte[] bytes = text.getBytes(UTF_8);
+
+        for(int split = 0; split <= bytes.length; split++){
+            for(int chunkSize = 1; chunkSize <= 4; chunkSize++){
+                assertEquals("split " + split + ", chunks of " + chunkSize, text, decode(bytes, split, chunkSize));
+            }
+        }
+    }
+
+    @Test
+    public void replacesMalformedInputLikeTheCharsetDecoder() throws Exception {
+        Random random = new Random(42);
+        byte[] bytes = new byte[64];
+        byte[] pool = {'a', ',', (byte) 0x80, (byte) 0xBF, (byte) 0xC0, (byte) 0xC3, (byte) 0xE0, (byte) 0xE2,
+                (byte) 0xF0, (byte) 0xF4, (byte) 0xF5, (byte) 0xA0, (byte) 0x90, (byte) 0xFF};
+
+        for(int run = 0; run < 2000; run++){
+            for(int i = 0; i < bytes.length; i++) bytes[i] = pool[random.nextInt(pool.length)];
+            String expected = new String(bytes, UTF_8);
+            assertEquals(expected, decode(bytes, random.nextInt(bytes.length), 1 + random.nextInt(9)));
+        }
+
+        /* the JDK reads an encoded surrogate as a truncated character, Unicode replaces each of its bytes */
+        assertEquals("\uFFFD\uFFFD\uFFFDa", decode(new byte[]{(byte) 0xED, (byte) 0xA0, (byte) 0x80, 'a'}, 1, 1));
+    }
+
+    @Test
+    public void keepsAnIncompleteCharacterUntilFlushed(){
+        Utf8StreamDecoder decoder = new Utf8StreamDecoder();
+        char[] chars = new char[8];
+
+        assertEquals(1, decoder.decode(new byte[]{'a', (byte) 0xE2, (byte) 0x82}, 0, 3, chars, 0));
+        assertTrue(decoder.hasPending());
+        assertEquals(1, decoder.decode(new byte[]{(byte) 0xAC}, 0, 1, chars, 1));
+        assertEquals("a€", new String(chars, 0, 2));
+        assertFalse(decoder.hasPending());
+
+        assertEquals(0, decoder.decode(new byte[]{(byte) 0xC3}, 0, 1, chars, 0));
+        assertEquals(1, decoder.flush(chars, 0));
+        assertEquals(Utf8StreamDecoder.REPLACEMENT, chars[0]);
+        assertEquals(0, decoder.flush(chars, 0));
+
+        assertEquals(0, decoder.decode(new byte[]{(byte) 0xC3}, 0, 1, chars, 0));
+        decoder.reset();
+        assertEquals(1, decoder.decode(new byte[]{'b'}, 0, 1, chars, 0));
+        assertEquals('b', chars[0]);
+    }
+
+    /**
+     * Decodes the bytes in two parts split at the given index, each fed in chunks of the given size.
+     */
+    private static String decode(byte[] bytes, int split, int chunkSize){
+
+        Utf8StreamDecoder decoder = new Utf8StreamDecoder();
+        StringBuilder text = new StringBuilder();
+        char[] chars = new char[Utf8StreamDecoder.maxCharCount(chunkSize)];
+        int length;
+
+        for(int offset = 0; offset < bytes.length; offset += length){
+            length = Math.min(chunkSize, (offset < split ? split : bytes.length) - offset);
+            text.append(chars, 0, decoder.decode(bytes, offset, length, chars, 0));
+        }
+
+        text.append(chars, 0, decoder.flush(chars, 0));
+        return text.toString();
+
+    }
+
+}
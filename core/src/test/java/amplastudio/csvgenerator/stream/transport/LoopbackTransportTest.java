@@ -0,0 +1,107 @@
+package amplastudio.csvgenerator.stream.transport;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class LoopbackTransportTest {
+
+    @Test(timeout = 5000)
+    public void connectsDeviceAndHostStreams() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport(16);
+        transport.getDeviceOutputStream().write("hello".getBytes());
+        transport.open();
+
+        byte[] buffer = new byte[16];
+        assertEquals(5, transport.getInputStream().read(buffer, 0, buffer.length));
+        assertEquals("hello", new String(buffer, 0, 5));
+
+        transport.getOutputStream().write("cmd".getBytes());
+        assertEquals(3, transport.getDeviceInputStream().read(buffer, 0, buffer.length));
+        assertEquals("cmd", new String(buffer, 0, 3));
+    }
+
+    @Test(timeout = 5000)
+    public void closeEndsTheStreamAfterTheBytesAlreadyWritten() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        transport.open();
+        transport.getDeviceOutputStream().write(new byte[]{1, 2});
+        transport.close();
+
+        InputStream in = transport.getInputStream();
+        assertEquals(1, in.read());
+        assertEquals(2, in.read());
+        assertEquals(-1, in.read());
+
+        try{
+            transport.getOutputStream().write(1);
+            fail("write after close");
+        }catch(IOException e){
+            /* expected */
+        }
+
+        try{
+            transport.open();
+            fail("open after close");
+        }catch(IOException e){
+            /* expected */
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void carriesLargeTransfersThroughASmallPipe() throws Exception {
+        final LoopbackTransport transport = new LoopbackTransport(1000);
+        final int total = 10 * 1024 * 1024;
+        final AtomicLong checksum = new AtomicLong();
+
+        Thread device = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] chunk = new byte[777];
+                OutputStream out = transport.getDeviceOutputStream();
+                long sum = 0;
+
+                try{
+                    for(int written = 0; written < total; written += chunk.length){
+                        int length = Math.min(chunk.length, total - written);
+                        for(int i = 0; i < length; i++){
+                            chunk[i] = (byte) (written + i);
+                            sum += chunk[i] & 0xFF;
+                        }
+                        out.write(chunk, 0, length);
+                    }
+                    out.close();
+                }catch(IOException e){
+                    e.printStackTrace();
+                }
+
+                checksum.set(sum);
+            }
+        });
+        device.start();
+
+        transport.open();
+        byte[] buffer = new byte[4096];
+        long received = 0;
+        long sum = 0;
+        int count;
+
+        while((count = transport.getInputStream().read(buffer, 0, buffer.length)) != -1){
+            for(int i = 0; i < count; i++){
+                assertEquals((byte) (received + i), buffer[i]);
+                sum += buffer[i] & 0xFF;
+            }
+            received += count;
+        }
+
+        device.join();
+        assertEquals(total, received);
+        assertEquals(checksum.get(), sum);
+    }
+
+}